@@ -1,6 +1,7 @@
 package cost.data.annotation;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import cost.model.SupervisedModelSVMCLN;
@@ -11,15 +12,26 @@ import cost.model.factoredcost.FactoredCostFeature;
 import cost.model.factoredcost.FactoredCostLabel;
 import cost.model.factoredcost.FactoredCostLabelPair;
 import cost.model.factoredcost.FactoredCostLabelPairUnordered;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.StoppingCriterionHeldOutLoss;
+import cost.model.stopping.StoppingCriterionObjectiveChange;
+import cost.model.stopping.StoppingCriterionPredictionDiff;
+import cost.model.evaluation.SupervisedModelEvaluationWeightedAccuracy;
+import cost.model.stopping.StoppingCriterionTime;
 
 import ark.data.DataTools;
 import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
 
 /**
  * CostDatumTools contains cost function learning tools for manipulating
  * data sets.  An instance of this class can be used as a factory to 
  * instantiate cost function learning models for a given type of datum.
  * 
+ * Datums can carry importance weights (see getDatumWeight), so that
+ * a single datum can stand in for several identical datums during training
+ * and evaluation.  By default, every datum has weight 1.
+ * 
  * @author Bill McDowell
  *
  * @param <D> datum type
@@ -27,11 +39,13 @@ import ark.data.annotation.Datum;
  */
 public abstract class CostDatumTools<D extends Datum<L>,L> extends Datum.Tools<D, L> {	
 	private Map<String, FactoredCost<D, L>> genericFactoredCosts;
+	private Map<String, StoppingCriterion<D, L>> genericStoppingCriteria;
 	
 	public CostDatumTools(DataTools dataTools) {
 		super(dataTools);
 		
 		this.genericFactoredCosts = new HashMap<String, FactoredCost<D, L>>();
+		this.genericStoppingCriteria = new HashMap<String, StoppingCriterion<D, L>>();
 		
 		addLabelMapping(new LabelMapping<L>() {
 			public String toString() {
@@ -47,12 +61,19 @@ public abstract class CostDatumTools<D extends Datum<L>,L> extends Datum.Tools<D
 		
 		addGenericModel(new SupervisedModelSVMCLN<D, L>());		
 		
+		addGenericEvaluation(new SupervisedModelEvaluationWeightedAccuracy<D, L>());
+		
 		addGenericFactoredCost(new FactoredCostConstant<D, L>());
 		addGenericFactoredCost(new FactoredCostLabel<D, L>());
 		addGenericFactoredCost(new FactoredCostLabelPair<D, L>());
 		addGenericFactoredCost(new FactoredCostLabelPairUnordered<D, L>());
 		addGenericFactoredCost(new FactoredCostFeature<D, L>());
 		addGenericFactoredCost(new FactoredCostActualLabelCount<D, L>());
+		
+		addGenericStoppingCriterion(new StoppingCriterionObjectiveChange<D, L>());
+		addGenericStoppingCriterion(new StoppingCriterionPredictionDiff<D, L>());
+		addGenericStoppingCriterion(new StoppingCriterionHeldOutLoss<D, L>());
+		addGenericStoppingCriterion(new StoppingCriterionTime<D, L>());
 	}
 	
 	public FactoredCost<D, L> makeFactoredCostInstance(String genericFactoredCostName) {
@@ -63,4 +84,91 @@ public abstract class CostDatumTools<D extends Datum<L>,L> extends Datum.Tools<D
 		this.genericFactoredCosts.put(factoredCost.getGenericName(), factoredCost);
 		return true;
 	}
+	
+	public StoppingCriterion<D, L> makeStoppingCriterionInstance(String genericStoppingCriterionName) {
+		return this.genericStoppingCriteria.get(genericStoppingCriterionName).clone(this, this.dataTools.getParameterEnvironment());
+	}
+
+	public boolean addGenericStoppingCriterion(StoppingCriterion<D, L> stoppingCriterion) {
+		this.genericStoppingCriteria.put(stoppingCriterion.getGenericName(), stoppingCriterion);
+		return true;
+	}
+	
+	/**
+	 * @param datum
+	 * @return the importance weight of the datum (the number of identical
+	 * datums that it represents).  Datum types that carry weights should
+	 * override this.
+	 */
+	public double getDatumWeight(D datum) {
+		return 1.0;
+	}
+	
+	/**
+	 * @param data
+	 * @return the sum of the importance weights of the datums in data
+	 */
+	public double getDataWeight(Iterable<D> data) {
+		double weight = 0;
+		for (D datum : data)
+			weight += getDatumWeight(datum);
+		return weight;
+	}
+	
+	/**
+	 * @param data
+	 * @param datum
+	 * @return the datum's feature vocabulary values in data packed into one long 
+	 * for every 64 vocabulary indices (with bit j set if the value at index j 
+	 * is +1, and unset if it is -1), or null if the values are not all -1 or +1.  
+	 * Datum types that have a bit-packed representation should override this.
+	 */
+	public long[] getBinaryFeatureBits(FeaturizedDataSet<D, L> data, D datum) {
+		return null;
+	}
+	
+	/**
+	 * @param datumTools
+	 * @param datum
+	 * @return the importance weight of the datum according to datumTools, or
+	 * 1 if datumTools are not cost function learning tools
+	 */
+	@SuppressWarnings("unchecked")
+	public static <D extends Datum<L>, L> double getDatumWeight(Datum.Tools<D, L> datumTools, D datum) {
+		if (datumTools instanceof CostDatumTools)
+			return ((CostDatumTools<D, L>)datumTools).getDatumWeight(datum);
+		return 1.0;
+	}
+	
+	/**
+	 * @param datumTools
+	 * @param data
+	 * @param datum
+	 * @return the datum's packed binary feature vocabulary values in data according 
+	 * to datumTools, or null if they are not available (see the non-static 
+	 * getBinaryFeatureBits)
+	 */
+	@SuppressWarnings("unchecked")
+	public static <D extends Datum<L>, L> long[] getBinaryFeatureBits(Datum.Tools<D, L> datumTools, FeaturizedDataSet<D, L> data, D datum) {
+		if (datumTools instanceof CostDatumTools)
+			return ((CostDatumTools<D, L>)datumTools).getBinaryFeatureBits(data, datum);
+		return null;
+	}
+	
+	/**
+	 * @param datumTools
+	 * @param data
+	 * @return the sum of the importance weights of the datums in data according to
+	 * datumTools, or the number of datums if datumTools are not cost function
+	 * learning tools
+	 */
+	@SuppressWarnings("unchecked")
+	public static <D extends Datum<L>, L> double getDataWeight(Datum.Tools<D, L> datumTools, Iterable<D> data) {
+		if (datumTools instanceof CostDatumTools)
+			return ((CostDatumTools<D, L>)datumTools).getDataWeight(data);
+		double weight = 0;
+		for (Iterator<D> iterator = data.iterator(); iterator.hasNext(); iterator.next())
+			weight += 1.0;
+		return weight;
+	}
 }
\ No newline at end of file
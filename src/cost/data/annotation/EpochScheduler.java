@@ -0,0 +1,141 @@
+package cost.data.annotation;
+
+import java.util.Random;
+
+import cost.model.HeapBudget;
+
+import ark.data.annotation.DataSet;
+import ark.data.annotation.Datum;
+
+/**
+ * EpochScheduler orders the datums of a data set for each
+ * training epoch (full pass over the training data) of a
+ * stochastic gradient learner.  It keeps the datums in a dense
+ * array indexed by 'slot' (the datum's position in the data set's
+ * id order), and shuffles a reusable array of slots in place
+ * at the start of each epoch, so that no lists are allocated and
+ * no datums are looked up by id during training.  Models can also
+ * use the slots to index dense arrays of per-datum training state.
+ *
+ * The shuffle consumes the random number generator in the same way
+ * as ark.data.annotation.DataSet.constructRandomDataPermutation,
+ * so a model that switches to the scheduler visits the datums in
+ * the same order as before.
+ *
+ * The scheduler can also hold the gold label index of each datum
+ * (see indexLabels), so that models don't map and look up the gold
+ * labels of the datums on every training step.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class EpochScheduler<D extends Datum<L>, L> {
+	private D[] datums; // slot -> datum
+	private int[] labelIndices; // slot -> index of the datum's mapped gold label (or -1 if it isn't valid)
+	private int[] order; // position in the epoch -> slot
+	private Random random;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public EpochScheduler(DataSet<D, L> data, Random random) {
+		this.datums = (D[])new Datum[data.size()];
+		this.order = new int[this.datums.length];
+		this.random = random;
+
+		int i = 0;
+		for (D datum : data) {
+			this.datums[i] = datum;
+			this.order[i] = i;
+			i++;
+		}
+	}
+
+	/**
+	 * Computes the gold label index of each datum
+	 *
+	 * @param labelIndex
+	 * @return true if the label indices were computed
+	 */
+	public boolean indexLabels(LabelIndex<L> labelIndex) {
+		this.labelIndices = new int[this.datums.length];
+		for (int i = 0; i < this.datums.length; i++)
+			this.labelIndices[i] = labelIndex.getMappedIndex(this.datums[i].getLabel());
+		return true;
+	}
+
+	/**
+	 * @param datumCount
+	 * @return approximate bytes of heap taken by a scheduler (with label 
+	 * indices) for a data set of datumCount datums (see cost.model.HeapBudget)
+	 */
+	public static long estimateBytes(int datumCount) {
+		return HeapBudget.arrayBytes(datumCount, HeapBudget.REFERENCE_BYTES)
+				+ 2*HeapBudget.arrayBytes(datumCount, HeapBudget.INT_BYTES);
+	}
+
+	/**
+	 * @return the number of datums in each epoch
+	 */
+	public int size() {
+		return this.datums.length;
+	}
+
+	/**
+	 * Shuffles the datums for the next epoch
+	 *
+	 * @return true if the datums were shuffled
+	 */
+	public boolean shuffle() {
+		for (int i = 0; i < this.order.length; i++) {
+			this.order[i] = i;
+			int j = this.random.nextInt(i + 1);
+			int temp = this.order[i];
+			this.order[i] = this.order[j];
+			this.order[j] = temp;
+		}
+		return true;
+	}
+
+	/**
+	 * @param position
+	 * @return the datum at the given position in the current epoch
+	 */
+	public D getDatum(int position) {
+		return this.datums[this.order[position]];
+	}
+
+	/**
+	 * @param position
+	 * @return the slot of the datum at the given position in the current
+	 * epoch (a number in [0, size()) that is fixed for each datum)
+	 */
+	public int getSlot(int position) {
+		return this.order[position];
+	}
+
+	/**
+	 * @param slot
+	 * @return the datum in the given slot
+	 */
+	public D getDatumBySlot(int slot) {
+		return this.datums[slot];
+	}
+
+	/**
+	 * @param position
+	 * @return the gold label index of the datum at the given position in the
+	 * current epoch (see indexLabels)
+	 */
+	public int getLabelIndex(int position) {
+		return this.labelIndices[this.order[position]];
+	}
+
+	/**
+	 * @param slot
+	 * @return the gold label index of the datum in the given slot (see indexLabels)
+	 */
+	public int getLabelIndexBySlot(int slot) {
+		return this.labelIndices[slot];
+	}
+}
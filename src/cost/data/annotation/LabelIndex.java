@@ -0,0 +1,97 @@
+package cost.data.annotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools.LabelMapping;
+import ark.model.SupervisedModel;
+
+/**
+ * LabelIndex assigns each valid label of a model a dense
+ * index in [0, size()), in the iteration order of the model's
+ * valid labels (which is the same order as the label index tables
+ * of the SVM models, so label indices from either can be used to
+ * index the same arrays).  Models and factored costs compute
+ * indices once (for example, the gold label index of each training datum
+ * is computed once per training run by cost.data.annotation.EpochScheduler)
+ * and then work with int label indices, converting them back to
+ * labels only where labels are passed through the model API.
+ *
+ * The index is immutable, so it can be shared by threads and by
+ * clones of a model.
+ *
+ * @author Bill McDowell
+ *
+ * @param <L> label type
+ */
+public class LabelIndex<L> {
+	private List<L> labels; // index -> label
+	private Map<L, Integer> indices; // label -> index
+	private LabelMapping<L> labelMapping;
+
+	public LabelIndex(Collection<L> validLabels, LabelMapping<L> labelMapping) {
+		List<L> labels = new ArrayList<L>(validLabels.size());
+		this.indices = new HashMap<L, Integer>();
+		for (L label : validLabels) {
+			this.indices.put(label, labels.size());
+			labels.add(label);
+		}
+
+		this.labels = Collections.unmodifiableList(labels);
+		this.labelMapping = labelMapping;
+	}
+
+	/**
+	 * @param model
+	 * @return an index of model's valid labels under its label mapping
+	 */
+	public static <D extends Datum<L>, L> LabelIndex<L> fromModel(SupervisedModel<D, L> model) {
+		return new LabelIndex<L>(model.getValidLabels(), model.getLabelMapping());
+	}
+
+	public int size() {
+		return this.labels.size();
+	}
+
+	public List<L> getLabels() {
+		return this.labels;
+	}
+
+	/**
+	 * @param index
+	 * @return the label with the given index
+	 */
+	public L getLabel(int index) {
+		return this.labels.get(index);
+	}
+
+	/**
+	 * @param label a valid label
+	 * @return the index of label, or -1 if it is not a valid label
+	 */
+	public int getIndex(L label) {
+		if (label == null)
+			return -1;
+		Integer index = this.indices.get(label);
+		return (index == null) ? -1 : index;
+	}
+
+	/**
+	 * @param label a label that hasn't been mapped (e.g. a datum's gold label)
+	 * @return the index of the label after the label mapping (as in
+	 * ark.model.SupervisedModel.mapValidLabel), or -1 if the mapped label is
+	 * not valid
+	 */
+	public int getMappedIndex(L label) {
+		if (label == null)
+			return -1;
+		if (this.labelMapping != null)
+			label = this.labelMapping.map(label);
+		return getIndex(label);
+	}
+}
@@ -0,0 +1,140 @@
+package cost.data.annotation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ark.data.annotation.DataSet;
+import ark.data.annotation.Datum;
+import ark.util.FileUtil;
+
+/**
+ * TestDataSetLoader loads synthetic data sets generated by
+ * cost.scratch.ConstructFakeData.  Each line of a data set file
+ * contains tab-separated feature values followed by a label.
+ *
+ * Synthetic data sets often contain many identical rows.  If the
+ * loader is set to collapse duplicates, then it loads each distinct
+ * (feature values, label) row once as a TestDatum whose weight is the
+ * number of times the row occurs in the file, so that
+ * models that honor datum weights (see
+ * cost.data.annotation.CostDatumTools.getDatumWeight) train on a smaller
+ * data set with the same objective.  Collapsed datums are numbered in
+ * the order in which their rows first occur in the file.
+ *
+ * Note that collapsed duplicates always fall in the same cross validation
+ * fold, whereas uncollapsed duplicates can be split across folds.
+ *
+ * If every feature value in the file is -1 or +1 (as in the data sets
+ * generated from cost.scratch.ConstructFakeData.constructFeatureCombinations),
+ * then the datums are bit-packed (see cost.data.annotation.TestDatum), unless
+ * the loader is set not to pack them.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class TestDataSetLoader {
+	private boolean collapseDuplicates;
+	private boolean packBinary;
+
+	public TestDataSetLoader(boolean collapseDuplicates) {
+		this(collapseDuplicates, true);
+	}
+
+	/**
+	 * @param collapseDuplicates
+	 * @param packBinary true if the datums are bit-packed when all of the
+	 * feature values are -1 or +1
+	 */
+	public TestDataSetLoader(boolean collapseDuplicates, boolean packBinary) {
+		this.collapseDuplicates = collapseDuplicates;
+		this.packBinary = packBinary;
+	}
+
+	/**
+	 * @param path
+	 * @param datumTools
+	 * @return the data set in the file at path, or null if the file could not be read
+	 */
+	public DataSet<TestDatum, TestLabel> load(String path, Datum.Tools<TestDatum, TestLabel> datumTools) {
+		List<double[]> rowFeatures = new ArrayList<double[]>();
+		List<TestLabel> rowLabels = new ArrayList<TestLabel>();
+		List<Integer> rowCounts = new ArrayList<Integer>();
+		Map<Row, Integer> rowIndices = new HashMap<Row, Integer>();
+		boolean binary = this.packBinary;
+
+		try {
+			BufferedReader reader = FileUtil.getFileReader(path);
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] lineParts = line.split("\t");
+				double[] features = new double[lineParts.length - 1];
+				for (int i = 0; i < features.length; i++)
+					features[i] = Double.valueOf(lineParts[i]);
+				TestLabel label = TestLabel.valueOf(lineParts[lineParts.length - 1]);
+				binary = binary && TestDatum.isBinary(features);
+
+				if (this.collapseDuplicates) {
+					Row row = new Row(features, label);
+					Integer index = rowIndices.get(row);
+					if (index != null) {
+						rowCounts.set(index, rowCounts.get(index) + 1);
+						continue;
+					}
+					rowIndices.put(row, rowFeatures.size());
+				}
+
+				rowFeatures.add(features);
+				rowLabels.add(label);
+				rowCounts.add(1);
+			}
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+		rowIndices.clear();
+		DataSet<TestDatum, TestLabel> data = new DataSet<TestDatum, TestLabel>(datumTools, null);
+		for (int i = 0; i < rowFeatures.size(); i++) {
+			double[] features = rowFeatures.get(i);
+			if (binary)
+				data.add(new TestDatum(i, TestDatum.packFeatureValues(features), features.length, rowLabels.get(i), rowCounts.get(i)));
+			else
+				data.add(new TestDatum(i, features, rowLabels.get(i), rowCounts.get(i)));
+			rowFeatures.set(i, null);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Row is a key for identical (feature values, label) rows
+	 */
+	private static class Row {
+		private double[] features;
+		private TestLabel label;
+
+		public Row(double[] features, TestLabel label) {
+			this.features = features;
+			this.label = label;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31*Arrays.hashCode(this.features) + this.label.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Row))
+				return false;
+			Row row = (Row)o;
+			return this.label.equals(row.label) && Arrays.equals(this.features, row.features);
+		}
+	}
+}
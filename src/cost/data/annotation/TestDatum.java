@@ -2,25 +2,113 @@ package cost.data.annotation;
 
 import ark.data.DataTools;
 import ark.data.annotation.Datum;
+import ark.data.feature.Feature;
+import ark.data.feature.FeatureIdentity;
+import ark.data.feature.FeaturizedDataSet;
 
 /**
  * TestDatum represents a datum with feature values from a synthetic
- * data set.
+ * data set.  A TestDatum can have an importance weight to stand in for
+ * several identical rows of the data set (see
+ * cost.data.annotation.TestDataSetLoader).
+ * 
+ * Datums whose feature values are all -1 or +1 can be stored in a
+ * bit-packed form (one long for every 64 features, with a bit set for
+ * each +1 value) to save memory on wide synthetic data sets.  Models can
+ * read the packed bits through 
+ * cost.data.annotation.CostDatumTools.getBinaryFeatureBits to score
+ * these datums without materializing their feature values.
  * 
  * @author Bill McDowell
  *
  */
 public class TestDatum extends Datum<TestLabel>  {
-	private double[] featureValues;
+	private double[] featureValues; // null if the datum is bit-packed
+	private long[] featureBits; // bit j of featureBits[j/64] is set if feature j is +1 (null if not bit-packed)
+	private double[] unpackedFeatureValues; // feature values unpacked by getFeatureValues (null until they're needed)
+	private int featureCount;
+	private double weight;
 	
 	public TestDatum(int id, double[] featureValues, TestLabel label) {
+		this(id, featureValues, label, 1.0);
+	}
+	
+	public TestDatum(int id, double[] featureValues, TestLabel label, double weight) {
 		this.id = id;
 		this.featureValues = featureValues;
+		this.featureCount = featureValues.length;
+		this.label = label;
+		this.weight = weight;
+	}
+	
+	public TestDatum(int id, long[] featureBits, int featureCount, TestLabel label, double weight) {
+		this.id = id;
+		this.featureBits = featureBits;
+		this.featureCount = featureCount;
 		this.label = label;
+		this.weight = weight;
 	}
 	
+	/**
+	 * @return the datum's feature values.  If the datum is bit-packed, then
+	 * these are unpacked on the first call and kept for later calls, so 
+	 * the packing only saves memory while the values are read through
+	 * getFeatureBits.
+	 */
 	public double[] getFeatureValues() {
-		return this.featureValues;
+		if (this.featureBits == null)
+			return this.featureValues;
+		if (this.unpackedFeatureValues != null)
+			return this.unpackedFeatureValues;
+		
+		this.unpackedFeatureValues = new double[this.featureCount];
+		for (int i = 0; i < this.unpackedFeatureValues.length; i++)
+			this.unpackedFeatureValues[i] = ((this.featureBits[i >> 6] >>> i) & 1L) != 0 ? 1.0 : -1.0;
+		return this.unpackedFeatureValues;
+	}
+	
+	/**
+	 * @return the datum's packed feature values, or null if the datum
+	 * is not bit-packed
+	 */
+	public long[] getFeatureBits() {
+		return this.featureBits;
+	}
+	
+	public int getFeatureCount() {
+		return this.featureCount;
+	}
+	
+	public boolean isBitPacked() {
+		return this.featureBits != null;
+	}
+	
+	public double getWeight() {
+		return this.weight;
+	}
+	
+	/**
+	 * @param featureValues
+	 * @return true if all of the feature values are -1 or +1
+	 */
+	public static boolean isBinary(double[] featureValues) {
+		for (int i = 0; i < featureValues.length; i++)
+			if (featureValues[i] != 1.0 && featureValues[i] != -1.0)
+				return false;
+		return true;
+	}
+	
+	/**
+	 * @param featureValues values that are all -1 or +1
+	 * @return the values packed into one long for every 64 values, with 
+	 * bits set for the +1 values
+	 */
+	public static long[] packFeatureValues(double[] featureValues) {
+		long[] featureBits = new long[(featureValues.length + 63) >> 6];
+		for (int i = 0; i < featureValues.length; i++)
+			if (featureValues[i] > 0)
+				featureBits[i >> 6] |= 1L << i;
+		return featureBits;
 	}
 	
 	/**
@@ -93,5 +181,26 @@ public class TestDatum extends Datum<TestLabel>  {
 		public TestLabel labelFromString(String str) {
 			return TestLabel.valueOf(str);
 		}
+		
+		@Override
+		public double getDatumWeight(TestDatum datum) {
+			return datum.getWeight();
+		}
+		
+		/**
+		 * The packed bits of a datum give its feature vocabulary values when
+		 * the data set's only feature is an identity feature over all of 
+		 * the datum's values (the identity extractor is the only double 
+		 * extractor for these datums)
+		 */
+		@Override
+		public long[] getBinaryFeatureBits(FeaturizedDataSet<TestDatum, TestLabel> data, TestDatum datum) {
+			if (!datum.isBitPacked() || data.getFeatureCount() != 1)
+				return null;
+			Feature<TestDatum, TestLabel> feature = data.getFeature(0);
+			if (!(feature instanceof FeatureIdentity) || feature.getVocabularySize() != datum.getFeatureCount())
+				return null;
+			return datum.getFeatureBits();
+		}
 	}
 }
@@ -0,0 +1,135 @@
+package cost.data.feature;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+import ark.data.feature.Feature;
+import ark.data.feature.FeaturizedDataSet;
+
+/**
+ * FeatureDictionary names the features in the vocabulary of a
+ * featurized data set (see ark.data.feature.FeaturizedDataSet).  The
+ * models used to copy the names of the features of every datum into
+ * their own maps during their first training iteration, so every model
+ * (and every clone of a model in a grid search) held its own copy of
+ * the vocabulary.  Instead, models now only mark which features they've
+ * seen in a bit set, and reference the dictionary of their training
+ * data, which is shared by all models trained on the data set and only
+ * looks up names when a model is serialized.
+ *
+ * A dictionary is immutable.  A dictionary of a data set keeps the
+ * offset of each of the data set's features in the vocabulary when
+ * the dictionary is made, and gets names from the features themselves, so
+ * it doesn't keep the data set from being garbage collected.  A model
+ * that is read from a file has a dictionary of the names in the file.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class FeatureDictionary {
+	private static Map<FeaturizedDataSet<?, ?>, FeatureDictionary> dictionaries = new WeakHashMap<FeaturizedDataSet<?, ?>, FeatureDictionary>();
+
+	private int size;
+	private int[] offsets; // feature -> index of its first vocabulary term
+	private List<Feature<?, ?>> features;
+	private Map<Integer, String> names; // index -> name (for dictionaries that aren't backed by features)
+
+	private FeatureDictionary(int size, int[] offsets, List<Feature<?, ?>> features, Map<Integer, String> names) {
+		this.size = size;
+		this.offsets = offsets;
+		this.features = features;
+		this.names = names;
+	}
+
+	/**
+	 * @param data
+	 * @return the dictionary of data's feature vocabulary (shared by all callers
+	 * until features are added to data)
+	 */
+	public static synchronized FeatureDictionary fromData(FeaturizedDataSet<?, ?> data) {
+		FeatureDictionary dictionary = dictionaries.get(data);
+		if (dictionary != null && dictionary.size == data.getFeatureVocabularySize())
+			return dictionary;
+
+		List<Feature<?, ?>> features = new ArrayList<Feature<?, ?>>();
+		List<Integer> offsets = new ArrayList<Integer>();
+		int offset = 0;
+		while (offset < data.getFeatureVocabularySize()) {
+			Feature<?, ?> feature = data.getFeature(offset);
+			features.add(feature);
+			offsets.add(offset);
+			offset += feature.getVocabularySize();
+		}
+
+		int[] offsetArray = new int[offsets.size()];
+		for (int i = 0; i < offsetArray.length; i++)
+			offsetArray[i] = offsets.get(i);
+
+		dictionary = new FeatureDictionary(data.getFeatureVocabularySize(), offsetArray, Collections.unmodifiableList(features), null);
+		dictionaries.put(data, dictionary);
+		return dictionary;
+	}
+
+	/**
+	 * @param names map from feature indices to names
+	 * @return a dictionary of the given names
+	 */
+	public static FeatureDictionary fromNames(Map<Integer, String> names) {
+		int size = 0;
+		for (Integer index : names.keySet())
+			size = Math.max(size, index + 1);
+		return new FeatureDictionary(size, null, null, Collections.unmodifiableMap(new HashMap<Integer, String>(names)));
+	}
+
+	/**
+	 * @return one more than the largest feature index in the dictionary
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param indices
+	 * @return map from the set indices to the names of their features
+	 * (indices outside of the dictionary are left out)
+	 */
+	public Map<Integer, String> getNames(BitSet indices) {
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		if (this.names != null) {
+			for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1))
+				if (this.names.containsKey(i))
+					names.put(i, this.names.get(i));
+			return names;
+		}
+
+		// Group the indices by feature so that each feature names its own indices
+		int feature = 0;
+		List<Integer> featureIndices = new ArrayList<Integer>();
+		for (int i = indices.nextSetBit(0); i >= 0 && i < this.size; i = indices.nextSetBit(i + 1)) {
+			if (feature + 1 < this.offsets.length && i >= this.offsets[feature + 1]) {
+				putFeatureNames(feature, featureIndices, names);
+				featureIndices.clear();
+				while (feature + 1 < this.offsets.length && i >= this.offsets[feature + 1])
+					feature++;
+			}
+			featureIndices.add(i - this.offsets[feature]);
+		}
+		putFeatureNames(feature, featureIndices, names);
+
+		return names;
+	}
+
+	private void putFeatureNames(int feature, List<Integer> featureIndices, Map<Integer, String> names) {
+		if (featureIndices.isEmpty())
+			return;
+		Map<Integer, String> featureNames = this.features.get(feature).getSpecificShortNamesForIndices(featureIndices);
+		for (Entry<Integer, String> entry : featureNames.entrySet())
+			names.put(entry.getKey() + this.offsets[feature], entry.getValue());
+	}
+}
@@ -0,0 +1,187 @@
+package cost.data.feature;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import ark.data.feature.FeaturizedDataSet;
+import ark.util.Pair;
+import ark.util.SerializationUtil;
+
+/**
+ * FeatureHashSpace maps the feature vocabulary indices of a featurized
+ * data set (see ark.data.feature.FeaturizedDataSet) into a fixed number
+ * of 2^bits buckets, so that a model's weight tables are bounded no
+ * matter how large the vocabulary grows.  Each feature index is hashed
+ * into a bucket, and its values are added to the bucket with a sign that
+ * is also given by the hash, so that the values of colliding features
+ * tend to cancel out rather than pile up.
+ *
+ * The vocabulary indices are hashed rather than the feature names, since
+ * ark's features build their vocabularies from the data before a model
+ * sees it, so hashing only bounds the model's own tables and not ark's
+ * vocabularies.  A hash space doesn't keep the names of the features in
+ * its buckets, but they can be looked up in a data set's vocabulary for
+ * diagnosing particular weights (see getFeatureNames).
+ *
+ * A hash space is immutable, so it can be shared by the clones of a
+ * model.  A model configures its hash space through the 'featureHashBits'
+ * assignment of its 'extra info' (see deserializeBits).
+ *
+ * @author Bill McDowell
+ *
+ */
+public class FeatureHashSpace {
+	public static final int MAX_BITS = 30;
+
+	private int bits;
+	private int bucketMask;
+
+	/**
+	 * @param bits number of hash bits (between 1 and MAX_BITS)
+	 */
+	public FeatureHashSpace(int bits) {
+		this.bits = bits;
+		this.bucketMask = (1 << bits) - 1;
+	}
+
+	public int getBits() {
+		return this.bits;
+	}
+
+	/**
+	 * @param name
+	 * @return true if name is the 'extra info' assignment that configures
+	 * a model's hash space (see deserializeBits)
+	 */
+	public static boolean isExtraInfo(String name) {
+		return name.equals("featureHashBits");
+	}
+
+	/**
+	 * Reads the right side of a model's 'featureHashBits' assignment
+	 *
+	 * @param reader
+	 * @return the number of hash bits (0 for no hashing), or -1 if it isn't
+	 * between 0 and MAX_BITS
+	 * @throws IOException
+	 */
+	public static int deserializeBits(BufferedReader reader) throws IOException {
+		int bits = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		return (bits < 0 || bits > MAX_BITS) ? -1 : bits;
+	}
+
+	/**
+	 * Writes the 'featureHashBits' assignment read by deserializeBits
+	 *
+	 * @param writer
+	 * @return true if the assignment was written
+	 * @throws IOException
+	 */
+	public boolean serializeExtraInfo(Writer writer) throws IOException {
+		writer.write("\t");
+		Pair<String, String> featureHashBitsAssignment = new Pair<String, String>("featureHashBits", String.valueOf(this.bits));
+		if (!SerializationUtil.serializeAssignment(featureHashBitsAssignment, writer))
+			return false;
+		writer.write("\n");
+		return true;
+	}
+
+	/**
+	 * @return the number of buckets
+	 */
+	public int size() {
+		return 1 << this.bits;
+	}
+
+	/**
+	 * @param featureIndex
+	 * @return the bucket into which the feature vocabulary index is hashed
+	 */
+	public int getBucket(int featureIndex) {
+		return hash(featureIndex) & this.bucketMask;
+	}
+
+	/**
+	 * @param bucket
+	 * @return the name under which a model serializes the weights of a bucket
+	 */
+	public String getBucketName(int bucket) {
+		return "hash" + bucket;
+	}
+
+	/**
+	 * @param featureValues map from feature vocabulary indices to values
+	 * @return map from buckets to the (non-zero) sums of their signed feature values
+	 */
+	public Map<Integer, Double> hashValues(Map<Integer, Double> featureValues) {
+		Map<Integer, Double> hashedValues = new HashMap<Integer, Double>();
+		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
+			int hash = hash(entry.getKey());
+			int bucket = hash & this.bucketMask;
+			double value = (hash < 0) ? -entry.getValue() : entry.getValue();
+			Double prevValue = hashedValues.get(bucket);
+			hashedValues.put(bucket, (prevValue == null) ? value : prevValue + value);
+		}
+
+		// Drop buckets whose values cancelled out, since the weight updates assume
+		// that features in the map have non-zero values
+		Iterator<Entry<Integer, Double>> iterator = hashedValues.entrySet().iterator();
+		while (iterator.hasNext())
+			if (iterator.next().getValue() == 0)
+				iterator.remove();
+
+		return hashedValues;
+	}
+
+	/**
+	 * Looks up the names of the features that are hashed into the given
+	 * buckets.  This scans the whole feature vocabulary of data.
+	 *
+	 * @param data
+	 * @param buckets
+	 * @return map from each of the buckets to the names of the features
+	 * in data's vocabulary that are hashed into it
+	 */
+	public Map<Integer, List<String>> getFeatureNames(FeaturizedDataSet<?, ?> data, Set<Integer> buckets) {
+		List<Integer> featureIndices = new ArrayList<Integer>();
+		for (int i = 0; i < data.getFeatureVocabularySize(); i++)
+			if (buckets.contains(getBucket(i)))
+				featureIndices.add(i);
+
+		Map<Integer, List<String>> bucketNames = new HashMap<Integer, List<String>>();
+		Map<Integer, String> names = data.getFeatureVocabularyNamesForIndices(featureIndices);
+		for (Entry<Integer, String> entry : names.entrySet()) {
+			int bucket = getBucket(entry.getKey());
+			if (!bucketNames.containsKey(bucket))
+				bucketNames.put(bucket, new ArrayList<String>());
+			bucketNames.get(bucket).add(entry.getValue());
+		}
+
+		return bucketNames;
+	}
+
+	/**
+	 * @param featureIndex
+	 * @return a hash of the feature vocabulary index whose low bits give its
+	 * bucket, and whose sign gives the sign of its values (MurmurHash3's
+	 * 32-bit mix)
+	 */
+	private int hash(int featureIndex) {
+		int hash = featureIndex*0xcc9e2d51;
+		hash = Integer.rotateLeft(hash, 15)*0x1b873593;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+}
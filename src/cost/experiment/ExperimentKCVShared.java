@@ -0,0 +1,96 @@
+package cost.experiment;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+
+import cost.model.BudgetedTraining;
+import cost.model.HeapBudget;
+import cost.model.SupervisedModelSVMCLN;
+import cost.model.evaluation.KFoldCrossValidationShared;
+
+import ark.data.annotation.DataSet;
+import ark.data.annotation.Datum;
+import ark.experiment.ExperimentKCV;
+import ark.util.SerializationUtil;
+
+/**
+ * ExperimentKCVShared is an ark.experiment.ExperimentKCV that can
+ * train the cost.model.SupervisedModelSVMCLN models for all folds in a
+ * single sweep over the data per epoch (see
+ * cost.model.evaluation.KFoldCrossValidationShared).  The shared sweep is
+ * used if the experiment configuration file contains the line
+ *
+ * foldSharing=true
+ *
+ * and the experiment's model is a cost.model.SupervisedModelSVMCLN.  Otherwise,
+ * the experiment runs in the same way as ark.experiment.ExperimentKCV.
+ *
+ * If the configuration file also contains a line
+ *
+ * heapBudget=[megabytes]
+ *
+ * and the model implements cost.model.BudgetedTraining, then the models
+ * that train in parallel (with maxThreads greater than 1) share a budget of
+ * that many megabytes of heap, so that a training run only starts once the
+ * estimated footprints of the runs in progress leave room for its own, and
+ * the rest wait in the order in which they were started (see 
+ * cost.model.HeapBudget).  The budget should leave room for the data and
+ * features, which the estimates don't count.  With fold sharing, each 
+ * shared sweep reserves the footprint of all of the models that it trains
+ * from the budget.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> datum label type
+ */
+public class ExperimentKCVShared<D extends Datum<L>, L> extends ExperimentKCV<D, L> {
+	protected boolean foldSharing;
+	protected int heapBudget; // megabytes, or 0 for no limit
+
+	public ExperimentKCVShared(String name, String inputPath, DataSet<D, L> data) {
+		super(name, inputPath, data);
+	}
+
+	@Override
+	protected boolean execute() {
+		if (!this.foldSharing || !(this.model instanceof SupervisedModelSVMCLN)) {
+			if (this.heapBudget > 0 && this.model instanceof BudgetedTraining)
+				((BudgetedTraining<?, ?>)this.model).setHeapBudget(new HeapBudget(this.heapBudget));
+			return super.execute();
+		}
+
+		KFoldCrossValidationShared<D, L> validation = new KFoldCrossValidationShared<D, L>(
+			this.name,
+			(SupervisedModelSVMCLN<D, L>)this.model,
+			this.features,
+			this.evaluations,
+			this.data,
+			this.crossValidationFolds
+		);
+
+		validation.setPossibleHyperParameterValues(this.gridSearchParameterValues);
+		if (this.heapBudget > 0)
+			validation.setHeapBudget(new HeapBudget(this.heapBudget));
+
+		List<Double> results = validation.run(this.maxThreads);
+		if (results == null || results.get(0) < 0)
+			return false;
+
+		return true;
+	}
+
+	@Override
+	protected boolean deserializeNext(BufferedReader reader, String nextName) throws IOException {
+		if (nextName.equals("foldSharing")) {
+			this.foldSharing = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			return true;
+		} else if (nextName.equals("heapBudget")) {
+			this.heapBudget = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			return true;
+		}
+
+		return super.deserializeNext(reader, nextName);
+	}
+}
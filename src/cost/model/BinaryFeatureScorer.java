@@ -0,0 +1,124 @@
+package cost.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * BinaryFeatureScorer computes the feature part of the label scores
+ * of datums whose feature values are all -1 or +1, and are packed into
+ * bits (see cost.data.annotation.CostDatumTools.getBinaryFeatureBits).
+ * The score of a label is the sum of its weights on the datum's +1
+ * features minus the sum of its weights on the -1 features, which is
+ * 2*(sum of the weights on the +1 features)-(sum of all of the label's
+ * weights).  So the scorer keeps the sum of each label's weights (and
+ * of its averaging values for models that average their weights), and
+ * scoring a datum only reads the weights of its +1 features.
+ *
+ * The sums are updated incrementally by the model as its weights
+ * change, and the model makes a new scorer at the start of each training
+ * iteration to keep rounding errors from accumulating.  Weight indices
+ * are labelIndex*numFeatures+featureIndex (see
+ * ark.model.SupervisedModelSVM.getWeightIndex).
+ *
+ * @author Bill McDowell
+ *
+ */
+public class BinaryFeatureScorer {
+	private int numFeatures;
+	private double[] weightSums; // label index -> sum of the label's weights
+	private double[] averageSums; // label index -> sum of the label's averaging values (null without averaging)
+
+	/**
+	 * @param labelCount
+	 * @param numFeatures
+	 * @param weights map from weight indices to weights
+	 * @param averages map from weight indices to averaging values, or null
+	 * without averaging
+	 */
+	public BinaryFeatureScorer(int labelCount, int numFeatures, Map<Integer, Double> weights, Map<Integer, Double> averages) {
+		this.numFeatures = numFeatures;
+		this.weightSums = new double[labelCount];
+		for (Entry<Integer, Double> entry : weights.entrySet())
+			this.weightSums[entry.getKey() / numFeatures] += entry.getValue();
+
+		if (averages != null) {
+			this.averageSums = new double[labelCount];
+			for (Entry<Integer, Double> entry : averages.entrySet())
+				this.averageSums[entry.getKey() / numFeatures] += entry.getValue();
+		}
+	}
+
+	/**
+	 * Records a change of delta to the weight at wIndex
+	 */
+	public void addToWeight(int wIndex, double delta) {
+		this.weightSums[wIndex / this.numFeatures] += delta;
+	}
+
+	/**
+	 * Records a change of delta to the averaging value at wIndex
+	 */
+	public void addToAverage(int wIndex, double delta) {
+		if (this.averageSums != null)
+			this.averageSums[wIndex / this.numFeatures] += delta;
+	}
+
+	/**
+	 * @param featureBits
+	 * @param labelIndex
+	 * @param weights map from weight indices to weights
+	 * @param averages map from weight indices to averaging values, or null to
+	 * score with the weights themselves rather than their averages
+	 * @param averageT number of training steps in the average
+	 * @return the feature part of the label's score, without the label bias
+	 */
+	public double score(long[] featureBits, int labelIndex, Map<Integer, Double> weights, Map<Integer, Double> averages, int averageT) {
+		int offset = labelIndex*this.numFeatures;
+		double setSum = 0;
+		double setSumA = 0;
+		for (int block = 0; block < featureBits.length; block++) {
+			long bits = featureBits[block];
+			while (bits != 0) {
+				int wIndex = offset + (block << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				Double w = weights.get(wIndex);
+				if (w != null)
+					setSum += w;
+				if (averages != null) {
+					Double a = averages.get(wIndex);
+					if (a != null)
+						setSumA += a;
+				}
+			}
+		}
+
+		double score = 2.0*setSum - this.weightSums[labelIndex];
+		if (averages != null)
+			score -= (2.0*setSumA - this.averageSums[labelIndex])/averageT;
+		return score;
+	}
+
+	/**
+	 * @param featureBits
+	 * @param featureIndex
+	 * @return the -1/+1 value of a feature packed in featureBits
+	 */
+	public static double getValue(long[] featureBits, int featureIndex) {
+		return (((featureBits[featureIndex >> 6] >>> featureIndex) & 1L) != 0) ? 1.0 : -1.0;
+	}
+
+	/**
+	 * @param featureBits
+	 * @param numFeatures
+	 * @return the -1/+1 values of the features packed in featureBits, indexed
+	 * by feature vocabulary index
+	 */
+	public static Map<Integer, Double> getValues(long[] featureBits, int numFeatures) {
+		Map<Integer, Double> featureValues = new HashMap<Integer, Double>();
+		for (int i = 0; i < numFeatures; i++)
+			featureValues.put(i, getValue(featureBits, i));
+		return featureValues;
+	}
+}
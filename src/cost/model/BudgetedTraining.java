@@ -0,0 +1,42 @@
+package cost.model;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+
+/**
+ * BudgetedTraining is implemented by models that can estimate their
+ * heap footprint before they train, so that an experiment can limit
+ * the number of models that train in parallel to those that fit in
+ * its heap budget (see cost.model.HeapBudget and
+ * cost.experiment.ExperimentKCVShared).  A model with a budget reserves
+ * its estimate from the budget when it starts training, and releases it
+ * when training finishes.
+ *
+ * The estimates are computed from the number of valid labels, the size
+ * of the feature vocabulary, and the size of the factored cost vocabulary
+ * (see cost.model.factoredcost.FactoredCost.estimateVocabularySize), and
+ * they count the parameters and training state that grow with them (the
+ * weights, AdaGrad sums, and averaged weights), assuming that sparse weight
+ * maps fill up.  So they're upper bounds for the part of the heap that
+ * the models themselves take, and they leave out the data.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public interface BudgetedTraining<D extends Datum<L>, L> {
+	/**
+	 * @param data training data
+	 * @return estimated bytes of heap taken by the model while it trains on
+	 * data (including the candidates that it trains along with itself for
+	 * a joint or successive halving grid search)
+	 */
+	long estimateTrainingBytes(FeaturizedDataSet<D, L> data);
+
+	/**
+	 * @param heapBudget budget shared by the model and its clones (or null
+	 * for no limit)
+	 */
+	void setHeapBudget(HeapBudget heapBudget);
+}
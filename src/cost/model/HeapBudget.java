@@ -0,0 +1,100 @@
+package cost.model;
+
+import java.util.concurrent.Semaphore;
+
+import ark.util.OutputWriter;
+
+/**
+ * HeapBudget limits the estimated heap memory of the models that
+ * train at the same time.  The clones of a model share its budget
+ * (see cost.model.BudgetedTraining), so when several folds or grid
+ * positions train in parallel, each training run first reserves its
+ * estimated footprint from the budget, and runs that don't fit wait
+ * until earlier runs finish and release their reservations.  Waiting runs
+ * are admitted in the order in which they asked, so a large run isn't
+ * starved by smaller runs that keep fitting in front of it, and a run
+ * whose estimate exceeds the whole budget is admitted once it has the
+ * budget to itself.
+ *
+ * The budget is kept in megabytes, and the estimates are rounded up to
+ * whole megabytes.  The helpers below give the approximate heap sizes
+ * (on a 64-bit JVM) of the structures from which models estimate
+ * their footprints.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class HeapBudget {
+	private static final long MEGABYTE = 1024*1024;
+	private static final long ARRAY_HEADER_BYTES = 16;
+	private static final long MAP_ENTRY_BYTES = 80; // Integer -> Double entry in a java.util.HashMap (entry, boxed key and value, and table slot)
+
+	public static final int DOUBLE_BYTES = 8;
+	public static final int INT_BYTES = 4;
+	public static final int REFERENCE_BYTES = 8;
+	public static final int BOXED_BYTES = 16; // an Integer or a Double
+
+	private int megabytes;
+	private Semaphore semaphore;
+
+	public HeapBudget(int megabytes) {
+		this.megabytes = Math.max(1, megabytes);
+		this.semaphore = new Semaphore(this.megabytes, true);
+	}
+
+	public int getMegabytes() {
+		return this.megabytes;
+	}
+
+	/**
+	 * Waits until the budget has room for 'bytes' more bytes, and then
+	 * reserves them
+	 *
+	 * @param bytes estimated footprint of a training run
+	 * @param name name of the training run (for the debug output)
+	 * @param output
+	 * @return the number of megabytes reserved (to be passed to release), or
+	 * -1 if the thread was interrupted while waiting
+	 */
+	public int reserve(long bytes, String name, OutputWriter output) {
+		int permits = (int)Math.min(this.megabytes, Math.max(1, (bytes + MEGABYTE - 1)/MEGABYTE));
+		if (this.semaphore.tryAcquire(permits))
+			return permits;
+
+		output.debugWriteln("Waiting for " + permits + "MB of the " + this.megabytes + "MB heap budget to train " + name + "...");
+		try {
+			this.semaphore.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+
+		return permits;
+	}
+
+	/**
+	 * @param megabytes the number of megabytes returned by reserve
+	 */
+	public void release(int megabytes) {
+		if (megabytes > 0)
+			this.semaphore.release(megabytes);
+	}
+
+	/**
+	 * @param length
+	 * @param elementBytes
+	 * @return approximate bytes taken by an array of 'length' elements
+	 */
+	public static long arrayBytes(long length, int elementBytes) {
+		return ARRAY_HEADER_BYTES + length*elementBytes;
+	}
+
+	/**
+	 * @param entries
+	 * @return approximate bytes taken by a java.util.HashMap from Integer to
+	 * Double with 'entries' entries (e.g. the sparse weight maps of the SVMs)
+	 */
+	public static long weightMapBytes(long entries) {
+		return arrayBytes(entries, 0) + entries*MAP_ENTRY_BYTES;
+	}
+}
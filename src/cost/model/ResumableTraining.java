@@ -0,0 +1,56 @@
+package cost.model;
+
+import java.util.List;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+
+/**
+ * ResumableTraining is implemented by models whose training can be
+ * paused after some number of iterations, and later resumed from the
+ * same state (for example, by cost.model.SuccessiveHalvingTrainer, which
+ * trains many grid search candidates for a few iterations before
+ * deciding which of them to continue).  Training a model for n
+ * iterations and then m more iterations gives the same model as training it
+ * for n+m iterations at once.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public interface ResumableTraining<D extends Datum<L>, L> {
+	/**
+	 * Trains the model for at most 'iterations' more iterations, continuing from
+	 * the state in which the last call stopped (or starting training if the
+	 * model hasn't been trained yet)
+	 *
+	 * @param data
+	 * @param testData
+	 * @param evaluations
+	 * @param iterations
+	 * @return true if the model was trained
+	 */
+	boolean trainIterations(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, int iterations);
+
+	/**
+	 * @return the number of iterations for which the model has been trained
+	 */
+	int getTrainedIterations();
+
+	/**
+	 * @return true if the model has trained for all of its training
+	 * iterations, or if it has stopped early
+	 */
+	boolean isTrainingFinished();
+
+	/**
+	 * Takes the trained parameters of a model with the same configuration
+	 *
+	 * @param model
+	 * @return true if the parameters were taken
+	 */
+	boolean adoptTrainedParameters(SupervisedModel<D, L> model);
+}
@@ -0,0 +1,212 @@
+package cost.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cost.data.annotation.LabelIndex;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools.LabelMapping;
+import ark.data.annotation.structure.DatumStructure;
+import ark.data.annotation.structure.DatumStructureCollection;
+
+/**
+ * StructureInference optimizes the labels of the datum structures
+ * (ark.data.annotation.structure.DatumStructure) in a collection
+ * concurrently.  The structures are independent at inference time, so
+ * each thread takes the next structure that hasn't been optimized, scores
+ * the labels of its datums, runs the structure's optimizer, and stores the
+ * optimized labels as label indices (see cost.data.annotation.LabelIndex)
+ * in an array for the structure.  Results are kept in the order of the
+ * collection, so they don't depend on the number of threads.
+ *
+ * The label scores of a datum are computed by a LabelScorer,
+ * which is called from several threads at once, so it should only read
+ * the model's weights (which must not change during inference).
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class StructureInference<D extends Datum<L>, L> {
+	/**
+	 * LabelScorer computes the scores of the labels of a datum
+	 * that are passed to the datum structure optimizers.
+	 *
+	 * @param <D> datum type
+	 * @param <L> label type
+	 */
+	public interface LabelScorer<D extends Datum<L>, L> {
+		/**
+		 * @param datum
+		 * @param scores array into which to write the score of each label
+		 * by its index
+		 * @return true if the scores were computed
+		 */
+		boolean scoreLabels(D datum, double[] scores);
+	}
+
+	/**
+	 * Result holds the optimized label indices of the datums of each
+	 * structure (-1 for datums whose optimized label has no index).
+	 */
+	public static class Result<D> {
+		private List<List<D>> datums;
+		private int[][] labelIndices;
+
+		private Result(int structureCount) {
+			this.datums = new ArrayList<List<D>>(structureCount);
+			for (int i = 0; i < structureCount; i++)
+				this.datums.add(null);
+			this.labelIndices = new int[structureCount][];
+		}
+
+		public int getStructureCount() {
+			return this.labelIndices.length;
+		}
+
+		public List<D> getDatums(int structure) {
+			return this.datums.get(structure);
+		}
+
+		public int[] getLabelIndices(int structure) {
+			return this.labelIndices[structure];
+		}
+
+		/**
+		 * @return map from datums to their optimized label indices (datums
+		 * in several structures get their label from the last one)
+		 */
+		public Map<D, Integer> toMap() {
+			Map<D, Integer> map = new HashMap<D, Integer>();
+			for (int i = 0; i < this.labelIndices.length; i++) {
+				List<D> structureDatums = this.datums.get(i);
+				for (int j = 0; j < structureDatums.size(); j++)
+					map.put(structureDatums.get(j), this.labelIndices[i][j]);
+			}
+			return map;
+		}
+	}
+
+	private LabelIndex<L> labelIndex;
+	private String optimizerName;
+	private Map<D, L> fixedDatumLabels;
+	private Set<L> validLabels;
+	private LabelMapping<L> labelMapping;
+	private int maxThreads;
+
+	public StructureInference(LabelIndex<L> labelIndex, String optimizerName, Map<D, L> fixedDatumLabels, Set<L> validLabels, LabelMapping<L> labelMapping, int maxThreads) {
+		this.labelIndex = labelIndex;
+		this.optimizerName = optimizerName;
+		this.fixedDatumLabels = fixedDatumLabels;
+		this.validLabels = validLabels;
+		this.labelMapping = labelMapping;
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * @return for each label index, a posterior that puts all of its mass
+	 * on the label with that index.  The posteriors are unmodifiable, so
+	 * that they can be shared by all datums with the same optimized label.
+	 */
+	public List<Map<L, Double>> makeOneHotPosteriors() {
+		List<Map<L, Double>> posteriors = new ArrayList<Map<L, Double>>(this.labelIndex.size());
+		for (int i = 0; i < this.labelIndex.size(); i++) {
+			Map<L, Double> p = new HashMap<L, Double>();
+			for (L label : this.labelIndex.getLabels())
+				p.put(label, 0.0);
+			p.put(this.labelIndex.getLabel(i), 1.0);
+			posteriors.add(Collections.unmodifiableMap(p));
+		}
+		return posteriors;
+	}
+
+	/**
+	 * @param datumStructures
+	 * @param scorer
+	 * @return optimized labels of the datums of each structure, or null if
+	 * scoring or optimization failed
+	 */
+	public Result<D> infer(final DatumStructureCollection<D, L> datumStructures, final LabelScorer<D, L> scorer) {
+		final Result<D> result = new Result<D>(datumStructures.size());
+		final AtomicInteger nextStructure = new AtomicInteger(0);
+		int threads = Math.max(1, Math.min(this.maxThreads, datumStructures.size()));
+
+		Callable<Boolean> worker = new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				double[] scores = new double[StructureInference.this.labelIndex.size()];
+				int structure = 0;
+				while ((structure = nextStructure.getAndIncrement()) < datumStructures.size()) {
+					if (!inferStructure(datumStructures.getDatumStructure(structure), structure, scorer, scores, result))
+						return false;
+				}
+				return true;
+			}
+		};
+
+		if (threads == 1) {
+			try {
+				return (worker.call()) ? result : null;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(threads);
+		for (int i = 0; i < threads; i++)
+			tasks.add(worker);
+
+		try {
+			List<Future<Boolean>> results = threadPool.invokeAll(tasks);
+			threadPool.shutdown();
+			for (Future<Boolean> taskResult : results)
+				if (!taskResult.get())
+					return null;
+		} catch (Exception e) {
+			threadPool.shutdownNow();
+			return null;
+		}
+
+		return result;
+	}
+
+	private boolean inferStructure(DatumStructure<D, L> datumStructure, int structure, LabelScorer<D, L> scorer, double[] scores, Result<D> result) {
+		List<D> datums = new ArrayList<D>(datumStructure.size());
+		Map<D, Map<L, Double>> scoredDatumLabels = new HashMap<D, Map<L, Double>>(datumStructure.size());
+		for (D datum : datumStructure) {
+			if (!scorer.scoreLabels(datum, scores))
+				return false;
+
+			Map<L, Double> datumScores = new HashMap<L, Double>(scores.length);
+			for (int i = 0; i < scores.length; i++)
+				datumScores.put(this.labelIndex.getLabel(i), scores[i]);
+			scoredDatumLabels.put(datum, datumScores);
+			datums.add(datum);
+		}
+
+		Map<D, L> optimizedDatumLabels = datumStructure.optimize(this.optimizerName, scoredDatumLabels, this.fixedDatumLabels, this.validLabels, this.labelMapping);
+		int[] labelIndices = new int[datums.size()];
+		for (int i = 0; i < labelIndices.length; i++)
+			labelIndices[i] = this.labelIndex.getIndex(optimizedDatumLabels.get(datums.get(i)));
+
+		// Each structure's slot is only written by the thread that optimizes it
+		synchronized (result) {
+			result.datums.set(structure, datums);
+			result.labelIndices[structure] = labelIndices;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,352 @@
+package cost.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+import ark.util.OutputWriter;
+import ark.util.Pair;
+import ark.util.SerializationUtil;
+
+/**
+ * SuccessiveHalvingTrainer trains the candidate models for the values of a
+ * grid search hyper-parameter by successive halving.  It trains
+ * every candidate for a small number of iterations, evaluates the
+ * candidates on the dev data with the grid search evaluation, keeps the
+ * best fraction of them, and then continues training the kept candidates from
+ * their current state (see cost.model.ResumableTraining) for twice as
+ * many iterations, until a single candidate remains (which is then trained
+ * for all of its training iterations) or all remaining candidates finish
+ * training.  Candidates that are dropped keep the parameters that they had
+ * when they were dropped.
+ *
+ * The trainer hooks into the grid search in ark.model.evaluation.GridSearch in the same
+ * way as cost.model.SupervisedModelSVMCLNGridTrainer: the grid positions that
+ * the grid search clones from a model share the model's trainer, so the first 
+ * position to train on a data set trains all of the candidates, and each 
+ * position (including the first) then takes the parameters of the candidate 
+ * for its own value.  The grid search then evaluates every position as usual,
+ * so the dropped candidates are compared to the survivors by their dev 
+ * evaluations at the point at which they were dropped.  A model whose value 
+ * is not in the grid, or which is trained on a data set that has changed 
+ * since the search, trains on its own as usual.
+ * 
+ * The candidates are ranked on the data that the grid search passes to the
+ * positions as their test data, which is its dev data.  The model that owns 
+ * the trainer (the model from which the grid positions are cloned) always 
+ * trains on its own, since it's trained on the real test data (for example, 
+ * the final model of ark.model.evaluation.GridSearchTestValidation, or a model
+ * that is validated without a grid search), and ranking the candidates on 
+ * that data would leak the test data into the model selection.
+ * 
+ * The position that trains the candidates reserves their footprint from the
+ * model's heap budget for the search (see 
+ * cost.model.BudgetedTraining.estimateTrainingBytes), so the budget is 
+ * reserved once for all of the candidates rather than by every position.
+ *
+ * The trainer also holds the successive halving configuration of its models, 
+ * which is set through their 'extra info' (see deserializeExtraInfo).
+ *
+ * So the savings are only in training the models that go through this trainer.
+ * ark.model.evaluation.GridSearch still evaluates every grid position on the
+ * dev data, and grid searches over other hyper-parameters (or for models that 
+ * aren't set up for successive halving) still train every position for 
+ * all of its iterations.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class SuccessiveHalvingTrainer<D extends Datum<L>, L> {
+	private String parameter;
+	private List<String> values;
+	private int initialIterations = 1;
+	private double keepFraction = 0.5;
+	private SupervisedModel<D, L> owner; // model whose grid positions share the trainer (or null for a model's configuration before it's cloned)
+	private Map<FeaturizedDataSet<D, L>, SearchRun> runs; // training data -> search results on it
+
+	private class SearchRun {
+		private int dataSize;
+		private boolean searched;
+		private Map<String, SupervisedModel<D, L>> models; // hyper-parameter value -> trained candidate (removed when taken)
+
+		public SearchRun(int dataSize) {
+			this.dataSize = dataSize;
+			this.models = new HashMap<String, SupervisedModel<D, L>>();
+		}
+	}
+
+	public SuccessiveHalvingTrainer() {
+		this.runs = new WeakHashMap<FeaturizedDataSet<D, L>, SearchRun>();
+	}
+
+	/**
+	 * @param name
+	 * @return true if name is one of the 'extra info' assignments that
+	 * configure successive halving (see deserializeExtraInfo)
+	 */
+	public static boolean isExtraInfo(String name) {
+		return name.equals("halvingGridSearchParameterValues")
+				|| name.equals("halvingInitialIterations")
+				|| name.equals("halvingKeepFraction");
+	}
+
+	/**
+	 * Reads an 'extra info' assignment of a model's configuration.  These are
+	 * 'halvingGridSearchParameterValues' with the hyper-parameter and its
+	 * grid values (e.g. 'l2(.01, 1)'), 'halvingInitialIterations' for the
+	 * iterations for which all candidates are trained before the first halving
+	 * (1 by default), and 'halvingKeepFraction' for the fraction of candidates 
+	 * kept at each halving (0.5 by default).
+	 *
+	 * @param name
+	 * @param reader
+	 * @return true if the assignment was read
+	 * @throws IOException
+	 */
+	public boolean deserializeExtraInfo(String name, BufferedReader reader) throws IOException {
+		if (name.equals("halvingGridSearchParameterValues")) {
+			this.parameter = SerializationUtil.deserializeGenericName(reader);
+			this.values = new ArrayList<String>();
+			for (String value : SerializationUtil.deserializeList(reader))
+				if (value.trim().length() > 0)
+					this.values.add(value.trim());
+		} else if (name.equals("halvingInitialIterations")) {
+			this.initialIterations = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("halvingKeepFraction")) {
+			this.keepFraction = Double.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the 'extra info' assignments read by deserializeExtraInfo (if
+	 * successive halving is configured)
+	 *
+	 * @param writer
+	 * @return true if the assignments were written
+	 * @throws IOException
+	 */
+	public boolean serializeExtraInfo(Writer writer) throws IOException {
+		if (this.parameter == null)
+			return true;
+
+		StringBuilder values = new StringBuilder();
+		for (String value : this.values)
+			values.append(value).append(",");
+		if (values.length() > 0)
+			values.deleteCharAt(values.length() - 1);
+
+		writer.write("\t");
+		Pair<String, String> halvingAssignment = new Pair<String, String>("halvingGridSearchParameterValues", this.parameter + "(" + values.toString() + ")");
+		if (!SerializationUtil.serializeAssignment(halvingAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		writer.write("\t");
+		Pair<String, String> halvingIterationsAssignment = new Pair<String, String>("halvingInitialIterations", String.valueOf(this.initialIterations));
+		if (!SerializationUtil.serializeAssignment(halvingIterationsAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		writer.write("\t");
+		Pair<String, String> halvingKeepAssignment = new Pair<String, String>("halvingKeepFraction", String.valueOf(this.keepFraction));
+		if (!SerializationUtil.serializeAssignment(halvingKeepAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		return true;
+	}
+
+	/**
+	 * @param model the model that is being cloned
+	 * @param clone the clone of model
+	 * @return the trainer for clone.  A clone of the model that owns this
+	 * trainer is a grid position, and shares it.  Any other clone gets a
+	 * new trainer with the same configuration, which it owns.
+	 */
+	public SuccessiveHalvingTrainer<D, L> clone(SupervisedModel<D, L> model, SupervisedModel<D, L> clone) {
+		if (this.owner == model)
+			return this;
+
+		SuccessiveHalvingTrainer<D, L> trainer = new SuccessiveHalvingTrainer<D, L>();
+		trainer.parameter = this.parameter;
+		trainer.values = this.values;
+		trainer.initialIterations = this.initialIterations;
+		trainer.keepFraction = this.keepFraction;
+		trainer.owner = clone;
+		return trainer;
+	}
+
+	/**
+	 * @return the number of candidates that the trainer trains together
+	 * (1 if successive halving isn't configured)
+	 */
+	public int getCandidateCount() {
+		return (this.parameter == null) ? 1 : Math.max(1, this.values.size());
+	}
+
+	/**
+	 * Gives model the parameters of its candidate in the successive halving
+	 * search on data (and performs the search if it hasn't been done yet).
+	 * Only grid positions are trained by the search (see clone).
+	 *
+	 * @param model a model that implements cost.model.ResumableTraining
+	 * @param data
+	 * @param testData dev data on which the candidates are evaluated
+	 * @param evaluations evaluations of which the first ranks the candidates
+	 * @param heapBudget budget from which the search reserves its footprint
+	 * (or null for no limit)
+	 * @return true if model was trained.  False if the model must be trained on its own.
+	 */
+	public boolean train(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, HeapBudget heapBudget) {
+		if (this.parameter == null || this.owner == null || model == this.owner)
+			return false;
+
+		String value = model.getHyperParameterValue(this.parameter);
+		if (value == null || evaluations.isEmpty() || testData == null || testData.size() == 0)
+			return false;
+
+		SearchRun run = null;
+		synchronized (this) {
+			run = this.runs.get(data);
+			if (run == null) {
+				run = new SearchRun(data.size());
+				this.runs.put(data, run);
+			} else if (run.dataSize != data.size()) {
+				return false;
+			}
+		}
+
+		SupervisedModel<D, L> trainedModel = null;
+		synchronized (run) {
+			if (!run.searched) {
+				run.searched = true;
+				if (!searchWithinBudget(run, model, data, testData, evaluations, heapBudget))
+					return false;
+			}
+			trainedModel = run.models.remove(value);
+		}
+
+		if (trainedModel == null)
+			return false;
+
+		return resumable(model).adoptTrainedParameters(trainedModel);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean searchWithinBudget(SearchRun run, SupervisedModel<D, L> prototype, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, HeapBudget heapBudget) {
+		if (heapBudget == null || !(prototype instanceof BudgetedTraining))
+			return search(run, prototype, data, testData, evaluations);
+
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		long bytes = ((BudgetedTraining<D, L>)prototype).estimateTrainingBytes(data);
+		int reservedMegabytes = heapBudget.reserve(bytes, prototype.getGenericName() + " by successive halving on " + data.getName(), output);
+		if (reservedMegabytes < 0)
+			return false;
+
+		try {
+			return search(run, prototype, data, testData, evaluations);
+		} finally {
+			heapBudget.release(reservedMegabytes);
+		}
+	}
+
+	private boolean search(SearchRun run, SupervisedModel<D, L> prototype, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		SupervisedModelEvaluation<D, L> evaluation = evaluations.get(0);
+
+		List<SupervisedModel<D, L>> models = new ArrayList<SupervisedModel<D, L>>(this.values.size());
+		List<String> modelValues = new ArrayList<String>(this.values.size());
+		boolean containsPrototypeValue = false;
+		for (String value : this.values) {
+			SupervisedModel<D, L> model = prototype.clone(data.getDatumTools());
+			if (!model.setHyperParameterValue(this.parameter, value, data.getDatumTools()))
+				return false;
+
+			String modelValue = model.getHyperParameterValue(this.parameter);
+			containsPrototypeValue = containsPrototypeValue || modelValue.equals(prototype.getHyperParameterValue(this.parameter));
+			models.add(model);
+			modelValues.add(modelValue);
+		}
+
+		if (!containsPrototypeValue)
+			return false;
+
+		output.debugWriteln("Training " + prototype.getGenericName() + " by successive halving for " + this.parameter + " in " + modelValues + "...");
+
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int i = 0; i < models.size(); i++)
+			candidates.add(i);
+
+		int iterations = Math.max(1, this.initialIterations);
+		while (candidates.size() > 1) {
+			boolean finished = true;
+			for (Integer candidate : candidates) {
+				ResumableTraining<D, L> model = resumable(models.get(candidate));
+				if (!model.trainIterations(data, testData, evaluations, iterations - model.getTrainedIterations()))
+					return false;
+				finished = finished && model.isTrainingFinished();
+			}
+
+			if (finished)
+				break;
+
+			double[] candidateValues = new double[models.size()];
+			for (Integer candidate : candidates) {
+				SupervisedModel<D, L> model = models.get(candidate);
+				candidateValues[candidate] = evaluation.evaluate(model, testData, model.classify(testData));
+			}
+
+			List<Integer> rankedCandidates = new ArrayList<Integer>(candidates.size());
+			for (Integer candidate : candidates) {
+				int position = 0;
+				while (position < rankedCandidates.size() && candidateValues[rankedCandidates.get(position)] >= candidateValues[candidate])
+					position++;
+				rankedCandidates.add(position, candidate);
+			}
+
+			int keep = Math.max(1, (int)Math.ceil(candidates.size()*this.keepFraction));
+			StringBuilder dropped = new StringBuilder();
+			for (int i = keep; i < rankedCandidates.size(); i++)
+				dropped.append(modelValues.get(rankedCandidates.get(i))).append("(").append(candidateValues[rankedCandidates.get(i)]).append(") ");
+			output.debugWriteln("Successive halving (" + this.parameter + ") after " + iterations + " iterations dropped " + dropped.toString());
+
+			candidates = rankedCandidates.subList(0, keep);
+			iterations = (iterations > Integer.MAX_VALUE/2) ? Integer.MAX_VALUE : iterations*2;
+		}
+
+		for (Integer candidate : candidates) {
+			ResumableTraining<D, L> model = resumable(models.get(candidate));
+			if (!model.trainIterations(data, testData, evaluations, Integer.MAX_VALUE))
+				return false;
+		}
+
+		for (int i = 0; i < models.size(); i++)
+			run.models.put(modelValues.get(i), models.get(i));
+
+		return true;
+	}
+
+	/**
+	 * @param model a model that implements cost.model.ResumableTraining
+	 * @return model as resumable training over the trainer's datum and label types
+	 */
+	@SuppressWarnings("unchecked")
+	private ResumableTraining<D, L> resumable(SupervisedModel<D, L> model) {
+		return (ResumableTraining<D, L>)model;
+	}
+}
@@ -3,13 +3,19 @@ package cost.model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import cost.data.annotation.CostDatumTools;
+import cost.data.feature.FeatureDictionary;
 import cost.model.factoredcost.FactoredCost;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+import cost.model.weight.WeightStore;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
@@ -28,6 +34,11 @@ import ark.util.SerializationUtil;
  * ark.model.SupervisedModelSVM should be used as a parent for 
  * cost learning classes instead.
  * 
+ * The dense label feature weights and their AdaGrad sums can be 
+ * kept outside of the heap with a 'weightStorage=DIRECT' or 
+ * 'weightStorage=MAPPED' line in the model's extra info (see
+ * cost.model.weight.WeightStore).
+ * 
  * @author Bill McDowell
  *
  * @param <D> datum type
@@ -36,19 +47,21 @@ import ark.util.SerializationUtil;
  * @deprecated Use ark.model.SupervisedModelSVM and its cost extensions (e.g. 
  * cost.model.SupervisedModelSVMCLN) instead.
  */
-public abstract class SupervisedModelCL<D extends Datum<L>, L> extends SupervisedModel<D, L> {
+public abstract class SupervisedModelCL<D extends Datum<L>, L> extends SupervisedModel<D, L> implements ResumableTraining<D, L>, BudgetedTraining<D, L> {
 	protected BidirectionalLookupTable<L, Integer> labelIndices;
 	protected FactoredCost<D, L> factoredCost;
 	protected int trainingIterations;
-	protected Map<Integer, String> featureNames;
-	protected double[] feature_w; // Labels x Input features
+	protected List<StoppingCriterion<D, L>> stoppingCriteria; // criteria for stopping before trainingIterations (set through 'extra info')
+	protected BitSet featureIndices; // input features seen in training
+	protected FeatureDictionary featureDictionary; // names of the input features (shared by models trained on the same data)
+	protected WeightStore feature_w; // Labels x Input features
 	protected double[] bias_b;
 	protected double[] cost_v;
 	
 	// Adagrad stuff
 	protected int t;
-	protected double[] feature_u; 
-	protected double[] feature_G;  // Just diagonal
+	protected WeightStore feature_u; 
+	protected WeightStore feature_G;  // Just diagonal
 	protected double[] bias_u;
 	protected double[] bias_G;
 	protected double[] cost_u; 
@@ -61,12 +74,26 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 	protected double epsilon = 0;
 	protected String[] hyperParameterNames = { "l2", "l1", "c", "n", "epsilon" };
 	
+	// Storage for the label feature weights and their AdaGrad sums (see cost.model.weight.WeightStore)
+	protected WeightStore.Storage weightStorage = WeightStore.Storage.HEAP; // (set through 'extra info')
+	protected String weightStorageDirectory; // directory for the files of MAPPED storage, or null for the default (set through 'extra info')
+	
+	// Successive halving grid search (see cost.model.SuccessiveHalvingTrainer)
+	protected SuccessiveHalvingTrainer<D, L> halvingTrainer; // null unless configured (set through 'extra info'), and shared by the grid positions cloned from this model
+	
+	// Resumable training state (see cost.model.ResumableTraining)
+	protected TrainingLoop<D, L> trainingLoop; // null until training starts
+	
 	protected abstract boolean trainOneIteration(FeaturizedDataSet<D, L> data);
 	protected abstract boolean initializeTraining(FeaturizedDataSet<D, L> data);
 	public abstract double computeLoss(FeaturizedDataSet<D, L> data);
 	
+	// Admission of parallel training runs by their estimated footprints (see cost.model.BudgetedTraining)
+	protected HeapBudget heapBudget; // shared by the clones of this model (or null for no limit)
+	
 	public SupervisedModelCL() {
-		this.featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
+		this.stoppingCriteria = new ArrayList<StoppingCriterion<D, L>>();
 	}
 	
 	@Override
@@ -89,6 +116,18 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			this.factoredCost = ((CostDatumTools<D,L>)datumTools).makeFactoredCostInstance(genericCost);
 			if (!this.factoredCost.deserialize(reader, false, datumTools))
 				return false;
+		} else if (StoppingCriterion.isExtraInfo(name)) {
+			if (!StoppingCriterion.deserializeExtraInfo(reader, datumTools, this.stoppingCriteria))
+				return false;
+		} else if (SuccessiveHalvingTrainer.isExtraInfo(name)) {
+			if (this.halvingTrainer == null)
+				this.halvingTrainer = new SuccessiveHalvingTrainer<D, L>();
+			if (!this.halvingTrainer.deserializeExtraInfo(name, reader))
+				return false;
+		} else if (name.equals("weightStorage")) {
+			this.weightStorage = WeightStore.Storage.valueOf(SerializationUtil.deserializeAssignmentRight(reader).toUpperCase());
+		} else if (name.equals("weightStorageDirectory")) {
+			this.weightStorageDirectory = SerializationUtil.deserializeAssignmentRight(reader);
 		}
 		
 		return true;
@@ -110,79 +149,200 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			writer.write("\n");
 		}
 		
+		if (!StoppingCriterion.serializeExtraInfo(this.stoppingCriteria, writer))
+			return false;
+		
+		if (this.halvingTrainer != null && !this.halvingTrainer.serializeExtraInfo(writer))
+			return false;
+		
+		if (this.weightStorage != WeightStore.Storage.HEAP) {
+			writer.write("\t");
+			Pair<String, String> weightStorageAssignment = new Pair<String, String>("weightStorage", this.weightStorage.toString());
+			if (!SerializationUtil.serializeAssignment(weightStorageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.weightStorageDirectory != null) {
+			writer.write("\t");
+			Pair<String, String> weightStorageDirectoryAssignment = new Pair<String, String>("weightStorageDirectory", this.weightStorageDirectory);
+			if (!SerializationUtil.serializeAssignment(weightStorageDirectoryAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		return true;
 	}
 
+	/**
+	 * Trains the model.  If the model shares a successive halving trainer
+	 * with the other grid search positions, then the model is trained together
+	 * with them (see cost.model.SuccessiveHalvingTrainer).  If the model has a
+	 * heap budget, then training waits until the budget has room for the 
+	 * model's estimated footprint (see estimateModelBytes).  The successive
+	 * halving trainer reserves the footprint of all of its candidates once, 
+	 * for the grid position that trains them (see estimateTrainingBytes).
+	 */
 	@Override
 	public boolean train(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
-		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		if (this.halvingTrainer != null && this.halvingTrainer.train(this, data, testData, evaluations, this.heapBudget))
+			return true;
+		
+		if (this.heapBudget == null)
+			return trainOnOwn(data, testData, evaluations);
 		
-		if (!this.factoredCost.init(this, data))
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		int reservedMegabytes = this.heapBudget.reserve(estimateModelBytes(data), getGenericName() + " on " + data.getName(), output);
+		if (reservedMegabytes < 0)
 			return false;
 		
-		if (this.cost_v == null) {
-			this.bias_b = new double[this.validLabels.size()];
-			this.feature_w = new double[data.getFeatureVocabularySize()*this.validLabels.size()];
-			this.cost_v = new double[this.factoredCost.getVocabularySize()];
-			
-			this.t = 1;
-			
-			this.feature_u = new double[this.feature_w.length];
-			this.feature_G = new double[this.feature_w.length];
+		try {
+			return trainOnOwn(data, testData, evaluations);
+		} finally {
+			this.heapBudget.release(reservedMegabytes);
+		}
+	}
+	
+	protected boolean trainOnOwn(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		this.trainingLoop = null;
+		return trainIterations(data, testData, evaluations, this.trainingIterations);
+	}
+	
+	@Override
+	public boolean trainIterations(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, int iterations) {
+		if (this.trainingLoop == null) {
+			if (!this.factoredCost.init(this, data))
+				return false;
 			
-			this.bias_u = new double[this.bias_b.length];
-			this.bias_G = new double[this.bias_u.length];
-
-			this.cost_u = new double[this.cost_v.length];
-			this.cost_G = new double[this.cost_v.length];
+			this.featureDictionary = FeatureDictionary.fromData(data);
 			
-			this.cost_i = new Integer[this.cost_v.length];
-			for (int i = 0; i < this.cost_i.length; i++)
-				this.cost_i[i] = i;
+			if (this.cost_v == null) {
+				this.bias_b = new double[this.validLabels.size()];
+				this.feature_w = makeWeightStore(data.getFeatureVocabularySize()*this.validLabels.size());
+				this.cost_v = new double[this.factoredCost.getVocabularySize()];
+				
+				this.t = 1;
+				
+				this.feature_u = makeWeightStore(data.getFeatureVocabularySize()*this.validLabels.size());
+				this.feature_G = makeWeightStore(data.getFeatureVocabularySize()*this.validLabels.size());
+				if (this.feature_w == null || this.feature_u == null || this.feature_G == null)
+					return false;
+				
+				this.bias_u = new double[this.bias_b.length];
+				this.bias_G = new double[this.bias_u.length];
+	
+				this.cost_u = new double[this.cost_v.length];
+				this.cost_G = new double[this.cost_v.length];
+				
+				this.cost_i = new Integer[this.cost_v.length];
+				for (int i = 0; i < this.cost_i.length; i++)
+					this.cost_i[i] = i;
+				
+				if (!initializeTraining(data)) 
+					return false;
+			}
 			
-			if (!initializeTraining(data)) 
+			TrainingLoop<D, L> trainingLoop = makeTrainingLoop(data);
+			if (!trainingLoop.start(makeTrainingStatus(data, testData), testData, evaluations, data.getDatumTools().getDataTools().getOutputWriter()))
 				return false;
+			this.trainingLoop = trainingLoop;
 		}
 		
-		double prevObjectiveValue = objectiveValue(data);
-		Map<D, L> prevPredictions = classify(data);
-		
-		output.debugWriteln("Training " + getGenericName() + " for " + this.trainingIterations + " iterations...");
-		
-		for (int iteration = 0; iteration < this.trainingIterations; iteration++) {
-			if (!trainOneIteration(data))
-				return false;
-			
-			double objectiveValue = objectiveValue(data);
-			double objectiveValueDiff = objectiveValue - prevObjectiveValue;
-			Map<D, L> predictions = classify(data);
-			int labelDifferences = countLabelDifferences(prevPredictions, predictions);
-			
-			double vSum = 0;
-			for (int i = 0; i < this.cost_v.length; i++)
-				vSum += this.cost_v[i];
+		return this.trainingLoop.trainIterations(iterations);
+	}
+	
+	/**
+	 * @param data
+	 * @return a loop that trains the model on data, and logs its objective
+	 * and cost weight sum after every iteration (see cost.model.TrainingLoop)
+	 */
+	protected TrainingLoop<D, L> makeTrainingLoop(final FeaturizedDataSet<D, L> data) {
+		return new TrainingLoop<D, L>(this, this.stoppingCriteria, this.trainingIterations, 1, this.epsilon) {
+			@Override
+			protected boolean trainOneIteration(int iteration) {
+				return SupervisedModelCL.this.trainOneIteration(data);
+			}
 			
-			output.debugWriteln("(c=" + this.factoredCost.getParameterValue("c")  + ", l1=" + this.l1 + ", l2=" + this.l2 + ") Finished iteration " + iteration + " objective diff: " + objectiveValueDiff + " objective: " + objectiveValue + " prediction-diff: " + labelDifferences + "/" + predictions.size() + " v-sum: " + vSum + ").");
+			@Override
+			protected String getLogPrefix() {
+				return "(c=" + SupervisedModelCL.this.factoredCost.getParameterValue("c")  + ", l1=" + SupervisedModelCL.this.l1 + ", l2=" + SupervisedModelCL.this.l2 + ")";
+			}
 			
-			if (iteration > 20 && Math.abs(objectiveValueDiff) < this.epsilon) {
-				output.debugWriteln("(c=" + this.factoredCost.getParameterValue("c")  + ", l1=" + this.l1 + ", l2=" + this.l2 + ") Terminating early at iteration " + iteration);
-				break;
+			@Override
+			protected String getLogSuffix() {
+				double vSum = 0;
+				for (int i = 0; i < SupervisedModelCL.this.cost_v.length; i++)
+					vSum += SupervisedModelCL.this.cost_v[i];
+				return " v-sum: " + vSum;
 			}
 			
-			prevObjectiveValue = objectiveValue;
-			prevPredictions = predictions;
-		}
+			@Override
+			protected boolean isLoggingObjective() {
+				return true;
+			}
+		};
+	}
+	
+	@Override
+	public int getTrainedIterations() {
+		return (this.trainingLoop == null) ? 0 : this.trainingLoop.getIteration();
+	}
+	
+	@Override
+	public boolean isTrainingFinished() {
+		return this.trainingLoop != null && this.trainingLoop.isFinished();
+	}
+	
+	/**
+	 * Takes the parameters of a model with the same configuration that was 
+	 * trained by a successive halving trainer (see cost.model.SuccessiveHalvingTrainer)
+	 */
+	@Override
+	public boolean adoptTrainedParameters(SupervisedModel<D, L> trainedModel) {
+		SupervisedModelCL<D, L> model = (SupervisedModelCL<D, L>)trainedModel;
+		this.labelIndices = model.labelIndices;
+		this.factoredCost = model.factoredCost;
+		this.featureIndices = model.featureIndices;
+		this.featureDictionary = model.featureDictionary;
+		this.feature_w = model.feature_w;
+		this.bias_b = model.bias_b;
+		this.cost_v = model.cost_v;
+		
+		this.t = model.t;
+		this.feature_u = model.feature_u;
+		this.feature_G = model.feature_G;
+		this.bias_u = model.bias_u;
+		this.bias_G = model.bias_G;
+		this.cost_u = model.cost_u;
+		this.cost_G = model.cost_G;
+		this.cost_i = model.cost_i;
 		
 		return true;
 	}
 	
-	private int countLabelDifferences(Map<D, L> labels1, Map<D, L> labels2) {
-		int count = 0;
-		for (Entry<D, L> entry: labels1.entrySet()) {
-			if (!labels2.containsKey(entry.getKey()) || !entry.getValue().equals(labels2.get(entry.getKey())))
-				count++;
-		}
-		return count;
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a status through which the stopping criteria read the objective 
+	 * on data, and the predictions and loss on testData
+	 */
+	protected TrainingStatus<D, L> makeTrainingStatus(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		return new TrainingStatus<D, L>(data, testData, testData) {
+			@Override
+			protected double computeObjectiveValue(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelCL.this.objectiveValue(data);
+			}
+
+			@Override
+			protected Map<D, L> computePredictions(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelCL.this.classify(data);
+			}
+
+			@Override
+			protected double computeLoss(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelCL.this.computeLoss(data);
+			}
+		};
 	}
 	
 	public double objectiveValue(FeaturizedDataSet<D, L> data) {
@@ -190,15 +350,15 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 		
 		if (this.l1 > 0) {
 			double l1Norm = 0;
-			for (int i = 0; i < this.feature_w.length; i++)
-				value += Math.abs(this.feature_w[i]);
+			for (int i = 0; i < this.feature_w.size(); i++)
+				value += Math.abs(this.feature_w.get(i));
 			value += l1Norm*this.l1;
 		}
 		
 		if (this.l2 > 0) {
 			double l2Norm = 0;
-			for (int i = 0; i < this.feature_w.length; i++)
-				value += this.feature_w[i]*this.feature_w[i];
+			for (int i = 0; i < this.feature_w.size(); i++)
+				value += this.feature_w.get(i)*this.feature_w.get(i);
 			value += l2Norm*this.l2*.5;
 		}
 		
@@ -254,9 +414,72 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			clone.factoredCost = this.factoredCost.clone(datumTools, environment);
 		}
 		
+		for (StoppingCriterion<D, L> stoppingCriterion : this.stoppingCriteria)
+			clone.stoppingCriteria.add(stoppingCriterion.clone(datumTools, environment));
+		
+		clone.weightStorage = this.weightStorage;
+		clone.weightStorageDirectory = this.weightStorageDirectory;
+		if (this.halvingTrainer != null)
+			clone.halvingTrainer = this.halvingTrainer.clone(this, clone);
+		
+		clone.heapBudget = this.heapBudget;
+		
 		return clone;
 	}
 	
+	/**
+	 * Estimates the footprint of the model (see estimateModelBytes) and
+	 * each of the candidates that its successive halving trainer trains along
+	 * with it
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		int models = (this.halvingTrainer != null) ? this.halvingTrainer.getCandidateCount() : 1;
+		return models*estimateModelBytes(data);
+	}
+	
+	/**
+	 * @param data
+	 * @return estimated bytes of the label feature weights and their AdaGrad 
+	 * sums (on the heap under the model's weight storage), and of the bias 
+	 * and cost weights, for a single model trained on data
+	 */
+	protected long estimateModelBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long featureCount = data.getFeatureVocabularySize();
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		
+		long bytes = 3*WeightStore.estimateHeapBytes(this.weightStorage, labelCount*featureCount);
+		bytes += 3*HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES);
+		bytes += 3*HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES);
+		bytes += HeapBudget.arrayBytes(costCount, HeapBudget.REFERENCE_BYTES) + costCount*HeapBudget.BOXED_BYTES; // cost indices
+		return bytes;
+	}
+	
+	@Override
+	public void setHeapBudget(HeapBudget heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+	
+	/**
+	 * @return names of the input features seen in training (looked up
+	 * in the feature dictionary)
+	 */
+	protected Map<Integer, String> getFeatureNames() {
+		if (this.featureDictionary == null)
+			return new HashMap<Integer, String>();
+		return this.featureDictionary.getNames(this.featureIndices);
+	}
+	
+	/**
+	 * @param size
+	 * @return a store for 'size' label feature weights (or AdaGrad sums) with 
+	 * the model's weight storage, or null if it couldn't be created
+	 */
+	protected WeightStore makeWeightStore(int size) {
+		return WeightStore.make(this.weightStorage, size, this.weightStorageDirectory);
+	}
+	
 	public FactoredCost<D, L> getFactoredCost() {
 		return this.factoredCost;
 	}
@@ -277,11 +500,14 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 		int numFeatures = numWeights / this.labelIndices.size();
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
-		this.feature_w = new double[numWeights];
-		this.feature_u = new double[this.feature_w.length];
-		this.feature_G = new double[this.feature_w.length];
+		this.feature_w = makeWeightStore(numWeights);
+		this.feature_u = makeWeightStore(numWeights);
+		this.feature_G = makeWeightStore(numWeights);
+		if (this.feature_w == null || this.feature_u == null || this.feature_G == null)
+			return false;
 		
 		this.bias_b = new double[this.labelIndices.size()];
 		this.bias_u = new double[this.bias_b.length];
@@ -309,10 +535,11 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
-				this.feature_w[index] = w;
-				this.feature_u[index] = u;
-				this.feature_G[index] = G;
+				featureNames.put(featureIndex, featureName);
+				this.featureIndices.set(featureIndex);
+				this.feature_w.set(index, w);
+				this.feature_u.set(index, u);
+				this.feature_G.set(index, G);
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -340,6 +567,8 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
@@ -350,7 +579,7 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			return false;
 		writer.write("\n");
 		
-		Pair<String, String> numFeatureWeightsAssignment = new Pair<String, String>("numWeights", String.valueOf(this.feature_w.length));
+		Pair<String, String> numFeatureWeightsAssignment = new Pair<String, String>("numWeights", String.valueOf(this.feature_w.size()));
 		if (!SerializationUtil.serializeAssignment(numFeatureWeightsAssignment, writer))
 			return false;
 		writer.write("\n");
@@ -375,16 +604,17 @@ public abstract class SupervisedModelCL<D extends Datum<L>, L> extends Supervise
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = getFeatureNames();
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
-				int index = i*this.feature_w.length/this.labelIndices.size()+featureName.getKey();
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
+				int index = i*this.feature_w.size()/this.labelIndices.size()+featureName.getKey();
 				
 				String featureValue = label + "-" + 
 									  featureName.getValue() + 
-									  "(w=" + this.feature_w[index] +
-									  ", G=" + this.feature_G[index] +
-									  ", u=" + this.feature_u[index] +
+									  "(w=" + this.feature_w.get(index) +
+									  ", G=" + this.feature_G.get(index) +
+									  ", u=" + this.feature_u.get(index) +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
@@ -1,13 +1,13 @@
 package cost.model;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import cost.model.weight.WeightStore;
+
 import ark.data.annotation.Datum;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.SupervisedModel;
@@ -32,7 +32,7 @@ import ark.model.SupervisedModel;
  */
 public class SupervisedModelCLSVM<D extends Datum<L>, L> extends SupervisedModelCL<D, L> {	
 	private CostWeightComparator costWeightComparator;
-	protected double[] feature_g;
+	protected WeightStore feature_g;
 	protected double[] bias_g;
 	protected double[] cost_g;
 	protected int iteration;
@@ -58,13 +58,28 @@ public class SupervisedModelCLSVM<D extends Datum<L>, L> extends SupervisedModel
 	
 	public SupervisedModelCLSVM() {
 		super();
-		this.featureNames = new HashMap<Integer, String>();
+	}
+
+	/**
+	 * Adds the gradients of the label feature, bias, and cost weights to
+	 * the estimate
+	 */
+	@Override
+	protected long estimateModelBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		return super.estimateModelBytes(data)
+				+ WeightStore.estimateHeapBytes(this.weightStorage, labelCount*data.getFeatureVocabularySize())
+				+ HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES)
+				+ HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES);
 	}
 
 	@Override
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {		
 		this.costWeightComparator = new CostWeightComparator();
-		this.feature_g = new double[this.feature_w.length];
+		this.feature_g = makeWeightStore(this.feature_w.size());
+		if (this.feature_g == null)
+			return false;
 		this.bias_g = new double[this.bias_b.length];
 		this.cost_g = new double[this.cost_v.length];
 		
@@ -82,32 +97,29 @@ public class SupervisedModelCLSVM<D extends Datum<L>, L> extends SupervisedModel
 			Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
 			
 			if (this.iteration == 0) {
-				List<Integer> missingNameKeys = new ArrayList<Integer>();
 				for (Integer key : datumFeatureValues.keySet())
-					if (!this.featureNames.containsKey(key))
-						missingNameKeys.add(key);
-				this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
+					this.featureIndices.set(key);
 			}
 			
 			// Update feature weights
-			for (int i = 0; i < this.feature_w.length; i++) { 
-				if (this.l1 == 0 && this.feature_w[i] == 0 && datumLabelBest)
+			for (int i = 0; i < this.feature_w.size(); i++) { 
+				if (this.l1 == 0 && this.feature_w.get(i) == 0 && datumLabelBest)
 					continue;
 				
-				this.feature_g[i] = this.l2*this.feature_w[i]-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel);
+				this.feature_g.set(i, this.l2*this.feature_w.get(i)-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel));
 				
-				this.feature_G[i] += feature_g[i]*feature_g[i];
-				this.feature_u[i] += feature_g[i];
+				this.feature_G.add(i, feature_g.get(i)*feature_g.get(i));
+				this.feature_u.add(i, feature_g.get(i));
 				
-				if (this.feature_G[i] == 0)
+				if (this.feature_G.get(i) == 0)
 					continue;
 				if (this.l1 == 0)
-					this.feature_w[i] -= feature_g[i]*this.n/Math.sqrt(this.feature_G[i]); 
+					this.feature_w.set(i, this.feature_w.get(i) - feature_g.get(i)*this.n/Math.sqrt(this.feature_G.get(i))); 
 				else {
-					if (Math.abs(this.feature_u[i])/this.t <= this.l1)
-						this.feature_w[i] = 0; 
+					if (Math.abs(this.feature_u.get(i))/this.t <= this.l1)
+						this.feature_w.set(i, 0); 
 					else 
-						this.feature_w[i] = -Math.signum(this.feature_u[i])*(this.t*this.n/(Math.sqrt(this.feature_G[i])))*((Math.abs(this.feature_u[i])/this.t)-this.l1); 
+						this.feature_w.set(i, -Math.signum(this.feature_u.get(i))*(this.t*this.n/(Math.sqrt(this.feature_G.get(i))))*((Math.abs(this.feature_u.get(i))/this.t)-this.l1)); 
 				}
 			}
 			
@@ -205,7 +217,7 @@ public class SupervisedModelCLSVM<D extends Datum<L>, L> extends SupervisedModel
 		int numFeatures = data.getFeatureVocabularySize();
 		int weightIndexOffset = labelIndex*numFeatures;
 		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
-			score += this.feature_w[weightIndexOffset + entry.getKey()]*entry.getValue();
+			score += this.feature_w.get(weightIndexOffset + entry.getKey())*entry.getValue();
 		}
 		
 		score += this.bias_b[labelIndex];
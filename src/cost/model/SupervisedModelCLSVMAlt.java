@@ -1,11 +1,10 @@
 package cost.model;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+
+import cost.util.SimplexProjection;
 
 import ark.data.annotation.Datum;
 import ark.data.feature.FeaturizedDataSet;
@@ -36,34 +35,6 @@ import ark.model.SupervisedModel;
  *
  */
 public class SupervisedModelCLSVMAlt<D extends Datum<L>, L> extends SupervisedModelCLSVM<D, L> {
-	private CostWeightComparator costWeightComparator;
-	
-	private class CostWeightComparator implements Comparator<Integer> {
-	    @Override
-	    public int compare(Integer i1, Integer i2) {
-	    	double u_1 = cost_v[i1];
-	    	double u_2 = cost_v[i2];
-	    	
-	    	if (u_1 > u_2)
-	    		return -1;
-	    	else if (u_1 < u_2)
-	    		return 1;
-	    	else 
-	    		return 0;
-	    }
-	}
-	
-	
-	@Override
-	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {	
-		if (!super.initializeTraining(data))
-			return false;
-			
-		this.costWeightComparator = new CostWeightComparator();
-		
-		return true;
-	}
-	
 	@Override
 	protected boolean trainOneIteration(FeaturizedDataSet<D, L> data) {
 		for (D datum : data) {	
@@ -74,32 +45,29 @@ public class SupervisedModelCLSVMAlt<D extends Datum<L>, L> extends SupervisedMo
 			Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
 			
 			if (iteration == 0) {
-				List<Integer> missingNameKeys = new ArrayList<Integer>();
 				for (Integer key : datumFeatureValues.keySet())
-					if (!this.featureNames.containsKey(key))
-						missingNameKeys.add(key);
-				this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
+					this.featureIndices.set(key);
 			}
 			
 			// Update feature weights
-			for (int i = 0; i < this.feature_w.length; i++) {
-				if (this.l1 == 0 && this.feature_w[i] == 0 && datumLabelBest)
+			for (int i = 0; i < this.feature_w.size(); i++) {
+				if (this.l1 == 0 && this.feature_w.get(i) == 0 && datumLabelBest)
 					continue;
 				
-				feature_g[i] = this.l2*this.feature_w[i]-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel);
+				feature_g.set(i, this.l2*this.feature_w.get(i)-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel));
 				
-				this.feature_G[i] += feature_g[i]*feature_g[i];
-				this.feature_u[i] += feature_g[i];
+				this.feature_G.add(i, feature_g.get(i)*feature_g.get(i));
+				this.feature_u.add(i, feature_g.get(i));
 				
-				if (this.feature_G[i] == 0)
+				if (this.feature_G.get(i) == 0)
 					continue;
 				if (this.l1 == 0)
-					this.feature_w[i] -= feature_g[i]*this.n/Math.sqrt(this.feature_G[i]); 
+					this.feature_w.set(i, this.feature_w.get(i) - feature_g.get(i)*this.n/Math.sqrt(this.feature_G.get(i))); 
 				else {
-					if (Math.abs(this.feature_u[i])/this.t <= this.l1)
-						this.feature_w[i] = 0; 
+					if (Math.abs(this.feature_u.get(i))/this.t <= this.l1)
+						this.feature_w.set(i, 0); 
 					else 
-						this.feature_w[i] = -Math.signum(this.feature_u[i])*this.n*(this.t/(Math.sqrt(this.feature_G[i])))*((Math.abs(this.feature_u[i])/this.t)-this.l1); 
+						this.feature_w.set(i, -Math.signum(this.feature_u.get(i))*this.n*(this.t/(Math.sqrt(this.feature_G.get(i))))*((Math.abs(this.feature_u.get(i))/this.t)-this.l1)); 
 				}
 			}
 			
@@ -138,32 +106,25 @@ public class SupervisedModelCLSVMAlt<D extends Datum<L>, L> extends SupervisedMo
 		}
 		
 		Map<Integer, Double> kappas = this.factoredCost.computeKappas(predictions);
-		for (int i = 0; i < this.cost_v.length; i++) {
-			if (!kappas.containsKey(i))
-				this.cost_v[i] = 0;
-			else
-				this.cost_v[i] = -kappas.get(i);
-		}
 		
-		// Project cost weights onto simplex \sum v_i = 1, v_i >= 0
-		// Find p = max { j : u_j - (1/j)((\sum^j u_i) - 1.0) > 0 } 
-		// where u is sorted desc
-		Arrays.sort(this.cost_i, this.costWeightComparator);
-		double sumV = 0;
-		double theta = 0;
-		for (int p = 0; p < this.cost_v.length; p++) {
-			sumV += this.cost_v[this.cost_i[p]];
-			double prevTheta = theta;
-			theta = (sumV-1.0)/p;
-			if (this.cost_v[this.cost_i[p]]-theta <= 0) {
-				theta = prevTheta;
-				break;
-			}
+		// Project cost weights v = -kappa onto simplex \sum v_i = 1, v_i >= 0
+		// (costs without kappas have v_i = 0 before the projection)
+		int[] indices = new int[kappas.size()];
+		double[] values = new double[kappas.size()];
+		int count = 0;
+		for (Entry<Integer, Double> kappa : kappas.entrySet()) {
+			if (kappa.getKey() < 0 || kappa.getKey() >= this.cost_v.length)
+				continue;
+			indices[count] = kappa.getKey();
+			values[count] = -kappa.getValue();
+			count++;
 		}
 		
-		for (int j = 0; j < this.cost_v.length; j++) {
-			this.cost_v[j] = Math.max(0, this.cost_v[j]-theta);
-		}
+		double theta = SimplexProjection.projectSparse(values, count, this.cost_v.length);
+		for (int j = 0; j < this.cost_v.length; j++)
+			this.cost_v[j] = Math.max(0, -theta);
+		for (int j = 0; j < count; j++)
+			this.cost_v[indices[j]] = values[j];
 		
 		return true;
 	}
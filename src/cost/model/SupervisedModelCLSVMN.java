@@ -1,7 +1,5 @@
 package cost.model;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 import ark.data.annotation.Datum;
@@ -45,32 +43,29 @@ public class SupervisedModelCLSVMN<D extends Datum<L>, L> extends SupervisedMode
 			Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
 			
 			if (this.iteration == 0) {
-				List<Integer> missingNameKeys = new ArrayList<Integer>();
 				for (Integer key : datumFeatureValues.keySet())
-					if (!this.featureNames.containsKey(key))
-						missingNameKeys.add(key);
-				this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
+					this.featureIndices.set(key);
 			}
 			
 			// Update feature weights
-			for (int i = 0; i < this.feature_w.length; i++) {
-				if (this.l1 == 0 && this.feature_w[i] == 0 && datumLabelBest)
+			for (int i = 0; i < this.feature_w.size(); i++) {
+				if (this.l1 == 0 && this.feature_w.get(i) == 0 && datumLabelBest)
 					continue;
 				
-				this.feature_g[i] = this.l2*this.feature_w[i]/N-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel);
+				this.feature_g.set(i, this.l2*this.feature_w.get(i)/N-labelFeatureValue(data, datumFeatureValues, i, datumLabel)+labelFeatureValue(data, datumFeatureValues, i, bestLabel));
 				
-				this.feature_G[i] += this.feature_g[i]*this.feature_g[i];
-				this.feature_u[i] += this.feature_g[i];
+				this.feature_G.add(i, this.feature_g.get(i)*this.feature_g.get(i));
+				this.feature_u.add(i, this.feature_g.get(i));
 				
-				if (this.feature_G[i] == 0)
+				if (this.feature_G.get(i) == 0)
 					continue;
 				if (this.l1 == 0)
-					this.feature_w[i] -= feature_g[i]*this.n/Math.sqrt(this.feature_G[i]); 
+					this.feature_w.set(i, this.feature_w.get(i) - feature_g.get(i)*this.n/Math.sqrt(this.feature_G.get(i))); 
 				else {
-					if (Math.abs(this.feature_u[i])/this.t <= this.l1)
-						this.feature_w[i] = 0; 
+					if (Math.abs(this.feature_u.get(i))/this.t <= this.l1)
+						this.feature_w.set(i, 0); 
 					else 
-						this.feature_w[i] = -Math.signum(this.feature_u[i])*this.n*(this.t/(Math.sqrt(this.feature_G[i])))*((Math.abs(this.feature_u[i])/this.t)-this.l1); 
+						this.feature_w.set(i, -Math.signum(this.feature_u.get(i))*this.n*(this.t/(Math.sqrt(this.feature_G.get(i))))*((Math.abs(this.feature_u.get(i))/this.t)-this.l1)); 
 				}
 			}
 			
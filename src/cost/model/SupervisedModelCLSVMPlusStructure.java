@@ -4,12 +4,13 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+
+import cost.data.annotation.LabelIndex;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
-import ark.data.annotation.structure.DatumStructure;
 import ark.data.annotation.structure.DatumStructureCollection;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.SupervisedModel;
@@ -42,58 +43,58 @@ public class SupervisedModelCLSVMPlusStructure<D extends Datum<L>, L> extends Su
 	
 	public SupervisedModelCLSVMPlusStructure() {
 		super();
-		this.featureNames = new HashMap<Integer, String>();
 	}
 	
 	@Override
-	public Map<D, Map<L, Double>> posterior(FeaturizedDataSet<D, L> data) {
-		Map<D, Map<L, Double>> datumPosteriors = new HashMap<D, Map<L, Double>>(data.size());
+	public Map<D, Map<L, Double>> posterior(final FeaturizedDataSet<D, L> data) {
 		if (this.factoredCost != null && !this.factoredCost.init(this, data))
 			return null;
-		for (D datum : data) {
-			datumPosteriors.put(datum, posteriorForDatum(data, datum));
-		}
 		
+		// Structures are optimized concurrently over the datum posteriors, which 
+		// only read the model's weights
 		DatumStructureCollection<D, L> datumStructureCollection = data.getDatumTools().makeDatumStructureCollection(this.datumStructureCollection, data);
-		Map<D, Map<L, Double>> structurePosteriors = new HashMap<D, Map<L, Double>>(data.size());
+		StructureInference<D, L> inference = new StructureInference<D, L>(LabelIndex.fromModel(this), this.datumStructureOptimizer, this.fixedDatumLabels, this.validLabels, this.labelMapping, data.getMaxThreads());
+		StructureInference.Result<D> result = inference.infer(datumStructureCollection, new StructureInference.LabelScorer<D, L>() {
+			@Override
+			public boolean scoreLabels(D datum, double[] scores) {
+				return posteriorForDatum(data, datum, scores);
+			}
+		});
+		if (result == null)
+			return null;
 		
-		for (DatumStructure<D, L> datumStructure : datumStructureCollection) {
-			Map<D, L> optimizedDatumLabels = datumStructure.optimize(this.datumStructureOptimizer, datumPosteriors, this.fixedDatumLabels, this.validLabels, this.labelMapping);
-			for (Entry<D, L> entry : optimizedDatumLabels.entrySet()) {
-				Map<L, Double> p = new HashMap<L, Double>();
-				for (L validLabel : this.validLabels) {
-					p.put(validLabel, 0.0);
-				}
-				p.put(entry.getValue(), 1.0);
-				
-				structurePosteriors.put(entry.getKey(), p);
+		List<Map<L, Double>> labelPosteriors = inference.makeOneHotPosteriors();
+		Map<D, Map<L, Double>> structurePosteriors = new HashMap<D, Map<L, Double>>(data.size());
+		for (int i = 0; i < result.getStructureCount(); i++) {
+			List<D> datums = result.getDatums(i);
+			int[] labelIndices = result.getLabelIndices(i);
+			for (int j = 0; j < labelIndices.length; j++) {
+				if (labelIndices[j] >= 0)
+					structurePosteriors.put(datums.get(j), labelPosteriors.get(labelIndices[j]));
 			}
 		}
 
 		return structurePosteriors;
 	}
 
-	private Map<L, Double> posteriorForDatum(FeaturizedDataSet<D, L> data, D datum) {
-		Map<L, Double> posterior = new HashMap<L, Double>(this.validLabels.size());
-		double[] scores = new double[this.validLabels.size()];
+	private boolean posteriorForDatum(FeaturizedDataSet<D, L> data, D datum, double[] posterior) {
 		double max = Double.NEGATIVE_INFINITY;
 		for (L label : this.validLabels) {
-			double score = scoreLabel(data, datum, label, false);
-			scores[this.labelIndices.get(label)] = score;
-			if (score > max)
-				max = score;
+			int labelIndex = this.labelIndices.get(label);
+			posterior[labelIndex] = scoreLabel(data, datum, label, false);
+			if (posterior[labelIndex] > max)
+				max = posterior[labelIndex];
 		}
 		
 		double lse = 0;
-		for (int i = 0; i < scores.length; i++)
-			lse += Math.exp(scores[i] - max);
+		for (int i = 0; i < posterior.length; i++)
+			lse += Math.exp(posterior[i] - max);
 		lse = max + Math.log(lse);
 		
-		for (L label : this.validLabels) {
-			posterior.put(label, Math.exp(scores[this.labelIndices.get(label)]-lse));
-		}
+		for (int i = 0; i < posterior.length; i++)
+			posterior[i] = Math.exp(posterior[i]-lse);
 		
-		return posterior;
+		return true;
 	}
 	
 	@Override
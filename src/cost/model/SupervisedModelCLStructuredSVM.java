@@ -3,14 +3,16 @@ package cost.model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import cost.data.annotation.LabelIndex;
+import cost.model.weight.WeightStore;
+import cost.util.SimplexProjection;
+import cost.util.SparseAccumulator;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.annotation.structure.DatumStructure;
@@ -40,46 +42,48 @@ import ark.util.SerializationUtil;
  *
  */
 public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends SupervisedModelCL<D, L> {	
-	private CostWeightComparator costWeightComparator;
-	protected double[] feature_g;
+	protected WeightStore feature_g;
+	protected WeightStore feature_t; // Step from which each label feature weight misses regularization steps
 	protected double[] bias_g;
 	protected double[] cost_g;
 	protected int iteration;
+	private SparseAccumulator datumStructureFeatures; // Feature value sums of the gold labels of a structure
+	private SparseAccumulator bestStructureFeatures; // Feature value sums of the best labels of a structure
 	
 	protected String datumStructureOptimizer;
 	protected String datumStructureCollection;
 	protected DatumStructureCollection<D, L> trainingDatumStructureCollection;
 	
-	private class CostWeightComparator implements Comparator<Integer> {
-	    @Override
-	    public int compare(Integer i1, Integer i2) {
-	    	double u_1 = cost_G[i1]*(2.0*cost_v[i1]-1);
-	    	double u_2 = cost_G[i2]*(2.0*cost_v[i2]-1);
-	    	
-	    	if (cost_G[i1] != 0 && cost_G[i2] == 0)
-	    		return -1;
-	    	else if (cost_G[i1] == 0 && cost_G[i2] != 0)
-	    		return 1;
-	    	if (u_1 > u_2)
-	    		return -1;
-	    	else if (u_1 < u_2)
-	    		return 1;
-	    	else 
-	    		return 0;
-	    }
-	}
-	
 	public SupervisedModelCLStructuredSVM() {
 		super();
-		this.featureNames = new HashMap<Integer, String>();
+	}
+
+	/**
+	 * Adds the gradients of the label feature, bias, and cost weights, and
+	 * the regularization steps of the label feature weights to the estimate
+	 */
+	@Override
+	protected long estimateModelBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long weightCount = labelCount*data.getFeatureVocabularySize();
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		return super.estimateModelBytes(data)
+				+ WeightStore.estimateHeapBytes(this.weightStorage, weightCount)
+				+ HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES)
+				+ HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES)
+				+ WeightStore.estimateHeapBytes(this.weightStorage, weightCount);
 	}
 
 	@Override
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {		
-		this.costWeightComparator = new CostWeightComparator();
-		this.feature_g = new double[this.feature_w.length];
+		this.feature_g = makeWeightStore(this.feature_w.size());
+		this.feature_t = makeWeightStore(this.feature_w.size());
+		if (this.feature_g == null || this.feature_t == null)
+			return false;
 		this.bias_g = new double[this.bias_b.length];
 		this.cost_g = new double[this.cost_v.length];
+		this.datumStructureFeatures = new SparseAccumulator();
+		this.bestStructureFeatures = new SparseAccumulator();
 		
 		this.trainingDatumStructureCollection = data.getDatumTools().makeDatumStructureCollection(this.datumStructureCollection, data);
 		
@@ -89,39 +93,27 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 	@Override
 	protected boolean trainOneIteration(FeaturizedDataSet<D, L> data) {
 		for (DatumStructure<D, L> datumStructure : this.trainingDatumStructureCollection) {
+			regularizeDatumStructureWeights(data, datumStructure);
 			Map<D, Map<L, Double>> scoredDatumLabels = scoreDatumStructureLabels(data, datumStructure, true);
 			Map<D, L> datumLabels = datumStructure.getDatumLabels(this.labelMapping);
 			// Maybe just optimize here...?
 			Map<D, L> bestDatumLabels = getBestDatumLabels(data, datumStructure, scoredDatumLabels);
 
-			Map<Integer, Double> datumStructureFeatureValues = computeDatumStructureFeatureValues(data, datumStructure, datumLabels, iteration == 0);
-			Map<Integer, Double> bestStructureFeatureValues = computeDatumStructureFeatureValues(data, datumStructure, bestDatumLabels, false);
+			this.datumStructureFeatures.clear();
+			this.bestStructureFeatures.clear();
+			accumulateDatumStructureFeatureValues(data, datumStructure, datumLabels, iteration == 0, this.datumStructureFeatures);
+			accumulateDatumStructureFeatureValues(data, datumStructure, bestDatumLabels, false, this.bestStructureFeatures);
 			Map<Integer, Double> bestStructureCosts = computeDatumStructureCosts(datumStructure, bestDatumLabels);
 			
-			// Update feature weights
-			for (int i = 0; i < this.feature_w.length; i++) { 
-				double datumFeatureValue = (datumStructureFeatureValues.containsKey(i)) ? datumStructureFeatureValues.get(i) : 0.0;
-				double bestFeatureValue = (bestStructureFeatureValues.containsKey(i)) ? bestStructureFeatureValues.get(i) : 0.0;
-				
-				if (this.l1 == 0 && this.feature_w[i] == 0 && datumFeatureValue == bestFeatureValue)
-					continue;
-				
-				feature_g[i] = this.l2*this.feature_w[i]-datumFeatureValue+bestFeatureValue;
-				
-				this.feature_G[i] += feature_g[i]*feature_g[i];
-				this.feature_u[i] += feature_g[i];
-				
-				if (this.feature_G[i] == 0)
-					continue;
-				if (this.l1 == 0)
-					this.feature_w[i] -= feature_g[i]*this.n/Math.sqrt(this.feature_G[i]); 
-				else {
-					if (Math.abs(this.feature_u[i])/this.t <= this.l1)
-						this.feature_w[i] = 0; 
-					else 
-						this.feature_w[i] = -Math.signum(this.feature_u[i])*(this.t*this.n/(Math.sqrt(this.feature_G[i])))*((Math.abs(this.feature_u[i])/this.t)-this.l1); 
-				}
-			}
+			// Update feature weights.  Outside of the structures' features, the
+			// gradient only has the l2 term, so the other weights catch up on 
+			// their regularization steps when they're next read (see 
+			// regularizeFeatureWeight)
+			for (int j = 0; j < this.datumStructureFeatures.size(); j++)
+				updateFeatureWeight(this.datumStructureFeatures.getIndex(j));
+			for (int j = 0; j < this.bestStructureFeatures.size(); j++)
+				if (!this.datumStructureFeatures.contains(this.bestStructureFeatures.getIndex(j)))
+					updateFeatureWeight(this.bestStructureFeatures.getIndex(j));
 			
 			// Update label biases
 			for (int i = 0; i < this.bias_b.length; i++) {
@@ -148,40 +140,98 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 			}
 			
 			// Project cost weights onto simplex \sum v_i = 1, v_i >= 0
-			// Find p = max { j : u_j - 1/G_j((\sum^j u_i) - 1.0)/(\sum^j 1.0/G_i) > 0 } 
-			// where u and G are sorted desc
-			Arrays.sort(this.cost_i, costWeightComparator);
-			double sumV = 0;
-			double harmonicG = 0;
-			double theta = 0;
-			for (int p = 0; p < this.cost_v.length; p++) {
-				if (this.cost_G[this.cost_i[p]] != 0) {
-					sumV += this.cost_v[this.cost_i[p]];
-					harmonicG += 1.0/this.cost_G[this.cost_i[p]];
-				}
-				double prevTheta = theta;
-				theta = (sumV-1.0)/harmonicG;
-				if (this.cost_G[this.cost_i[p]] == 0 || this.cost_v[this.cost_i[p]]-theta/this.cost_G[this.cost_i[p]] <= 0) {
-					theta = prevTheta;
-					break;
-				}
-			}
-			
-			for (int j = 0; j < this.cost_v.length; j++) {
-				if (this.cost_G[j] == 0)
-					this.cost_v[j] = 0;
-				else
-					this.cost_v[j] = Math.max(0, this.cost_v[j]-theta/this.cost_G[j]);
-			}
+			// under the metric \sum G_i (x_i - v_i)^2
+			SimplexProjection.project(this.cost_v, this.cost_G);
 			
 			this.t++;
 		}
 		
+		// Bring all of the weights up to date, so that they can be read
+		// outside of training
+		for (int i = 0; i < this.feature_w.size(); i++)
+			regularizeFeatureWeight(i);
+		
 		this.iteration++;
 
 		return true;
 	}
 	
+	private void updateFeatureWeight(int i) {
+		regularizeFeatureWeight(i);
+		updateFeatureWeight(i, this.t, this.datumStructureFeatures.get(i), this.bestStructureFeatures.get(i));
+		if (this.feature_G.get(i) != 0)
+			this.feature_t.set(i, this.t + 1);
+	}
+	
+	/**
+	 * Applies the regularization steps that weight i missed from feature_t
+	 * up to (but not including) step t, while its features were outside of the
+	 * trained structures.  The gradients of the missed steps are only the l2
+	 * terms, so weights without a gradient yet (and weights that reached 
+	 * zero) don't change, and without l2, the steps only change the l1 
+	 * weight through t.  The missed steps are applied in the same way as the 
+	 * steps of the features in the structures, so the weights are the same 
+	 * as if every weight were updated at every step.
+	 */
+	private void regularizeFeatureWeight(int i) {
+		if (this.feature_G.get(i) == 0)
+			return;
+		int t = (int)this.feature_t.get(i);
+		if (t == this.t)
+			return;
+		
+		if (this.l2 == 0) {
+			if (this.l1 != 0)
+				updateFeatureWeight(i, this.t - 1, 0.0, 0.0);
+		} else {
+			for (; t < this.t && this.feature_w.get(i) != 0; t++)
+				updateFeatureWeight(i, t, 0.0, 0.0);
+		}
+		
+		this.feature_t.set(i, this.t);
+	}
+	
+	/**
+	 * Brings the weights that score the labels of the datums in 
+	 * datumStructure up to date (see regularizeFeatureWeight)
+	 */
+	private void regularizeDatumStructureWeights(FeaturizedDataSet<D,L> data, DatumStructure<D, L> datumStructure) {
+		int numDatumFeatures = data.getFeatureVocabularySize();
+		for (D datum : datumStructure) {
+			Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
+			for (int labelIndex = 0; labelIndex < this.bias_b.length; labelIndex++) {
+				int featureLabelOffset = numDatumFeatures*labelIndex;
+				for (Integer key : datumFeatureValues.keySet())
+					regularizeFeatureWeight(featureLabelOffset + key);
+			}
+		}
+	}
+	
+	/**
+	 * Takes step t of weight i, given the structures' sums of the weight's 
+	 * feature values under the gold and best labels
+	 */
+	private void updateFeatureWeight(int i, int t, double datumFeatureValue, double bestFeatureValue) {
+		if (this.l1 == 0 && this.feature_w.get(i) == 0 && datumFeatureValue == bestFeatureValue)
+			return;
+		
+		feature_g.set(i, this.l2*this.feature_w.get(i)-datumFeatureValue+bestFeatureValue);
+		
+		this.feature_G.add(i, feature_g.get(i)*feature_g.get(i));
+		this.feature_u.add(i, feature_g.get(i));
+		
+		if (this.feature_G.get(i) == 0)
+			return;
+		if (this.l1 == 0)
+			this.feature_w.set(i, this.feature_w.get(i) - feature_g.get(i)*this.n/Math.sqrt(this.feature_G.get(i))); 
+		else {
+			if (Math.abs(this.feature_u.get(i))/t <= this.l1)
+				this.feature_w.set(i, 0); 
+			else 
+				this.feature_w.set(i, -Math.signum(this.feature_u.get(i))*(t*this.n/(Math.sqrt(this.feature_G.get(i))))*((Math.abs(this.feature_u.get(i))/t)-this.l1)); 
+		}
+	}
+	
 	private int getLabelCount(Map<D, L> datumsToLabels, L countLabel) {
 		int count = 0;
 		for (L label : datumsToLabels.values())
@@ -238,9 +288,9 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 	private double scoreDatumStructure(FeaturizedDataSet<D, L> data, DatumStructure<D, L> datumStructure, Map<D, L> structureLabels, boolean includeCost) {
 		double score = 0.0;
 		
-		Map<Integer, Double> datumStructureFeatureValues = computeDatumStructureFeatureValues(data, datumStructure, structureLabels, false);
+		Map<Integer, Double> datumStructureFeatureValues = computeDatumStructureFeatureValues(data, datumStructure, structureLabels);
 		for (Entry<Integer, Double> entry : datumStructureFeatureValues.entrySet()) {
-			score += this.feature_w[entry.getKey()]*entry.getValue();
+			score += this.feature_w.get(entry.getKey())*entry.getValue();
 		}
 		
 		for (int i = 0; i < this.bias_b.length; i++) {
@@ -267,7 +317,7 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 		int numFeatures = data.getFeatureVocabularySize();
 		int weightIndexOffset = labelIndex*numFeatures;
 		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
-			score += this.feature_w[weightIndexOffset + entry.getKey()]*entry.getValue();
+			score += this.feature_w.get(weightIndexOffset + entry.getKey())*entry.getValue();
 		}
 		
 		score += this.bias_b[labelIndex];
@@ -281,7 +331,7 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 		return score;
 	}
 
-	private Map<Integer, Double> computeDatumStructureFeatureValues(FeaturizedDataSet<D,L> data, DatumStructure<D, L> datumStructure, Map<D, L> structureLabels, boolean cacheFeatureNames) {
+	private Map<Integer, Double> computeDatumStructureFeatureValues(FeaturizedDataSet<D,L> data, DatumStructure<D, L> datumStructure, Map<D, L> structureLabels) {
 		Map<Integer, Double> featureValues = new HashMap<Integer, Double>();
 		int numDatumFeatures = data.getFeatureVocabularySize();
 		for (D datum : datumStructure) {
@@ -295,17 +345,30 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 					featureValues.put(featureIndex, 0.0);
 				featureValues.put(featureIndex, featureValues.get(featureIndex) + entry.getValue());
 			}
+		}
+		
+		return featureValues;
+	}
+	
+	/**
+	 * Adds the feature values of the datums in datumStructure under 
+	 * structureLabels to featureValues (indexed like feature_w)
+	 */
+	private void accumulateDatumStructureFeatureValues(FeaturizedDataSet<D,L> data, DatumStructure<D, L> datumStructure, Map<D, L> structureLabels, boolean cacheFeatureNames, SparseAccumulator featureValues) {
+		int numDatumFeatures = data.getFeatureVocabularySize();
+		for (D datum : datumStructure) {
+			Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
+			int labelIndex = this.labelIndices.get(structureLabels.get(datum));
+			int featureLabelOffset = numDatumFeatures*labelIndex;
+			
+			for (Entry<Integer, Double> entry : datumFeatureValues.entrySet())
+				featureValues.add(featureLabelOffset + entry.getKey(), entry.getValue());
 			
 			if (cacheFeatureNames) {
-				List<Integer> missingNameKeys = new ArrayList<Integer>();
 				for (Integer key : datumFeatureValues.keySet())
-					if (!this.featureNames.containsKey(key))
-						missingNameKeys.add(key);
-				this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));				
+					this.featureIndices.set(key);
 			}
 		}
-		
-		return featureValues;
 	}
 
 	private Map<D, L> getBestDatumLabels(FeaturizedDataSet<D, L> data, DatumStructure<D, L> datumStructure, Map<D, Map<L, Double>> scoredDatumLabels) {
@@ -322,36 +385,38 @@ public class SupervisedModelCLStructuredSVM<D extends Datum<L>, L> extends Super
 	}
 	
 	@Override
-	public Map<D, Map<L, Double>> posterior(FeaturizedDataSet<D, L> data) {
+	public Map<D, Map<L, Double>> posterior(final FeaturizedDataSet<D, L> data) {
 		Map<D, Map<L, Double>> posteriors = new HashMap<D, Map<L, Double>>(data.size());
 		DatumStructureCollection<D, L> datumStructureCollection = data.getDatumTools().makeDatumStructureCollection(this.datumStructureCollection, data);
-		Map<D, L> bestDatumLabels = new HashMap<D, L>();
 		
 		if (this.factoredCost != null && !this.factoredCost.init(this, data))
 			return null;
 
+		// Structures are optimized concurrently over label scores, which 
+		// only read the model's weights
+		StructureInference<D, L> inference = new StructureInference<D, L>(LabelIndex.fromModel(this), this.datumStructureOptimizer, this.fixedDatumLabels, this.validLabels, this.labelMapping, data.getMaxThreads());
+		StructureInference.Result<D> result = inference.infer(datumStructureCollection, new StructureInference.LabelScorer<D, L>() {
+			@Override
+			public boolean scoreLabels(D datum, double[] scores) {
+				for (int i = 0; i < scores.length; i++)
+					scores[i] = scoreDatumLabel(data, datum, labelIndices.reverseGet(i), false);
+				return true;
+			}
+		});
+		if (result == null)
+			return null;
 		
-		for (DatumStructure<D, L> datumStructure : datumStructureCollection) {
-			Map<D, Map<L, Double>> scoredDatumLabels = scoreDatumStructureLabels(data, datumStructure, false);
-			bestDatumLabels.putAll(
-				datumStructure.optimize(this.datumStructureOptimizer, scoredDatumLabels, this.fixedDatumLabels, this.validLabels, this.labelMapping)
-			);
-		}
-		
+		Map<D, Integer> bestLabelIndices = result.toMap();
+		List<Map<L, Double>> labelPosteriors = inference.makeOneHotPosteriors();
 		for (D datum : data) {
-			posteriors.put(datum, new HashMap<L, Double>());
-			L bestLabel = bestDatumLabels.get(datum);
+			Integer bestLabelIndex = bestLabelIndices.get(datum);
 			
-			if (bestLabel == null) {
-				double p = 1.0/this.validLabels.size();
-				posteriors.get(datum).put(bestLabel, p);
+			if (bestLabelIndex == null || bestLabelIndex < 0) {
+				Map<L, Double> p = new HashMap<L, Double>();
+				p.put(null, 1.0/this.validLabels.size());
+				posteriors.put(datum, p);
 			} else {
-				for (L label : this.validLabels) {
-					if (label.equals(bestLabel))
-						posteriors.get(datum).put(label, 1.0);
-					else
-						posteriors.get(datum).put(label, 0.0);
-				}
+				posteriors.put(datum, labelPosteriors.get(bestLabelIndex));
 			}
 		}
 		
@@ -4,14 +4,23 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.EpochScheduler;
+import cost.data.feature.FeatureDictionary;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
@@ -38,10 +47,19 @@ import ark.util.SerializationUtil;
  * @deprecated Use ark.model.SupervisedModelSVM instead.
  *
  */
-public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedModel<D, L> {
+public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedModel<D, L> implements BudgetedTraining<D, L> {
 	protected BidirectionalLookupTable<L, Integer> labelIndices;
 	protected int trainingIterations;
-	protected Map<Integer, String> featureNames;
+	protected List<StoppingCriterion<D, L>> stoppingCriteria; // criteria for stopping before trainingIterations (set through 'extra info')
+	protected boolean averageWeights; // whether to classify using weights averaged over all training steps (set through 'extra info')
+	protected int shrinkingEpochs; // skip the argmax for datums that have been non-violating for this many consecutive epochs, or 0 for no shrinking (set through 'extra info')
+	protected int shrinkingFullPassInterval = 10; // number of epochs between full passes that re-check skipped datums (set through 'extra info')
+	protected int[] nonViolatingEpochs; // datum slot (see cost.data.annotation.EpochScheduler) -> number of consecutive epochs for which the datum was non-violating
+	protected int pendingRegularizerSteps; // steps of skipped datums whose regularizer updates haven't been applied yet (see applyPendingRegularizer)
+	protected static final double REGULARIZATION_TOLERANCE = 1e-6; // bound on the relative growth of a weight's G over a chunk of pending regularizer steps (see applyPendingRegularizer)
+	protected boolean lazyL1; // whether to bring l1 regularized weights up to date only when they're read (set through 'extra info', see isLazyL1)
+	protected BitSet featureIndices; // input features seen in training
+	protected FeatureDictionary featureDictionary; // names of the input features (shared by models trained on the same data)
 	protected Map<Integer, Double> feature_w; // Labels x Input features
 	protected int numFeatures;
 	protected double[] bias_b;
@@ -54,6 +72,12 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 	protected double[] bias_u;
 	protected double[] bias_G;
 	
+	// Weight averaging (for step k changing w by d, a += (k-1)*d, and the average weights are w-a/averageT)
+	protected int averageT; // number of training steps in the average
+	protected Map<Integer, Double> feature_a;
+	protected double[] bias_a;
+	protected boolean scoreAveraged; // whether scoreLabel currently uses the averaged weights
+	
 	protected double l1;
 	protected double l2;
 	protected double n = 1.0;
@@ -62,9 +86,14 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 	protected String[] hyperParameterNames = { "l2", "l1", "c", "n", "epsilon" };
 	
 	protected Random random;
+	protected EpochScheduler<D, L> epochScheduler;
 
+	// Admission of parallel training runs by their estimated footprints (see cost.model.BudgetedTraining)
+	protected HeapBudget heapBudget; // shared by the clones of this model (or null for no limit)
+	
 	public SupervisedModelSVMAda() {
-		this.featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
+		this.stoppingCriteria = new ArrayList<StoppingCriterion<D, L>>();
 	}
 	
 	@Override
@@ -82,7 +111,20 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		
 		if (name.equals("trainingIterations")) {
 			this.trainingIterations = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
-		} 
+		} else if (name.equals("averageWeights")) {
+			this.averageWeights = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("shrinkingEpochs")) {
+			this.shrinkingEpochs = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("shrinkingFullPassInterval")) {
+			this.shrinkingFullPassInterval = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			if (this.shrinkingFullPassInterval <= 0)
+				return false;
+		} else if (name.equals("lazyL1")) {
+			this.lazyL1 = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (StoppingCriterion.isExtraInfo(name)) {
+			if (!StoppingCriterion.deserializeExtraInfo(reader, datumTools, this.stoppingCriteria))
+				return false;
+		}
 		
 		return true;
 	}
@@ -95,46 +137,125 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			return false;
 		writer.write("\n");
 		
+		if (this.averageWeights) {
+			writer.write("\t");
+			Pair<String, String> averageWeightsAssignment = new Pair<String, String>("averageWeights", String.valueOf(this.averageWeights));
+			if (!SerializationUtil.serializeAssignment(averageWeightsAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.shrinkingEpochs > 0) {
+			writer.write("\t");
+			Pair<String, String> shrinkingEpochsAssignment = new Pair<String, String>("shrinkingEpochs", String.valueOf(this.shrinkingEpochs));
+			if (!SerializationUtil.serializeAssignment(shrinkingEpochsAssignment, writer))
+				return false;
+			writer.write("\n");
+			
+			writer.write("\t");
+			Pair<String, String> shrinkingFullPassIntervalAssignment = new Pair<String, String>("shrinkingFullPassInterval", String.valueOf(this.shrinkingFullPassInterval));
+			if (!SerializationUtil.serializeAssignment(shrinkingFullPassIntervalAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.lazyL1) {
+			writer.write("\t");
+			Pair<String, String> lazyL1Assignment = new Pair<String, String>("lazyL1", String.valueOf(this.lazyL1));
+			if (!SerializationUtil.serializeAssignment(lazyL1Assignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (!StoppingCriterion.serializeExtraInfo(this.stoppingCriteria, writer))
+			return false;
+		
 		return true;
 	}
 
+	/**
+	 * Trains the model once its heap budget (if it has one) has room for
+	 * its estimated footprint (see cost.model.BudgetedTraining)
+	 */
 	@Override
 	public boolean train(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		if (this.heapBudget == null)
+			return trainWithinBudget(data, testData, evaluations);
+		
 		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		int reservedMegabytes = this.heapBudget.reserve(estimateTrainingBytes(data), getGenericName() + " on " + data.getName(), output);
+		if (reservedMegabytes < 0)
+			return false;
 		
+		try {
+			return trainWithinBudget(data, testData, evaluations);
+		} finally {
+			this.heapBudget.release(reservedMegabytes);
+		}
+	}
+	
+	protected boolean trainWithinBudget(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
 		if (!initializeTraining(data))
 			return false;
 		
-		double prevObjectiveValue = objectiveValue(data);
-		Map<D, L> prevPredictions = classify(data);
-		
-		output.debugWriteln("Training " + getGenericName() + " for " + this.trainingIterations + " iterations...");
-		
-		for (int iteration = 0; iteration < this.trainingIterations; iteration++) {
-			if (!trainOneIteration(iteration, data)) 
-				return false;
+		return makeTrainingLoop(data).train(makeTrainingStatus(data, testData), testData, evaluations, data.getDatumTools().getDataTools().getOutputWriter());
+	}
+	
+	/**
+	 * @param data
+	 * @return a loop that trains the model on data, and logs its objective 
+	 * every 5 iterations (see cost.model.TrainingLoop)
+	 */
+	protected TrainingLoop<D, L> makeTrainingLoop(final FeaturizedDataSet<D, L> data) {
+		return new TrainingLoop<D, L>(this, this.stoppingCriteria, this.trainingIterations, 5, this.epsilon) {
+			@Override
+			protected boolean trainOneIteration(int iteration) {
+				return SupervisedModelSVMAda.this.trainOneIteration(iteration, data);
+			}
 			
-			if (iteration % 5 == 0) {
-				double objectiveValue = objectiveValue(data);
-				double objectiveValueDiff = objectiveValue - prevObjectiveValue;
-				Map<D, L> predictions = classify(data);
-				int labelDifferences = countLabelDifferences(prevPredictions, predictions);
+			@Override
+			protected String getLogPrefix() {
+				return "(c=" + SupervisedModelSVMAda.this.c + ", l1=" + SupervisedModelSVMAda.this.l1 + ", l2=" + SupervisedModelSVMAda.this.l2 + ")";
+			}
 			
-				output.debugWriteln("(c=" + this.c + ", l1=" + this.l1 + ", l2=" + this.l2 + ") Finished iteration " + iteration + " objective diff: " + objectiveValueDiff + " objective: " + objectiveValue + " prediction-diff: " + labelDifferences + "/" + predictions.size() + " non-zero weights: " + this.feature_w.size() + "/" + this.numFeatures*this.labelIndices.size());
+			@Override
+			protected String getLogSuffix() {
+				return " non-zero weights: " + SupervisedModelSVMAda.this.feature_w.size() + "/" + SupervisedModelSVMAda.this.numFeatures*SupervisedModelSVMAda.this.labelIndices.size();
+			}
 			
-				if (iteration > 20 && Math.abs(objectiveValueDiff) < this.epsilon) {
-					output.debugWriteln("(c=" + this.c + ", l1=" + this.l1 + ", l2=" + this.l2 + ") Terminating early at iteration " + iteration);
-					break;
-				}
-				
-				prevObjectiveValue = objectiveValue;
-				prevPredictions = predictions;
-			} else {
-				output.debugWriteln("(c=" + this.c + ", l1=" + this.l1 + ", l2=" + this.l2 + ") Finished iteration " + iteration + " non-zero weights: " + this.feature_w.size() + "/" + this.numFeatures*this.labelIndices.size());
+			@Override
+			protected boolean isLoggingObjective() {
+				return true;
 			}
-		}
-		
-		return true;
+		};
+	}
+	
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a status through which the stopping criteria read the objective 
+	 * on data, and the predictions and loss on testData
+	 */
+	protected TrainingStatus<D, L> makeTrainingStatus(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		return new TrainingStatus<D, L>(data, testData, testData) {
+			@Override
+			protected double computeObjectiveValue(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMAda.this.objectiveValue(data);
+			}
+
+			@Override
+			protected Map<D, L> computePredictions(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMAda.this.classify(data);
+			}
+
+			@Override
+			protected double computeLoss(FeaturizedDataSet<D, L> data) {
+				boolean prevScoreAveraged = SupervisedModelSVMAda.this.startScoringAveraged();
+				double loss = SupervisedModelSVMAda.this.computeLoss(data);
+				SupervisedModelSVMAda.this.scoreAveraged = prevScoreAveraged;
+				return loss;
+			}
+		};
 	}
 	
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {
@@ -152,18 +273,40 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			this.feature_G = new HashMap<Integer, Double>();
 		}
 		
+		if (this.averageWeights && this.feature_a == null) {
+			this.averageT = 0;
+			this.feature_a = new HashMap<Integer, Double>();
+			this.bias_a = new double[this.bias_b.length];
+		}
+		
 		this.bias_g = new double[this.bias_b.length];
+		this.featureDictionary = FeatureDictionary.fromData(data);
 		this.random = data.getDatumTools().getDataTools().makeLocalRandom();
+		this.epochScheduler = new EpochScheduler<D, L>(data, this.random);
+		this.nonViolatingEpochs = new int[this.epochScheduler.size()];
+		this.pendingRegularizerSteps = 0;
 		
 		return true;
 	}
 	
 	protected boolean trainOneIteration(int iteration, FeaturizedDataSet<D, L> data) {
-		List<Integer> dataPermutation = data.constructRandomDataPermutation(this.random);
-		for (Integer datumId : dataPermutation) {
-			D datum = data.getDatumById(datumId);
+		this.epochScheduler.shuffle();
+		for (int i = 0; i < this.epochScheduler.size(); i++) {
+			D datum = this.epochScheduler.getDatum(i);
+			int datumSlot = this.epochScheduler.getSlot(i);
 			L datumLabel = this.mapValidLabel(datum.getLabel());
+			if (isShrunk(datumSlot, iteration)) { // Treat as non-violating, and only apply the regularizer (see applyPendingRegularizer)
+				if (!isLazyL1())
+					this.pendingRegularizerSteps++;
+				this.t++;
+				continue;
+			}
+			
+			applyPendingRegularizer(data.size());
+			if (isLazyL1())
+				applyLazyL1(data.getFeatureVocabularyValues(datum).keySet());
 			L bestLabel = argMaxScoreLabel(data, datum, true);
+			updateShrinking(datumSlot, !datumLabel.equals(bestLabel));
 			
 			if (!trainOneDatum(datum, datumLabel, bestLabel, iteration, data))
 				return false;
@@ -171,23 +314,354 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			this.t++;
 		}
 		
+		applyPendingRegularizer(data.size());
+		if (isLazyL1())
+			applyLazyL1();
+		
 		return true;
 	}
 	
+	/**
+	 * Without l2 regularization, the regularized dual averaging 
+	 * update of a weight that has no gradient at a step leaves its
+	 * u and G unchanged, so the weight after step t only depends on
+	 * u, G, and t (i.e. on the cumulative l1 penalty t*l1).  In lazy l1 mode,
+	 * each step only updates the weights with gradients, and the other
+	 * weights are brought up to date (see applyLazyL1) when they're read:
+	 * before scoring a datum for its features, and at the end of each 
+	 * iteration (and before serialization) for all weights.  This gives
+	 * the same weights as updating every weight at every step.  Averaging
+	 * needs every weight's change at every step, so lazy l1 is only used
+	 * without averaging.
+	 * 
+	 * @return true if l1 regularized weights are updated lazily
+	 */
+	protected boolean isLazyL1() {
+		return this.lazyL1 && this.l1 > 0 && this.l2 == 0 && this.feature_a == null;
+	}
+	
+	/**
+	 * Brings all weights up to date with the l1 penalty through the last 
+	 * training step
+	 */
+	protected void applyLazyL1() {
+		if (this.feature_G == null)
+			return;
+		for (Entry<Integer, Double> entryG : this.feature_G.entrySet())
+			setL1Weight(entryG.getKey(), this.feature_u.get(entryG.getKey()), entryG.getValue(), this.t - 1);
+	}
+	
+	/**
+	 * Brings the weights of the given features for all labels up to date
+	 * with the l1 penalty through the last training step
+	 * 
+	 * @param featureIndices
+	 */
+	protected void applyLazyL1(Collection<Integer> featureIndices) {
+		for (Integer featureIndex : featureIndices) {
+			for (int i = 0; i < this.labelIndices.size(); i++) {
+				int wIndex = getWeightIndex(i, featureIndex);
+				Double G = this.feature_G.get(wIndex);
+				if (G != null)
+					setL1Weight(wIndex, this.feature_u.get(wIndex), G, this.t - 1);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the weight at wIndex to its l1 regularized dual averaging 
+	 * value after step t
+	 */
+	private void setL1Weight(int wIndex, double u, double G, int t) {
+		if (Math.abs(u)/t <= this.l1)
+			this.feature_w.remove(wIndex);
+		else
+			this.feature_w.put(wIndex, -Math.signum(u)*(t*this.n/(Math.sqrt(G)))*((Math.abs(u)/t)-this.l1));
+	}
+	
+	/**
+	 * Applies the regularizer updates for the steps of the datums that were 
+	 * skipped by shrinking since the last datum that was trained.  A skipped 
+	 * datum has no loss gradient, so its step changes each weight only through 
+	 * the weight's own regularizer gradient.  The weights are independent at 
+	 * these steps, so this passes over the weights once, and composes all of 
+	 * the pending steps of each weight in closed form (see 
+	 * applyPendingL1Regularizer and applyPendingL2Regularizer), so a pass takes
+	 * time proportional to the number of weights rather than to the number of
+	 * weights times the number of steps.  The averages only depend on the sum of
+	 * a weight over the steps (see addPendingStepsToAverage).  The pending 
+	 * steps must be applied before the weights are read, so this is called 
+	 * before each trained datum is scored, and at the end of each iteration.
+	 * 
+	 * @param N number of training datums
+	 */
+	protected void applyPendingRegularizer(int N) {
+		int steps = this.pendingRegularizerSteps;
+		if (steps == 0)
+			return;
+		
+		this.pendingRegularizerSteps = 0;
+		int firstT = this.t - steps;
+		int firstAverageT = this.averageT;
+		if (this.feature_a != null)
+			this.averageT += steps;
+		
+		if (this.l1 > 0) {
+			for (Entry<Integer, Double> entryG : this.feature_G.entrySet())
+				applyPendingL1Regularizer(entryG, firstT, firstAverageT, N);
+		} else if (this.l2 > 0) {
+			Iterator<Entry<Integer, Double>> iterator = this.feature_w.entrySet().iterator();
+			while (iterator.hasNext())
+				if (!applyPendingL2Regularizer(iterator.next(), firstT, firstAverageT, N))
+					iterator.remove();
+		}
+	}
+	
+	/**
+	 * Runs an l1 regularized weight through the pending steps firstT through
+	 * t-1.  With c=n/sqrt(G), the weight at step t is -sign(u)*c*max(0, z) for
+	 * the margin z=|u|-t*l1, and the l2 gradient of the weight moves u 
+	 * toward 0 by l2*c*z/N, so each step multiplies z by 1-a (for a=l2*c/N) and
+	 * subtracts l1.  Holding c fixed over a run of steps gives the margins in
+	 * closed form, along with the sums that update u and G.  As in 
+	 * cost.model.SupervisedModelSVMCLN.regularizeCostWeight, the steps are
+	 * applied in chunks over which G can grow by at most a factor of 
+	 * 1+REGULARIZATION_TOLERANCE, and a is clamped at 1.  Without l2 
+	 * regularization, u and G don't change, so all of the steps are exact, 
+	 * and without averaging, only the weight at the last step is computed.
+	 * Once the margin is at most 0, the weight stays 0 and u and G stay the
+	 * same.
+	 * 
+	 * @param entryG
+	 * @param firstT
+	 * @param firstAverageT
+	 * @param N number of training datums
+	 */
+	private void applyPendingL1Regularizer(Entry<Integer, Double> entryG, int firstT, int firstAverageT, int N) {
+		int wIndex = entryG.getKey();
+		double firstW = (this.feature_w.containsKey(wIndex) ? this.feature_w.get(wIndex) : 0.0);
+		double u = this.feature_u.get(wIndex);
+		double G = entryG.getValue();
+		double w = firstW;
+		double wSum = 0.0; // sum of the weights after each of the steps (for the averages)
+		int t = firstT;
+		while (t < this.t) {
+			double g = this.l2*w/N;
+			u += g;
+			G += g*g;
+			
+			double c = this.n/Math.sqrt(G);
+			double a = Math.min(1.0, this.l2*c/N);
+			double z = Math.abs(u) - t*this.l1;
+			if (z <= 0) {
+				w = 0.0;
+				break;
+			}
+			
+			// The margin only shrinks, so each step adds at most (a*z)^2 to G
+			double gMax = Math.max(Math.abs(g), a*z);
+			int chunkSteps = this.t - t;
+			if (gMax > 0)
+				chunkSteps = (int)Math.max(1.0, Math.min(chunkSteps, REGULARIZATION_TOLERANCE*G/(gMax*gMax)));
+			if (a == 0 && this.feature_a == null) { // Only the last step matters
+				t += chunkSteps - 1;
+				z = Math.abs(u) - t*this.l1;
+				chunkSteps = 1;
+			}
+			
+			int positiveSteps = countPositiveL1Margins(z, a, chunkSteps);
+			int changingSteps = Math.min(positiveSteps, chunkSteps - 1); // steps after the first at which u and G change
+			double s = Math.signum(u);
+			u = s*(Math.abs(u) - a*sumL1Margins(z, a, changingSteps));
+			G += a*a*sumSquaredL1Margins(z, a, changingSteps);
+			wSum -= s*c*sumL1Margins(z, a, positiveSteps);
+			
+			if (positiveSteps < chunkSteps) {
+				w = 0.0;
+				break;
+			}
+			
+			t += chunkSteps - 1;
+			if (Math.abs(u)/t <= this.l1)
+				w = 0.0;
+			else
+				w = -s*(t*this.n/(Math.sqrt(G)))*((Math.abs(u)/t)-this.l1);
+			t++;
+		}
+		
+		entryG.setValue(G);
+		this.feature_u.put(wIndex, u);
+		if (w == 0.0)
+			this.feature_w.remove(wIndex);
+		else
+			this.feature_w.put(wIndex, w);
+		
+		addPendingStepsToAverage(wIndex, firstW, w, wSum, firstAverageT);
+	}
+	
+	/**
+	 * @param z positive l1 margin at the first step (see applyPendingL1Regularizer)
+	 * @param a 
+	 * @param steps
+	 * @return the number of the first 'steps' steps at which the margin is positive
+	 */
+	private int countPositiveL1Margins(double z, double a, int steps) {
+		double positiveSteps = (a == 0) ? Math.ceil(z/this.l1) : Math.ceil(-Math.log1p(a*z/this.l1)/Math.log1p(-a));
+		return (int)Math.min(steps, Math.max(1.0, positiveSteps));
+	}
+	
+	/**
+	 * @return the sum of the l1 margins over the first 'steps' steps (see 
+	 * applyPendingL1Regularizer)
+	 */
+	private double sumL1Margins(double z, double a, int steps) {
+		if (a == 0)
+			return steps*z - this.l1*steps*(steps - 1)/2.0;
+		double fixedZ = -this.l1/a;
+		return steps*fixedZ + (z - fixedZ)*geometricSum(a, steps);
+	}
+	
+	/**
+	 * @return the sum of the squared l1 margins over the first 'steps' steps 
+	 * (see applyPendingL1Regularizer)
+	 */
+	private double sumSquaredL1Margins(double z, double a, int steps) {
+		if (a == 0)
+			return steps*z*z - z*this.l1*steps*(steps - 1) + this.l1*this.l1*(steps - 1)*steps*(2.0*steps - 1)/6.0;
+		double fixedZ = -this.l1/a;
+		double d = z - fixedZ;
+		return Math.max(0, steps*fixedZ*fixedZ + 2.0*fixedZ*d*geometricSum(a, steps) + d*d*geometricSum(a*(2.0 - a), steps));
+	}
+	
+	/**
+	 * Runs a weight without l1 regularization through the pending steps 
+	 * firstT through t-1.  Each step multiplies the weight by 1-a for 
+	 * a=l2*n/(N*sqrt(G)), so holding G fixed over a run of steps gives the
+	 * weights in closed form, along with the sums that update u and G.  The
+	 * steps are applied in chunks in the same way as in 
+	 * applyPendingL1Regularizer.  The weight is zeroed at the first step that
+	 * leaves it at most .00001, and then u and G stay the same.
+	 * 
+	 * @param entryW
+	 * @param firstT
+	 * @param firstAverageT
+	 * @param N number of training datums
+	 * @return false if the weight was zeroed (and so should be removed)
+	 */
+	private boolean applyPendingL2Regularizer(Entry<Integer, Double> entryW, int firstT, int firstAverageT, int N) {
+		int wIndex = entryW.getKey();
+		double firstW = entryW.getValue();
+		double u = this.feature_u.get(wIndex);
+		double G = this.feature_G.get(wIndex);
+		double w = firstW;
+		double wSum = 0.0; // sum of the weights after each of the steps (for the averages)
+		boolean zeroed = false;
+		int t = firstT;
+		while (t < this.t && !zeroed) {
+			double g = this.l2*w/N;
+			double a = Math.min(1.0, this.l2*this.n/(N*Math.sqrt(G + g*g)));
+			
+			// |w| only shrinks, so each step adds at most g*g to G
+			int chunkSteps = (int)Math.max(1.0, Math.min(this.t - t, REGULARIZATION_TOLERANCE*(G + g*g)/(g*g)));
+			double zeroSteps = (a == 1.0) ? 1.0 : Math.ceil(Math.log(.00001/Math.abs(w))/Math.log1p(-a));
+			if (zeroSteps <= chunkSteps) {
+				chunkSteps = (int)Math.max(1.0, zeroSteps);
+				zeroed = true;
+			}
+			
+			double qSteps = Math.pow(1.0 - a, chunkSteps);
+			u += g*geometricSum(a, chunkSteps);
+			G += g*g*geometricSum(a*(2.0 - a), chunkSteps);
+			wSum += w*(1.0 - a)*geometricSum(a, chunkSteps) - ((zeroed) ? w*qSteps : 0.0);
+			w = (zeroed) ? 0.0 : w*qSteps;
+			t += chunkSteps;
+		}
+		
+		this.feature_u.put(wIndex, u);
+		this.feature_G.put(wIndex, G);
+		entryW.setValue(w);
+		addPendingStepsToAverage(wIndex, firstW, w, wSum, firstAverageT);
+		return !zeroed;
+	}
+	
+	/**
+	 * @param a
+	 * @param steps
+	 * @return 1+(1-a)+(1-a)^2+...+(1-a)^(steps-1) for 0 <= a <= 1
+	 */
+	private static double geometricSum(double a, int steps) {
+		if (a == 0)
+			return steps;
+		if (a == 1.0)
+			return (steps > 0) ? 1.0 : 0.0;
+		return -Math.expm1(steps*Math.log1p(-a))/a;
+	}
+	
+	/**
+	 * Records the changes to a weight over the pending steps.  The change d_k 
+	 * at averaging step k adds (k-1)*d_k to the weight's average, so summing by
+	 * parts, the pending steps firstAverageT+1 through averageT add 
+	 * averageT*lastW-firstAverageT*firstW-wSum.
+	 * 
+	 * @param wIndex
+	 * @param firstW weight before the pending steps
+	 * @param lastW weight after the pending steps
+	 * @param wSum sum of the weights after each of the pending steps
+	 * @param firstAverageT
+	 */
+	private void addPendingStepsToAverage(int wIndex, double firstW, double lastW, double wSum, int firstAverageT) {
+		double delta = this.averageT*lastW - firstAverageT*firstW - wSum;
+		if (this.feature_a == null || delta == 0)
+			return;
+		
+		double a = (this.feature_a.containsKey(wIndex)) ? this.feature_a.get(wIndex) : 0.0;
+		this.feature_a.put(wIndex, a + delta);
+	}
+	
+	/**
+	 * @param datumSlot
+	 * @param iteration
+	 * @return true if the datum has been non-violating for long enough that the 
+	 * argmax can be skipped during the iteration
+	 */
+	protected boolean isShrunk(int datumSlot, int iteration) {
+		if (this.shrinkingEpochs <= 0 || iteration % this.shrinkingFullPassInterval == 0)
+			return false;
+		return this.nonViolatingEpochs[datumSlot] >= this.shrinkingEpochs;
+	}
+	
+	/**
+	 * Records whether the datum violated its margin during the current 
+	 * iteration for shrinking
+	 * 
+	 * @param datumSlot
+	 * @param violating
+	 */
+	protected void updateShrinking(int datumSlot, boolean violating) {
+		if (this.shrinkingEpochs <= 0)
+			return;
+		
+		if (violating)
+			this.nonViolatingEpochs[datumSlot] = 0;
+		else
+			this.nonViolatingEpochs[datumSlot]++;
+	}
+	
 	protected boolean trainOneDatum(D datum, L datumLabel, L bestLabel, int iteration, FeaturizedDataSet<D, L> data) {
 		int N = data.size();
+		double weight = CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
 		boolean datumLabelBest = datumLabel.equals(bestLabel);
 		
 		Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
 		
 		if (iteration == 0) {
-			List<Integer> missingNameKeys = new ArrayList<Integer>();
 			for (Integer key : datumFeatureValues.keySet())
-				if (!this.featureNames.containsKey(key))
-					missingNameKeys.add(key);
-			this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
+				this.featureIndices.set(key);
 		}
 		
+		if (this.feature_a != null)
+			this.averageT++;
+		
 		// Update feature weights
 		Map<Integer, Double> feature_g = new HashMap<Integer, Double>();
 		if (!datumLabelBest) {
@@ -211,12 +685,23 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 					}
 				}
 				
-				feature_g.put(datumLabelWeightIndex,  -featureValue.getValue());
-				feature_g.put(bestLabelWeightIndex, featureValue.getValue());
+				feature_g.put(datumLabelWeightIndex,  -weight*featureValue.getValue());
+				feature_g.put(bestLabelWeightIndex, weight*featureValue.getValue());
 			}
 		}
 		
-		if (this.l1 > 0) {
+		if (isLazyL1()) {
+			// Only weights with gradients change other than through t (see isLazyL1)
+			for (Entry<Integer, Double> entryg : feature_g.entrySet()) {
+				double g = entryg.getValue();
+				double u = this.feature_u.get(entryg.getKey()) + g;
+				double G = this.feature_G.get(entryg.getKey()) + g*g;
+				
+				this.feature_G.put(entryg.getKey(), G);
+				this.feature_u.put(entryg.getKey(), u);
+				setL1Weight(entryg.getKey(), u, G, this.t);
+			}
+		} else if (this.l1 > 0) {
 			for (Entry<Integer, Double> entryG : this.feature_G.entrySet()) {
 				double w = (this.feature_w.containsKey(entryG.getKey()) ? this.feature_w.get(entryG.getKey()) : 0.0);
 				double g =  this.l2*w/N + ((feature_g.containsKey(entryG.getKey())) ? feature_g.get(entryG.getKey()) : 0.0);
@@ -226,12 +711,16 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 				entryG.setValue(G);
 				this.feature_u.put(entryG.getKey(), u);
 			
+				double newW = 0.0;
 				if (Math.abs(u)/this.t <= this.l1) {
 					if (this.feature_w.containsKey(entryG.getKey()))
 						this.feature_w.remove(entryG.getKey());	
-				} else
-					this.feature_w.put(entryG.getKey(), 
-							-Math.signum(u)*(this.t*this.n/(Math.sqrt(G)))*((Math.abs(u)/this.t)-this.l1));
+				} else {
+					newW = -Math.signum(u)*(this.t*this.n/(Math.sqrt(G)))*((Math.abs(u)/this.t)-this.l1);
+					this.feature_w.put(entryG.getKey(), newW);
+				}
+				
+				addToAverage(entryG.getKey(), newW - w);
 			}
 		} else {
 			Set<Integer> zeroedW = new HashSet<Integer>();
@@ -244,10 +733,13 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 				this.feature_G.put(entryW.getKey(), G);
 				
 				double newW = entryW.getValue() - g*this.n/Math.sqrt(G);
-				if (Math.abs(newW) <= .00001)
+				if (Math.abs(newW) <= .00001) {
 					zeroedW.add(entryW.getKey());
-				else
+					addToAverage(entryW.getKey(), -entryW.getValue());
+				} else {
+					addToAverage(entryW.getKey(), newW - entryW.getValue());
 					entryW.setValue(newW); 
+				}
 			}
 			
 			for (Integer wIndex : zeroedW)
@@ -259,26 +751,82 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		
 		// Update label biases
 		for (int i = 0; i < this.bias_b.length; i++) {
-			bias_g[i] = ((this.labelIndices.get(datumLabel) == i) ? -1.0 : 0.0) +
-							(this.labelIndices.get(bestLabel) == i ? 1.0 : 0.0);
+			bias_g[i] = ((this.labelIndices.get(datumLabel) == i) ? -weight : 0.0) +
+							(this.labelIndices.get(bestLabel) == i ? weight : 0.0);
 			
 			this.bias_G[i] += bias_g[i]*bias_g[i];
 			this.bias_u[i] += bias_g[i];
 			if (this.bias_G[i] == 0)
 				continue;
-			this.bias_b[i] -= bias_g[i]*this.n/Math.sqrt(this.bias_G[i]);
+			double delta = -bias_g[i]*this.n/Math.sqrt(this.bias_G[i]);
+			this.bias_b[i] += delta;
+			if (this.bias_a != null)
+				this.bias_a[i] += (this.averageT - 1)*delta;
 		}
 		
 		return true;
 	}
 	
-	private int countLabelDifferences(Map<D, L> labels1, Map<D, L> labels2) {
-		int count = 0;
-		for (Entry<D, L> entry: labels1.entrySet()) {
-			if (!labels2.containsKey(entry.getKey()) || !entry.getValue().equals(labels2.get(entry.getKey())))
-				count++;
-		}
-		return count;
+	/**
+	 * Records a change to a feature weight at the current training step
+	 * for computing the averaged weights
+	 * 
+	 * @param wIndex
+	 * @param delta
+	 */
+	protected void addToAverage(int wIndex, double delta) {
+		addToAverage(wIndex, delta, this.averageT);
+	}
+	
+	/**
+	 * Records a change to a feature weight at the given averaging step
+	 * 
+	 * @param wIndex
+	 * @param delta
+	 * @param averageT
+	 */
+	protected void addToAverage(int wIndex, double delta, int averageT) {
+		if (this.feature_a == null || delta == 0)
+			return;
+		
+		double a = (this.feature_a.containsKey(wIndex)) ? this.feature_a.get(wIndex) : 0.0;
+		this.feature_a.put(wIndex, a + (averageT - 1)*delta);
+	}
+	
+	/**
+	 * @param wIndex
+	 * @return the weight at wIndex used for scoring, which is either the current 
+	 * weight or the weight averaged over training steps
+	 */
+	protected double getScoringWeight(int wIndex) {
+		double w = (this.feature_w.containsKey(wIndex)) ? this.feature_w.get(wIndex) : 0.0;
+		if (this.scoreAveraged && this.feature_a.containsKey(wIndex))
+			w -= this.feature_a.get(wIndex)/this.averageT;
+		return w;
+	}
+	
+	/**
+	 * @param labelIndex
+	 * @return the label bias used for scoring, which is either the current bias or the 
+	 * bias averaged over training steps
+	 */
+	protected double getScoringBias(int labelIndex) {
+		if (this.scoreAveraged)
+			return this.bias_b[labelIndex]-this.bias_a[labelIndex]/this.averageT;
+		else
+			return this.bias_b[labelIndex];
+	}
+	
+	/**
+	 * Sets scoreLabel to use averaged weights if the model was trained with
+	 * averaging
+	 * 
+	 * @return the previous value of scoreAveraged
+	 */
+	protected boolean startScoringAveraged() {
+		boolean prevScoreAveraged = this.scoreAveraged;
+		this.scoreAveraged = this.averageWeights && this.feature_a != null && this.averageT > 0;
+		return prevScoreAveraged;
 	}
 	
 	protected double objectiveValue(FeaturizedDataSet<D, L> data) {
@@ -298,13 +846,23 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			value += l2Norm*this.l2*.5;
 		}
 		
+		value += computeLoss(data);
+		
+		return value;
+	}
+	
+	/**
+	 * @param data
+	 * @return the hinge loss summed over data (weighted by the datum weights)
+	 */
+	protected double computeLoss(FeaturizedDataSet<D, L> data) {
+		double loss = 0;
 		for (D datum : data) {
 			double maxScore = maxScoreLabel(data, datum, true);
 			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
-			value += maxScore - datumScore;
+			loss += CostDatumTools.getDatumWeight(data.getDatumTools(), datum)*(maxScore - datumScore);
 		}
-		
-		return value;
+		return loss;
 	}
 	
 	protected double maxScoreLabel(FeaturizedDataSet<D, L> data, D datum, boolean includeCost) {
@@ -338,11 +896,10 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		int labelIndex = this.labelIndices.get(label);
 		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
 			int wIndex = this.getWeightIndex(label, entry.getKey());
-			if (this.feature_w.containsKey(wIndex))
-				score += this.feature_w.get(wIndex)*entry.getValue();
+			score += getScoringWeight(wIndex)*entry.getValue();
 		}
 		
-		score += this.bias_b[labelIndex];
+		score += getScoringBias(labelIndex);
 
 		if (includeCost) {
 			if (!mapValidLabel(datum.getLabel()).equals(label))
@@ -352,6 +909,39 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		return score;
 	}
 	
+	/**
+	 * Estimates the label feature weight maps (weights, AdaGrad sums and
+	 * sums of squares, and averages), the bias weights, and the per-datum
+	 * training state
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long featureCount = data.getFeatureVocabularySize();
+		int weightVectors = (this.averageWeights) ? 4 : 3;
+		
+		long bytes = weightVectors*HeapBudget.weightMapBytes(labelCount*featureCount);
+		bytes += (weightVectors + 1)*HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES);
+		bytes += HeapBudget.arrayBytes(data.size(), HeapBudget.INT_BYTES);
+		bytes += EpochScheduler.estimateBytes(data.size());
+		return bytes;
+	}
+	
+	@Override
+	public void setHeapBudget(HeapBudget heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+	
+	/**
+	 * @return names of the input features seen in training (looked up
+	 * in the feature dictionary)
+	 */
+	protected Map<Integer, String> getFeatureNames() {
+		if (this.featureDictionary == null)
+			return new HashMap<Integer, String>();
+		return this.featureDictionary.getNames(this.featureIndices);
+	}
+	
 	protected int getWeightIndex(L label, int featureIndex) {
 		return this.labelIndices.get(label)*this.numFeatures + featureIndex;
 	}
@@ -403,6 +993,14 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		
 		clone.labelIndices = this.labelIndices;
 		clone.trainingIterations = this.trainingIterations;
+		clone.averageWeights = this.averageWeights;
+		clone.shrinkingEpochs = this.shrinkingEpochs;
+		clone.shrinkingFullPassInterval = this.shrinkingFullPassInterval;
+		clone.lazyL1 = this.lazyL1;
+		for (StoppingCriterion<D, L> stoppingCriterion : this.stoppingCriteria)
+			clone.stoppingCriteria.add(stoppingCriterion.clone(datumTools, environment));
+		
+		clone.heapBudget = this.heapBudget;
 		
 		return clone;
 	}
@@ -417,7 +1015,8 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		this.numFeatures = numWeights / this.labelIndices.size();
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
 		this.feature_w = new HashMap<Integer, Double>();
 		this.feature_u = new HashMap<Integer, Double>();
@@ -426,6 +1025,9 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 		this.bias_b = new double[this.labelIndices.size()];
 		this.bias_u = new double[this.bias_b.length];
 		this.bias_G = new double[this.bias_b.length];
+		
+		this.feature_a = null;
+		this.bias_a = null;
 			
 		String assignmentLeft = null;
 		while ((assignmentLeft = SerializationUtil.deserializeAssignmentLeft(reader)) != null) {
@@ -441,13 +1043,17 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
+				featureNames.put(featureIndex, featureName);
+				this.featureIndices.set(featureIndex);
 				
 				if (w != 0)
 					this.feature_w.put(index, w);
 				
 				this.feature_u.put(index, u);
 				this.feature_G.put(index, G);
+				
+				if (this.feature_a != null && featureParameters.containsKey("a"))
+					this.feature_a.put(index, Double.valueOf(featureParameters.get("a")));
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -459,16 +1065,29 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 				this.bias_b[index] = b;
 				this.bias_G[index] = G;
 				this.bias_u[index] = u;
+				if (this.bias_a != null && biasParameters.containsKey("a"))
+					this.bias_a[index] = Double.valueOf(biasParameters.get("a"));
+			} else if (assignmentLeft.equals("average")) {
+				SerializationUtil.deserializeGenericName(reader);
+				Map<String, String> averageParameters = SerializationUtil.deserializeArguments(reader);
+				this.averageT = Integer.valueOf(averageParameters.get("T"));
+				this.feature_a = new HashMap<Integer, Double>();
+				this.bias_a = new double[this.bias_b.length];
 			} else {
 				break;
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
 	@Override
 	protected boolean serializeParameters(Writer writer) throws IOException {
+		if (isLazyL1())
+			applyLazyL1();
+		
 		Pair<String, String> tAssignment = new Pair<String, String>("t", String.valueOf(this.t));
 		if (!SerializationUtil.serializeAssignment(tAssignment, writer))
 			return false;
@@ -479,12 +1098,20 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			return false;
 		writer.write("\n");
 		
+		if (this.feature_a != null) {
+			Pair<String, String> averageAssignment = new Pair<String, String>("average", "average(T=" + this.averageT + ")");
+			if (!SerializationUtil.serializeAssignment(averageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
 			String biasValue = label +
 					  "(b=" + this.bias_b[i] +
 					  ", G=" + this.bias_G[i] +
 					  ", u=" + this.bias_u[i] +
+					  ((this.bias_a != null) ? ", a=" + this.bias_a[i] : "") +
 					  ", index=" + i +
 					  ")";
 
@@ -494,15 +1121,17 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = getFeatureNames();
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
 				int weightIndex = getWeightIndex(i, featureName.getKey());
 				double w = (this.feature_w.containsKey(weightIndex)) ? this.feature_w.get(weightIndex) : 0;
 				double G = (this.feature_G.containsKey(weightIndex)) ? this.feature_G.get(weightIndex) : 0;
 				double u = (this.feature_u.containsKey(weightIndex)) ? this.feature_u.get(weightIndex) : 0;
+				double a = (this.feature_a != null && this.feature_a.containsKey(weightIndex)) ? this.feature_a.get(weightIndex) : 0;
 				
-				if (w == 0 && G == 0 && u == 0)
+				if (w == 0 && G == 0 && u == 0 && a == 0)
 					continue;
 				
 				String featureValue = label + "-" + 
@@ -510,6 +1139,7 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 									  "(w=" + w +
 									  ", G=" + G +
 									  ", u=" + u +
+									  ((this.feature_a != null) ? ", a=" + a : "") +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
@@ -539,11 +1169,13 @@ public class SupervisedModelSVMAda<D extends Datum<L>, L> extends SupervisedMode
 	@Override
 	public Map<D, Map<L, Double>> posterior(FeaturizedDataSet<D, L> data) {
 		Map<D, Map<L, Double>> posteriors = new HashMap<D, Map<L, Double>>(data.size());
-
+		boolean prevScoreAveraged = startScoringAveraged();
+		
 		for (D datum : data) {
 			posteriors.put(datum, posteriorForDatum(data, datum));
 		}
 		
+		this.scoreAveraged = prevScoreAveraged;
 		return posteriors;
 	}
 
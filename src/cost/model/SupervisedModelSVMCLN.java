@@ -3,19 +3,34 @@ package cost.model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
 
 import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.EpochScheduler;
+import cost.data.annotation.LabelIndex;
+import cost.data.feature.FeatureDictionary;
+import cost.data.feature.FeatureHashSpace;
 import cost.model.factoredcost.FactoredCost;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+import cost.util.StatefulRandom;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
+import ark.data.annotation.Datum.Tools.LabelMapping;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.SupervisedModel;
 import ark.model.SupervisedModelSVM;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+import ark.util.OutputWriter;
 import ark.util.Pair;
 import ark.util.SerializationUtil;
 
@@ -30,13 +45,64 @@ import ark.util.SerializationUtil;
  * @param <L> label type
  *
  */
-public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedModelSVM<D, L> {
+public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedModelSVM<D, L> implements ResumableTraining<D, L>, BudgetedTraining<D, L> {
 	protected FactoredCost<D, L> factoredCost; // 's' vector from the paper/nips2014.pdf paper
 	protected double[] cost_v; // 'e' vector from paper/nips2014.pdf; 'v' from paper/previous-approaches.pdf
 	protected double[] cost_G; // G for AdaGrad
+	protected List<StoppingCriterion<D, L>> stoppingCriteria; // criteria for stopping before trainingIterations (set through 'extra info')
+	protected EpochScheduler<D, L> epochScheduler;
+	protected LabelIndex<L> validLabelIndex; // dense indices of the valid labels (see getValidLabelIndex)
+	
+	// Cost-augmented scores for factored costs that depend only on labels
+	protected double[] cost_rows; // cost_v*s(actual, predicted) at actualIndex*labels+predictedIndex (null if costs aren't label factored)
+	protected int[][] cost_rowPositions; // cost index -> positions in cost_rows to which the cost weight contributes
+	protected double[][] cost_rowValues; // cost index -> s values at the positions in cost_rowPositions
+	protected int[][] cost_positionIndices; // position in cost_rows -> cost indices that contribute to it (only for lazy cost regularization)
+	
+	// Lazy cost regularization (the regularizer part of the cost gradient is applied to a cost weight when it's next touched or read)
+	protected boolean lazyCostRegularization; // whether to regularize the cost weights lazily (set through 'extra info')
+	protected int[] cost_t; // last step through which the regularizer has been applied to each cost weight
+	protected double[] cost_r; // norm/N for each cost weight, so the regularizer gradient is cost_r*(cost_v-1)
+	protected static final double COST_REGULARIZATION_TOLERANCE = 1e-6; // bound on the relative growth of cost_G over a chunk of lazy regularizer steps (see regularizeCostWeight)
+	
+	// Weight averaging (for step k changing w by d, a += (k-1)*d, and the average weights are w-a/averageT)
+	protected boolean averageWeights; // whether to classify using weights averaged over all training steps (set through 'extra info')
+	protected int averageT; // number of training steps in the average
+	protected Map<Integer, Double> feature_a;
+	protected double[] bias_a;
+	protected boolean scoreAveraged; // whether scoreLabel currently uses the averaged weights
+	
+	// Scoring datums with bit-packed -1/+1 feature values (see cost.data.annotation.CostDatumTools.getBinaryFeatureBits) 
+	protected BinaryFeatureScorer binaryScorer; // null until computed
+	
+	// Hashed feature space (see cost.data.feature.FeatureHashSpace).  The weight tables stay maps holding only the 
+	// buckets that training touches, since the parent's feature_w is a map and a dense labels*2^bits array would be
+	// mostly empty at large numbers of bits.
+	protected FeatureHashSpace featureHashSpace; // null to index weights by feature vocabulary index (set through 'extra info' as featureHashBits, and labels*2^featureHashBits must fit in an int)
+	
+	// Input features seen in training (instead of ark.model.SupervisedModelSVM.featureNames, see cost.data.feature.FeatureDictionary)
+	protected BitSet featureIndices;
+	protected FeatureDictionary featureDictionary; // shared by models trained on the same data
+	
+	// Training all grid search values of a hyper-parameter in a single pass (see cost.model.SupervisedModelSVMCLNGridTrainer)
+	protected SupervisedModelSVMCLNGridTrainer<D, L> gridTrainer; // null unless configured (set through 'extra info'), and shared by the clones of this model
+	
+	// Successive halving grid search (see cost.model.SuccessiveHalvingTrainer)
+	protected SuccessiveHalvingTrainer<D, L> halvingTrainer; // null unless configured (set through 'extra info'), and shared by the grid positions cloned from this model
+	
+	// Resumable training state (see cost.model.ResumableTraining)
+	protected TrainingLoop<D, L> trainingLoop; // null until training starts
+	
+	// Checkpoints from which interrupted training resumes (see cost.model.TrainingCheckpoint)
+	protected TrainingCheckpoint checkpoint; // null unless configured (set through 'extra info')
+	
+	// Admission of parallel training runs by their estimated footprints (see cost.model.BudgetedTraining)
+	protected HeapBudget heapBudget; // shared by the clones of this model (or null for no limit)
 	
 	public SupervisedModelSVMCLN() {
 		super();
+		this.featureIndices = new BitSet();
+		this.stoppingCriteria = new ArrayList<StoppingCriterion<D, L>>();
 	}
 	
 	@Override
@@ -47,6 +113,33 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			this.factoredCost = ((CostDatumTools<D, L>)datumTools).makeFactoredCostInstance(genericCost);
 			if (!this.factoredCost.deserialize(reader, false, datumTools))
 				return false;
+		} else if (name.equals("averageWeights")) {
+			this.averageWeights = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("lazyCostRegularization")) {
+			this.lazyCostRegularization = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (StoppingCriterion.isExtraInfo(name)) {
+			if (!StoppingCriterion.deserializeExtraInfo(reader, datumTools, this.stoppingCriteria))
+				return false;
+		} else if (FeatureHashSpace.isExtraInfo(name)) {
+			int featureHashBits = FeatureHashSpace.deserializeBits(reader);
+			if (featureHashBits < 0)
+				return false;
+			this.featureHashSpace = (featureHashBits == 0) ? null : new FeatureHashSpace(featureHashBits);
+		} else if (SupervisedModelSVMCLNGridTrainer.isExtraInfo(name)) {
+			if (this.gridTrainer == null)
+				this.gridTrainer = new SupervisedModelSVMCLNGridTrainer<D, L>();
+			if (!this.gridTrainer.deserializeExtraInfo(name, reader))
+				return false;
+		} else if (SuccessiveHalvingTrainer.isExtraInfo(name)) {
+			if (this.halvingTrainer == null)
+				this.halvingTrainer = new SuccessiveHalvingTrainer<D, L>();
+			if (!this.halvingTrainer.deserializeExtraInfo(name, reader))
+				return false;
+		} else if (TrainingCheckpoint.isExtraInfo(name)) {
+			if (this.checkpoint == null)
+				this.checkpoint = new TrainingCheckpoint();
+			if (!this.checkpoint.deserializeExtraInfo(name, reader))
+				return false;
 		} else {
 			return super.deserializeExtraInfo(name, reader, datumTools);
 		}
@@ -67,40 +160,748 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			writer.write("\n");
 		}
 		
+		if (this.averageWeights) {
+			writer.write("\t");
+			Pair<String, String> averageWeightsAssignment = new Pair<String, String>("averageWeights", String.valueOf(this.averageWeights));
+			if (!SerializationUtil.serializeAssignment(averageWeightsAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.lazyCostRegularization) {
+			writer.write("\t");
+			Pair<String, String> lazyCostRegularizationAssignment = new Pair<String, String>("lazyCostRegularization", String.valueOf(this.lazyCostRegularization));
+			if (!SerializationUtil.serializeAssignment(lazyCostRegularizationAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.featureHashSpace != null && !this.featureHashSpace.serializeExtraInfo(writer))
+			return false;
+		
+		if (!StoppingCriterion.serializeExtraInfo(this.stoppingCriteria, writer))
+			return false;
+		
+		if (this.gridTrainer != null && !this.gridTrainer.serializeExtraInfo(writer))
+			return false;
+		
+		if (this.halvingTrainer != null && !this.halvingTrainer.serializeExtraInfo(writer))
+			return false;
+		
+		if (this.checkpoint != null && !this.checkpoint.serializeExtraInfo(writer))
+			return false;
+		
 		return true;
 	}
 	
+	/**
+	 * Trains in the same way as ark.model.SupervisedModelSVM, but through the
+	 * shared training loop (see cost.model.TrainingLoop), which also stops as 
+	 * soon as one of the model's stopping criteria is satisfied.  If the model
+	 * shares a grid trainer or a successive halving trainer with the other grid 
+	 * search positions, then the model is trained together with them (see 
+	 * cost.model.SupervisedModelSVMCLNGridTrainer and 
+	 * cost.model.SuccessiveHalvingTrainer).  If the model has a checkpoint path,
+	 * then training resumes from the model's last checkpoint on the same data
+	 * (see writeCheckpoint).
+	 * 
+	 * If the model has a heap budget, then training waits until the budget
+	 * has room for the model's estimated footprint (see estimateModelBytes).
+	 * A joint or successive halving trainer reserves the footprint of all of 
+	 * its models once, for the grid position that trains them (see 
+	 * estimateTrainingBytes), and the other positions then just take their 
+	 * trained parameters.
+	 */
+	@Override
+	public boolean train(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		if (this.gridTrainer != null && this.gridTrainer.train(this, data, testData, evaluations, this.heapBudget))
+			return true;
+		if (this.halvingTrainer != null && this.halvingTrainer.train(this, data, testData, evaluations, this.heapBudget))
+			return true;
+		
+		if (this.heapBudget == null)
+			return trainOnOwn(data, testData, evaluations);
+		
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		int reservedMegabytes = this.heapBudget.reserve(estimateModelBytes(data), getGenericName() + " on " + data.getName(), output);
+		if (reservedMegabytes < 0)
+			return false;
+		
+		try {
+			return trainOnOwn(data, testData, evaluations);
+		} finally {
+			this.heapBudget.release(reservedMegabytes);
+		}
+	}
+	
+	protected boolean trainOnOwn(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		this.trainingLoop = null;
+		return trainIterations(data, testData, evaluations, this.trainingIterations);
+	}
+	
+	@Override
+	public boolean trainIterations(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, int iterations) {
+		if (this.trainingLoop == null) {
+			if (!initializeTraining(data))
+				return false;
+			
+			TrainingLoop<D, L> trainingLoop = makeTrainingLoop(data, testData);
+			if (!trainingLoop.start(makeTrainingStatus(data, testData), testData, evaluations, data.getDatumTools().getDataTools().getOutputWriter()))
+				return false;
+			this.trainingLoop = trainingLoop;
+		}
+		
+		return this.trainingLoop.trainIterations(iterations);
+	}
+	
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a loop that trains the model on data, and that resumes from and
+	 * writes the model's checkpoints if it has a checkpoint path
+	 */
+	protected TrainingLoop<D, L> makeTrainingLoop(final FeaturizedDataSet<D, L> data, final FeaturizedDataSet<D, L> testData) {
+		final TrainingCheckpoint checkpoint = (this.checkpoint != null && this.checkpoint.start(getCheckpointName())) ? this.checkpoint : null;
+		
+		return new TrainingLoop<D, L>(this, this.stoppingCriteria, this.trainingIterations, 10, this.epsilon) {
+			@Override
+			protected boolean trainOneIteration(int iteration) {
+				return SupervisedModelSVMCLN.this.trainOneIteration(iteration, data);
+			}
+			
+			@Override
+			protected String getLogPrefix() {
+				return "(l2=" + SupervisedModelSVMCLN.this.l2 + ")";
+			}
+			
+			@Override
+			protected boolean isEarlyStopIfNoLabelChange() {
+				return SupervisedModelSVMCLN.this.earlyStopIfNoLabelChange;
+			}
+			
+			@Override
+			protected boolean resume() {
+				return checkpoint != null && readCheckpoint(this, data, testData);
+			}
+			
+			@Override
+			protected void iterationCompleted() {
+				if (checkpoint != null && (isFinished() || checkpoint.isDue(getIteration())))
+					writeCheckpoint(this, data, testData);
+			}
+		};
+	}
+	
+	/**
+	 * @return the name of the checkpoint file for the model's hyper-parameter 
+	 * values (so that the grid search positions keep separate checkpoints)
+	 */
+	protected String getCheckpointName() {
+		StringBuilder name = new StringBuilder();
+		for (String hyperParameterName : getHyperParameterNames())
+			name.append("_").append(hyperParameterName).append("-").append(getHyperParameterValue(hyperParameterName));
+		return name.toString();
+	}
+	
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a fingerprint of the training data and model configuration that
+	 * a checkpoint must match for training to resume from it
+	 */
+	protected long computeCheckpointFingerprint(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		long fingerprint = 17;
+		fingerprint = 31*fingerprint + data.size();
+		for (D datum : data)
+			fingerprint = 31*fingerprint + datum.getId();
+		if (testData != null) {
+			fingerprint = 31*fingerprint + testData.size();
+			for (D datum : testData)
+				fingerprint = 31*fingerprint + datum.getId();
+		}
+		
+		fingerprint = 31*fingerprint + this.numFeatures;
+		fingerprint = 31*fingerprint + this.labelIndices.size();
+		fingerprint = 31*fingerprint + this.cost_v.length;
+		fingerprint = 31*fingerprint + this.stoppingCriteria.size();
+		fingerprint = 31*fingerprint + (this.averageWeights ? 1 : 0);
+		fingerprint = 31*fingerprint + (this.lazyCostRegularization ? 1 : 0);
+		for (String hyperParameterName : getHyperParameterNames())
+			fingerprint = 31*fingerprint + String.valueOf(getHyperParameterValue(hyperParameterName)).hashCode();
+		return fingerprint;
+	}
+	
+	/**
+	 * Writes all of the state that training depends on after the most recently 
+	 * completed iteration (the weights, AdaGrad sums, random number generator,
+	 * training status, and stopping criteria) to the model's checkpoint, so that 
+	 * training which resumes from the checkpoint continues exactly as it
+	 * would have without the interruption.  A failed write is logged, and
+	 * training continues.
+	 * 
+	 * @param trainingLoop
+	 * @param data
+	 * @param testData
+	 * @return true if the checkpoint was written
+	 */
+	protected boolean writeCheckpoint(TrainingLoop<D, L> trainingLoop, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		TrainingCheckpoint.State state = new TrainingCheckpoint.State();
+		state.trainingIteration = trainingLoop.getIteration();
+		state.stoppedEarly = trainingLoop.isStoppedEarly();
+		state.t = this.t;
+		state.randomState = ((StatefulRandom)this.random).getState();
+		
+		state.feature_w = this.feature_w;
+		state.feature_G = this.feature_G;
+		state.bias_b = this.bias_b;
+		state.bias_G = this.bias_G;
+		state.cost_v = this.cost_v;
+		state.cost_G = this.cost_G;
+		state.cost_t = this.cost_t;
+		
+		state.averageT = this.averageT;
+		state.feature_a = this.feature_a;
+		state.bias_a = this.bias_a;
+		
+		state.featureIndices = this.featureIndices;
+		state.prevObjectiveValue = trainingLoop.getPrevObjectiveValue();
+		state.prevEvaluationValues = trainingLoop.getPrevEvaluationValues();
+		
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		return this.checkpoint.write(computeCheckpointFingerprint(data, testData), state, trainingLoop.getStatus(), this.stoppingCriteria, output);
+	}
+	
+	/**
+	 * Restores the training state from the model's checkpoint if it has a checkpoint 
+	 * for the same data and configuration (see writeCheckpoint).  This must be
+	 * called after the training loop has been started.
+	 * 
+	 * @param trainingLoop
+	 * @param data
+	 * @param testData
+	 * @return true if the state was restored.  False if training should start 
+	 * from the beginning.
+	 */
+	protected boolean readCheckpoint(TrainingLoop<D, L> trainingLoop, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		TrainingCheckpoint.State state = this.checkpoint.read(computeCheckpointFingerprint(data, testData), trainingLoop.getStatus(), this.stoppingCriteria, output);
+		if (state == null)
+			return false;
+		
+		trainingLoop.restore(state.trainingIteration, state.stoppedEarly, state.prevObjectiveValue, state.prevEvaluationValues);
+		this.t = state.t;
+		StatefulRandom random = new StatefulRandom(0);
+		random.setState(state.randomState);
+		this.random = random;
+		this.epochScheduler = new EpochScheduler<D, L>(data, this.random);
+		this.epochScheduler.indexLabels(getValidLabelIndex());
+		
+		this.feature_w = state.feature_w;
+		this.feature_G = state.feature_G;
+		this.bias_b = state.bias_b;
+		this.bias_G = state.bias_G;
+		this.cost_v = state.cost_v;
+		this.cost_G = state.cost_G;
+		this.cost_t = state.cost_t;
+		
+		this.averageT = state.averageT;
+		this.feature_a = state.feature_a;
+		this.bias_a = state.bias_a;
+		this.featureIndices = state.featureIndices;
+		
+		computeFeatureLabelSums();
+		if (!initializeCostRows())
+			return false;
+		
+		output.debugWriteln("Resuming " + getGenericName() + " training at iteration " + state.trainingIteration + " from " + this.checkpoint.getPath() + "...");
+		return true;
+	}
+	
+	@Override
+	public int getTrainedIterations() {
+		return (this.trainingLoop == null) ? 0 : this.trainingLoop.getIteration();
+	}
+	
+	@Override
+	public boolean isTrainingFinished() {
+		return this.trainingLoop != null && this.trainingLoop.isFinished();
+	}
+	
+	/**
+	 * Estimates the footprint of the model (see estimateModelBytes) and
+	 * each of the candidates that its grid or successive halving trainer 
+	 * trains along with it
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		int models = 1;
+		if (this.gridTrainer != null)
+			models = Math.max(models, this.gridTrainer.getModelCount());
+		if (this.halvingTrainer != null)
+			models = Math.max(models, this.halvingTrainer.getCandidateCount());
+		
+		return models*estimateModelBytes(data);
+	}
+	
+	/**
+	 * @param data
+	 * @return estimated bytes of the label feature weight maps (weights, 
+	 * AdaGrad sums, and averages), the bias and cost weights, the label pair 
+	 * cost rows, and the epoch scheduler, for a single model trained on data
+	 */
+	protected long estimateModelBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long featureCount = (this.featureHashSpace != null) ? this.featureHashSpace.size() : data.getFeatureVocabularySize();
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		int weightVectors = (this.averageWeights) ? 3 : 2;
+		
+		long bytes = weightVectors*HeapBudget.weightMapBytes(labelCount*featureCount);
+		bytes += (weightVectors + 1)*HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES);
+		bytes += 3*HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES) + HeapBudget.arrayBytes(costCount, HeapBudget.INT_BYTES);
+		bytes += HeapBudget.arrayBytes(labelCount*labelCount, HeapBudget.DOUBLE_BYTES);
+		bytes += EpochScheduler.estimateBytes(data.size());
+		return bytes;
+	}
+	
+	@Override
+	public void setHeapBudget(HeapBudget heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+	
+	/**
+	 * @return the names of the model's configured 'extra info' settings that 
+	 * only apply when the model trains through train (the joint grid, 
+	 * successive halving, and checkpoint settings), so that they're ignored 
+	 * when the model is trained in a cost.model.SupervisedModelSVMCLNStack
+	 */
+	public List<String> getTrainOnlyExtraInfo() {
+		List<String> names = new ArrayList<String>();
+		if (this.gridTrainer != null)
+			names.add("jointGridSearchParameterValues");
+		if (this.halvingTrainer != null)
+			names.add("halvingGridSearchParameterValues");
+		if (this.checkpoint != null)
+			names.add("checkpointPath");
+		return names;
+	}
+	
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a status through which the stopping criteria read the objective 
+	 * on data, and the predictions and loss on testData
+	 */
+	protected TrainingStatus<D, L> makeTrainingStatus(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		return new TrainingStatus<D, L>(data, testData, testData) {
+			@Override
+			protected double computeObjectiveValue(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMCLN.this.objectiveValue(data);
+			}
+
+			@Override
+			protected Map<D, L> computePredictions(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMCLN.this.classify(data);
+			}
+
+			@Override
+			protected double computeLoss(FeaturizedDataSet<D, L> data) {
+				boolean prevScoreAveraged = SupervisedModelSVMCLN.this.startScoringAveraged();
+				double loss = SupervisedModelSVMCLN.this.computeLoss(data);
+				SupervisedModelSVMCLN.this.scoreAveraged = prevScoreAveraged;
+				return loss;
+			}
+		};
+	}
+	
+	/**
+	 * @param data
+	 * @return the cost-augmented hinge loss summed over data (weighted by the 
+	 * datum weights)
+	 */
+	protected double computeLoss(FeaturizedDataSet<D, L> data) {
+		double loss = 0;
+		for (D datum : data) {
+			double maxScore = maxScoreLabel(data, datum, true);
+			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
+			loss += CostDatumTools.getDatumWeight(data.getDatumTools(), datum)*(maxScore - datumScore);
+		}
+		return loss;
+	}
+	
+	/**
+	 * @return dense indices of the model's valid labels, in the same order as
+	 * labelIndices (so the indices can be used with the bias and weight arrays)
+	 */
+	protected LabelIndex<L> getValidLabelIndex() {
+		if (this.validLabelIndex == null) {
+			List<L> labels = new ArrayList<L>(this.labelIndices.size());
+			for (int i = 0; i < this.labelIndices.size(); i++)
+				labels.add(this.labelIndices.reverseGet(i));
+			this.validLabelIndex = new LabelIndex<L>(labels, this.labelMapping);
+		}
+		return this.validLabelIndex;
+	}
+	
+	@Override
+	public boolean setLabelMapping(LabelMapping<L> labelMapping) {
+		this.validLabelIndex = null;
+		return super.setLabelMapping(labelMapping);
+	}
+	
 	@Override
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {
 		if (!super.initializeTraining(data))
 			return false;
 		
+		// Seeded from the parent's generator, whose state can't be saved without Java serialization (see cost.util.StatefulRandom)
+		this.random = new StatefulRandom(this.random.nextLong());
+		
 		if (!this.factoredCost.init(this, data))
 			return false;
 		
+		if (this.featureHashSpace != null)
+			this.numFeatures = this.featureHashSpace.size();
+		
+		// Weight indices are labelIndex*numFeatures+featureIndex ints (see ark.model.SupervisedModelSVM.getWeightIndex)
+		if (((long)this.labelIndices.size())*this.numFeatures > Integer.MAX_VALUE) {
+			data.getDatumTools().getDataTools().getOutputWriter().debugWriteln("Error: " + this.labelIndices.size() + " labels with " + this.numFeatures + " features per label overflow the weight indices (use fewer featureHashBits)");
+			return false;
+		}
+		
+		this.featureDictionary = FeatureDictionary.fromData(data);
+		this.epochScheduler = new EpochScheduler<D, L>(data, this.random);
+		this.epochScheduler.indexLabels(getValidLabelIndex());
+		
 		if (this.cost_v == null) {
 			this.cost_v = new double[this.factoredCost.getVocabularySize()];
 			this.cost_G = new double[this.cost_v.length];
 		}
 		
+		if (this.averageWeights && this.feature_a == null) {
+			this.averageT = 0;
+			this.feature_a = new HashMap<Integer, Double>();
+			this.bias_a = new double[this.bias_b.length];
+		}
+		
+		if (this.lazyCostRegularization) {
+			regularizeCostWeights();
+			
+			if (this.cost_t == null || this.cost_t.length != this.cost_v.length) {
+				this.cost_t = new int[this.cost_v.length];
+				Arrays.fill(this.cost_t, this.t - 1);
+			}
+			
+			double[] costNorms = this.factoredCost.getNorms();
+			this.cost_r = new double[this.cost_v.length];
+			for (int i = 0; i < this.cost_r.length; i++)
+				this.cost_r[i] = costNorms[i]/data.size();
+		}
+		
+		computeFeatureLabelSums();
+		
+		return initializeCostRows();
+	}
+	
+	/**
+	 * Recomputes the binary feature scorer's per-label sums of the feature 
+	 * weights (and the averaging values) from scratch.  The sums are updated 
+	 * incrementally as the weights change, and this is called at the start of 
+	 * each training iteration to keep rounding errors from accumulating.
+	 */
+	protected void computeFeatureLabelSums() {
+		if (this.numFeatures <= 0 || this.feature_w == null)
+			this.binaryScorer = null;
+		else
+			this.binaryScorer = new BinaryFeatureScorer(this.labelIndices.size(), this.numFeatures, this.feature_w, this.feature_a);
+	}
+	
+	/**
+	 * Sets feature weight wIndex to w, and updates the per-label weight sums
+	 * 
+	 * @param wIndex
+	 * @param w
+	 */
+	protected void setFeatureWeight(int wIndex, double w) {
+		Double prevW = this.feature_w.put(wIndex, w);
+		if (this.binaryScorer != null)
+			this.binaryScorer.addToWeight(wIndex, w - ((prevW == null) ? 0.0 : prevW));
+	}
+	
+	/**
+	 * @param featureBits
+	 * @param labelIndex
+	 * @return the feature part of the label's score for a datum with bit-packed 
+	 * -1/+1 feature values, without the label bias
+	 */
+	protected double scoreBinaryFeatures(long[] featureBits, int labelIndex) {
+		if (this.binaryScorer == null)
+			computeFeatureLabelSums();
+		return this.binaryScorer.score(featureBits, labelIndex, this.feature_w, (this.scoreAveraged) ? this.feature_a : null, this.averageT);
+	}
+	
+	/**
+	 * Precomputes the cost-augmented score term cost_v*s(actual, predicted) for every
+	 * actual/predicted label pair when the factored cost depends on datums only through
+	 * their labels.  Also indexes the label pairs to which each cost weight contributes
+	 * so that the rows can be kept current as the cost weights change.
+	 * 
+	 * @return true if the rows were initialized
+	 */
+	protected boolean initializeCostRows() {
+		int labelCount = this.labelIndices.size();
+		List<List<Integer>> rowPositions = new ArrayList<List<Integer>>(this.cost_v.length);
+		List<List<Double>> rowValues = new ArrayList<List<Double>>(this.cost_v.length);
+		for (int i = 0; i < this.cost_v.length; i++) {
+			rowPositions.add(new ArrayList<Integer>());
+			rowValues.add(new ArrayList<Double>());
+		}
+		
+		for (int i = 0; i < labelCount; i++) {
+			L actual = this.labelIndices.reverseGet(i);
+			for (int j = 0; j < labelCount; j++) {
+				Map<Integer, Double> costs = this.factoredCost.computeLabelVector(actual, this.labelIndices.reverseGet(j));
+				if (costs == null) {
+					this.cost_rows = null;
+					this.cost_rowPositions = null;
+					this.cost_rowValues = null;
+					return true;
+				}
+				
+				for (Entry<Integer, Double> entry : costs.entrySet()) {
+					if (entry.getValue() == 0)
+						continue;
+					rowPositions.get(entry.getKey()).add(i*labelCount + j);
+					rowValues.get(entry.getKey()).add(entry.getValue());
+				}
+			}
+		}
+		
+		this.cost_rowPositions = new int[this.cost_v.length][];
+		this.cost_rowValues = new double[this.cost_v.length][];
+		for (int i = 0; i < this.cost_v.length; i++) {
+			this.cost_rowPositions[i] = new int[rowPositions.get(i).size()];
+			this.cost_rowValues[i] = new double[rowValues.get(i).size()];
+			for (int j = 0; j < this.cost_rowPositions[i].length; j++) {
+				this.cost_rowPositions[i][j] = rowPositions.get(i).get(j);
+				this.cost_rowValues[i][j] = rowValues.get(i).get(j);
+			}
+		}
+		
+		this.cost_rows = new double[labelCount*labelCount];
+		refreshCostRows();
+		
+		if (this.lazyCostRegularization) {
+			List<List<Integer>> positionIndices = new ArrayList<List<Integer>>(this.cost_rows.length);
+			for (int i = 0; i < this.cost_rows.length; i++)
+				positionIndices.add(new ArrayList<Integer>());
+			for (int i = 0; i < this.cost_v.length; i++)
+				for (int j = 0; j < this.cost_rowPositions[i].length; j++)
+					positionIndices.get(this.cost_rowPositions[i][j]).add(i);
+			
+			this.cost_positionIndices = new int[this.cost_rows.length][];
+			for (int i = 0; i < this.cost_rows.length; i++) {
+				this.cost_positionIndices[i] = new int[positionIndices.get(i).size()];
+				for (int j = 0; j < this.cost_positionIndices[i].length; j++)
+					this.cost_positionIndices[i][j] = positionIndices.get(i).get(j);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Recomputes the cost rows from scratch to clear out any drift from
+	 * incremental updates
+	 */
+	protected void refreshCostRows() {
+		if (this.cost_rows == null)
+			return;
+		
+		for (int i = 0; i < this.cost_rows.length; i++)
+			this.cost_rows[i] = 0;
+		
+		for (int i = 0; i < this.cost_v.length; i++)
+			for (int j = 0; j < this.cost_rowPositions[i].length; j++)
+				this.cost_rows[this.cost_rowPositions[i][j]] += this.cost_v[i]*this.cost_rowValues[i][j];
+	}
+	
+	/**
+	 * Sets cost weight i to v, and updates the cost rows to which it contributes
+	 */
+	protected void setCostWeight(int i, double v) {
+		double diff = v - this.cost_v[i];
+		this.cost_v[i] = v;
+		
+		if (this.cost_rows == null || diff == 0)
+			return;
+		
+		for (int j = 0; j < this.cost_rowPositions[i].length; j++)
+			this.cost_rows[this.cost_rowPositions[i][j]] += diff*this.cost_rowValues[i][j];
+	}
+	
+	/**
+	 * Trains in the same way as ark.model.SupervisedModelSVM, but orders the 
+	 * datums with the epoch scheduler rather than a newly constructed permutation
+	 * of datum ids
+	 */
+	@Override
+	protected boolean trainOneIteration(int iteration, FeaturizedDataSet<D, L> data) {
+		if (!initializeTrainingIteration())
+			return false;
+		
+		double[] labelScores = new double[this.labelIndices.size()];
+		this.epochScheduler.shuffle();
+		for (int i = 0; i < this.epochScheduler.size(); i++) {
+			D datum = this.epochScheduler.getDatum(i);
+			long[] datumFeatureBits = getBinaryFeatureBits(data, datum);
+			Map<Integer, Double> datumFeatureValues = (datumFeatureBits == null) ? getFeatureValues(data, datum) : null;
+			
+			int datumLabelIndex = this.epochScheduler.getLabelIndex(i);
+			
+			scoreLabels(datum, datumFeatureValues, datumFeatureBits, datumLabelIndex, true, labelScores);
+			if (!trainOneScoredDatum(datum, datumFeatureValues, datumFeatureBits, datumLabelIndex, labelScores, iteration, data))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Refreshes the values that are cached across the training steps at the start
+	 * of each training iteration
+	 * 
+	 * @return true if the model is ready for the iteration
+	 */
+	protected boolean initializeTrainingIteration() {
+		refreshCostRows();
+		computeFeatureLabelSums();
+		return true;
+	}
+	
+	/**
+	 * Performs the weight update for a datum given its cost-augmented label scores
+	 * (see scoreLabels), and advances the model to the next training step
+	 * 
+	 * @param datum
+	 * @param datumFeatureValues the datum's feature values (or null if datumFeatureBits is given)
+	 * @param datumFeatureBits the datum's bit-packed binary feature values (see getBinaryFeatureBits), or null
+	 * @param labelScores
+	 * @param iteration
+	 * @param data
+	 * @return true if the weights were updated
+	 */
+	protected boolean trainOneScoredDatum(D datum, Map<Integer, Double> datumFeatureValues, long[] datumFeatureBits, double[] labelScores, int iteration, FeaturizedDataSet<D, L> data) {
+		return trainOneScoredDatum(datum, datumFeatureValues, datumFeatureBits, getValidLabelIndex().getMappedIndex(datum.getLabel()), labelScores, iteration, data);
+	}
+	
+	/**
+	 * Performs the weight update of trainOneScoredDatum for a datum whose gold
+	 * label index is already known
+	 * 
+	 * @param datum
+	 * @param datumFeatureValues the datum's feature values (or null if datumFeatureBits is given)
+	 * @param datumFeatureBits the datum's bit-packed binary feature values (see getBinaryFeatureBits), or null
+	 * @param datumLabelIndex index of the datum's mapped gold label (see getValidLabelIndex)
+	 * @param labelScores
+	 * @param iteration
+	 * @param data
+	 * @return true if the weights were updated
+	 */
+	protected boolean trainOneScoredDatum(D datum, Map<Integer, Double> datumFeatureValues, long[] datumFeatureBits, int datumLabelIndex, double[] labelScores, int iteration, FeaturizedDataSet<D, L> data) {
+		int bestLabelIndex = argMaxScoreLabelIndex(labelScores);
+		
+		if (!trainOneDatum(datum, datumFeatureValues, datumFeatureBits, datumLabelIndex, bestLabelIndex, iteration, data))
+			return false;
+		
+		this.t++;
 		return true;
 	}
 	
 	@Override
 	/**
 	 * Perform a single weight update for SGD.  This just performs the same
-	 * update to the feature weights as the non-cost learning SVM plus an update to 
-	 * the cost weights.
+	 * update to the feature weights as the non-cost learning SVM (see 
+	 * trainOneDatumFeatures) plus an update to the cost weights.  The loss 
+	 * parts of the gradients are scaled by the datum's weight.
 	 */
 	protected boolean trainOneDatum(D datum, L datumLabel, L bestLabel, int iteration, FeaturizedDataSet<D, L> data) {
+		LabelIndex<L> labelIndex = getValidLabelIndex();
+		long[] datumFeatureBits = getBinaryFeatureBits(data, datum);
+		Map<Integer, Double> datumFeatureValues = (datumFeatureBits == null) ? getFeatureValues(data, datum) : null;
+		return trainOneDatum(datum, datumFeatureValues, datumFeatureBits, labelIndex.getIndex(datumLabel), labelIndex.getIndex(bestLabel), iteration, data);
+	}
+	
+	/**
+	 * Performs the single weight update of trainOneDatum for a datum whose
+	 * feature values have already been read from data, with the datum and
+	 * best labels given by their label indices.  Datums with bit-packed 
+	 * binary feature values are updated from their bits (see 
+	 * trainOneBinaryDatumFeatures), except on the occasional regularizer 
+	 * steps, which update every weight through the maps anyway.
+	 */
+	protected boolean trainOneDatum(D datum, Map<Integer, Double> datumFeatureValues, long[] datumFeatureBits, int datumLabelIndex, int bestLabelIndex, int iteration, FeaturizedDataSet<D, L> data) {
 		int N = data.size();
+		double weight = CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
+		
+		if (datumFeatureBits != null && isRegularizerStep(N)) {
+			datumFeatureValues = getBinaryFeatureValues(datumFeatureBits);
+			datumFeatureBits = null;
+		}
 		
-		if (!super.trainOneDatum(datum, datumLabel, bestLabel, iteration, data))
+		Map<Integer, Double> prevW = null;
+		double prevDatumLabelB = 0, prevBestLabelB = 0;
+		if (this.feature_a != null) {
+			this.averageT++;
+			if (datumFeatureBits == null)
+				prevW = getUpdatableWeights(datumFeatureValues, datumLabelIndex, bestLabelIndex, data);
+			prevDatumLabelB = this.bias_b[datumLabelIndex];
+			prevBestLabelB = this.bias_b[bestLabelIndex];
+		}
+		
+		if (datumFeatureBits != null) {
+			if (!trainOneBinaryDatumFeatures(datumFeatureBits, datumLabelIndex, bestLabelIndex, iteration, weight))
+				return false;
+		} else if (!trainOneDatumFeatures(datumFeatureValues, datumLabelIndex, bestLabelIndex, iteration, data, weight)) {
 			return false;
+		}
+		
+		if (this.feature_a != null) {
+			if (prevW != null) {
+				for (Entry<Integer, Double> entry : prevW.entrySet()) {
+					double w = (this.feature_w.containsKey(entry.getKey())) ? this.feature_w.get(entry.getKey()) : 0.0;
+					addToAverage(entry.getKey(), w - entry.getValue());
+				}
+			}
+			
+			this.bias_a[datumLabelIndex] += (this.averageT - 1)*(this.bias_b[datumLabelIndex] - prevDatumLabelB);
+			if (bestLabelIndex != datumLabelIndex)
+				this.bias_a[bestLabelIndex] += (this.averageT - 1)*(this.bias_b[bestLabelIndex] - prevBestLabelB);
+		}
 		
 		// Update cost weights
 		double[] costNorms = this.factoredCost.getNorms();
-		Map<Integer, Double> costs = this.factoredCost.computeVector(datum, bestLabel);
+		Map<Integer, Double> costs = this.factoredCost.computeVector(datum, getValidLabelIndex().getLabel(bestLabelIndex));
+		
+		if (this.cost_t != null) { // Only touch the weights with non-zero costs, and leave the rest to regularizeCostWeight
+			for (Entry<Integer, Double> entry : costs.entrySet()) {
+				int i = entry.getKey();
+				if (costNorms[i] == 0)
+					continue;
+				
+				regularizeCostWeight(i, this.t - 1);
+				
+				double g = weight*entry.getValue()+costNorms[i]*this.cost_v[i]/N-costNorms[i]/N;
+				if (g != 0) {
+					this.cost_G[i] += g*g;
+					double eta = 1.0/Math.sqrt(this.cost_G[i]);
+					setCostWeight(i, Math.max(0, this.cost_v[i] - g*eta));
+				}
+				
+				this.cost_t[i] = this.t;
+			}
+			
+			return true;
+		}
 		
 		for (int i = 0; i < costNorms.length; i++) {
 			if (costNorms[i] == 0)
@@ -108,7 +909,7 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			
 			double cost = (costs.containsKey(i) ? costs.get(i) : 0);
 			double costNorm = costNorms[i];
-			double g = cost+costNorm*this.cost_v[i]/N-costNorm/N;
+			double g = weight*cost+costNorm*this.cost_v[i]/N-costNorm/N;
 			
 			if (g == 0)
 				continue;
@@ -117,25 +918,310 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			
 			double eta = 1.0/Math.sqrt(this.cost_G[i]);
 			
-			this.cost_v[i] -= g*eta; 
+			setCostWeight(i, Math.max(0, this.cost_v[i] - g*eta));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Performs the parent SVM's update to the feature weights and label
+	 * biases for a single datum, with the hinge loss gradients scaled by the 
+	 * datum's weight.  The regularizer is still applied on every K=N/4 steps,
+	 * so each pass over the data applies it in full regardless of the 
+	 * datum weights.
+	 * 
+	 * @param datumFeatureValues
+	 * @param datumLabelIndex
+	 * @param bestLabelIndex
+	 * @param iteration
+	 * @param data
+	 * @param weight
+	 * @return true if the weights were updated
+	 */
+	protected boolean trainOneDatumFeatures(Map<Integer, Double> datumFeatureValues, int datumLabelIndex, int bestLabelIndex, int iteration, FeaturizedDataSet<D, L> data, double weight) {
+		int N = data.size();
+		double K = N/4.0;
+		boolean datumLabelBest = (datumLabelIndex == bestLabelIndex);
+		boolean regularizerUpdate = isRegularizerStep(N); // for "occasionality trick"
+		
+		if (iteration == 0 && this.featureHashSpace == null) {
+			for (Integer key : datumFeatureValues.keySet())
+				this.featureIndices.set(key);
+		}
+		
+		if (datumLabelBest && !regularizerUpdate) // No update necessary
+			return true;
+			
+		// Update feature weights
+		if (!regularizerUpdate) { // Update only for loss function gradients
+			for (Entry<Integer, Double> featureValue : datumFeatureValues.entrySet()) {
+				stepFeatureWeight(getWeightIndex(datumLabelIndex, featureValue.getKey()), -weight*featureValue.getValue());
+				stepFeatureWeight(getWeightIndex(bestLabelIndex, featureValue.getKey()), weight*featureValue.getValue());
+			}
+		} else { // Full weight update for regularizer
+			Map<Integer, Double> g = new HashMap<Integer, Double>(); // gradients
+			
+			// Gradient update for hinge loss
+			for (Entry<Integer, Double> featureValue : datumFeatureValues.entrySet()) {
+				int i_datumLabelWeight = getWeightIndex(datumLabelIndex, featureValue.getKey());
+				int i_bestLabelWeight = getWeightIndex(bestLabelIndex, featureValue.getKey());
+				
+				g.put(i_datumLabelWeight, -weight*featureValue.getValue());
+				g.put(i_bestLabelWeight, weight*featureValue.getValue());
+			}
+			
+			// Occasional gradient update for regularizer (this happens after every K training datum updates)
+			for (Entry<Integer, Double> wEntry : this.feature_w.entrySet()) {
+				if (!g.containsKey(wEntry.getKey()))
+					g.put(wEntry.getKey(), (K/N)*this.l2*wEntry.getValue());
+				else 
+					g.put(wEntry.getKey(), g.get(wEntry.getKey()) + (K/N)*this.l2*wEntry.getValue());
+			}
 			
-			if (this.cost_v[i] < 0)
-				this.cost_v[i] = 0;
+			// Update weights based on gradients
+			for (Entry<Integer, Double> gEntry : g.entrySet()) {
+				if (gEntry.getValue() == 0)
+					continue;
+				
+				stepFeatureWeight(gEntry.getKey(), gEntry.getValue());
+			}
+		}
+		
+		updateBiases(datumLabelIndex, bestLabelIndex, weight);
+		return true;
+	}
+	
+	/**
+	 * @param N number of training datums
+	 * @return true if the current step is one of the occasional regularizer 
+	 * steps, which update every weight (these happen on every K=N/4 steps)
+	 */
+	protected boolean isRegularizerStep(int N) {
+		return this.t % (N/4.0) == 0;
+	}
+	
+	/**
+	 * Performs the loss part of trainOneDatumFeatures for a datum with bit-packed 
+	 * -1/+1 feature values, reading each value from its bit rather than from a 
+	 * feature value map.  Every feature of a binary datum is non-zero, so this
+	 * still steps all of the datum and best labels' weights, and records their
+	 * changes for the averaged weights as it goes.  It must not be called on 
+	 * the occasional regularizer steps.
+	 * 
+	 * @param featureBits
+	 * @param datumLabelIndex
+	 * @param bestLabelIndex
+	 * @param iteration
+	 * @param weight
+	 * @return true if the weights were updated
+	 */
+	protected boolean trainOneBinaryDatumFeatures(long[] featureBits, int datumLabelIndex, int bestLabelIndex, int iteration, double weight) {
+		if (iteration == 0)
+			this.featureIndices.set(0, this.numFeatures);
+		
+		if (datumLabelIndex == bestLabelIndex)
+			return true;
+		
+		for (int i = 0; i < this.numFeatures; i++) {
+			double value = BinaryFeatureScorer.getValue(featureBits, i);
+			int i_datumLabelWeight = getWeightIndex(datumLabelIndex, i);
+			int i_bestLabelWeight = getWeightIndex(bestLabelIndex, i);
+			double delta_datumLabelWeight = stepFeatureWeight(i_datumLabelWeight, -weight*value);
+			double delta_bestLabelWeight = stepFeatureWeight(i_bestLabelWeight, weight*value);
+			if (this.feature_a != null) {
+				addToAverage(i_datumLabelWeight, delta_datumLabelWeight);
+				addToAverage(i_bestLabelWeight, delta_bestLabelWeight);
+			}
 		}
 		
+		updateBiases(datumLabelIndex, bestLabelIndex, weight);
 		return true;
 	}
 	
+	/**
+	 * Applies an AdaGrad step with gradient g to feature weight wIndex
+	 * 
+	 * @param wIndex
+	 * @param g
+	 * @return the change in the weight
+	 */
+	protected double stepFeatureWeight(int wIndex, double g) {
+		Double prevG = this.feature_G.get(wIndex);
+		Double prevW = this.feature_w.get(wIndex);
+		double w = (prevW == null) ? 0.0 : prevW;
+		
+		double G = ((prevG == null) ? 0.0 : prevG) + g*g;
+		this.feature_G.put(wIndex, G);
+		
+		double eta = 1.0/Math.sqrt(G);
+		double nextW = w - eta*g;
+		setFeatureWeight(wIndex, nextW);
+		return nextW - w;
+	}
+	
+	/**
+	 * Applies the hinge loss gradient step to the label biases
+	 * 
+	 * @param datumLabelIndex
+	 * @param bestLabelIndex
+	 * @param weight
+	 */
+	protected void updateBiases(int datumLabelIndex, int bestLabelIndex, double weight) {
+		for (int i = 0; i < this.bias_b.length; i++) {
+			// Bias gradient based on hinge loss
+			double g = ((datumLabelIndex == i) ? -weight : 0.0) +
+							(bestLabelIndex == i ? weight : 0.0);
+			
+			if (g == 0)
+				continue;
+			
+			this.bias_G[i] += g*g;
+			double eta = 1.0/Math.sqrt(this.bias_G[i]);
+			this.bias_b[i] -= eta*g;
+		}
+	}
+	
+	/**
+	 * Applies the regularizer part of the AdaGrad cost weight update to cost 
+	 * weight i for all steps since it was last updated through step lastT.
+	 * Each regularizer step multiplies cost_v[i]-1 by 1-cost_r[i]*eta, so 
+	 * holding the AdaGrad learning rate eta fixed over a run of steps gives them 
+	 * in closed form, along with the sum of their squared gradients for cost_G. 
+	 * This is an approximation, since eta shrinks slightly as cost_G grows at 
+	 * each step.  To bound the error, the steps are applied in chunks over which 
+	 * cost_G can grow by at most a factor of 1+COST_REGULARIZATION_TOLERANCE, so 
+	 * eta is within a relative COST_REGULARIZATION_TOLERANCE/2 of the eager rate 
+	 * at every step.  A step with a learning rate large enough that 
+	 * r*eta >= 1 would overshoot 1, so the factor is clamped at 0 and the
+	 * step stops at 1, where the weight then stays (so the remaining steps
+	 * take no time).
+	 * 
+	 * @param i
+	 * @param lastT
+	 */
+	protected void regularizeCostWeight(int i, int lastT) {
+		int steps = lastT - this.cost_t[i];
+		if (steps <= 0)
+			return;
+		
+		this.cost_t[i] = lastT;
+		
+		double r = this.cost_r[i];
+		double u = this.cost_v[i] - 1.0;
+		if (r == 0 || u == 0)
+			return;
+		
+		while (steps > 0 && u != 0) {
+			double g = r*u;
+			double G = this.cost_G[i] + g*g;
+			double eta = 1.0/Math.sqrt(G);
+			
+			// |u| only shrinks, so each step adds at most g*g to cost_G
+			int chunkSteps = (int)Math.max(1.0, Math.min(steps, COST_REGULARIZATION_TOLERANCE*G/(g*g)));
+			double q = Math.max(0, 1.0 - r*eta);
+			double qSteps = Math.pow(q, chunkSteps);
+			this.cost_G[i] += g*g*(1.0 - qSteps*qSteps)/(1.0 - q*q);
+			u *= qSteps;
+			steps -= chunkSteps;
+		}
+		
+		setCostWeight(i, 1.0 + u);
+	}
+	
+	/**
+	 * Applies the outstanding regularizer updates to all of the cost weights
+	 */
+	protected void regularizeCostWeights() {
+		if (this.cost_t == null)
+			return;
+		
+		for (int i = 0; i < this.cost_v.length; i++)
+			regularizeCostWeight(i, this.t - 1);
+	}
+	
+	/**
+	 * @return the current values of the feature weights that trainOneDatumFeatures
+	 * might change for the given datum.  These are the datum's
+	 * feature weights for the datum and best labels, plus all weights on the
+	 * occasional regularizer updates.
+	 */
+	protected Map<Integer, Double> getUpdatableWeights(Map<Integer, Double> datumFeatureValues, int datumLabelIndex, int bestLabelIndex, FeaturizedDataSet<D, L> data) {
+		boolean regularizerUpdate = isRegularizerStep(data.size());
+		if (datumLabelIndex == bestLabelIndex && !regularizerUpdate)
+			return new HashMap<Integer, Double>();
+		
+		Map<Integer, Double> weights = (regularizerUpdate) ? new HashMap<Integer, Double>(this.feature_w) : new HashMap<Integer, Double>();
+		for (Integer featureIndex : datumFeatureValues.keySet()) {
+			int i_datumLabelWeight = getWeightIndex(datumLabelIndex, featureIndex);
+			int i_bestLabelWeight = getWeightIndex(bestLabelIndex, featureIndex);
+			weights.put(i_datumLabelWeight, (this.feature_w.containsKey(i_datumLabelWeight)) ? this.feature_w.get(i_datumLabelWeight) : 0.0);
+			weights.put(i_bestLabelWeight, (this.feature_w.containsKey(i_bestLabelWeight)) ? this.feature_w.get(i_bestLabelWeight) : 0.0);
+		}
+		
+		return weights;
+	}
+	
+	/**
+	 * Records a change to a feature weight at the current training step
+	 * for computing the averaged weights
+	 * 
+	 * @param wIndex
+	 * @param delta
+	 */
+	protected void addToAverage(int wIndex, double delta) {
+		if (delta == 0)
+			return;
+		
+		double a = (this.feature_a.containsKey(wIndex)) ? this.feature_a.get(wIndex) : 0.0;
+		this.feature_a.put(wIndex, a + (this.averageT - 1)*delta);
+		if (this.binaryScorer != null)
+			this.binaryScorer.addToAverage(wIndex, (this.averageT - 1)*delta);
+	}
+	
+	/**
+	 * Sets scoreLabel to use averaged weights if the model was trained with
+	 * averaging
+	 * 
+	 * @return the previous value of scoreAveraged
+	 */
+	protected boolean startScoringAveraged() {
+		boolean prevScoreAveraged = this.scoreAveraged;
+		this.scoreAveraged = this.averageWeights && this.feature_a != null && this.averageT > 0;
+		return prevScoreAveraged;
+	}
+	
+	@Override
+	public Map<D, Map<L, Double>> posterior(FeaturizedDataSet<D, L> data) {
+		boolean prevScoreAveraged = startScoringAveraged();
+		Map<D, Map<L, Double>> posteriors = super.posterior(data);
+		this.scoreAveraged = prevScoreAveraged;
+		return posteriors;
+	}
+	
+	@Override
+	public Map<D, L> classify(FeaturizedDataSet<D, L> data) {
+		boolean prevScoreAveraged = startScoringAveraged();
+		Map<D, L> classifiedData = super.classify(data);
+		this.scoreAveraged = prevScoreAveraged;
+		return classifiedData;
+	}
+	
 	@Override
 	public double objectiveValue(FeaturizedDataSet<D, L> data) {
-		double value = super.objectiveValue(data);
+		regularizeCostWeights();
 		
-		for (D datum : data) {
-			double maxScore = maxScoreLabel(data, datum, true);
-			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
-			value += maxScore - datumScore;
+		double value = 0;
+		
+		if (this.l2 > 0) {
+			double l2Norm = 0;
+			for (Entry<Integer, Double> wEntry : this.feature_w.entrySet())
+				l2Norm += wEntry.getValue()*wEntry.getValue();
+			value += l2Norm*this.l2*.5;
 		}
 		
+		value += computeLoss(data);
+		
 		double c = Double.valueOf(this.factoredCost.getParameterValue("c"));
 		
 		double costNNorm = 0;
@@ -154,17 +1240,242 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 		return value;
 	}
 	
+	/**
+	 * @param data
+	 * @param datum
+	 * @return the datum's bit-packed binary feature values in data (see 
+	 * cost.data.annotation.CostDatumTools.getBinaryFeatureBits), or null if
+	 * the datum must be scored from its feature value map
+	 */
+	protected long[] getBinaryFeatureBits(FeaturizedDataSet<D, L> data, D datum) {
+		if (this.numFeatures <= 0 || this.featureHashSpace != null)
+			return null;
+		return CostDatumTools.getBinaryFeatureBits(data.getDatumTools(), data, datum);
+	}
+	
+	/**
+	 * @param featureBits
+	 * @return the -1/+1 feature values packed in featureBits (see 
+	 * getBinaryFeatureBits), indexed by feature vocabulary index
+	 */
+	protected Map<Integer, Double> getBinaryFeatureValues(long[] featureBits) {
+		return BinaryFeatureScorer.getValues(featureBits, this.numFeatures);
+	}
+	
+	/**
+	 * @param data
+	 * @param datum
+	 * @return the datum's feature values in data, indexed by feature vocabulary 
+	 * index, or by hash bucket if the model has a hashed feature space (see 
+	 * cost.data.feature.FeatureHashSpace)
+	 */
+	protected Map<Integer, Double> getFeatureValues(FeaturizedDataSet<D, L> data, D datum) {
+		Map<Integer, Double> featureValues = data.getFeatureVocabularyValues(datum);
+		if (this.featureHashSpace == null)
+			return featureValues;
+		return this.featureHashSpace.hashValues(featureValues);
+	}
+	
+	/**
+	 * @return names of the input features seen in training (looked up
+	 * in the feature dictionary)
+	 */
+	protected Map<Integer, String> getFeatureNames() {
+		if (this.featureDictionary == null)
+			return new HashMap<Integer, String>();
+		return this.featureDictionary.getNames(this.featureIndices);
+	}
+	
+	/**
+	 * Looks up the names of the features that are hashed into the given 
+	 * buckets.  The model doesn't keep feature names when its feature space
+	 * is hashed, so this is for diagnosing particular weights after training.
+	 * 
+	 * @param data
+	 * @param buckets
+	 * @return map from each of the buckets to the names of the features
+	 * in data's vocabulary that are hashed into it
+	 */
+	public Map<Integer, List<String>> getHashedFeatureNames(FeaturizedDataSet<D, L> data, Set<Integer> buckets) {
+		if (this.featureHashSpace == null)
+			return new HashMap<Integer, List<String>>();
+		return this.featureHashSpace.getFeatureNames(data, buckets);
+	}
+	
+	@Override
+	protected double maxScoreLabel(FeaturizedDataSet<D, L> data, D datum, boolean includeCost) {
+		long[] featureBits = getBinaryFeatureBits(data, datum);
+		Map<Integer, Double> featureValues = (featureBits == null) ? getFeatureValues(data, datum) : null;
+		int actualIndex = (includeCost) ? getValidLabelIndex().getMappedIndex(datum.getLabel()) : -1;
+		int labelCount = getValidLabelIndex().size();
+		double maxScore = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < labelCount; i++) {
+			double score = scoreLabel(datum, featureValues, featureBits, i, actualIndex, includeCost);
+			if (score >= maxScore) {
+				maxScore = score;
+			}
+		}
+		return maxScore;
+	}
+	
+	@Override
+	protected L argMaxScoreLabel(FeaturizedDataSet<D, L> data, D datum, boolean includeCost) {
+		long[] featureBits = getBinaryFeatureBits(data, datum);
+		Map<Integer, Double> featureValues = (featureBits == null) ? getFeatureValues(data, datum) : null;
+		double[] labelScores = new double[this.labelIndices.size()];
+		scoreLabels(datum, featureValues, featureBits, includeCost, labelScores);
+		return argMaxScoreLabel(labelScores);
+	}
+	
+	/**
+	 * Computes the scores of all valid labels for a datum whose feature values have 
+	 * already been read
+	 * 
+	 * @param datum
+	 * @param featureValues the datum's feature vocabulary values (can be null if featureBits is given)
+	 * @param featureBits the datum's bit-packed binary feature values (or null)
+	 * @param includeCost
+	 * @param labelScores array in which to store the score of each label at its label index
+	 */
+	protected void scoreLabels(D datum, Map<Integer, Double> featureValues, long[] featureBits, boolean includeCost, double[] labelScores) {
+		int actualIndex = (includeCost) ? getValidLabelIndex().getMappedIndex(datum.getLabel()) : -1;
+		scoreLabels(datum, featureValues, featureBits, actualIndex, includeCost, labelScores);
+	}
+	
+	/**
+	 * Computes the scores of all valid labels for a datum whose feature values
+	 * and gold label index have already been read
+	 * 
+	 * @param actualIndex index of the datum's mapped gold label (or -1 if it isn't valid)
+	 */
+	protected void scoreLabels(D datum, Map<Integer, Double> featureValues, long[] featureBits, int actualIndex, boolean includeCost, double[] labelScores) {
+		int labelCount = getValidLabelIndex().size();
+		for (int i = 0; i < labelCount; i++)
+			labelScores[i] = scoreLabel(datum, featureValues, featureBits, i, actualIndex, includeCost);
+	}
+	
+	/**
+	 * @param labelScores scores of the labels at their label indices (see scoreLabels)
+	 * @return the label with the highest score, with ties broken randomly in the 
+	 * same way as the parent SVM
+	 */
+	protected L argMaxScoreLabel(double[] labelScores) {
+		return getValidLabelIndex().getLabel(argMaxScoreLabelIndex(labelScores));
+	}
+	
+	/**
+	 * @param labelScores scores of the labels at their label indices (see scoreLabels)
+	 * @return the index of the label with the highest score (see argMaxScoreLabel)
+	 */
+	protected int argMaxScoreLabelIndex(double[] labelScores) {
+		int labelCount = getValidLabelIndex().size();
+		double maxScore = Double.NEGATIVE_INFINITY;
+		List<Integer> maxLabelIndices = null; // for breaking ties randomly
+		int maxLabelIndex = -1;
+		for (int i = 0; i < labelCount; i++) {
+			double score = labelScores[i];
+			
+			if (score == maxScore) {
+				if (maxLabelIndices == null) {
+					maxLabelIndices = new ArrayList<Integer>();
+					if (maxLabelIndex >= 0) {
+						maxLabelIndices.add(maxLabelIndex);
+						maxLabelIndex = -1;
+					}
+				}
+				maxLabelIndices.add(i);
+			} else if (score > maxScore) {
+				maxScore = score;
+				maxLabelIndex = i;
+				maxLabelIndices = null;
+			}
+		}
+		
+		if (maxLabelIndices != null)
+			return maxLabelIndices.get(this.random.nextInt(maxLabelIndices.size()));
+		else
+			return maxLabelIndex;
+	}
+	
 	/**
 	 * Computes the label score in the same way as the SVM, optionally also including
 	 * the cost term
 	 */
 	protected double scoreLabel(FeaturizedDataSet<D, L> data, D datum, L label, boolean includeCost) {
-		double score = super.scoreLabel(data, datum, label, false);
+		long[] featureBits = getBinaryFeatureBits(data, datum);
+		Map<Integer, Double> featureValues = (featureBits == null) ? getFeatureValues(data, datum) : null;
+		return scoreLabel(datum, featureValues, featureBits, label, includeCost);
+	}
+	
+	/**
+	 * Computes the label score for a datum whose feature values have already
+	 * been read
+	 * 
+	 * @param datum
+	 * @param featureValues the datum's feature vocabulary values (can be null if featureBits is given)
+	 * @param featureBits the datum's bit-packed binary feature values (or null)
+	 * @param label
+	 * @param includeCost
+	 * @return the label score
+	 */
+	protected double scoreLabel(D datum, Map<Integer, Double> featureValues, long[] featureBits, L label, boolean includeCost) {
+		int actualIndex = (includeCost) ? getValidLabelIndex().getMappedIndex(datum.getLabel()) : -1;
+		return scoreLabel(datum, featureValues, featureBits, getValidLabelIndex().getIndex(label), actualIndex, includeCost);
+	}
+	
+	/**
+	 * Computes the label score for a datum whose feature values and gold label index 
+	 * have already been read
+	 * 
+	 * @param datum
+	 * @param featureValues
+	 * @param featureBits
+	 * @param labelIndex index of the label to score
+	 * @param actualIndex index of the datum's mapped gold label (or -1 if it isn't valid)
+	 * @param includeCost
+	 * @return the label score
+	 */
+	protected double scoreLabel(D datum, Map<Integer, Double> featureValues, long[] featureBits, int labelIndex, int actualIndex, boolean includeCost) {
+		double score = 0;
+		if (featureBits != null) {
+			score = scoreBinaryFeatures(featureBits, labelIndex) + this.bias_b[labelIndex];
+			if (this.scoreAveraged)
+				score -= this.bias_a[labelIndex]/this.averageT;
+		} else if (this.scoreAveraged) {
+			for (Entry<Integer, Double> entry : featureValues.entrySet()) {
+				int wIndex = getWeightIndex(labelIndex, entry.getKey());
+				double w = (this.feature_w.containsKey(wIndex)) ? this.feature_w.get(wIndex) : 0.0;
+				if (this.feature_a.containsKey(wIndex))
+					w -= this.feature_a.get(wIndex)/this.averageT;
+				score += w*entry.getValue();
+			}
+			
+			score += this.bias_b[labelIndex] - this.bias_a[labelIndex]/this.averageT;
+		} else {
+			for (Entry<Integer, Double> entry : featureValues.entrySet()) {
+				int wIndex = getWeightIndex(labelIndex, entry.getKey());
+				if (this.feature_w.containsKey(wIndex))
+					score += this.feature_w.get(wIndex)*entry.getValue();
+			}
+			
+			score += this.bias_b[labelIndex];
+		}
 
 		if (includeCost) {
-			Map<Integer, Double> costs = this.factoredCost.computeVector(datum, label);
-			for (Entry<Integer, Double> entry : costs.entrySet())
+			if (this.cost_rows != null && actualIndex >= 0) {
+				int position = actualIndex*getValidLabelIndex().size() + labelIndex;
+				if (this.cost_t != null)
+					for (int i : this.cost_positionIndices[position])
+						regularizeCostWeight(i, this.t - 1);
+				return score + this.cost_rows[position];
+			}
+			
+			Map<Integer, Double> costs = this.factoredCost.computeVector(datum, getValidLabelIndex().getLabel(labelIndex));
+			for (Entry<Integer, Double> entry : costs.entrySet()) {
+				if (this.cost_t != null)
+					regularizeCostWeight(entry.getKey(), this.t - 1);
 				score += this.cost_v[entry.getKey()]*entry.getValue();
+			}
 		}
 		
 		return score;
@@ -174,14 +1485,83 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 		SupervisedModelSVMCLN<D, L> clone = (SupervisedModelSVMCLN<D, L>)super.clone(datumTools, environment);
 		
 		clone.labelIndices = this.labelIndices;
+		clone.validLabelIndex = this.validLabelIndex;
 		clone.trainingIterations = this.trainingIterations;
+		clone.averageWeights = this.averageWeights;
+		clone.lazyCostRegularization = this.lazyCostRegularization;
+		clone.featureHashSpace = this.featureHashSpace;
 		if (this.factoredCost != null) {
 			clone.factoredCost = this.factoredCost.clone(datumTools, environment);
 		}
 		
+		for (StoppingCriterion<D, L> stoppingCriterion : this.stoppingCriteria)
+			clone.stoppingCriteria.add(stoppingCriterion.clone(datumTools, environment));
+		
+		
+		if (this.checkpoint != null)
+			clone.checkpoint = this.checkpoint.clone(environment);
+		if (this.halvingTrainer != null)
+			clone.halvingTrainer = this.halvingTrainer.clone(this, clone);
+		
+		if (this.gridTrainer != null)
+			clone.gridTrainer = this.gridTrainer.clone(clone);
+		
+		clone.heapBudget = this.heapBudget;
+		
 		return clone;
 	}
 	
+	/**
+	 * Takes the parameters of a model with the same configuration that
+	 * was trained by a grid trainer (see cost.model.SupervisedModelSVMCLNGridTrainer)
+	 * or a successive halving trainer (see cost.model.SuccessiveHalvingTrainer)
+	 */
+	@Override
+	public boolean adoptTrainedParameters(SupervisedModel<D, L> trainedModel) {
+		SupervisedModelSVMCLN<D, L> model = (SupervisedModelSVMCLN<D, L>)trainedModel;
+		this.t = model.t;
+		this.random = model.random;
+		this.labelIndices = model.labelIndices;
+		this.validLabelIndex = model.validLabelIndex;
+		this.numFeatures = model.numFeatures;
+		this.featureIndices = model.featureIndices;
+		this.featureDictionary = model.featureDictionary;
+		this.feature_w = model.feature_w;
+		this.feature_G = model.feature_G;
+		this.bias_b = model.bias_b;
+		this.bias_G = model.bias_G;
+		
+		this.factoredCost = model.factoredCost;
+		this.cost_v = model.cost_v;
+		this.cost_G = model.cost_G;
+		this.cost_rows = model.cost_rows;
+		this.cost_rowPositions = model.cost_rowPositions;
+		this.cost_rowValues = model.cost_rowValues;
+		this.cost_positionIndices = model.cost_positionIndices;
+		this.cost_t = model.cost_t;
+		this.cost_r = model.cost_r;
+		
+		this.averageT = model.averageT;
+		this.feature_a = model.feature_a;
+		this.bias_a = model.bias_a;
+		
+		this.binaryScorer = model.binaryScorer;
+		
+		return true;
+	}
+	
+	protected int getTrainingIterations() {
+		return this.trainingIterations;
+	}
+	
+	protected boolean getEarlyStopIfNoLabelChange() {
+		return this.earlyStopIfNoLabelChange;
+	}
+	
+	protected int getLabelCount() {
+		return this.labelIndices.size();
+	}
+	
 	@Override
 	protected boolean deserializeParameters(BufferedReader reader,
 			Tools<D, L> datumTools) throws IOException {
@@ -192,18 +1572,25 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 		int numWeights = Integer.valueOf(numWeightsAssign.getSecond());
 		int numCosts = Integer.valueOf(numCostsAssign.getSecond());
 		int numFeatures = numWeights / this.labelIndices.size();
+		this.numFeatures = numFeatures;
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
 		this.feature_w = new HashMap<Integer, Double>();
 		this.bias_b = new double[this.labelIndices.size()];
 		this.cost_v = new double[numCosts];
+		this.cost_t = null;
 	
 		this.feature_G = new HashMap<Integer, Double>();
 		this.bias_G = new double[this.bias_b.length];
 		this.cost_G = new double[this.cost_v.length];
 		
+		this.feature_a = null;
+		this.bias_a = null;
+		this.binaryScorer = null;
+		
 		String assignmentLeft = null;
 		while ((assignmentLeft = SerializationUtil.deserializeAssignmentLeft(reader)) != null) {
 			if (assignmentLeft.equals("labelFeature")) {
@@ -217,9 +1604,15 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
+				if (this.featureHashSpace == null) {
+					featureNames.put(featureIndex, featureName);
+					this.featureIndices.set(featureIndex);
+				}
 				this.feature_w.put(index, w);
 				this.feature_G.put(index, G);
+				
+				if (this.feature_a != null && featureParameters.containsKey("a"))
+					this.feature_a.put(index, Double.valueOf(featureParameters.get("a")));
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -229,6 +1622,14 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 				
 				this.bias_b[index] = b;
 				this.bias_G[index] = G;
+				if (this.bias_a != null && biasParameters.containsKey("a"))
+					this.bias_a[index] = Double.valueOf(biasParameters.get("a"));
+			} else if (assignmentLeft.equals("average")) {
+				SerializationUtil.deserializeGenericName(reader);
+				Map<String, String> averageParameters = SerializationUtil.deserializeArguments(reader);
+				this.averageT = Integer.valueOf(averageParameters.get("T"));
+				this.feature_a = new HashMap<Integer, Double>();
+				this.bias_a = new double[this.bias_b.length];
 			} else if (assignmentLeft.equals("cost")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> costParameters = SerializationUtil.deserializeArguments(reader);
@@ -243,11 +1644,15 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
 	@Override
 	protected boolean serializeParameters(Writer writer) throws IOException {
+		regularizeCostWeights();
+		
 		Pair<String, String> tAssignment = new Pair<String, String>("t", String.valueOf(this.t));
 		if (!SerializationUtil.serializeAssignment(tAssignment, writer))
 			return false;
@@ -263,11 +1668,19 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			return false;
 		writer.write("\n");
 		
+		if (this.feature_a != null) {
+			Pair<String, String> averageAssignment = new Pair<String, String>("average", "average(T=" + this.averageT + ")");
+			if (!SerializationUtil.serializeAssignment(averageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
 			String biasValue = label +
 					  "(b=" + this.bias_b[i] +
 					  ", G=" + this.bias_G[i] +
+					  ((this.bias_a != null) ? ", a=" + this.bias_a[i] : "") +
 					  ", index=" + i +
 					  ")";
 
@@ -277,20 +1690,38 @@ public class SupervisedModelSVMCLN<D extends Datum<L>, L> extends SupervisedMode
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = null;
+		if (this.featureHashSpace == null) {
+			featureNames = getFeatureNames();
+		} else {
+			// Name the weights of a hashed feature space by their buckets
+			Set<Integer> buckets = new TreeSet<Integer>();
+			for (Integer weightIndex : this.feature_w.keySet())
+				buckets.add(weightIndex % this.numFeatures);
+			if (this.feature_a != null)
+				for (Integer weightIndex : this.feature_a.keySet())
+					buckets.add(weightIndex % this.numFeatures);
+			featureNames = new HashMap<Integer, String>();
+			for (Integer bucket : buckets)
+				featureNames.put(bucket, this.featureHashSpace.getBucketName(bucket));
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
 				int weightIndex = getWeightIndex(i, featureName.getKey());
 				double w = (this.feature_w.containsKey(weightIndex)) ? this.feature_w.get(weightIndex) : 0;
 				double G = (this.feature_G.containsKey(weightIndex)) ? this.feature_G.get(weightIndex) : 0;
+				double a = (this.feature_a != null && this.feature_a.containsKey(weightIndex)) ? this.feature_a.get(weightIndex) : 0;
 				
-				if (w == 0) // Might need to get rid of this line if want to pause training and resume
+				if (w == 0 && a == 0) // Might need to get rid of this line if want to pause training and resume
 					continue;
 				
 				String featureValue = label + "-" + 
 									  featureName.getValue() + 
 									  "(w=" + w +
 									  ", G=" + G +
+									  ((this.feature_a != null) ? ", a=" + a : "") +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
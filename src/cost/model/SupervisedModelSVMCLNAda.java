@@ -3,12 +3,14 @@ package cost.model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import cost.data.annotation.CostDatumTools;
+import cost.data.feature.FeatureDictionary;
 import cost.model.factoredcost.FactoredCost;
 
 import ark.data.annotation.Datum;
@@ -77,6 +79,16 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 		return true;
 	}
 	
+	/**
+	 * Adds the cost weights and their AdaGrad sums and gradients to the
+	 * estimate of the SVM's footprint
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		return super.estimateTrainingBytes(data) + 4*HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES);
+	}
+	
 	@Override
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {
 		if (!super.initializeTraining(data))
@@ -99,6 +111,7 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 	@Override
 	protected boolean trainOneDatum(D datum, L datumLabel, L bestLabel, int iteration, FeaturizedDataSet<D, L> data) {
 		int N = data.size();
+		double weight = CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
 		
 		if (!super.trainOneDatum(datum, datumLabel, bestLabel, iteration, data))
 			return false;
@@ -114,7 +127,7 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 			double cost = (costs.containsKey(i) ? costs.get(i) : 0);
 			double costNorm = costNorms[i];
 			
-			this.cost_g[i] = cost+c*costNorm*this.cost_v[i]/N-c*costNorm/N;
+			this.cost_g[i] = weight*cost+c*costNorm*this.cost_v[i]/N-c*costNorm/N;
 			this.cost_u[i] += this.cost_g[i];
 			this.cost_G[i] += this.cost_g[i]*this.cost_g[i];
 
@@ -132,13 +145,7 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 	
 	@Override
 	public double objectiveValue(FeaturizedDataSet<D, L> data) {
-		double value = super.objectiveValue(data);
-		
-		for (D datum : data) {
-			double maxScore = maxScoreLabel(data, datum, true);
-			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
-			value += maxScore - datumScore;
-		}
+		double value = super.objectiveValue(data); // Regularizer plus the weighted cost-augmented hinge loss
 		
 		double c = Double.valueOf(this.getHyperParameterValue("c"));
 		
@@ -194,7 +201,8 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 		int numFeatures = numWeights / this.labelIndices.size();
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
 		this.feature_w = new HashMap<Integer, Double>();
 		this.feature_u = new HashMap<Integer, Double>();
@@ -207,6 +215,9 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 		this.cost_v = new double[numCosts];
 		this.cost_u = new double[this.cost_v.length];
 		this.cost_G = new double[this.cost_v.length];
+		
+		this.feature_a = null;
+		this.bias_a = null;
 	
 		String assignmentLeft = null;
 		while ((assignmentLeft = SerializationUtil.deserializeAssignmentLeft(reader)) != null) {
@@ -222,13 +233,17 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
+				featureNames.put(featureIndex, featureName);
+				this.featureIndices.set(featureIndex);
 				
 				if (w != 0)
 					this.feature_w.put(index, w);
 				
 				this.feature_u.put(index, u);
 				this.feature_G.put(index, G);
+				
+				if (this.feature_a != null && featureParameters.containsKey("a"))
+					this.feature_a.put(index, Double.valueOf(featureParameters.get("a")));
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -240,6 +255,14 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 				this.bias_b[index] = b;
 				this.bias_G[index] = G;
 				this.bias_u[index] = u;
+				if (this.bias_a != null && biasParameters.containsKey("a"))
+					this.bias_a[index] = Double.valueOf(biasParameters.get("a"));
+			} else if (assignmentLeft.equals("average")) {
+				SerializationUtil.deserializeGenericName(reader);
+				Map<String, String> averageParameters = SerializationUtil.deserializeArguments(reader);
+				this.averageT = Integer.valueOf(averageParameters.get("T"));
+				this.feature_a = new HashMap<Integer, Double>();
+				this.bias_a = new double[this.bias_b.length];
 			} else if (assignmentLeft.equals("cost")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> costParameters = SerializationUtil.deserializeArguments(reader);
@@ -256,11 +279,16 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
 	@Override
 	protected boolean serializeParameters(Writer writer) throws IOException {
+		if (isLazyL1())
+			applyLazyL1();
+		
 		Pair<String, String> tAssignment = new Pair<String, String>("t", String.valueOf(this.t));
 		if (!SerializationUtil.serializeAssignment(tAssignment, writer))
 			return false;
@@ -276,12 +304,20 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 			return false;
 		writer.write("\n");
 		
+		if (this.feature_a != null) {
+			Pair<String, String> averageAssignment = new Pair<String, String>("average", "average(T=" + this.averageT + ")");
+			if (!SerializationUtil.serializeAssignment(averageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
 			String biasValue = label +
 					  "(b=" + this.bias_b[i] +
 					  ", G=" + this.bias_G[i] +
 					  ", u=" + this.bias_u[i] +
+					  ((this.bias_a != null) ? ", a=" + this.bias_a[i] : "") +
 					  ", index=" + i +
 					  ")";
 
@@ -291,15 +327,17 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = getFeatureNames();
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
 				int weightIndex = getWeightIndex(i, featureName.getKey());
 				double w = (this.feature_w.containsKey(weightIndex)) ? this.feature_w.get(weightIndex) : 0;
 				double G = (this.feature_G.containsKey(weightIndex)) ? this.feature_G.get(weightIndex) : 0;
 				double u = (this.feature_u.containsKey(weightIndex)) ? this.feature_u.get(weightIndex) : 0;
+				double a = (this.feature_a != null && this.feature_a.containsKey(weightIndex)) ? this.feature_a.get(weightIndex) : 0;
 				
-				if (w == 0 && G == 0 && u == 0)
+				if (w == 0 && G == 0 && u == 0 && a == 0)
 					continue;
 				
 				String featureValue = label + "-" + 
@@ -307,6 +345,7 @@ public class SupervisedModelSVMCLNAda<D extends Datum<L>, L> extends SupervisedM
 									  "(w=" + w +
 									  ", G=" + G +
 									  ", u=" + u +
+									  ((this.feature_a != null) ? ", a=" + a : "") +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
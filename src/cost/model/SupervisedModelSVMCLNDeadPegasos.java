@@ -3,13 +3,16 @@ package cost.model;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import cost.data.annotation.CostDatumTools;
+import cost.data.feature.FeatureDictionary;
 import cost.model.factoredcost.FactoredCost;
+import cost.util.CostMathUtil;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
@@ -40,7 +43,8 @@ import ark.util.SerializationUtil;
 public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends SupervisedModelSVMDeadPegasos<D, L> {
 	protected FactoredCost<D, L> factoredCost;
 	protected double[] cost_v;
-	protected double[] cost_g;
+	protected double[] cost_k; // norm/(N*l2) for each cost weight, so the regularizer shrinks 1-cost_v by (1-cost_k/t) at step t 
+	protected int[] cost_t; // last step through which the regularizer has been applied to each cost weight
 	
 	public SupervisedModelSVMCLNDeadPegasos() {
 		super();
@@ -77,6 +81,18 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 		return true;
 	}
 	
+	/**
+	 * Adds the cost weights and their lazy regularization state to the
+	 * estimate of the SVM's footprint
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		long costCount = (this.factoredCost == null) ? 0 : this.factoredCost.estimateVocabularySize(this, data);
+		return super.estimateTrainingBytes(data) 
+				+ 2*HeapBudget.arrayBytes(costCount, HeapBudget.DOUBLE_BYTES)
+				+ HeapBudget.arrayBytes(costCount, HeapBudget.INT_BYTES);
+	}
+	
 	@Override
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {
 		if (!super.initializeTraining(data))
@@ -89,49 +105,103 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 			this.cost_v = new double[this.factoredCost.getVocabularySize()];
 		}
 		
-		this.cost_g = new double[this.cost_v.length];
+		if (this.cost_t == null) {
+			this.cost_t = new int[this.cost_v.length];
+			for (int i = 0; i < this.cost_t.length; i++)
+				this.cost_t[i] = this.t - 1;
+		}
+		
+		int N = data.size();
+		double[] costNorms = this.factoredCost.getNorms();
+		this.cost_k = new double[this.cost_v.length];
+		for (int i = 0; i < this.cost_k.length; i++)
+			this.cost_k[i] = costNorms[i]/(N*this.l2);
 		
 		return true;
 	}
 	
+	/**
+	 * Performs a single weight update for SGD.  The regularizer part of the cost
+	 * weight gradient is applied lazily (see regularizeCostWeight), so only the 
+	 * cost weights with non-zero entries in the datum's cost vector are touched
+	 * here.
+	 */
 	@Override
 	protected boolean trainOneDatum(D datum, L datumLabel, L bestLabel, int iteration, FeaturizedDataSet<D, L> data) {
-		int N = data.size();
-		
 		if (!super.trainOneDatum(datum, datumLabel, bestLabel, iteration, data))
 			return false;
 		
 		// Update cost weights
-		double[] costNorms = this.factoredCost.getNorms();
 		Map<Integer, Double> costs = this.factoredCost.computeVector(datum, bestLabel);
+		double eta = 1.0/(this.l2*this.t); // Learning rate
+		double weight = this.datumWeightScale*CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
 		
-		for (int i = 0; i < costNorms.length; i++) {
-			if (costNorms[i] == 0)
+		for (Entry<Integer, Double> entry : costs.entrySet()) {
+			int i = entry.getKey();
+			if (this.cost_k[i] == 0)
 				continue;
 			
-			double cost = (costs.containsKey(i) ? costs.get(i) : 0);
-			double costNorm = costNorms[i];
-			double eta = 1.0/(this.l2*this.t); // Learning rate
+			regularizeCostWeight(i, this.t - 1);
 			
-			this.cost_g[i] = cost+costNorm*this.cost_v[i]/N-costNorm/N;
-			this.cost_v[i] -= this.cost_g[i]*eta; 
+			double g = weight*entry.getValue()+this.l2*this.cost_k[i]*(this.cost_v[i]-1.0);
+			this.cost_v[i] -= g*eta; 
 			
 			if (this.cost_v[i] < 0)
 				this.cost_v[i] = 0;
+			
+			this.cost_t[i] = this.t;
 		}
 		
 		return true;
 	}
 	
+	/**
+	 * Applies the regularizer part of the gradient to cost weight i for
+	 * all steps since it was last updated through step lastT.  With the 
+	 * 1/(l2*tau) learning rate, each regularizer step multiplies 1-cost_v[i] by 
+	 * (1-cost_k[i]/tau), so the steps for which that factor is in (0, 1] are 
+	 * applied in closed form.
+	 * 
+	 * @param i
+	 * @param lastT
+	 */
+	protected void regularizeCostWeight(int i, int lastT) {
+		int tau = this.cost_t[i] + 1;
+		if (tau > lastT)
+			return;
+		
+		double k = this.cost_k[i];
+		double u = 1.0 - this.cost_v[i];
+		if (k != 0) {
+			// Early steps can overshoot, and so they're applied one at a time with the cost_v >= 0 constraint 
+			for (; tau <= lastT && tau <= k; tau++)
+				u = Math.min(1.0, u*(1.0-k/tau));
+			
+			if (u != 0)
+				u *= CostMathUtil.shrinkageProduct(k, tau, lastT);
+			
+			this.cost_v[i] = 1.0 - u;
+		}
+		
+		this.cost_t[i] = lastT;
+	}
+	
+	/**
+	 * Applies the outstanding regularizer updates to all of the cost weights
+	 */
+	protected void regularizeCostWeights() {
+		if (this.cost_t == null)
+			return;
+		
+		for (int i = 0; i < this.cost_v.length; i++)
+			regularizeCostWeight(i, this.t - 1);
+	}
+	
 	@Override
 	public double objectiveValue(FeaturizedDataSet<D, L> data) {
-		double value = super.objectiveValue(data);
+		regularizeCostWeights();
 		
-		for (D datum : data) {
-			double maxScore = maxScoreLabel(data, datum, true);
-			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
-			value += maxScore - datumScore;
-		}
+		double value = super.objectiveValue(data); // Regularizer plus the weighted cost-augmented hinge loss
 		
 		double c = Double.valueOf(this.factoredCost.getParameterValue("c"));
 		
@@ -156,8 +226,11 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 
 		if (includeCost) {
 			Map<Integer, Double> costs = this.factoredCost.computeVector(datum, label);
-			for (Entry<Integer, Double> entry : costs.entrySet())
+			for (Entry<Integer, Double> entry : costs.entrySet()) {
+				if (this.cost_t != null)
+					regularizeCostWeight(entry.getKey(), this.t - 1);
 				score += this.cost_v[entry.getKey()]*entry.getValue();
+			}
 		}
 		
 		return score;
@@ -189,11 +262,16 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
 		this.s = Double.valueOf(sAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
 		this.feature_W = new double[numWeights];
 		this.bias_b = new double[this.labelIndices.size()];
 		this.cost_v = new double[numCosts];
+		this.cost_t = null;
+		
+		this.feature_A = null;
+		this.bias_A = null;
 	
 		String assignmentLeft = null;
 		while ((assignmentLeft = SerializationUtil.deserializeAssignmentLeft(reader)) != null) {
@@ -207,8 +285,11 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
+				featureNames.put(featureIndex, featureName);
+				this.featureIndices.set(featureIndex);
 				this.feature_W[index] = W;
+				if (this.feature_A != null && featureParameters.containsKey("A"))
+					this.feature_A[index] = Double.valueOf(featureParameters.get("A"));
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -216,6 +297,15 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 				int index = Integer.valueOf(biasParameters.get("index"));
 				
 				this.bias_b[index] = b;
+				if (this.bias_A != null && biasParameters.containsKey("A"))
+					this.bias_A[index] = Double.valueOf(biasParameters.get("A"));
+			} else if (assignmentLeft.equals("average")) {
+				SerializationUtil.deserializeGenericName(reader);
+				Map<String, String> averageParameters = SerializationUtil.deserializeArguments(reader);
+				this.averageT = Integer.valueOf(averageParameters.get("T"));
+				this.averageS = Double.valueOf(averageParameters.get("S"));
+				this.feature_A = new double[numWeights];
+				this.bias_A = new double[this.bias_b.length];
 			} else if (assignmentLeft.equals("cost")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> costParameters = SerializationUtil.deserializeArguments(reader);
@@ -228,11 +318,15 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
 	@Override
 	protected boolean serializeParameters(Writer writer) throws IOException {
+		regularizeCostWeights();
+		
 		Pair<String, String> tAssignment = new Pair<String, String>("t", String.valueOf(this.t));
 		if (!SerializationUtil.serializeAssignment(tAssignment, writer))
 			return false;
@@ -253,10 +347,18 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 			return false;
 		writer.write("\n");
 		
+		if (this.feature_A != null) {
+			Pair<String, String> averageAssignment = new Pair<String, String>("average", "average(T=" + this.averageT + ", S=" + this.averageS + ")");
+			if (!SerializationUtil.serializeAssignment(averageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
 			String biasValue = label +
 					  "(b=" + this.bias_b[i] +
+					  ((this.bias_A != null) ? ", A=" + this.bias_A[i] : "") +
 					  ", index=" + i +
 					  ")";
 
@@ -266,18 +368,21 @@ public class SupervisedModelSVMCLNDeadPegasos<D extends Datum<L>, L> extends Sup
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = getFeatureNames();
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
 				int weightIndex = getWeightIndex(i, featureName.getKey());
 				double W = this.feature_W[weightIndex];
+				double A = (this.feature_A != null) ? this.feature_A[weightIndex] : 0;
 				
-				if (W == 0) // Might need to get rid of this line if want to pause training and resume
+				if (W == 0 && A == 0) // Might need to get rid of this line if want to pause training and resume
 					continue;
 				
 				String featureValue = label + "-" + 
 									  featureName.getValue() + 
 									  "(W=" + W +
+									  ((this.feature_A != null) ? ", A=" + A : "") +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
@@ -0,0 +1,254 @@
+package cost.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+import ark.util.OutputWriter;
+import ark.util.Pair;
+import ark.util.SerializationUtil;
+
+/**
+ * SupervisedModelSVMCLNGridTrainer trains a stack of
+ * cost.model.SupervisedModelSVMCLN models that differ only in the value
+ * of a single hyper-parameter (one model per grid search value) in
+ * a single pass over the training data per epoch.  Each datum's features
+ * are read once per epoch, and then every model scores the datum into its
+ * row of a (model x label) score matrix and performs its update, so the
+ * data is streamed once for the whole grid rather than once per grid value
+ * (see cost.model.SupervisedModelSVMCLNStack).
+ *
+ * The grid search in ark.model.evaluation.GridSearch trains a clone of the
+ * model for each grid position.  The clones of a model share its trainer
+ * (see clone), so the first clone to train on a data set
+ * trains the models for all of the grid values, and each clone (including the
+ * first) then takes the trained parameters for its own value.  A model whose
+ * value is not in the grid, or which is trained on a data set that has changed
+ * since the joint training (for example, when the training data is extended
+ * with the dev data for the final model), trains on its own as usual.
+ *
+ * The clone that trains the models for all of the grid values reserves their 
+ * footprint from the model's heap budget for the joint training (see
+ * cost.model.SupervisedModelSVMCLN.estimateTrainingBytes), so the budget is 
+ * reserved once for the whole grid rather than by every clone.
+ *
+ * The models visit the datums in the same shared order in each epoch, so
+ * the trained models can differ slightly from models trained separately.
+ *
+ * The trainer also holds the joint grid configuration of its models, which
+ * is set through their 'extra info' (see deserializeExtraInfo).
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class SupervisedModelSVMCLNGridTrainer<D extends Datum<L>, L> {
+	private String parameter;
+	private List<String> values;
+	private SupervisedModel<D, L> owner; // model whose clones share the trainer (or null for a model's configuration before it's cloned)
+	private Map<FeaturizedDataSet<D, L>, JointRun> runs; // training data -> joint training results on it
+
+	private class JointRun {
+		private int dataSize;
+		private boolean trained;
+		private Map<String, SupervisedModelSVMCLN<D, L>> models; // hyper-parameter value -> trained model (removed when taken)
+
+		public JointRun(int dataSize) {
+			this.dataSize = dataSize;
+			this.models = new HashMap<String, SupervisedModelSVMCLN<D, L>>();
+		}
+	}
+
+	public SupervisedModelSVMCLNGridTrainer() {
+		this.runs = new WeakHashMap<FeaturizedDataSet<D, L>, JointRun>();
+	}
+
+	/**
+	 * @param name
+	 * @return true if name is the 'extra info' assignment that configures
+	 * the joint grid (see deserializeExtraInfo)
+	 */
+	public static boolean isExtraInfo(String name) {
+		return name.equals("jointGridSearchParameterValues");
+	}
+
+	/**
+	 * Reads the 'jointGridSearchParameterValues' assignment of a model's
+	 * configuration with the hyper-parameter and its grid values (e.g.
+	 * 'l2(.01, 1)')
+	 *
+	 * @param name
+	 * @param reader
+	 * @return true if the assignment was read
+	 * @throws IOException
+	 */
+	public boolean deserializeExtraInfo(String name, BufferedReader reader) throws IOException {
+		if (!isExtraInfo(name))
+			return false;
+
+		this.parameter = SerializationUtil.deserializeGenericName(reader);
+		this.values = new ArrayList<String>();
+		for (String value : SerializationUtil.deserializeList(reader))
+			if (value.trim().length() > 0)
+				this.values.add(value.trim());
+
+		return true;
+	}
+
+	/**
+	 * Writes the 'extra info' assignment read by deserializeExtraInfo (if
+	 * the joint grid is configured)
+	 *
+	 * @param writer
+	 * @return true if the assignment was written
+	 * @throws IOException
+	 */
+	public boolean serializeExtraInfo(Writer writer) throws IOException {
+		if (this.parameter == null)
+			return true;
+
+		StringBuilder values = new StringBuilder();
+		for (String value : this.values)
+			values.append(value).append(",");
+		if (values.length() > 0)
+			values.deleteCharAt(values.length() - 1);
+
+		writer.write("\t");
+		Pair<String, String> jointGridAssignment = new Pair<String, String>("jointGridSearchParameterValues", this.parameter + "(" + values.toString() + ")");
+		if (!SerializationUtil.serializeAssignment(jointGridAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		return true;
+	}
+
+	/**
+	 * @param clone a clone of a model that holds this trainer
+	 * @return the trainer for clone.  The clones of a model that has been
+	 * cloned from its configuration share its trainer.  A clone of the
+	 * configuration itself gets a new trainer with the same configuration,
+	 * which is then shared by its own clones.
+	 */
+	public SupervisedModelSVMCLNGridTrainer<D, L> clone(SupervisedModel<D, L> clone) {
+		if (this.owner != null)
+			return this;
+
+		SupervisedModelSVMCLNGridTrainer<D, L> trainer = new SupervisedModelSVMCLNGridTrainer<D, L>();
+		trainer.parameter = this.parameter;
+		trainer.values = this.values;
+		trainer.owner = clone;
+		return trainer;
+	}
+
+	/**
+	 * @return the number of models that the trainer trains together
+	 * (1 if the joint grid isn't configured)
+	 */
+	public int getModelCount() {
+		return (this.parameter == null) ? 1 : Math.max(1, this.values.size());
+	}
+
+	/**
+	 * Gives model the parameters that result from training it jointly with the
+	 * models for the other grid values on data (and performs the joint training if
+	 * it hasn't been done yet)
+	 *
+	 * @param model
+	 * @param data
+	 * @param testData
+	 * @param evaluations
+	 * @param heapBudget budget from which the joint training reserves its
+	 * footprint (or null for no limit)
+	 * @return true if model was trained.  False if the model must be trained on its own.
+	 */
+	public boolean train(SupervisedModelSVMCLN<D, L> model, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, HeapBudget heapBudget) {
+		if (this.parameter == null || this.owner == null)
+			return false;
+
+		String value = model.getHyperParameterValue(this.parameter);
+		if (value == null)
+			return false;
+
+		JointRun run = null;
+		synchronized (this) {
+			run = this.runs.get(data);
+			if (run == null) {
+				run = new JointRun(data.size());
+				this.runs.put(data, run);
+			} else if (run.dataSize != data.size()) {
+				return false;
+			}
+		}
+
+		SupervisedModelSVMCLN<D, L> trainedModel = null;
+		synchronized (run) {
+			if (!run.trained) {
+				run.trained = true;
+				if (!trainJointly(run, model, data, testData, heapBudget))
+					return false;
+			}
+			trainedModel = run.models.remove(value);
+		}
+
+		if (trainedModel == null)
+			return false;
+
+		return model.adoptTrainedParameters(trainedModel);
+	}
+
+	private boolean trainJointly(JointRun run, SupervisedModelSVMCLN<D, L> prototype, FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, HeapBudget heapBudget) {
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+
+		List<SupervisedModelSVMCLN<D, L>> models = new ArrayList<SupervisedModelSVMCLN<D, L>>(this.values.size());
+		List<String> modelValues = new ArrayList<String>(this.values.size());
+		boolean containsPrototypeValue = false;
+		for (String value : this.values) {
+			SupervisedModelSVMCLN<D, L> model = (SupervisedModelSVMCLN<D, L>)prototype.clone(data.getDatumTools());
+			if (!model.setHyperParameterValue(this.parameter, value, data.getDatumTools()))
+				return false;
+
+			String modelValue = model.getHyperParameterValue(this.parameter);
+			containsPrototypeValue = containsPrototypeValue || modelValue.equals(prototype.getHyperParameterValue(this.parameter));
+			models.add(model);
+			modelValues.add(modelValue);
+		}
+
+		if (!containsPrototypeValue)
+			return false;
+
+		SupervisedModelSVMCLNStack<D, L> stack = new SupervisedModelSVMCLNStack<D, L>();
+		for (int m = 0; m < models.size(); m++)
+			stack.addModel(this.parameter + "=" + modelValues.get(m), models.get(m), data, testData, null);
+
+		int reservedMegabytes = 0;
+		if (heapBudget != null) {
+			reservedMegabytes = heapBudget.reserve(prototype.estimateTrainingBytes(data), prototype.getGenericName() + " jointly on " + data.getName(), output);
+			if (reservedMegabytes < 0)
+				return false;
+		}
+
+		try {
+			output.debugWriteln("Training " + prototype.getGenericName() + " jointly for " + this.parameter + " in " + modelValues);
+			if (!stack.train(data, null))
+				return false;
+		} finally {
+			if (heapBudget != null)
+				heapBudget.release(reservedMegabytes);
+		}
+
+		for (int m = 0; m < models.size(); m++)
+			run.models.put(modelValues.get(m), models.get(m));
+
+		return true;
+	}
+}
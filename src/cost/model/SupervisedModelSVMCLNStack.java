@@ -0,0 +1,260 @@
+package cost.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import cost.data.annotation.EpochScheduler;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.util.OutputWriter;
+
+/**
+ * SupervisedModelSVMCLNStack trains a stack of cost.model.SupervisedModelSVMCLN
+ * models in a single sweep over a data set per epoch.  Each datum's
+ * features are read at most once per epoch, and then reused by every 
+ * model that trains on the datum.
+ *
+ * The datums of the swept data set can be split into blocks (for example,
+ * cross validation folds), and each model trains only on the datums in
+ * its own blocks.  Each model is initialized on its own training data set,
+ * which should contain exactly the datums in the model's blocks, and
+ * which should share its features with the swept data set.
+ *
+ * The datums are shuffled once per epoch, and each model visits its blocks
+ * in its own random order (drawn from a random number generator per model), 
+ * with the datums of each block in the shared shuffled order.  This 
+ * simulates separate random orderings of the data for the models at the 
+ * granularity of blocks, so the trained models can still differ slightly 
+ * from models trained separately.  The features read in an epoch are held
+ * until the end of the epoch, so that the models can visit the blocks in 
+ * different orders.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class SupervisedModelSVMCLNStack<D extends Datum<L>, L> {
+	private List<String> names;
+	private List<SupervisedModelSVMCLN<D, L>> models;
+	private List<FeaturizedDataSet<D, L>> trainData; // model -> data on which it's initialized and normalized
+	private List<FeaturizedDataSet<D, L>> testData; // model -> data for its stopping criteria
+	private List<boolean[]> trainBlocks; // model -> whether it trains on each block (null for all blocks)
+
+	public SupervisedModelSVMCLNStack() {
+		this.names = new ArrayList<String>();
+		this.models = new ArrayList<SupervisedModelSVMCLN<D, L>>();
+		this.trainData = new ArrayList<FeaturizedDataSet<D, L>>();
+		this.testData = new ArrayList<FeaturizedDataSet<D, L>>();
+		this.trainBlocks = new ArrayList<boolean[]>();
+	}
+
+	/**
+	 * @param name name of the model in the training log
+	 * @param model
+	 * @param trainData
+	 * @param testData
+	 * @param trainBlocks whether the model trains on the datums in each block (or
+	 * null if it trains on all datums)
+	 * @return true if the model has been added to the stack
+	 */
+	public boolean addModel(String name, SupervisedModelSVMCLN<D, L> model, FeaturizedDataSet<D, L> trainData, FeaturizedDataSet<D, L> testData, boolean[] trainBlocks) {
+		this.names.add(name);
+		this.models.add(model);
+		this.trainData.add(trainData);
+		this.testData.add(testData);
+		this.trainBlocks.add(trainBlocks);
+		return true;
+	}
+
+	public int size() {
+		return this.models.size();
+	}
+
+	public SupervisedModelSVMCLN<D, L> getModel(int index) {
+		return this.models.get(index);
+	}
+
+	/**
+	 * @return estimated bytes of heap taken by the models in the stack while
+	 * they train (see cost.model.SupervisedModelSVMCLN.estimateModelBytes)
+	 */
+	public long estimateTrainingBytes() {
+		long bytes = 0;
+		for (int m = 0; m < this.models.size(); m++)
+			bytes += this.models.get(m).estimateModelBytes(this.trainData.get(m));
+		return bytes;
+	}
+
+	/**
+	 * Trains the models in the stack.  Each model trains for its own number of
+	 * training iterations, and stops early according to its own stopping criteria.
+	 *
+	 * @param data data set to sweep
+	 * @param datumBlocks map from datum ids to their blocks (or null if all
+	 * datums are in block 0)
+	 * @return true if the models were trained
+	 */
+	public boolean train(FeaturizedDataSet<D, L> data, Map<Integer, Integer> datumBlocks) {
+		if (this.models.isEmpty())
+			return true;
+
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+
+		List<TrainingStatus<D, L>> statuses = new ArrayList<TrainingStatus<D, L>>(this.models.size());
+		int iterations = 0;
+		for (int m = 0; m < this.models.size(); m++) {
+			SupervisedModelSVMCLN<D, L> model = this.models.get(m);
+			if (!model.initializeTraining(this.trainData.get(m)))
+				return false;
+			TrainingStatus<D, L> status = model.makeTrainingStatus(this.trainData.get(m), this.testData.get(m));
+			if (!StoppingCriterion.initAll(model.stoppingCriteria, status))
+				return false;
+			status.getPredictions();
+			statuses.add(status);
+			iterations = Math.max(iterations, model.getTrainingIterations());
+		}
+
+		output.debugWriteln("Training " + this.models.size() + " " + this.models.get(0).getGenericName() + " models in a single sweep for " + iterations + " iterations...");
+
+		SupervisedModelSVMCLN<D, L> firstModel = this.models.get(0);
+		EpochScheduler<D, L> epochScheduler = new EpochScheduler<D, L>(data, data.getDatumTools().getDataTools().makeLocalRandom());
+		epochScheduler.indexLabels(firstModel.getValidLabelIndex());
+		int blockCount = 1;
+		int[] slotBlocks = new int[epochScheduler.size()];
+		if (datumBlocks != null) {
+			for (int slot = 0; slot < slotBlocks.length; slot++) {
+				slotBlocks[slot] = datumBlocks.get(epochScheduler.getDatumBySlot(slot).getId());
+				blockCount = Math.max(blockCount, slotBlocks[slot] + 1);
+			}
+		}
+		
+		// Block b holds the positions blockPositions[blockStarts[b]] to blockPositions[blockStarts[b+1]-1] of the current epoch
+		int[] blockStarts = new int[blockCount + 1];
+		for (int slot = 0; slot < slotBlocks.length; slot++)
+			blockStarts[slotBlocks[slot] + 1]++;
+		for (int b = 0; b < blockCount; b++)
+			blockStarts[b + 1] += blockStarts[b];
+		int[] blockPositions = new int[epochScheduler.size()];
+		int[] blockEnds = new int[blockCount];
+		
+		Random blockRandom = data.getDatumTools().getDataTools().makeLocalRandom();
+		List<Random> modelRandoms = new ArrayList<Random>(this.models.size());
+		List<int[]> modelBlockOrders = new ArrayList<int[]>(this.models.size());
+		for (int m = 0; m < this.models.size(); m++) {
+			modelRandoms.add(new Random(blockRandom.nextLong()));
+			int[] blockOrder = new int[blockCount];
+			for (int b = 0; b < blockCount; b++)
+				blockOrder[b] = b;
+			modelBlockOrders.add(blockOrder);
+		}
+		
+		boolean[] read = new boolean[epochScheduler.size()]; // position -> whether the datum's features have been read in this epoch
+		List<Map<Integer, Double>> featureValues = new ArrayList<Map<Integer, Double>>(epochScheduler.size());
+		long[][] featureBits = new long[epochScheduler.size()][];
+		for (int i = 0; i < epochScheduler.size(); i++)
+			featureValues.add(null);
+
+		double[] labelScores = new double[firstModel.getLabelCount()];
+		boolean[] active = new boolean[this.models.size()];
+		int activeCount = this.models.size();
+		for (int m = 0; m < active.length; m++)
+			active[m] = true;
+
+		for (int iteration = 0; iteration < iterations && activeCount > 0; iteration++) {
+			for (int m = 0; m < this.models.size(); m++) {
+				if (!active[m])
+					continue;
+				if (iteration >= this.models.get(m).getTrainingIterations()) {
+					active[m] = false;
+					activeCount--;
+				} else if (!this.models.get(m).initializeTrainingIteration()) {
+					return false;
+				}
+			}
+
+			epochScheduler.shuffle();
+			System.arraycopy(blockStarts, 0, blockEnds, 0, blockCount);
+			for (int i = 0; i < epochScheduler.size(); i++) {
+				blockPositions[blockEnds[slotBlocks[epochScheduler.getSlot(i)]]++] = i;
+				read[i] = false;
+				featureValues.set(i, null);
+				featureBits[i] = null;
+			}
+
+			for (int m = 0; m < this.models.size(); m++) {
+				if (!active[m])
+					continue;
+				
+				SupervisedModelSVMCLN<D, L> model = this.models.get(m);
+				int[] blockOrder = modelBlockOrders.get(m);
+				Random modelRandom = modelRandoms.get(m);
+				for (int b = 0; b < blockCount; b++) {
+					int j = modelRandom.nextInt(b + 1);
+					int temp = blockOrder[b];
+					blockOrder[b] = blockOrder[j];
+					blockOrder[j] = temp;
+				}
+				
+				for (int block : blockOrder) {
+					if (this.trainBlocks.get(m) != null && !this.trainBlocks.get(m)[block])
+						continue;
+					
+					for (int p = blockStarts[block]; p < blockStarts[block + 1]; p++) {
+						int i = blockPositions[p];
+						int slot = epochScheduler.getSlot(i);
+						D datum = epochScheduler.getDatumBySlot(slot);
+						if (!read[i]) {
+							featureBits[i] = firstModel.getBinaryFeatureBits(data, datum);
+							if (featureBits[i] == null)
+								featureValues.set(i, firstModel.getFeatureValues(data, datum));
+							read[i] = true;
+						}
+						
+						int datumLabelIndex = epochScheduler.getLabelIndexBySlot(slot);
+						model.scoreLabels(datum, featureValues.get(i), featureBits[i], datumLabelIndex, true, labelScores);
+						if (!model.trainOneScoredDatum(datum, featureValues.get(i), featureBits[i], datumLabelIndex, labelScores, iteration, this.trainData.get(m)))
+							return false;
+					}
+				}
+			}
+
+			for (int m = 0; m < this.models.size(); m++) {
+				if (!active[m])
+					continue;
+
+				SupervisedModelSVMCLN<D, L> model = this.models.get(m);
+				TrainingStatus<D, L> status = statuses.get(m);
+				String modelName = "(" + this.names.get(m) + ")";
+				status.nextIteration(iteration);
+
+				if (iteration % 10 == 0) {
+					Map<D, L> predictions = status.getPredictions();
+					int labelDifferences = status.getPredictionDifferences();
+					output.debugWriteln(modelName + " Finished iteration " + iteration + " prediction-diff: " + labelDifferences + "/" + predictions.size());
+					if (model.getEarlyStopIfNoLabelChange() && labelDifferences == 0 && iteration > 10) {
+						active[m] = false;
+						activeCount--;
+						continue;
+					}
+				} else {
+					output.debugWriteln(modelName + " Finished iteration " + iteration);
+				}
+
+				StoppingCriterion<D, L> satisfiedCriterion = StoppingCriterion.findSatisfied(model.stoppingCriteria, status);
+				if (satisfiedCriterion != null) {
+					output.debugWriteln(modelName + " Terminating early at iteration " + iteration + " (" + satisfiedCriterion.toString() + ")");
+					active[m] = false;
+					activeCount--;
+				}
+			}
+		}
+
+		return true;
+	}
+}
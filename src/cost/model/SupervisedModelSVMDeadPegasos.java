@@ -4,12 +4,19 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.EpochScheduler;
+import cost.data.feature.FeatureDictionary;
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
@@ -38,26 +45,45 @@ import ark.util.SerializationUtil;
  * @deprecated Use ark.model.SupervisedModelSVM instead.
  *
  */
-public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends SupervisedModel<D, L> {
+public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends SupervisedModel<D, L> implements BudgetedTraining<D, L> {
 	protected BidirectionalLookupTable<L, Integer> labelIndices;
 	protected int trainingIterations;
-	protected Map<Integer, String> featureNames;
+	protected List<StoppingCriterion<D, L>> stoppingCriteria; // criteria for stopping before trainingIterations (set through 'extra info')
+	protected boolean averageWeights; // whether to classify using weights averaged over all training steps (set through 'extra info')
+	protected int shrinkingEpochs; // skip the argmax for datums that have been non-violating for this many consecutive epochs, or 0 for no shrinking (set through 'extra info')
+	protected int shrinkingFullPassInterval = 10; // number of epochs between full passes that re-check skipped datums (set through 'extra info')
+	protected int[] nonViolatingEpochs; // datum slot (see cost.data.annotation.EpochScheduler) -> number of consecutive epochs for which the datum was non-violating
+	protected BitSet featureIndices; // input features seen in training
+	protected FeatureDictionary featureDictionary; // names of the input features (shared by models trained on the same data)
 	protected int numFeatures;
 	protected double[] bias_b;
-	protected double[] bias_g;
 
 	protected int t;
 	protected double[] feature_W; // Labels x Input features (scale by s to get actual weights)
 	protected double s;
+	protected double minS = 1e-6; // s is folded into feature_W when it falls below this to prevent underflow
+	
+	// Weight averaging (for step k changing W by D, A += S_{k-1}*D, and the average weights are (S*W-A)/averageT)
+	protected int averageT; // number of training steps in the average
+	protected double averageS; // sum of s over the averaged training steps
+	protected double[] feature_A;
+	protected double[] bias_A;
+	protected boolean scoreAveraged; // whether scoreLabel currently uses the averaged weights
 	
 	protected double l2;
 	protected double epsilon = 0;
 	protected String[] hyperParameterNames = { "l2", "epsilon" };
 	
 	protected Random random;
+	protected EpochScheduler<D, L> epochScheduler;
+	protected double datumWeightScale; // number of datums per unit of datum weight, so that weighted steps average to the unweighted step size
 
+	// Admission of parallel training runs by their estimated footprints (see cost.model.BudgetedTraining)
+	protected HeapBudget heapBudget; // shared by the clones of this model (or null for no limit)
+	
 	public SupervisedModelSVMDeadPegasos() {
-		this.featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
+		this.stoppingCriteria = new ArrayList<StoppingCriterion<D, L>>();
 	}
 	
 	@Override
@@ -75,7 +101,18 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		
 		if (name.equals("trainingIterations")) {
 			this.trainingIterations = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
-		} 
+		} else if (name.equals("averageWeights")) {
+			this.averageWeights = Boolean.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("shrinkingEpochs")) {
+			this.shrinkingEpochs = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("shrinkingFullPassInterval")) {
+			this.shrinkingFullPassInterval = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+			if (this.shrinkingFullPassInterval <= 0)
+				return false;
+		} else if (StoppingCriterion.isExtraInfo(name)) {
+			if (!StoppingCriterion.deserializeExtraInfo(reader, datumTools, this.stoppingCriteria))
+				return false;
+		}
 		
 		return true;
 	}
@@ -88,64 +125,106 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 			return false;
 		writer.write("\n");
 		
+		if (this.averageWeights) {
+			writer.write("\t");
+			Pair<String, String> averageWeightsAssignment = new Pair<String, String>("averageWeights", String.valueOf(this.averageWeights));
+			if (!SerializationUtil.serializeAssignment(averageWeightsAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (this.shrinkingEpochs > 0) {
+			writer.write("\t");
+			Pair<String, String> shrinkingEpochsAssignment = new Pair<String, String>("shrinkingEpochs", String.valueOf(this.shrinkingEpochs));
+			if (!SerializationUtil.serializeAssignment(shrinkingEpochsAssignment, writer))
+				return false;
+			writer.write("\n");
+			
+			writer.write("\t");
+			Pair<String, String> shrinkingFullPassIntervalAssignment = new Pair<String, String>("shrinkingFullPassInterval", String.valueOf(this.shrinkingFullPassInterval));
+			if (!SerializationUtil.serializeAssignment(shrinkingFullPassIntervalAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
+		if (!StoppingCriterion.serializeExtraInfo(this.stoppingCriteria, writer))
+			return false;
+		
 		return true;
 	}
 
+	/**
+	 * Trains the model once its heap budget (if it has one) has room for
+	 * its estimated footprint (see cost.model.BudgetedTraining)
+	 */
 	@Override
 	public boolean train(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
-		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		if (this.heapBudget == null)
+			return trainWithinBudget(data, testData, evaluations);
 		
-		if (!initializeTraining(data))
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		int reservedMegabytes = this.heapBudget.reserve(estimateTrainingBytes(data), getGenericName() + " on " + data.getName(), output);
+		if (reservedMegabytes < 0)
 			return false;
 		
-		//double prevObjectiveValue = objectiveValue(data);
-		Map<D, L> prevPredictions = classify(testData);
-		List<Double> prevEvaluationValues = new ArrayList<Double>();
-		for (SupervisedModelEvaluation<D, L> evaluation : evaluations) {
-			prevEvaluationValues.add(evaluation.evaluate(this, testData, prevPredictions));
+		try {
+			return trainWithinBudget(data, testData, evaluations);
+		} finally {
+			this.heapBudget.release(reservedMegabytes);
 		}
+	}
+	
+	protected boolean trainWithinBudget(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations) {
+		if (!initializeTraining(data))
+			return false;
 		
-		output.debugWriteln("Training " + getGenericName() + " for " + this.trainingIterations + " iterations...");
-		
-		for (int iteration = 0; iteration < this.trainingIterations; iteration++) {
-			if (!trainOneIteration(iteration, data)) 
-				return false;
-			
-			if (iteration % 10 == 0) {
-				//double objectiveValue = objectiveValue(data);
-				//double objectiveValueDiff = objectiveValue - prevObjectiveValue;
-				Map<D, L> predictions = classify(testData);
-				int labelDifferences = countLabelDifferences(prevPredictions, predictions);
+		return makeTrainingLoop(data).train(makeTrainingStatus(data, testData), testData, evaluations, data.getDatumTools().getDataTools().getOutputWriter());
+	}
+	
+	/**
+	 * @param data
+	 * @return a loop that trains the model on data (see cost.model.TrainingLoop)
+	 */
+	protected TrainingLoop<D, L> makeTrainingLoop(final FeaturizedDataSet<D, L> data) {
+		return new TrainingLoop<D, L>(this, this.stoppingCriteria, this.trainingIterations, 10, this.epsilon) {
+			@Override
+			protected boolean trainOneIteration(int iteration) {
+				return SupervisedModelSVMDeadPegasos.this.trainOneIteration(iteration, data);
+			}
 			
-				List<Double> evaluationValues = new ArrayList<Double>();
-				for (SupervisedModelEvaluation<D, L> evaluation : evaluations) {
-					evaluationValues.add(evaluation.evaluate(this, testData, predictions));
-				}
-				
-				String statusStr = "(l2=" + this.l2 + ") Finished iteration " + iteration + /*" objective diff: " + objectiveValueDiff + " objective: " + objectiveValue + */" prediction-diff: " + labelDifferences + "/" + predictions.size() + " ";
-				for (int i = 0; i < evaluations.size(); i++) {
-					String evaluationName = evaluations.get(i).toString(false);
-					double evaluationDiff = evaluationValues.get(i) - prevEvaluationValues.get(i);
-					statusStr += evaluationName + " diff: " + evaluationDiff + " " + evaluationName + ": " + evaluationValues.get(i) + " ";
-				}
-					
-				output.debugWriteln(statusStr);
-				
-				/*
-				if (iteration > 20 && Math.abs(objectiveValueDiff) < this.epsilon) {
-					output.debugWriteln("(l2=" + this.l2 + ") Terminating early at iteration " + iteration);
-					break;
-				}*/
-				
-				// prevObjectiveValue = objectiveValue;
-				prevPredictions = predictions;
-				prevEvaluationValues = evaluationValues;
-			} else {
-				output.debugWriteln("(l2=" + this.l2 + ") Finished iteration " + iteration);
+			@Override
+			protected String getLogPrefix() {
+				return "(l2=" + SupervisedModelSVMDeadPegasos.this.l2 + ")";
 			}
-		}
-		
-		return true;
+		};
+	}
+	
+	/**
+	 * @param data
+	 * @param testData
+	 * @return a status through which the stopping criteria read the objective 
+	 * on data, and the predictions and loss on testData
+	 */
+	protected TrainingStatus<D, L> makeTrainingStatus(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> testData) {
+		return new TrainingStatus<D, L>(data, testData, testData) {
+			@Override
+			protected double computeObjectiveValue(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMDeadPegasos.this.objectiveValue(data);
+			}
+
+			@Override
+			protected Map<D, L> computePredictions(FeaturizedDataSet<D, L> data) {
+				return SupervisedModelSVMDeadPegasos.this.classify(data);
+			}
+
+			@Override
+			protected double computeLoss(FeaturizedDataSet<D, L> data) {
+				boolean prevScoreAveraged = SupervisedModelSVMDeadPegasos.this.startScoringAveraged();
+				double loss = SupervisedModelSVMDeadPegasos.this.computeLoss(data);
+				SupervisedModelSVMDeadPegasos.this.scoreAveraged = prevScoreAveraged;
+				return loss;
+			}
+		};
 	}
 	
 	protected boolean initializeTraining(FeaturizedDataSet<D, L> data) {
@@ -158,19 +237,36 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 			this.feature_W = new double[this.validLabels.size()*this.numFeatures];	
 		}
 		
-		this.bias_g = new double[this.bias_b.length];
+		if (this.averageWeights && this.feature_A == null) {
+			this.averageT = 0;
+			this.averageS = 0;
+			this.feature_A = new double[this.feature_W.length];
+			this.bias_A = new double[this.bias_b.length];
+		}
+		
+		this.featureDictionary = FeatureDictionary.fromData(data);
 		this.random = data.getDatumTools().getDataTools().makeLocalRandom();
+		this.epochScheduler = new EpochScheduler<D, L>(data, this.random);
+		this.nonViolatingEpochs = new int[this.epochScheduler.size()];
+		this.datumWeightScale = data.size()/CostDatumTools.getDataWeight(data.getDatumTools(), data);
 		
 		return true;
 	}
 	
 	protected boolean trainOneIteration(int iteration, FeaturizedDataSet<D, L> data) {
-		List<Integer> dataPermutation = data.constructRandomDataPermutation(this.random);
+		this.epochScheduler.shuffle();
 		
-		for (Integer datumId : dataPermutation) {
-			D datum = data.getDatumById(datumId);
+		for (int i = 0; i < this.epochScheduler.size(); i++) {
+			D datum = this.epochScheduler.getDatum(i);
+			int datumSlot = this.epochScheduler.getSlot(i);
 			L datumLabel = this.mapValidLabel(datum.getLabel());
-			L bestLabel = argMaxScoreLabel(data, datum, true);
+			L bestLabel = null;
+			if (isShrunk(datumSlot, iteration)) { // Treat as non-violating, but still apply the regularizer
+				bestLabel = datumLabel;
+			} else {
+				bestLabel = argMaxScoreLabel(data, datum, true);
+				updateShrinking(datumSlot, !datumLabel.equals(bestLabel));
+			}
 
 			if (!trainOneDatum(datum, datumLabel, bestLabel, iteration, data)) {
 				return false;
@@ -181,55 +277,137 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		return true;
 	}
 	
+	/**
+	 * @param datumSlot
+	 * @param iteration
+	 * @return true if the datum has been non-violating for long enough that the 
+	 * argmax can be skipped during the iteration
+	 */
+	protected boolean isShrunk(int datumSlot, int iteration) {
+		if (this.shrinkingEpochs <= 0 || iteration % this.shrinkingFullPassInterval == 0)
+			return false;
+		return this.nonViolatingEpochs[datumSlot] >= this.shrinkingEpochs;
+	}
+	
+	/**
+	 * Records whether the datum violated its margin during the current 
+	 * iteration for shrinking
+	 * 
+	 * @param datumSlot
+	 * @param violating
+	 */
+	protected void updateShrinking(int datumSlot, boolean violating) {
+		if (this.shrinkingEpochs <= 0)
+			return;
+		
+		if (violating)
+			this.nonViolatingEpochs[datumSlot] = 0;
+		else
+			this.nonViolatingEpochs[datumSlot]++;
+	}
+	
 	protected boolean trainOneDatum(D datum, L datumLabel, L bestLabel, int iteration, FeaturizedDataSet<D, L> data) {
 		boolean datumLabelBest = datumLabel.equals(bestLabel);
+		double weight = this.datumWeightScale*CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
 		
 		Map<Integer, Double> datumFeatureValues = data.getFeatureVocabularyValues(datum);
 		
 		if (iteration == 0) {
-			List<Integer> missingNameKeys = new ArrayList<Integer>();
 			for (Integer key : datumFeatureValues.keySet())
-				if (!this.featureNames.containsKey(key))
-					missingNameKeys.add(key);
-			this.featureNames.putAll(data.getFeatureVocabularyNamesForIndices(missingNameKeys));
+				this.featureIndices.set(key);
 		}
 		
 		double eta = 1.0/(this.l2*this.t); // Learning rate
 		this.s = (this.t > 1) ? (1.0-eta*this.l2)*this.s : 1; // Weight scalar
+		if (this.s < this.minS)
+			renormalizeWeights();
+		
+		double prevAverageS = this.averageS;
+		if (this.feature_A != null) {
+			this.averageT++;
+			this.averageS += this.s;
+		}
 		
 		// Update feature weights
 		if (!datumLabelBest) {
 			for (Entry<Integer, Double> featureValue : datumFeatureValues.entrySet()) {
 				int datumLabelWeightIndex = getWeightIndex(datumLabel, featureValue.getKey());
 				int bestLabelWeightIndex = getWeightIndex(bestLabel, featureValue.getKey());
-				double delta = eta*featureValue.getValue()/this.s;
+				double delta = weight*eta*featureValue.getValue()/this.s;
 				this.feature_W[datumLabelWeightIndex] += delta;
 				this.feature_W[bestLabelWeightIndex] -= delta;
 				
+				if (this.feature_A != null) {
+					this.feature_A[datumLabelWeightIndex] += prevAverageS*delta;
+					this.feature_A[bestLabelWeightIndex] -= prevAverageS*delta;
+				}
 			}
 		}
 		
 		if (datumLabelBest)
 			return true;
 		
-		// Update label biases
-		for (int i = 0; i < this.bias_b.length; i++) {
-			this.bias_g[i] = ((this.labelIndices.get(datumLabel) == i) ? -1.0 : 0.0) +
-							(this.labelIndices.get(bestLabel) == i ? 1.0 : 0.0);
-			
-			this.bias_b[i] -= eta*bias_g[i];
+		// Update label biases (the biases aren't regularized, so only the 
+		// datum label and best label biases have non-zero gradients)
+		int datumLabelIndex = this.labelIndices.get(datumLabel);
+		int bestLabelIndex = this.labelIndices.get(bestLabel);
+		double biasDelta = weight*eta;
+		this.bias_b[datumLabelIndex] += biasDelta;
+		this.bias_b[bestLabelIndex] -= biasDelta;
+		
+		if (this.bias_A != null) {
+			this.bias_A[datumLabelIndex] += (this.averageT - 1)*biasDelta;
+			this.bias_A[bestLabelIndex] -= (this.averageT - 1)*biasDelta;
 		}
 		
 		return true;
 	}
 	
-	private int countLabelDifferences(Map<D, L> labels1, Map<D, L> labels2) {
-		int count = 0;
-		for (Entry<D, L> entry: labels1.entrySet()) {
-			if (!labels2.containsKey(entry.getKey()) || !entry.getValue().equals(labels2.get(entry.getKey())))
-				count++;
-		}
-		return count;
+	/**
+	 * Folds the weight scalar s into the feature weights so that s doesn't
+	 * underflow over long training runs
+	 */
+	protected void renormalizeWeights() {
+		for (int i = 0; i < this.feature_W.length; i++)
+			this.feature_W[i] *= this.s;
+		this.averageS /= this.s;
+		this.s = 1;
+	}
+	
+	/**
+	 * @param wIndex
+	 * @return the (unscaled) weight at wIndex used for scoring, which is either
+	 * the current weight or the weight averaged over training steps
+	 */
+	protected double getScoringWeight(int wIndex) {
+		if (this.scoreAveraged)
+			return (this.averageS*this.feature_W[wIndex]-this.feature_A[wIndex])/this.averageT;
+		else
+			return this.s*this.feature_W[wIndex];
+	}
+	
+	/**
+	 * @param labelIndex
+	 * @return the label bias used for scoring, which is either the current bias or the 
+	 * bias averaged over training steps
+	 */
+	protected double getScoringBias(int labelIndex) {
+		if (this.scoreAveraged)
+			return this.bias_b[labelIndex]-this.bias_A[labelIndex]/this.averageT;
+		else
+			return this.bias_b[labelIndex];
+	}
+	
+	/**
+	 * Sets scoreLabel to use averaged weights if the model was trained with
+	 * averaging
+	 * 
+	 * @return the previous value of scoreAveraged
+	 */
+	protected boolean startScoringAveraged() {
+		boolean prevScoreAveraged = this.scoreAveraged;
+		this.scoreAveraged = this.averageWeights && this.feature_A != null && this.averageT > 0;
+		return prevScoreAveraged;
 	}
 	
 	protected double objectiveValue(FeaturizedDataSet<D, L> data) {
@@ -242,13 +420,23 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 			value += l2Norm*this.l2*.5;
 		}
 		
+		value += computeLoss(data);
+		
+		return value;
+	}
+	
+	/**
+	 * @param data
+	 * @return the hinge loss summed over data (weighted by the datum weights)
+	 */
+	protected double computeLoss(FeaturizedDataSet<D, L> data) {
+		double loss = 0;
 		for (D datum : data) {
 			double maxScore = maxScoreLabel(data, datum, true);
 			double datumScore = scoreLabel(data, datum, datum.getLabel(), false);
-			value += maxScore - datumScore;
+			loss += CostDatumTools.getDatumWeight(data.getDatumTools(), datum)*(maxScore - datumScore);
 		}
-		
-		return value;
+		return loss;
 	}
 	
 	protected double maxScoreLabel(FeaturizedDataSet<D, L> data, D datum, boolean includeCost) {
@@ -298,10 +486,10 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		int labelIndex = this.labelIndices.get(label);
 		for (Entry<Integer, Double> entry : featureValues.entrySet()) {
 			int wIndex = this.getWeightIndex(label, entry.getKey());
-			score += this.s*this.feature_W[wIndex]*entry.getValue();
+			score += getScoringWeight(wIndex)*entry.getValue();
 		}
 		
-		score += this.bias_b[labelIndex];
+		score += getScoringBias(labelIndex);
 
 		if (includeCost) {
 			if (!mapValidLabel(datum.getLabel()).equals(label))
@@ -311,6 +499,38 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		return score;
 	}
 	
+	/**
+	 * Estimates the dense label feature weights (and averages), the bias
+	 * weights, and the per-datum training state
+	 */
+	@Override
+	public long estimateTrainingBytes(FeaturizedDataSet<D, L> data) {
+		long labelCount = this.validLabels.size();
+		long featureCount = data.getFeatureVocabularySize();
+		int weightVectors = (this.averageWeights) ? 2 : 1;
+		
+		long bytes = weightVectors*HeapBudget.arrayBytes(labelCount*featureCount, HeapBudget.DOUBLE_BYTES);
+		bytes += weightVectors*HeapBudget.arrayBytes(labelCount, HeapBudget.DOUBLE_BYTES);
+		bytes += HeapBudget.arrayBytes(data.size(), HeapBudget.INT_BYTES);
+		bytes += EpochScheduler.estimateBytes(data.size());
+		return bytes;
+	}
+	
+	@Override
+	public void setHeapBudget(HeapBudget heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+	
+	/**
+	 * @return names of the input features seen in training (looked up
+	 * in the feature dictionary)
+	 */
+	protected Map<Integer, String> getFeatureNames() {
+		if (this.featureDictionary == null)
+			return new HashMap<Integer, String>();
+		return this.featureDictionary.getNames(this.featureIndices);
+	}
+	
 	protected int getWeightIndex(L label, int featureIndex) {
 		return this.labelIndices.get(label)*this.numFeatures + featureIndex;
 	}
@@ -350,6 +570,13 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		
 		clone.labelIndices = this.labelIndices;
 		clone.trainingIterations = this.trainingIterations;
+		clone.averageWeights = this.averageWeights;
+		clone.shrinkingEpochs = this.shrinkingEpochs;
+		clone.shrinkingFullPassInterval = this.shrinkingFullPassInterval;
+		for (StoppingCriterion<D, L> stoppingCriterion : this.stoppingCriteria)
+			clone.stoppingCriteria.add(stoppingCriterion.clone(datumTools, environment));
+		
+		clone.heapBudget = this.heapBudget;
 		
 		return clone;
 	}
@@ -366,11 +593,15 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 		
 		this.t = Integer.valueOf(tAssign.getSecond());
 		this.s = Double.valueOf(sAssign.getSecond());
-		this.featureNames = new HashMap<Integer, String>();
+		Map<Integer, String> featureNames = new HashMap<Integer, String>();
+		this.featureIndices = new BitSet();
 		
 		this.feature_W = new double[numWeights];
 		
 		this.bias_b = new double[this.labelIndices.size()];
+		
+		this.feature_A = null;
+		this.bias_A = null;
 			
 		String assignmentLeft = null;
 		while ((assignmentLeft = SerializationUtil.deserializeAssignmentLeft(reader)) != null) {
@@ -384,8 +615,11 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 				int featureIndex = Integer.valueOf(featureParameters.get("featureIndex"));
 				
 				int index = labelIndex*this.numFeatures+featureIndex;
-				this.featureNames.put(featureIndex, featureName);
+				featureNames.put(featureIndex, featureName);
+				this.featureIndices.set(featureIndex);
 				this.feature_W[index] = W;
+				if (this.feature_A != null && featureParameters.containsKey("A"))
+					this.feature_A[index] = Double.valueOf(featureParameters.get("A"));
 			} else if (assignmentLeft.equals("labelBias")) {
 				SerializationUtil.deserializeGenericName(reader);
 				Map<String, String> biasParameters = SerializationUtil.deserializeArguments(reader);
@@ -393,11 +627,22 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 				int index = Integer.valueOf(biasParameters.get("index"));
 				
 				this.bias_b[index] = b;
+				if (this.bias_A != null && biasParameters.containsKey("A"))
+					this.bias_A[index] = Double.valueOf(biasParameters.get("A"));
+			} else if (assignmentLeft.equals("average")) {
+				SerializationUtil.deserializeGenericName(reader);
+				Map<String, String> averageParameters = SerializationUtil.deserializeArguments(reader);
+				this.averageT = Integer.valueOf(averageParameters.get("T"));
+				this.averageS = Double.valueOf(averageParameters.get("S"));
+				this.feature_A = new double[numWeights];
+				this.bias_A = new double[this.bias_b.length];
 			} else {
 				break;
 			}
 		}
 		
+		this.featureDictionary = FeatureDictionary.fromNames(featureNames);
+		
 		return true;
 	}
 	
@@ -418,10 +663,18 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 			return false;
 		writer.write("\n");
 		
+		if (this.feature_A != null) {
+			Pair<String, String> averageAssignment = new Pair<String, String>("average", "average(T=" + this.averageT + ", S=" + this.averageS + ")");
+			if (!SerializationUtil.serializeAssignment(averageAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
 			String biasValue = label +
 					  "(b=" + this.bias_b[i] +
+					  ((this.bias_A != null) ? ", A=" + this.bias_A[i] : "") +
 					  ", index=" + i +
 					  ")";
 
@@ -431,18 +684,21 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 			writer.write("\n");
 		}
 		
+		Map<Integer, String> featureNames = getFeatureNames();
 		for (int i = 0; i < this.labelIndices.size(); i++) {
 			String label = this.labelIndices.reverseGet(i).toString();
-			for (Entry<Integer, String> featureName : this.featureNames.entrySet()) {
+			for (Entry<Integer, String> featureName : featureNames.entrySet()) {
 				int weightIndex = getWeightIndex(i, featureName.getKey());
 				double W = this.feature_W[weightIndex];
+				double A = (this.feature_A != null) ? this.feature_A[weightIndex] : 0;
 				
-				if (W == 0) // Might need to get rid of this line if want to pause training and resume
+				if (W == 0 && A == 0) // Might need to get rid of this line if want to pause training and resume
 					continue;
 				
 				String featureValue = label + "-" + 
 									  featureName.getValue() + 
 									  "(W=" + W +
+									  ((this.feature_A != null) ? ", A=" + A : "") +
 									  ", labelIndex=" + i +
 									  ", featureIndex=" + featureName.getKey() + 
 									  ")";
@@ -472,11 +728,13 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 	@Override
 	public Map<D, Map<L, Double>> posterior(FeaturizedDataSet<D, L> data) {
 		Map<D, Map<L, Double>> posteriors = new HashMap<D, Map<L, Double>>(data.size());
-
+		boolean prevScoreAveraged = startScoringAveraged();
+		
 		for (D datum : data) {
 			posteriors.put(datum, posteriorForDatum(data, datum));
 		}
 		
+		this.scoreAveraged = prevScoreAveraged;
 		return posteriors;
 	}
 
@@ -506,11 +764,13 @@ public class SupervisedModelSVMDeadPegasos<D extends Datum<L>, L> extends Superv
 	@Override
 	public Map<D, L> classify(FeaturizedDataSet<D, L> data) {
 		Map<D, L> classifiedData = new HashMap<D, L>();
+		boolean prevScoreAveraged = startScoringAveraged();
 		
 		for (D datum : data) {
 			classifiedData.put(datum, argMaxScoreLabel(data, datum, false));
 		}
-	
+		
+		this.scoreAveraged = prevScoreAveraged;
 		return classifiedData;
 	}
 }
@@ -0,0 +1,523 @@
+package cost.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+
+import ark.data.annotation.Datum;
+import ark.util.OutputWriter;
+import ark.util.Pair;
+import ark.util.SerializationUtil;
+
+/**
+ * TrainingCheckpoint writes and reads the binary checkpoint file
+ * through which a long training run can resume after it is
+ * interrupted.  A checkpoint is written every 'iterations'
+ * training iterations or every 'minutes' minutes (whichever comes
+ * first, with 0 disabling either), and it is written to a temporary
+ * file which is synced to the disk and then replaces the previous
+ * checkpoint in a single rename, so an interruption during a write
+ * leaves the previous checkpoint intact.
+ *
+ * A model configures its checkpoints through the 'extra info'
+ * assignments read by deserializeExtraInfo, and each of its training
+ * runs writes to its own file under the configured path (see start).
+ *
+ * Each checkpoint starts with a fingerprint of the model configuration
+ * and training data chosen by the model, and a checkpoint with a
+ * different fingerprint is ignored.  The rest of the checkpoint holds
+ * the model's parameters and training loop state (see State), the
+ * training status, and the states of the stopping criteria.  Weight
+ * maps are written in their iteration order so that reading them into
+ * new hash maps gives the same iteration order (and so the same floating
+ * point sums) as in the interrupted run.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class TrainingCheckpoint {
+	private static final int MAGIC = 0x434B5054; // "CKPT"
+	private static final int VERSION = 1;
+
+	/**
+	 * State holds the parameters and training loop state that a model
+	 * saves in a checkpoint (everything that training depends on after
+	 * the most recently completed iteration, other than the training
+	 * status and the stopping criteria)
+	 */
+	public static class State {
+		protected int trainingIteration; // next training iteration
+		protected boolean stoppedEarly;
+		protected int t;
+		protected long randomState; // see cost.util.StatefulRandom
+
+		protected Map<Integer, Double> feature_w;
+		protected Map<Integer, Double> feature_G;
+		protected double[] bias_b;
+		protected double[] bias_G;
+		protected double[] cost_v;
+		protected double[] cost_G;
+		protected int[] cost_t;
+
+		protected int averageT;
+		protected Map<Integer, Double> feature_a;
+		protected double[] bias_a;
+
+		protected BitSet featureIndices;
+		protected double prevObjectiveValue;
+		protected List<Double> prevEvaluationValues;
+	}
+
+	private String path; // path prefix of the checkpoint files (or null if checkpoints aren't configured)
+	private int iterations;
+	private double minutes;
+	private File file; // checkpoint file of the current training run (see start)
+	private long lastWriteTime;
+
+	public TrainingCheckpoint() {
+
+	}
+
+	/**
+	 * @param name
+	 * @return true if name is one of the 'extra info' assignments that
+	 * configure a model's checkpoints (see deserializeExtraInfo)
+	 */
+	public static boolean isExtraInfo(String name) {
+		return name.equals("checkpointPath")
+				|| name.equals("checkpointIterations")
+				|| name.equals("checkpointMinutes");
+	}
+
+	/**
+	 * Reads an 'extra info' assignment of a model's configuration.  These are
+	 * 'checkpointPath' with the path prefix of the checkpoint files (in which
+	 * ${...} is replaced from the clone environment, see clone),
+	 * 'checkpointIterations' for the iterations between checkpoints, and
+	 * 'checkpointMinutes' for the minutes between checkpoints (0 by default).
+	 *
+	 * @param name
+	 * @param reader
+	 * @return true if the assignment was read
+	 * @throws IOException
+	 */
+	public boolean deserializeExtraInfo(String name, BufferedReader reader) throws IOException {
+		if (name.equals("checkpointPath")) {
+			this.path = SerializationUtil.deserializeAssignmentRight(reader);
+		} else if (name.equals("checkpointIterations")) {
+			this.iterations = Integer.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else if (name.equals("checkpointMinutes")) {
+			this.minutes = Double.valueOf(SerializationUtil.deserializeAssignmentRight(reader));
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the 'extra info' assignments read by deserializeExtraInfo (if
+	 * checkpoints are configured)
+	 *
+	 * @param writer
+	 * @return true if the assignments were written
+	 * @throws IOException
+	 */
+	public boolean serializeExtraInfo(Writer writer) throws IOException {
+		if (this.path == null)
+			return true;
+
+		writer.write("\t");
+		Pair<String, String> checkpointPathAssignment = new Pair<String, String>("checkpointPath", this.path);
+		if (!SerializationUtil.serializeAssignment(checkpointPathAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		writer.write("\t");
+		Pair<String, String> checkpointIterationsAssignment = new Pair<String, String>("checkpointIterations", String.valueOf(this.iterations));
+		if (!SerializationUtil.serializeAssignment(checkpointIterationsAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		writer.write("\t");
+		Pair<String, String> checkpointMinutesAssignment = new Pair<String, String>("checkpointMinutes", String.valueOf(this.minutes));
+		if (!SerializationUtil.serializeAssignment(checkpointMinutesAssignment, writer))
+			return false;
+		writer.write("\n");
+
+		return true;
+	}
+
+	/**
+	 * @param environment
+	 * @return a checkpoint with the same configuration for a clone of
+	 * the model, with ${...} in the path replaced from the environment
+	 */
+	public TrainingCheckpoint clone(Map<String, String> environment) {
+		TrainingCheckpoint clone = new TrainingCheckpoint();
+		clone.path = this.path;
+		clone.iterations = this.iterations;
+		clone.minutes = this.minutes;
+		if (environment != null && clone.path != null) {
+			for (Entry<String, String> entry : environment.entrySet())
+				clone.path = clone.path.replace("${" + entry.getKey() + "}", entry.getValue());
+		}
+		return clone;
+	}
+
+	/**
+	 * Starts a training run's checkpoints
+	 *
+	 * @param name name of the run's checkpoint file under the configured
+	 * path, which keeps it separate from the files of other runs (e.g.
+	 * the model's hyper-parameter values)
+	 * @return true if the run writes checkpoints.  False if checkpoints
+	 * aren't configured.
+	 */
+	public boolean start(String name) {
+		if (this.path == null)
+			return false;
+
+		this.file = new File(this.path + name + ".ckpt");
+		this.lastWriteTime = System.currentTimeMillis();
+		return true;
+	}
+
+	public String getPath() {
+		return this.file.getPath();
+	}
+
+	/**
+	 * @param completedIterations number of training iterations that have
+	 * been completed
+	 * @return true if a checkpoint should be written after the iterations
+	 */
+	public boolean isDue(int completedIterations) {
+		if (this.iterations > 0 && completedIterations % this.iterations == 0)
+			return true;
+		return this.minutes > 0 && System.currentTimeMillis() - this.lastWriteTime >= this.minutes*60000.0;
+	}
+
+	/**
+	 * Writes a checkpoint that replaces the previous one.  A failed write
+	 * is logged, and leaves the previous checkpoint intact.
+	 *
+	 * @param fingerprint
+	 * @param state
+	 * @param status
+	 * @param stoppingCriteria
+	 * @param output
+	 * @return true if the checkpoint was written
+	 */
+	public <D extends Datum<L>, L> boolean write(long fingerprint, State state, TrainingStatus<D, L> status, List<StoppingCriterion<D, L>> stoppingCriteria, OutputWriter output) {
+		try {
+			FileOutputStream fileOut = openTemporaryFile();
+			DataOutputStream out = startWrite(fileOut, fingerprint);
+
+			out.writeInt(state.trainingIteration);
+			out.writeBoolean(state.stoppedEarly);
+			out.writeInt(state.t);
+			out.writeLong(state.randomState);
+
+			writeWeights(out, state.feature_w);
+			writeWeights(out, state.feature_G);
+			writeDoubles(out, state.bias_b);
+			writeDoubles(out, state.bias_G);
+			writeDoubles(out, state.cost_v);
+			writeDoubles(out, state.cost_G);
+			writeInts(out, state.cost_t);
+
+			out.writeInt(state.averageT);
+			writeWeights(out, state.feature_a);
+			writeDoubles(out, state.bias_a);
+
+			writeBits(out, state.featureIndices);
+
+			out.writeInt(status.getIteration());
+			out.writeDouble(status.getElapsedSeconds());
+			status.writePredictions(out, status.getLatestPredictions());
+
+			out.writeDouble(state.prevObjectiveValue);
+			out.writeInt(state.prevEvaluationValues.size());
+			for (Double evaluationValue : state.prevEvaluationValues)
+				out.writeDouble(evaluationValue);
+
+			for (StoppingCriterion<D, L> stoppingCriterion : stoppingCriteria) {
+				if (!stoppingCriterion.writeState(out, status)) {
+					out.close();
+					return false;
+				}
+			}
+
+			return finishWrite(out, fileOut);
+		} catch (IOException e) {
+			output.debugWriteln("Failed to write checkpoint " + getPath() + " (" + e.getMessage() + ")");
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the checkpoint if it has the given fingerprint, and restores the
+	 * training status and the states of the stopping criteria from it.  If
+	 * the checkpoint can't be read, then the stopping criteria are
+	 * re-initialized.
+	 *
+	 * @param fingerprint
+	 * @param status
+	 * @param stoppingCriteria
+	 * @param output
+	 * @return the model's state from the checkpoint, or null if training
+	 * should start from the beginning
+	 */
+	public <D extends Datum<L>, L> State read(long fingerprint, TrainingStatus<D, L> status, List<StoppingCriterion<D, L>> stoppingCriteria, OutputWriter output) {
+		try {
+			DataInputStream in = startRead(fingerprint);
+			if (in == null)
+				return null;
+
+			State state = new State();
+			state.trainingIteration = in.readInt();
+			state.stoppedEarly = in.readBoolean();
+			state.t = in.readInt();
+			state.randomState = in.readLong();
+
+			state.feature_w = readWeights(in);
+			state.feature_G = readWeights(in);
+			state.bias_b = readDoubles(in);
+			state.bias_G = readDoubles(in);
+			state.cost_v = readDoubles(in);
+			state.cost_G = readDoubles(in);
+			state.cost_t = readInts(in);
+
+			state.averageT = in.readInt();
+			state.feature_a = readWeights(in);
+			state.bias_a = readDoubles(in);
+
+			state.featureIndices = readBits(in);
+
+			int statusIteration = in.readInt();
+			double elapsedSeconds = in.readDouble();
+			Map<D, L> predictions = status.readPredictions(in);
+
+			state.prevObjectiveValue = in.readDouble();
+			int evaluationCount = in.readInt();
+			state.prevEvaluationValues = new ArrayList<Double>(evaluationCount);
+			for (int i = 0; i < evaluationCount; i++)
+				state.prevEvaluationValues.add(in.readDouble());
+
+			for (StoppingCriterion<D, L> stoppingCriterion : stoppingCriteria) {
+				if (!stoppingCriterion.readState(in, status)) {
+					in.close();
+					StoppingCriterion.initAll(stoppingCriteria, status);
+					return null;
+				}
+			}
+
+			if (!finishRead(in)) {
+				StoppingCriterion.initAll(stoppingCriteria, status);
+				return null;
+			}
+
+			status.restore(statusIteration, elapsedSeconds, predictions);
+			return state;
+		} catch (IOException e) {
+			output.debugWriteln("Failed to read checkpoint " + getPath() + " (" + e.getMessage() + ")");
+			StoppingCriterion.initAll(stoppingCriteria, status);
+			return null;
+		}
+	}
+
+	/**
+	 * @return a stream to the temporary file to which a checkpoint is
+	 * written before it replaces the previous one
+	 * @throws IOException
+	 */
+	private FileOutputStream openTemporaryFile() throws IOException {
+		File parent = this.file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists())
+			parent.mkdirs();
+
+		return new FileOutputStream(getTemporaryFile());
+	}
+
+	/**
+	 * @param fileOut
+	 * @param fingerprint
+	 * @return a stream to which the training state is written after
+	 * the checkpoint header.  The checkpoint replaces the previous checkpoint
+	 * when the stream is passed to finishWrite.
+	 * @throws IOException
+	 */
+	private DataOutputStream startWrite(FileOutputStream fileOut, long fingerprint) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(fingerprint);
+		return out;
+	}
+
+	/**
+	 * Closes a stream from startWrite once its file is synced to the disk, 
+	 * and atomically replaces the previous checkpoint with the written one
+	 *
+	 * @param out
+	 * @param fileOut the temporary file stream under out
+	 * @return true if the checkpoint was written
+	 * @throws IOException
+	 */
+	private boolean finishWrite(DataOutputStream out, FileOutputStream fileOut) throws IOException {
+		out.writeInt(MAGIC);
+		out.flush();
+		fileOut.getChannel().force(true);
+		out.close();
+
+		try {
+			Files.move(getTemporaryFile().toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(getTemporaryFile().toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		this.lastWriteTime = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * @param fingerprint
+	 * @return a stream from which the training state is read after
+	 * the checkpoint header, or null if there is no checkpoint with the given
+	 * fingerprint
+	 * @throws IOException
+	 */
+	private DataInputStream startRead(long fingerprint) throws IOException {
+		if (!this.file.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint) {
+			in.close();
+			return null;
+		}
+
+		return in;
+	}
+
+	/**
+	 * Closes a stream from startRead
+	 *
+	 * @param in
+	 * @return true if the whole checkpoint was read
+	 * @throws IOException
+	 */
+	private boolean finishRead(DataInputStream in) throws IOException {
+		boolean complete = in.readInt() == MAGIC;
+		in.close();
+		return complete;
+	}
+
+	private File getTemporaryFile() {
+		return new File(this.file.getPath() + ".tmp");
+	}
+
+	private static void writeWeights(DataOutputStream out, Map<Integer, Double> weights) throws IOException {
+		if (weights == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(weights.size());
+		for (Entry<Integer, Double> entry : weights.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeDouble(entry.getValue());
+		}
+	}
+
+	private static Map<Integer, Double> readWeights(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0)
+			return null;
+
+		Map<Integer, Double> weights = new HashMap<Integer, Double>();
+		for (int i = 0; i < size; i++) {
+			int key = in.readInt();
+			weights.put(key, in.readDouble());
+		}
+		return weights;
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(values.length);
+		for (int i = 0; i < values.length; i++)
+			out.writeDouble(values[i]);
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		out.writeInt(values.length);
+		for (int i = 0; i < values.length; i++)
+			out.writeInt(values[i]);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++)
+			values[i] = in.readInt();
+		return values;
+	}
+
+	private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+		long[] words = bits.toLongArray();
+		out.writeInt(words.length);
+		for (int i = 0; i < words.length; i++)
+			out.writeLong(words[i]);
+	}
+
+	private static BitSet readBits(DataInputStream in) throws IOException {
+		long[] words = new long[in.readInt()];
+		for (int i = 0; i < words.length; i++)
+			words[i] = in.readLong();
+		return BitSet.valueOf(words);
+	}
+}
@@ -0,0 +1,320 @@
+package cost.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import cost.model.stopping.StoppingCriterion;
+import cost.model.stopping.TrainingStatus;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+import ark.util.OutputWriter;
+
+/**
+ * TrainingLoop runs the training iterations of a model, and stops
+ * when the model's stopping criteria (see cost.model.stopping.StoppingCriterion)
+ * or the epsilon rule say so.  The models used to copy the loop along with
+ * the plumbing for its training status, criteria, and log, so models now
+ * extend this class with their single training iteration and the parts of
+ * the log line that are specific to them.
+ *
+ * Every 'logInterval' iterations, the loop logs the model's predictions on
+ * the test data and its evaluations (and its objective if the model logs it
+ * or has an epsilon).  With stopping criteria (and no epsilon or early stop
+ * on unchanged labels), these passes over the data are skipped, and the log
+ * reports the values that the criteria computed (see
+ * cost.model.stopping.TrainingStatus).  Training stops early if the
+ * objective changes by less than epsilon at a logged iteration after
+ * iteration 20.
+ *
+ * The loop keeps its own state, so training can be resumed for more
+ * iterations later (see cost.model.ResumableTraining), and the state can be
+ * restored from a checkpoint (see restore).
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public abstract class TrainingLoop<D extends Datum<L>, L> {
+	protected SupervisedModel<D, L> model;
+	protected List<StoppingCriterion<D, L>> stoppingCriteria;
+	protected int trainingIterations;
+	protected int logInterval;
+	protected double epsilon;
+
+	private TrainingStatus<D, L> status;
+	private FeaturizedDataSet<D, L> testData;
+	private List<SupervisedModelEvaluation<D, L>> evaluations;
+	private OutputWriter output;
+
+	private int iteration; // next training iteration
+	private boolean finished;
+	private double prevObjectiveValue;
+	private List<Double> prevEvaluationValues;
+
+	/**
+	 * @param model
+	 * @param stoppingCriteria
+	 * @param trainingIterations
+	 * @param logInterval iterations between logged predictions and evaluations
+	 * @param epsilon objective change below which training stops early (or 0)
+	 */
+	public TrainingLoop(SupervisedModel<D, L> model, List<StoppingCriterion<D, L>> stoppingCriteria, int trainingIterations, int logInterval, double epsilon) {
+		this.model = model;
+		this.stoppingCriteria = stoppingCriteria;
+		this.trainingIterations = trainingIterations;
+		this.logInterval = logInterval;
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * @param iteration
+	 * @return true if the model was trained for the iteration
+	 */
+	protected abstract boolean trainOneIteration(int iteration);
+
+	/**
+	 * @return the model's hyper-parameter values at the start of its log lines
+	 */
+	protected abstract String getLogPrefix();
+
+	/**
+	 * @return model specific values at the end of its log lines
+	 */
+	protected String getLogSuffix() {
+		return "";
+	}
+
+	/**
+	 * @return true if the logged iterations include the objective value
+	 */
+	protected boolean isLoggingObjective() {
+		return false;
+	}
+
+	/**
+	 * @return true if training stops once the predictions stop changing
+	 * between logged iterations (after iteration 10)
+	 */
+	protected boolean isEarlyStopIfNoLabelChange() {
+		return false;
+	}
+
+	/**
+	 * Restores the training state of a model whose training resumes from
+	 * where it was interrupted (see restore).  This is called once the status
+	 * and criteria are initialized.
+	 *
+	 * @return true if training resumes.  False if training should start
+	 * from the beginning.
+	 */
+	protected boolean resume() {
+		return false;
+	}
+
+	/**
+	 * Called after each completed training iteration, once it's known
+	 * whether training has finished (see isFinished)
+	 */
+	protected void iterationCompleted() {
+
+	}
+
+	/**
+	 * Starts training once the model has been initialized
+	 *
+	 * @param status
+	 * @param testData
+	 * @param evaluations
+	 * @param output
+	 * @return true if training started
+	 */
+	public boolean start(TrainingStatus<D, L> status, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, OutputWriter output) {
+		if (!StoppingCriterion.initAll(this.stoppingCriteria, status))
+			return false;
+
+		this.status = status;
+		this.testData = testData;
+		this.evaluations = evaluations;
+		this.output = output;
+		this.iteration = 0;
+		this.finished = false;
+		this.prevEvaluationValues = new ArrayList<Double>();
+
+		if (resume())
+			return true;
+
+		if (isTracking()) {
+			if (isTrackingObjective())
+				this.prevObjectiveValue = status.getObjectiveValue();
+			this.prevEvaluationValues = evaluate(status.getPredictions());
+		}
+
+		output.debugWriteln("Training " + this.model.getGenericName() + " for " + this.trainingIterations + " iterations...");
+		return true;
+	}
+
+	/**
+	 * Starts training, and trains for all of the training iterations
+	 *
+	 * @return true if the model was trained
+	 */
+	public boolean train(TrainingStatus<D, L> status, FeaturizedDataSet<D, L> testData, List<SupervisedModelEvaluation<D, L>> evaluations, OutputWriter output) {
+		return start(status, testData, evaluations, output) && trainIterations(this.trainingIterations);
+	}
+
+	/**
+	 * Trains for at most 'iterations' more iterations after start
+	 *
+	 * @param iterations
+	 * @return true if the model was trained
+	 */
+	public boolean trainIterations(int iterations) {
+		for (int i = 0; i < iterations && !this.finished && this.iteration < this.trainingIterations; i++) {
+			int iteration = this.iteration;
+			if (!trainOneIteration(iteration))
+				return false;
+			this.iteration++;
+
+			this.status.nextIteration(iteration);
+			StoppingCriterion<D, L> satisfiedCriterion = StoppingCriterion.findSatisfied(this.stoppingCriteria, this.status);
+			if (isTracking() && iteration % this.logInterval == 0) {
+				if (!logAndCheck(iteration))
+					this.finished = true;
+			} else {
+				this.output.debugWriteln(getLogPrefix() + " Finished iteration " + iteration + this.status.describeComputedValues() + getLogSuffix());
+			}
+
+			if (satisfiedCriterion != null && !this.finished) {
+				this.output.debugWriteln(getLogPrefix() + " Terminating early at iteration " + iteration + " (" + satisfiedCriterion.toString() + ")");
+				this.finished = true;
+			}
+
+			if (this.iteration >= this.trainingIterations)
+				this.finished = true;
+
+			iterationCompleted();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Logs the predictions, evaluations, and objective at a logged iteration
+	 *
+	 * @param iteration
+	 * @return false if training should stop (because the predictions or the
+	 * objective stopped changing)
+	 */
+	private boolean logAndCheck(int iteration) {
+		StringBuilder str = new StringBuilder();
+		str.append(getLogPrefix()).append(" Finished iteration ").append(iteration);
+
+		double objectiveValueDiff = Double.NaN;
+		if (isTrackingObjective()) {
+			double objectiveValue = this.status.getObjectiveValue();
+			objectiveValueDiff = objectiveValue - this.prevObjectiveValue;
+			str.append(" objective diff: ").append(objectiveValueDiff).append(" objective: ").append(objectiveValue);
+			this.prevObjectiveValue = objectiveValue;
+		}
+
+		Map<D, L> predictions = this.status.getPredictions();
+		int labelDifferences = this.status.getPredictionDifferences();
+		str.append(" prediction-diff: ").append(labelDifferences).append("/").append(predictions.size());
+
+		List<Double> evaluationValues = evaluate(predictions);
+		for (int i = 0; i < this.evaluations.size(); i++) {
+			String evaluationName = this.evaluations.get(i).toString(false);
+			str.append(" ").append(evaluationName).append(" diff: ").append(evaluationValues.get(i) - this.prevEvaluationValues.get(i));
+			str.append(" ").append(evaluationName).append(": ").append(evaluationValues.get(i));
+		}
+		this.prevEvaluationValues = evaluationValues;
+
+		str.append(getLogSuffix());
+		this.output.debugWriteln(str.toString());
+
+		if (isEarlyStopIfNoLabelChange() && labelDifferences == 0 && iteration > 10) {
+			this.output.debugWriteln(getLogPrefix() + " Terminating early at iteration " + iteration + " (no prediction changes)");
+			return false;
+		}
+
+		if (iteration > 20 && Math.abs(objectiveValueDiff) < this.epsilon) {
+			this.output.debugWriteln(getLogPrefix() + " Terminating early at iteration " + iteration);
+			return false;
+		}
+
+		return true;
+	}
+
+	private List<Double> evaluate(Map<D, L> predictions) {
+		List<Double> evaluationValues = new ArrayList<Double>();
+		for (SupervisedModelEvaluation<D, L> evaluation : this.evaluations)
+			evaluationValues.add(evaluation.evaluate(this.model, this.testData, predictions));
+		return evaluationValues;
+	}
+
+	/**
+	 * @return true if the predictions and evaluations are computed every
+	 * logInterval iterations, rather than only when the criteria ask for them
+	 */
+	protected boolean isTracking() {
+		return this.stoppingCriteria.isEmpty() || this.epsilon > 0 || isEarlyStopIfNoLabelChange();
+	}
+
+	private boolean isTrackingObjective() {
+		return isLoggingObjective() || this.epsilon > 0;
+	}
+
+	/**
+	 * Restores the state of the loop from a checkpoint (see resume)
+	 *
+	 * @param iteration the next training iteration
+	 * @param finished
+	 * @param prevObjectiveValue objective at the last logged iteration
+	 * @param prevEvaluationValues evaluations at the last logged iteration
+	 */
+	public void restore(int iteration, boolean finished, double prevObjectiveValue, List<Double> prevEvaluationValues) {
+		this.iteration = iteration;
+		this.finished = finished || iteration >= this.trainingIterations;
+		this.prevObjectiveValue = prevObjectiveValue;
+		this.prevEvaluationValues = prevEvaluationValues;
+	}
+
+	public TrainingStatus<D, L> getStatus() {
+		return this.status;
+	}
+
+	/**
+	 * @return the number of completed training iterations
+	 */
+	public int getIteration() {
+		return this.iteration;
+	}
+
+	/**
+	 * @return true if the model has trained for all of its training
+	 * iterations, or if it has stopped early
+	 */
+	public boolean isFinished() {
+		return this.finished;
+	}
+
+	/**
+	 * @return true if training stopped before all of the training iterations
+	 */
+	public boolean isStoppedEarly() {
+		return this.finished && this.iteration < this.trainingIterations;
+	}
+
+	public double getPrevObjectiveValue() {
+		return this.prevObjectiveValue;
+	}
+
+	public List<Double> getPrevEvaluationValues() {
+		return this.prevEvaluationValues;
+	}
+}
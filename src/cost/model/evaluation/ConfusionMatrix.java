@@ -0,0 +1,318 @@
+package cost.model.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cost.data.annotation.CostDatumTools;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools.LabelMapping;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+
+/**
+ * ConfusionMatrix holds the (importance weighted) counts of
+ * actual/predicted label pairs over a data set in a single
+ * array indexed by actualIndex*n+predictedIndex, where n is
+ * the number of labels and each label has a fixed index.  The
+ * norms of the factored costs (see cost.model.factoredcost), their
+ * kappas, and accuracies under label mappings are all computed
+ * from confusion matrices, so that the bookkeeping over the data
+ * is a single pass over int label index arrays, and everything
+ * after that only depends on the number of labels.
+ *
+ * A matrix of a data set without predictions (see fromData) counts
+ * every datum as predicted correctly, so that its row totals
+ * give the label distribution of the data set.
+ *
+ * Datums whose actual or predicted label has no index (for
+ * example, labels that aren't valid for a model) are not counted.
+ *
+ * @author Bill McDowell
+ *
+ * @param <L> label type
+ */
+public class ConfusionMatrix<L> {
+	private static final int PARALLEL_MIN_SIZE = 65536; // smaller arrays are counted in a single thread
+
+	private List<L> labels;
+	private Map<L, Integer> labelIndices;
+	private double[] counts; // actual label index * labels.size() + predicted label index -> weighted count
+
+	public ConfusionMatrix(Collection<L> labels) {
+		this.labels = new ArrayList<L>(labels.size());
+		this.labelIndices = new HashMap<L, Integer>();
+		for (L label : labels) {
+			if (label == null || this.labelIndices.containsKey(label))
+				continue;
+			this.labelIndices.put(label, this.labels.size());
+			this.labels.add(label);
+		}
+
+		this.counts = new double[this.labels.size()*this.labels.size()];
+	}
+
+	/**
+	 * @param label
+	 * @return index of label in the matrix, or -1 if it has no index
+	 */
+	public int getLabelIndex(L label) {
+		if (label == null)
+			return -1;
+		Integer index = this.labelIndices.get(label);
+		return (index == null) ? -1 : index;
+	}
+
+	public L getLabel(int index) {
+		return this.labels.get(index);
+	}
+
+	public List<L> getLabels() {
+		return this.labels;
+	}
+
+	public int getLabelCount() {
+		return this.labels.size();
+	}
+
+	/**
+	 * Adds weighted counts of actual/predicted label index pairs
+	 * to the matrix.  Pairs with a negative index are skipped.  Large
+	 * arrays are split across up to maxThreads threads that count into
+	 * their own arrays, which are then summed in order.
+	 *
+	 * @param actual actual label indices
+	 * @param predicted predicted label indices
+	 * @param weights weights of the pairs (or null if every pair has weight 1)
+	 * @param maxThreads
+	 * @return true if the counts were added
+	 */
+	public boolean add(final int[] actual, final int[] predicted, final double[] weights, int maxThreads) {
+		int threads = Math.min(maxThreads, actual.length / PARALLEL_MIN_SIZE);
+		if (threads <= 1) {
+			addRange(this.counts, actual, predicted, weights, 0, actual.length);
+			return true;
+		}
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		int chunkSize = (actual.length + threads - 1) / threads;
+		for (int i = 0; i < threads; i++) {
+			final int start = i*chunkSize;
+			final int end = Math.min(actual.length, start + chunkSize);
+			tasks.add(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					double[] chunkCounts = new double[ConfusionMatrix.this.counts.length];
+					addRange(chunkCounts, actual, predicted, weights, start, end);
+					return chunkCounts;
+				}
+			});
+		}
+
+		try {
+			List<Future<double[]>> results = threadPool.invokeAll(tasks);
+			threadPool.shutdown();
+			for (Future<double[]> result : results) {
+				double[] chunkCounts = result.get();
+				for (int i = 0; i < this.counts.length; i++)
+					this.counts[i] += chunkCounts[i];
+			}
+		} catch (Exception e) {
+			threadPool.shutdownNow();
+			return false;
+		}
+
+		return true;
+	}
+
+	private void addRange(double[] counts, int[] actual, int[] predicted, double[] weights, int start, int end) {
+		int n = this.labels.size();
+		for (int i = start; i < end; i++) {
+			if (actual[i] < 0 || predicted[i] < 0)
+				continue;
+			counts[actual[i]*n + predicted[i]] += (weights == null) ? 1.0 : weights[i];
+		}
+	}
+
+	public double getCount(int actualIndex, int predictedIndex) {
+		return this.counts[actualIndex*this.labels.size() + predictedIndex];
+	}
+
+	public double getActualTotal(int actualIndex) {
+		int n = this.labels.size();
+		double total = 0;
+		for (int i = actualIndex*n; i < (actualIndex+1)*n; i++)
+			total += this.counts[i];
+		return total;
+	}
+
+	public double getPredictedTotal(int predictedIndex) {
+		int n = this.labels.size();
+		double total = 0;
+		for (int i = predictedIndex; i < this.counts.length; i += n)
+			total += this.counts[i];
+		return total;
+	}
+
+	public double getTotal() {
+		double total = 0;
+		for (int i = 0; i < this.counts.length; i++)
+			total += this.counts[i];
+		return total;
+	}
+
+	public double getCorrect() {
+		int n = this.labels.size();
+		double correct = 0;
+		for (int i = 0; i < n; i++)
+			correct += this.counts[i*n + i];
+		return correct;
+	}
+
+	/**
+	 * @return fraction of the (weighted) count on the diagonal, or 1 if the
+	 * matrix is empty
+	 */
+	public double getAccuracy() {
+		double total = getTotal();
+		return (total == 0) ? 1 : getCorrect()/total;
+	}
+
+	/**
+	 * @param labelMapping
+	 * @return a matrix over the labels to which labelMapping maps the labels
+	 * of this matrix, where the counts of labels that map to the same label are
+	 * merged (labels that map to null are dropped)
+	 */
+	public ConfusionMatrix<L> map(LabelMapping<L> labelMapping) {
+		List<L> mappedLabels = new ArrayList<L>(this.labels.size());
+		for (L label : this.labels)
+			mappedLabels.add(labelMapping.map(label));
+		return map(mappedLabels, mappedLabels);
+	}
+
+	/**
+	 * @param model
+	 * @param labels
+	 * @return a matrix over 'labels' into which the labels of this
+	 * matrix are mapped by model's valid label mapping (see
+	 * ark.model.SupervisedModel.mapValidLabel)
+	 */
+	public ConfusionMatrix<L> map(SupervisedModel<?, L> model, Collection<L> labels) {
+		List<L> mappedLabels = new ArrayList<L>(this.labels.size());
+		for (L label : this.labels)
+			mappedLabels.add(model.mapValidLabel(label));
+		return map(mappedLabels, labels);
+	}
+
+	private ConfusionMatrix<L> map(List<L> mappedLabels, Collection<L> labels) {
+		ConfusionMatrix<L> mapped = new ConfusionMatrix<L>(labels);
+		int n = this.labels.size();
+		int[] indices = new int[n];
+		for (int i = 0; i < n; i++)
+			indices[i] = mapped.getLabelIndex(mappedLabels.get(i));
+
+		int mappedN = mapped.labels.size();
+		for (int i = 0; i < n; i++) {
+			if (indices[i] < 0)
+				continue;
+			for (int j = 0; j < n; j++) {
+				if (indices[j] < 0)
+					continue;
+				mapped.counts[indices[i]*mappedN + indices[j]] += this.counts[i*n + j];
+			}
+		}
+
+		return mapped;
+	}
+
+	/**
+	 * @param labels
+	 * @return indices of labels in this matrix (-1 for labels without an index)
+	 */
+	public int[] getLabelIndices(List<L> labels) {
+		int[] indices = new int[labels.size()];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = getLabelIndex(labels.get(i));
+		return indices;
+	}
+
+	/**
+	 * @param model
+	 * @param labels labels of the matrix
+	 * @param data
+	 * @return a matrix over 'labels' in which each datum
+	 * of data is counted by its weight as a correct prediction of its
+	 * label (mapped by model.mapValidLabel), or null if the counts 
+	 * couldn't be added (see add)
+	 */
+	public static <D extends Datum<L>, L> ConfusionMatrix<L> fromData(SupervisedModel<D, L> model, Collection<L> labels, FeaturizedDataSet<D, L> data) {
+		ConfusionMatrix<L> matrix = new ConfusionMatrix<L>(labels);
+		int[] actual = new int[data.size()];
+		double[] weights = new double[data.size()];
+		int i = 0;
+		for (D datum : data) {
+			actual[i] = matrix.getLabelIndex(model.mapValidLabel(datum.getLabel()));
+			weights[i] = CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
+			i++;
+		}
+
+		if (!matrix.add(actual, actual, weights, data.getMaxThreads()))
+			return null;
+		return matrix;
+	}
+
+	/**
+	 * @param labels labels of the matrix (labels of predictions that aren't
+	 * in this collection are added to the matrix)
+	 * @param predictions
+	 * @param datumTools tools to compute datum weights (or null if every
+	 * datum has weight 1)
+	 * @param maxThreads
+	 * @return a matrix of the actual and predicted labels of predictions, or
+	 * null if the counts couldn't be added (see add)
+	 */
+	public static <D extends Datum<L>, L> ConfusionMatrix<L> fromPredictions(Collection<L> labels, Map<D, L> predictions, Datum.Tools<D, L> datumTools, int maxThreads) {
+		List<L> actualLabels = new ArrayList<L>(predictions.size());
+		List<L> predictedLabels = new ArrayList<L>(predictions.size());
+		double[] weights = (datumTools == null) ? null : new double[predictions.size()];
+		List<L> matrixLabels = new ArrayList<L>(labels);
+		Map<L, Boolean> seenLabels = new HashMap<L, Boolean>();
+		for (L label : labels)
+			seenLabels.put(label, true);
+
+		int i = 0;
+		for (Entry<D, L> prediction : predictions.entrySet()) {
+			L actual = prediction.getKey().getLabel();
+			L predicted = prediction.getValue();
+			if (actual != null && !seenLabels.containsKey(actual)) {
+				seenLabels.put(actual, true);
+				matrixLabels.add(actual);
+			}
+			if (predicted != null && !seenLabels.containsKey(predicted)) {
+				seenLabels.put(predicted, true);
+				matrixLabels.add(predicted);
+			}
+
+			actualLabels.add(actual);
+			predictedLabels.add(predicted);
+			if (weights != null)
+				weights[i] = CostDatumTools.getDatumWeight(datumTools, prediction.getKey());
+			i++;
+		}
+
+		ConfusionMatrix<L> matrix = new ConfusionMatrix<L>(matrixLabels);
+		if (!matrix.add(matrix.getLabelIndices(actualLabels), matrix.getLabelIndices(predictedLabels), weights, maxThreads))
+			return null;
+		return matrix;
+	}
+}
@@ -0,0 +1,439 @@
+package cost.model.evaluation;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import cost.model.HeapBudget;
+import cost.model.SupervisedModelSVMCLN;
+import cost.model.SupervisedModelSVMCLNStack;
+
+import ark.data.annotation.DataSet;
+import ark.data.annotation.Datum;
+import ark.data.feature.Feature;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.evaluation.ConfusionMatrix;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+import ark.util.OutputWriter;
+
+/**
+ * KFoldCrossValidationShared carries out the same k-fold cross validation
+ * (with optional grid search on each fold) as
+ * ark.model.evaluation.KFoldCrossValidation for
+ * cost.model.SupervisedModelSVMCLN models, but it trains the models for
+ * all of the folds in a single sweep over the data per epoch (see
+ * cost.model.SupervisedModelSVMCLNStack).  Each datum carries the id of
+ * its fold, and it updates every model whose training set contains that fold.
+ *
+ * The data is split into the same folds as in
+ * ark.model.evaluation.KFoldCrossValidation.  As there, the grid search for
+ * fold i trains on the folds other than i and i+1 and evaluates on fold i+1,
+ * and the final model for fold i trains on all folds other than i with
+ * the best grid position and is evaluated on fold i.  The grid search models
+ * for all folds are trained in one sweep, and then the final models for all
+ * folds are trained in another sweep.  The results are written in the same
+ * format as ark.model.evaluation.KFoldCrossValidation.
+ *
+ * Unlike in ark.model.evaluation.KFoldCrossValidation, the features are
+ * initialized once on the full data set rather than separately on the training
+ * data for each fold (so that the features of each datum can be read once for
+ * all of the folds).  This would leak the held-out folds into training for
+ * features that depend on the training data, so the validation fails unless
+ * the features initialized on each fold's training data have the same
+ * vocabularies and values on the fold's held-out datums as the shared
+ * features (as with the Identity features used with the synthetic data
+ * sets).  Also, the models only have separate random orderings of the data 
+ * at the granularity of folds (see cost.model.SupervisedModelSVMCLNStack),
+ * so the results can differ slightly from those of
+ * ark.model.evaluation.KFoldCrossValidation.
+ *
+ * The models are trained in the sweeps rather than through their own
+ * training, so their joint grid, successive halving, and checkpoint
+ * settings are ignored (with a warning in the debug output).  If the
+ * validation has a heap budget (see cost.model.HeapBudget), then each
+ * sweep reserves the estimated footprint of all of its models (k times 
+ * the grid size for the grid search) before it starts.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class KFoldCrossValidationShared<D extends Datum<L>, L> {
+	private String name;
+	private SupervisedModelSVMCLN<D, L> model;
+	private List<Feature<D, L>> features;
+	private List<SupervisedModelEvaluation<D, L>> evaluations;
+	private DataSet<D, L> data;
+	private List<DataSet<D, L>> folds;
+	private Map<String, List<String>> possibleParameterValues;
+	private HeapBudget heapBudget; // null for no limit
+	private DecimalFormat cleanDouble;
+
+	public KFoldCrossValidationShared(String name,
+									  SupervisedModelSVMCLN<D, L> model,
+									  List<Feature<D, L>> features,
+									  List<SupervisedModelEvaluation<D, L>> evaluations,
+									  DataSet<D, L> data,
+									  int k) {
+		this.name = name;
+		this.model = model;
+		this.features = features;
+		this.evaluations = evaluations;
+		this.data = data;
+
+		double[] foldDistribution = new double[k];
+		for (int i = 0; i < k; i++)
+			foldDistribution[i] = 1.0/k;
+
+		this.folds = data.makePartition(foldDistribution, data.getDatumTools().getDataTools().getGlobalRandom());
+		this.possibleParameterValues = new HashMap<String, List<String>>();
+		this.cleanDouble = new DecimalFormat("0.00");
+	}
+
+	public boolean setPossibleHyperParameterValues(Map<String, List<String>> possibleParameterValues) {
+		this.possibleParameterValues = possibleParameterValues;
+		return true;
+	}
+
+	public void setHeapBudget(HeapBudget heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+
+	public List<Double> run(int maxThreads) {
+		OutputWriter output = this.data.getDatumTools().getDataTools().getOutputWriter();
+		Datum.Tools<D, L> datumTools = this.data.getDatumTools();
+		int k = this.folds.size();
+		boolean gridSearch = this.possibleParameterValues.size() > 0;
+
+		List<String> ignoredExtraInfo = this.model.getTrainOnlyExtraInfo();
+		if (!ignoredExtraInfo.isEmpty())
+			output.debugWriteln("Warning: Fold sharing trains the models in a single sweep, so it ignores their " + ignoredExtraInfo + " settings (" + this.name + ")");
+
+		/*
+		 * Initialize the features on the full data set, and the training,
+		 * dev, and test sets for each fold
+		 */
+		output.debugWriteln("Initializing shared CV data sets for " + this.name);
+		Map<String, String> environment = datumTools.getDataTools().getParameterEnvironment();
+		FeaturizedDataSet<D, L> allData = makeData(this.name + " All", maxThreads, null);
+		List<Feature<D, L>> initializedFeatures = new ArrayList<Feature<D, L>>();
+		for (Feature<D, L> feature : this.features) {
+			Feature<D, L> initializedFeature = feature.clone(datumTools, environment);
+			if (!initializedFeature.init(allData))
+				return null;
+			allData.addFeature(initializedFeature);
+			initializedFeatures.add(initializedFeature);
+		}
+
+		Map<Integer, Integer> datumFolds = new HashMap<Integer, Integer>();
+		for (int i = 0; i < k; i++)
+			for (D datum : this.folds.get(i))
+				datumFolds.put(datum.getId(), i);
+
+		List<FeaturizedDataSet<D, L>> trainData = new ArrayList<FeaturizedDataSet<D, L>>(k);
+		List<FeaturizedDataSet<D, L>> devData = new ArrayList<FeaturizedDataSet<D, L>>(k);
+		List<FeaturizedDataSet<D, L>> testData = new ArrayList<FeaturizedDataSet<D, L>>(k);
+		List<boolean[]> gridTrainFolds = new ArrayList<boolean[]>(k);
+		List<boolean[]> trainFolds = new ArrayList<boolean[]>(k);
+		for (int i = 0; i < k; i++) {
+			String namePrefix = this.name + " Fold " + i;
+			int devFold = (i + 1) % k;
+			boolean[] gridFolds = new boolean[k];
+			boolean[] folds = new boolean[k];
+			for (int j = 0; j < k; j++) {
+				folds[j] = (j != i);
+				gridFolds[j] = folds[j] && !(gridSearch && j == devFold);
+			}
+
+			trainData.add(makeData(namePrefix + " Training", maxThreads, gridFolds));
+			devData.add(makeData(namePrefix + " Dev", maxThreads, (gridSearch) ? oneFold(k, devFold) : new boolean[k]));
+			testData.add(makeData(namePrefix + " Test", maxThreads, oneFold(k, i)));
+			gridTrainFolds.add(gridFolds);
+			trainFolds.add(folds);
+
+			if (!checkSharedFeatures(initializedFeatures, trainData.get(i), devData.get(i), testData.get(i), environment)) {
+				output.debugWriteln("Error: Fold " + i + " features differ when initialized on its training data, so they can't be shared across folds (" + this.name + ")");
+				return null;
+			}
+
+			for (Feature<D, L> feature : initializedFeatures) {
+				trainData.get(i).addFeature(feature);
+				devData.get(i).addFeature(feature);
+				testData.get(i).addFeature(feature);
+			}
+		}
+
+		List<SupervisedModelSVMCLN<D, L>> foldModels = new ArrayList<SupervisedModelSVMCLN<D, L>>(k);
+		for (int i = 0; i < k; i++) {
+			Map<String, String> foldEnvironment = new HashMap<String, String>();
+			foldEnvironment.putAll(environment);
+			foldEnvironment.put("FOLD", String.valueOf(i));
+			foldModels.add((SupervisedModelSVMCLN<D, L>)this.model.clone(datumTools, foldEnvironment));
+		}
+
+		/*
+		 * Grid search for all folds in one sweep
+		 */
+		List<TreeMap<String, String>> grid = constructGrid();
+		double[][] gridValues = new double[k][grid.size()];
+		List<TreeMap<String, String>> bestPositions = new ArrayList<TreeMap<String, String>>(k);
+		if (gridSearch) {
+			SupervisedModelSVMCLNStack<D, L> gridStack = new SupervisedModelSVMCLNStack<D, L>();
+			for (int i = 0; i < k; i++) {
+				for (TreeMap<String, String> position : grid) {
+					SupervisedModelSVMCLN<D, L> positionModel = (SupervisedModelSVMCLN<D, L>)foldModels.get(i).clone(datumTools);
+					for (Entry<String, String> entry : position.entrySet())
+						positionModel.setHyperParameterValue(entry.getKey(), entry.getValue(), datumTools);
+					gridStack.addModel("Fold " + i + " " + positionString(position), positionModel, trainData.get(i), devData.get(i), gridTrainFolds.get(i));
+				}
+			}
+
+			output.debugWriteln("Grid search evaluating " + this.evaluations.get(0).toString() + " for all folds (" + this.name + ")");
+			if (!trainStack(gridStack, allData, datumFolds, "grid search"))
+				return null;
+
+			for (int i = 0; i < k; i++) {
+				double maxValue = Double.NEGATIVE_INFINITY;
+				TreeMap<String, String> bestPosition = null;
+				for (int p = 0; p < grid.size(); p++) {
+					SupervisedModelSVMCLN<D, L> positionModel = gridStack.getModel(i*grid.size() + p);
+					Map<D, L> predictions = positionModel.classify(devData.get(i));
+					gridValues[i][p] = this.evaluations.get(0).evaluate(positionModel, devData.get(i), predictions);
+					if (gridValues[i][p] > maxValue) {
+						maxValue = gridValues[i][p];
+						bestPosition = grid.get(p);
+					}
+				}
+
+				bestPositions.add(bestPosition);
+				if (bestPosition != null)
+					for (Entry<String, String> entry : bestPosition.entrySet())
+						foldModels.get(i).setHyperParameterValue(entry.getKey(), entry.getValue(), datumTools);
+			}
+
+			for (int i = 0; i < k; i++)
+				trainData.get(i).addAll(devData.get(i));
+		}
+
+		/*
+		 * Final models for all folds in one sweep
+		 */
+		output.debugWriteln("Training models with best parameters for all folds (" + this.name + ")");
+		SupervisedModelSVMCLNStack<D, L> stack = new SupervisedModelSVMCLNStack<D, L>();
+		for (int i = 0; i < k; i++) {
+			String positionStr = (gridSearch && bestPositions.get(i) != null) ? " " + positionString(bestPositions.get(i)) : "";
+			stack.addModel("Fold " + i + positionStr, foldModels.get(i), trainData.get(i), testData.get(i), trainFolds.get(i));
+		}
+
+		if (!trainStack(stack, allData, datumFolds, "final models"))
+			return null;
+
+		/*
+		 * Evaluate and output results for each fold
+		 */
+		ConfusionMatrix<D, L> aggregateConfusions = new ConfusionMatrix<D, L>(this.model.getValidLabels(), this.model.getLabelMapping());
+		String gridSearchParameters = (gridSearch) ? keyString(grid.get(0)) + "\t" : "";
+		String evaluationsStr = "";
+		List<Double> averageEvaluations = new ArrayList<Double>(this.evaluations.size());
+		for (int i = 0; i < this.evaluations.size(); i++) {
+			evaluationsStr += this.evaluations.get(i).toString() + "\t";
+			averageEvaluations.add(0.0);
+		}
+		output.resultsWriteln("Fold\t" + gridSearchParameters + evaluationsStr);
+
+		for (int i = 0; i < k; i++) {
+			SupervisedModelSVMCLN<D, L> foldModel = foldModels.get(i);
+			Map<D, L> predictions = foldModel.classify(testData.get(i));
+			if (predictions == null)
+				return null;
+
+			output.modelWriteln("--------------- Fold: " + i + " ---------------");
+			output.modelWriteln(foldModel.toString());
+
+			String gridSearchParameterValues = (gridSearch) ? valueString(bestPositions.get(i)) + "\t" : "";
+			String evaluationValuesStr = "";
+			for (int j = 0; j < this.evaluations.size(); j++) {
+				double evaluationValue = this.evaluations.get(j).evaluate(foldModel, testData.get(i), predictions);
+				evaluationValuesStr += this.cleanDouble.format(evaluationValue) + "\t";
+				averageEvaluations.set(j, averageEvaluations.get(j) + evaluationValue);
+			}
+			output.resultsWriteln(i + "\t" + gridSearchParameterValues + evaluationValuesStr);
+
+			ConfusionMatrix<D, L> confusions = new ConfusionMatrix<D, L>(this.model.getValidLabels(), this.model.getLabelMapping());
+			confusions.addData(predictions);
+			aggregateConfusions.add(confusions);
+		}
+
+		output.resultsWrite("Averages:\t");
+		for (int i = 0; i < this.possibleParameterValues.size(); i++)
+			output.resultsWrite("\t");
+		for (int i = 0; i < averageEvaluations.size(); i++) {
+			averageEvaluations.set(i, averageEvaluations.get(i)/k);
+			output.resultsWrite(this.cleanDouble.format(averageEvaluations.get(i)) + "\t");
+		}
+		output.resultsWriteln("");
+
+		output.resultsWriteln("\nTotal Confusion Matrix:\n " + aggregateConfusions.toString());
+
+		if (gridSearch) {
+			output.resultsWriteln("\nGrid search results:");
+			output.resultsWrite(keyString(grid.get(0)) + "\t");
+			for (int i = 0; i < k; i++)
+				output.resultsWrite("Fold " + i + "\t");
+			output.resultsWrite("\n");
+
+			for (int p = 0; p < grid.size(); p++) {
+				output.resultsWrite(valueString(grid.get(p)) + "\t");
+				for (int i = 0; i < k; i++)
+					output.resultsWrite(this.cleanDouble.format(gridValues[i][p]) + "\t");
+				output.resultsWrite("\n");
+			}
+		}
+
+		return averageEvaluations;
+	}
+
+	/**
+	 * Trains a stack of models once the heap budget has room for their 
+	 * estimated footprint
+	 *
+	 * @param stack
+	 * @param data
+	 * @param datumFolds
+	 * @param sweepName name of the sweep (for the debug output)
+	 * @return true if the models were trained
+	 */
+	private boolean trainStack(SupervisedModelSVMCLNStack<D, L> stack, FeaturizedDataSet<D, L> data, Map<Integer, Integer> datumFolds, String sweepName) {
+		if (this.heapBudget == null)
+			return stack.train(data, datumFolds);
+
+		OutputWriter output = data.getDatumTools().getDataTools().getOutputWriter();
+		int reservedMegabytes = this.heapBudget.reserve(stack.estimateTrainingBytes(), "the " + sweepName + " sweep of " + this.name, output);
+		if (reservedMegabytes < 0)
+			return false;
+
+		try {
+			return stack.train(data, datumFolds);
+		} finally {
+			this.heapBudget.release(reservedMegabytes);
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param maxThreads
+	 * @param folds whether to include each fold (or null for all of the data)
+	 * @return a featurized data set (without features) containing the datums in the given folds
+	 */
+	private FeaturizedDataSet<D, L> makeData(String name, int maxThreads, boolean[] folds) {
+		FeaturizedDataSet<D, L> data = new FeaturizedDataSet<D, L>(name, maxThreads, this.data.getDatumTools(), this.data.getLabelMapping());
+		if (folds == null) {
+			data.addAll(this.data);
+		} else {
+			for (int i = 0; i < folds.length; i++)
+				if (folds[i])
+					data.addAll(this.folds.get(i));
+		}
+		return data;
+	}
+
+	/**
+	 * @param sharedFeatures features initialized on the full data set
+	 * @param foldTrainData data on which ark.model.evaluation.KFoldCrossValidation 
+	 * would initialize the fold's features
+	 * @param foldDevData
+	 * @param foldTestData
+	 * @param environment
+	 * @return true if the features initialized on foldTrainData have the same
+	 * vocabularies as the shared features, and give the same values on the 
+	 * fold's held-out datums, so that sharing the features doesn't leak the 
+	 * held-out datums into training
+	 */
+	private boolean checkSharedFeatures(List<Feature<D, L>> sharedFeatures, FeaturizedDataSet<D, L> foldTrainData, FeaturizedDataSet<D, L> foldDevData, FeaturizedDataSet<D, L> foldTestData, Map<String, String> environment) {
+		for (Feature<D, L> sharedFeature : sharedFeatures) {
+			Feature<D, L> foldFeature = sharedFeature.clone(foldTrainData.getDatumTools(), environment);
+			if (!foldFeature.init(foldTrainData))
+				return false;
+			
+			if (foldFeature.getVocabularySize() != sharedFeature.getVocabularySize())
+				return false;
+			for (int i = 0; i < foldFeature.getVocabularySize(); i++) {
+				String foldTerm = foldFeature.getVocabularyTerm(i);
+				String sharedTerm = sharedFeature.getVocabularyTerm(i);
+				if ((foldTerm == null) ? sharedTerm != null : !foldTerm.equals(sharedTerm))
+					return false;
+			}
+			
+			for (D datum : foldDevData)
+				if (!foldFeature.computeVector(datum).equals(sharedFeature.computeVector(datum)))
+					return false;
+			for (D datum : foldTestData)
+				if (!foldFeature.computeVector(datum).equals(sharedFeature.computeVector(datum)))
+					return false;
+		}
+		
+		return true;
+	}
+
+	private boolean[] oneFold(int k, int fold) {
+		boolean[] folds = new boolean[k];
+		folds[fold] = true;
+		return folds;
+	}
+
+	/**
+	 * @return the positions in the grid of possible hyper-parameter values, in
+	 * the same order as in ark.model.evaluation.GridSearch
+	 */
+	private List<TreeMap<String, String>> constructGrid() {
+		List<TreeMap<String, String>> positions = new ArrayList<TreeMap<String, String>>();
+		positions.add(new TreeMap<String, String>());
+		for (Entry<String, List<String>> possibleValuesEntry : this.possibleParameterValues.entrySet()) {
+			List<TreeMap<String, String>> newPositions = new ArrayList<TreeMap<String, String>>();
+			for (TreeMap<String, String> position : positions) {
+				for (String value : possibleValuesEntry.getValue()) {
+					TreeMap<String, String> newPosition = new TreeMap<String, String>(position);
+					newPosition.put(possibleValuesEntry.getKey(), value);
+					newPositions.add(newPosition);
+				}
+			}
+			positions = newPositions;
+		}
+
+		return (this.possibleParameterValues.size() > 0) ? positions : new ArrayList<TreeMap<String, String>>();
+	}
+
+	private String positionString(TreeMap<String, String> position) {
+		StringBuilder str = new StringBuilder();
+		for (Entry<String, String> entry : position.entrySet())
+			str.append(entry.getKey()).append("=").append(entry.getValue()).append(",");
+		if (str.length() > 0)
+			str.delete(str.length() - 1, str.length());
+		return "(" + str.toString() + ")";
+	}
+
+	private String keyString(TreeMap<String, String> position) {
+		StringBuilder str = new StringBuilder();
+		for (String key : position.keySet())
+			str.append(key).append("\t");
+		if (str.length() > 0)
+			str.delete(str.length() - 1, str.length());
+		return str.toString();
+	}
+
+	private String valueString(TreeMap<String, String> position) {
+		StringBuilder str = new StringBuilder();
+		if (position == null)
+			return str.toString();
+		for (String value : position.values())
+			str.append(value).append("\t");
+		if (str.length() > 0)
+			str.delete(str.length() - 1, str.length());
+		return str.toString();
+	}
+}
@@ -0,0 +1,64 @@
+package cost.model.evaluation;
+
+import java.util.Map;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.model.evaluation.metric.SupervisedModelEvaluation;
+
+/**
+ * SupervisedModelEvaluationWeightedAccuracy computes the micro-averaged
+ * accuracy for a supervised classification model on a data set in which
+ * each datum counts according to its importance weight (see
+ * cost.data.annotation.CostDatumTools.getDatumWeight).  On a data set of
+ * collapsed duplicate datums, this gives the accuracy on the
+ * original data set.  The accuracy is computed from a
+ * cost.model.evaluation.ConfusionMatrix of the predictions.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> datum label type
+ */
+public class SupervisedModelEvaluationWeightedAccuracy<D extends Datum<L>, L> extends SupervisedModelEvaluation<D, L> {
+
+	@Override
+	protected double compute(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data, Map<D, L> predictions) {
+		ConfusionMatrix<L> matrix = ConfusionMatrix.fromPredictions(model.getValidLabels(), predictions, data.getDatumTools(), data.getMaxThreads());
+		if (matrix == null)
+			return -1;
+		if (this.labelMapping != null)
+			matrix = matrix.map(this.labelMapping);
+
+		return matrix.getAccuracy();
+	}
+
+	@Override
+	public String getGenericName() {
+		return "WeightedAccuracy";
+	}
+
+	@Override
+	protected String[] getParameterNames() {
+		return new String[0];
+	}
+
+	@Override
+	protected String getParameterValue(String parameter) {
+		return null;
+	}
+
+	@Override
+	protected boolean setParameterValue(String parameter,
+			String parameterValue, Tools<D, L> datumTools) {
+		return true;
+	}
+
+	@Override
+	protected SupervisedModelEvaluation<D, L> makeInstance() {
+		return new SupervisedModelEvaluationWeightedAccuracy<D, L>();
+	}
+
+}
@@ -53,6 +53,22 @@ public abstract class FactoredCost<D extends Datum<L>, L> {
 	 */
 	public abstract Map<Integer, Double> computeVector(D datum, L prediction);
 	
+	/**
+	 * Computes the same vector as computeVector for any datum whose (valid)
+	 * actual label is 'actual'.  FactoredCosts whose vectors depend on a datum
+	 * only through its label should override this so that models can 
+	 * precompute the cost of each actual/predicted label pair once rather than
+	 * calling computeVector for every label of every datum.
+	 * 
+	 * @param actual
+	 * @param prediction
+	 * @return a sparse mapping from vector indices to values, or null if the
+	 * vector depends on more of the datum than its label.
+	 */
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
+		return null;
+	}
+	
 	/**
 	 * @return a vector of incorrect prediction normalization constants (the
 	 * constant n vector described in paper/nips2014.pdf)
@@ -70,6 +86,18 @@ public abstract class FactoredCost<D extends Datum<L>, L> {
 	 */
 	public abstract int getVocabularySize();
 	
+	/**
+	 * @param model
+	 * @param data
+	 * @return the vocabulary size that the factored cost will have after 
+	 * init(model, data), without initializing it (for estimating the 
+	 * memory that a model will take before it trains, see 
+	 * cost.model.BudgetedTraining)
+	 */
+	public int estimateVocabularySize(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
+		return getVocabularySize();
+	}
+	
 	/**
 	 * @param predictions
 	 * @return \Kappa difficulties as described in section 2 of 
@@ -6,6 +6,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.LabelIndex;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
@@ -33,26 +36,34 @@ public class FactoredCostActualLabelCount<D extends Datum<L>, L> extends Factore
 	
 	private SupervisedModel<D, L> model;
 	private List<L> labels;
+	private LabelIndex<L> labelIndex;
 	private double[] norms;
 	private int[] labelCountThreshholds;
-	private Map<L, Integer> labelsToIndices;
+	private int[] labelBuckets; // label index -> index of the label's count threshold
 	
 	public FactoredCostActualLabelCount() {
 		this.labels = new ArrayList<L>();
 		this.norms = new double[0];
 		this.labelCountThreshholds = new int[]{ 0, 10, 20, 40, 80, 160 };
-		this.labelsToIndices = new HashMap<L, Integer>();
+		this.labelBuckets = new int[0];
 	}
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getMappedIndex(datum.getLabel()), this.labelIndex.getIndex(prediction));
+	}
+	
+	@Override
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getIndex(actual), this.labelIndex.getIndex(prediction));
+	}
+	
+	private Map<Integer, Double> computeLabelIndexVector(int actualIndex, int predictedIndex) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		L actual = this.model.mapValidLabel(datum.getLabel());
-		if (prediction.equals(actual) || actual == null || prediction == null)
+		if (predictedIndex == actualIndex || actualIndex < 0 || predictedIndex < 0)
 			return vector;
 		
-		int actualIndex = this.labelsToIndices.get(actual);
-		vector.put(actualIndex, this.c);
+		vector.put(this.labelBuckets[actualIndex], this.c);
 		
 		return vector;
 	}
@@ -83,25 +94,30 @@ public class FactoredCostActualLabelCount<D extends Datum<L>, L> extends Factore
 	@Override
 	public boolean init(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
 		this.model = model;
-		this.labels = new ArrayList<L>();
-		this.labels.addAll(this.model.getValidLabels());
+		this.labelIndex = LabelIndex.fromModel(model);
+		this.labels = this.labelIndex.getLabels();
+		this.labelBuckets = new int[this.labels.size()]; // labels that aren't in the data have count 0, so they're in the first bucket
 		this.norms = new double[this.labelCountThreshholds.length];
 		
-		Map<L, Integer> labelCounts = new HashMap<L, Integer>();
+		Map<L, Double> labelCounts = new HashMap<L, Double>();
 		for (D datum : data) {
 			L actualLabel = this.model.mapValidLabel(datum.getLabel());
+			double weight = CostDatumTools.getDatumWeight(data.getDatumTools(), datum);
 			if (labelCounts.containsKey(actualLabel))
-				labelCounts.put(actualLabel, labelCounts.get(actualLabel) + 1);
+				labelCounts.put(actualLabel, labelCounts.get(actualLabel) + weight);
 			else
-				labelCounts.put(actualLabel, 1);
+				labelCounts.put(actualLabel, weight);
 		}
 
-		for (Entry<L, Integer> entry : labelCounts.entrySet()) {
+		for (Entry<L, Double> entry : labelCounts.entrySet()) {
+			int labelIndex = this.labelIndex.getIndex(entry.getKey());
 			for (int i = 1; i < this.labelCountThreshholds.length; i++) {
-				this.labelsToIndices.put(entry.getKey(), this.labelCountThreshholds.length - 1);
+				if (labelIndex >= 0)
+					this.labelBuckets[labelIndex] = this.labelCountThreshholds.length - 1;
 				this.norms[this.labelCountThreshholds.length - 1] += entry.getValue();
 				if (entry.getValue() < this.labelCountThreshholds[i]) {
-					this.labelsToIndices.put(entry.getKey(), i-1);
+					if (labelIndex >= 0)
+						this.labelBuckets[labelIndex] = i-1;
 					this.norms[this.labelCountThreshholds.length - 1] -= entry.getValue();
 					this.norms[i-1] += entry.getValue();
 					break;
@@ -32,8 +32,13 @@ public class FactoredCostConstant<D extends Datum<L>, L> extends FactoredCost<D,
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
+		return computeLabelVector(this.model.mapValidLabel(datum.getLabel()), prediction);
+	}
+	
+	@Override
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		if (!prediction.equals(this.model.mapValidLabel(datum.getLabel())))
+		if (!prediction.equals(actual))
 			vector.put(0, this.c);
 		return vector;
 	}
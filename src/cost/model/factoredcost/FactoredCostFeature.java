@@ -1,8 +1,18 @@
 package cost.model.factoredcost;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
@@ -31,28 +41,151 @@ public class FactoredCostFeature<D extends Datum<L>, L> extends FactoredCost<D,
 	private String[] parameterNames = { "c", "featureReference" };
 
 	private SupervisedModel<D, L> model;
-	private FeaturizedDataSet<D, L> data;
+	private Feature<D, L> feature; // referenced feature (resolved in init)
+	
+	// Feature vectors of the training datums in compressed sparse row form (built in init).  The 
+	// values are scaled by c when they're read, so the rows stay valid if c changes.
+	private Map<Integer, Integer> rows; // training datum id -> row
+	private int[] rowStarts; // row -> start of its entries (with the end of the last row after it)
+	private int[] rowIndices; // entry -> vocabulary index
+	private double[] rowValues; // entry -> feature value
+	private List<Map<Integer, Double>> rowVectors; // row -> read-only view of its c-scaled entries
 	
 	public FactoredCostFeature() {
 		
 	}
 	
+	/**
+	 * @return the c-scaled feature vector of the datum if the prediction is
+	 * incorrect.  The vectors of the training datums are read-only views 
+	 * of their rows, and the vectors of other datums are computed from the
+	 * feature on each call.
+	 */
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
-		Map<Integer, Double> vector = new HashMap<Integer, Double>();
 		L actual = this.model.mapValidLabel(datum.getLabel());
 		if (prediction.equals(actual))
-			return vector;
+			return Collections.emptyMap();
 		
-		Feature<D, L> feature = this.data.getFeatureByReferenceName(this.featureReference);
-		vector = feature.computeVector(datum);
-		for (Entry<Integer, Double> entry : vector.entrySet()) {
-			entry.setValue(entry.getValue() * this.c);
-		}
+		Integer row = this.rows.get(datum.getId());
+		if (row != null)
+			return this.rowVectors.get(row);
 		
+		Map<Integer, Double> vector = new LinkedHashMap<Integer, Double>();
+		for (Entry<Integer, Double> entry : this.feature.computeVector(datum).entrySet())
+			vector.put(entry.getKey(), entry.getValue() * this.c);
 		return vector;
 	}
-
+	
+	/**
+	 * Computes the feature vectors of the datums in data into the rows
+	 * 
+	 * @param data
+	 */
+	private void buildRows(FeaturizedDataSet<D, L> data) {
+		this.rows = new HashMap<Integer, Integer>();
+		this.rowStarts = new int[data.size() + 1];
+		this.rowIndices = new int[data.size()];
+		this.rowValues = new double[data.size()];
+		this.rowVectors = new ArrayList<Map<Integer, Double>>(data.size());
+		
+		int entryCount = 0;
+		for (D datum : data) {
+			Map<Integer, Double> featureVector = this.feature.computeVector(datum);
+			if (entryCount + featureVector.size() > this.rowIndices.length) {
+				int capacity = Math.max(this.rowIndices.length*2, entryCount + featureVector.size());
+				this.rowIndices = Arrays.copyOf(this.rowIndices, capacity);
+				this.rowValues = Arrays.copyOf(this.rowValues, capacity);
+			}
+			
+			for (Entry<Integer, Double> entry : featureVector.entrySet()) {
+				this.rowIndices[entryCount] = entry.getKey();
+				this.rowValues[entryCount] = entry.getValue();
+				entryCount++;
+			}
+			
+			int row = this.rowVectors.size();
+			this.rowStarts[row + 1] = entryCount;
+			this.rowVectors.add(new RowVector(this.rowStarts[row], entryCount));
+			this.rows.put(datum.getId(), row);
+		}
+	}
+	
+	/**
+	 * RowVector is a read-only view of the c-scaled entries of a row
+	 */
+	private class RowVector extends AbstractMap<Integer, Double> {
+		private int start;
+		private int end;
+		
+		public RowVector(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		public int size() {
+			return this.end - this.start;
+		}
+		
+		@Override
+		public boolean containsKey(Object key) {
+			return find(key) >= 0;
+		}
+		
+		@Override
+		public Double get(Object key) {
+			int i = find(key);
+			return (i < 0) ? null : rowValues[i] * c;
+		}
+		
+		private int find(Object key) {
+			if (!(key instanceof Integer))
+				return -1;
+			int index = (Integer)key;
+			for (int i = this.start; i < this.end; i++)
+				if (rowIndices[i] == index)
+					return i;
+			return -1;
+		}
+		
+		@Override
+		public Set<Entry<Integer, Double>> entrySet() {
+			return new AbstractSet<Entry<Integer, Double>>() {
+				@Override
+				public int size() {
+					return RowVector.this.size();
+				}
+				
+				@Override
+				public Iterator<Entry<Integer, Double>> iterator() {
+					return new Iterator<Entry<Integer, Double>>() {
+						private int i = start;
+						
+						@Override
+						public boolean hasNext() {
+							return this.i < end;
+						}
+						
+						@Override
+						public Entry<Integer, Double> next() {
+							if (this.i >= end)
+								throw new NoSuchElementException();
+							Entry<Integer, Double> entry = new SimpleImmutableEntry<Integer, Double>(rowIndices[this.i], rowValues[this.i] * c);
+							this.i++;
+							return entry;
+						}
+						
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+	
 	@Override
 	public String[] getParameterNames() {
 		return this.parameterNames;
@@ -83,7 +216,11 @@ public class FactoredCostFeature<D extends Datum<L>, L> extends FactoredCost<D,
 	@Override
 	public boolean init(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
 		this.model = model;
-		this.data = data;
+		this.feature = data.getFeatureByReferenceName(this.featureReference);
+		if (this.feature == null)
+			return false;
+		
+		buildRows(data);
 		return true;
 	}
 	
@@ -94,12 +231,18 @@ public class FactoredCostFeature<D extends Datum<L>, L> extends FactoredCost<D,
 
 	@Override
 	public int getVocabularySize() {
-		return this.data.getFeatureByReferenceName(this.featureReference).getVocabularySize();
+		return this.feature.getVocabularySize();
+	}
+
+	@Override
+	public int estimateVocabularySize(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
+		Feature<D, L> feature = data.getFeatureByReferenceName(this.featureReference);
+		return (feature == null) ? 0 : feature.getVocabularySize();
 	}
 
 	@Override
 	protected String getVocabularyTerm(int index) {
-		return this.data.getFeatureByReferenceName(this.featureReference).getVocabularyTerm(index);
+		return this.feature.getVocabularyTerm(index);
 	}
 	
 	@Override
@@ -5,6 +5,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.LabelIndex;
+import cost.model.evaluation.ConfusionMatrix;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
@@ -44,6 +48,7 @@ public class FactoredCostLabel<D extends Datum<L>, L> extends FactoredCost<D, L>
 	
 	private SupervisedModel<D, L> model;
 	private List<L> labels;
+	private LabelIndex<L> labelIndex;
 	private double[] norms;
 	
 	public FactoredCostLabel() {
@@ -55,17 +60,22 @@ public class FactoredCostLabel<D extends Datum<L>, L> extends FactoredCost<D, L>
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getMappedIndex(datum.getLabel()), this.labelIndex.getIndex(prediction));
+	}
+	
+	@Override
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getIndex(actual), this.labelIndex.getIndex(prediction));
+	}
+	
+	private Map<Integer, Double> computeLabelIndexVector(int actualIndex, int predictedIndex) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		L actual = this.model.mapValidLabel(datum.getLabel());
-		if (prediction.equals(actual))
+		if (predictedIndex == actualIndex)
 			return vector;
 		
-		for (int i = 0; i < this.labels.size(); i++) {
-			if ((this.factorMode.equals(FactorMode.PREDICTED) && this.labels.get(i).equals(prediction))
-					|| (this.factorMode.equals(FactorMode.ACTUAL) && this.labels.get(i).equals(actual))) {
-				vector.put(i, this.c);
-			}
-		}
+		int index = (this.factorMode.equals(FactorMode.PREDICTED)) ? predictedIndex : actualIndex;
+		if (index >= 0)
+			vector.put(index, this.c);
 		
 		return vector;
 	}
@@ -104,26 +114,20 @@ public class FactoredCostLabel<D extends Datum<L>, L> extends FactoredCost<D, L>
 	@Override
 	public boolean init(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
 		this.model = model;
-		this.labels = new ArrayList<L>();
-		this.labels.addAll(this.model.getValidLabels());
+		this.labelIndex = LabelIndex.fromModel(model);
+		this.labels = this.labelIndex.getLabels();
 		
-		int N = data.size();
+		double N = CostDatumTools.getDataWeight(data.getDatumTools(), data);
 		int vocabularySize = getVocabularySize();
 		this.norms = new double[vocabularySize];
-		Map<L, Integer> dist = new HashMap<L, Integer>();
-		for (D datum : data) {
-			L label = model.mapValidLabel(datum.getLabel());
-			if (!dist.containsKey(label))
-				dist.put(label, 0);
-			dist.put(label, dist.get(label) + 1);
-		}
+		ConfusionMatrix<L> dataMatrix = ConfusionMatrix.fromData(model, this.labels, data);
+		if (dataMatrix == null)
+			return false;
 		
 		if (this.norm == Norm.SOME) {
 			for (int i = 0; i < vocabularySize; i++) {
 				int actualIndex = i / (this.labels.size() - 1);
-				L actualLabel = this.labels.get(actualIndex);
-				double actualCount = dist.containsKey(actualLabel) ? dist.get(actualLabel) : 0;
-				this.norms[i] = actualCount;
+				this.norms[i] = dataMatrix.getActualTotal(actualIndex);
 			}
 		} else { 
 			for (int i = 0; i < vocabularySize; i++) {
@@ -144,6 +148,11 @@ public class FactoredCostLabel<D extends Datum<L>, L> extends FactoredCost<D, L>
 		return this.labels.size();
 	}
 
+	@Override
+	public int estimateVocabularySize(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
+		return model.getValidLabels().size();
+	}
+
 	@Override
 	protected String getVocabularyTerm(int index) {
 		return this.labels.get(index).toString();
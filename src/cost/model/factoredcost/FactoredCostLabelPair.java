@@ -1,19 +1,18 @@
 package cost.model.factoredcost;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.LabelIndex;
+import cost.model.evaluation.ConfusionMatrix;
 
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.SupervisedModel;
-import ark.util.FileUtil;
 
 /**
  * FactoredCostLabelPair factors a cost
@@ -49,6 +48,7 @@ public class FactoredCostLabelPair<D extends Datum<L>, L> extends FactoredCost<D
 	
 	private SupervisedModel<D, L> model;
 	private List<L> labels;
+	private LabelIndex<L> labelIndex;
 	private double[] norms;
 	
 	public FactoredCostLabelPair() {
@@ -61,13 +61,19 @@ public class FactoredCostLabelPair<D extends Datum<L>, L> extends FactoredCost<D
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getMappedIndex(datum.getLabel()), this.labelIndex.getIndex(prediction));
+	}
+	
+	@Override
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getIndex(actual), this.labelIndex.getIndex(prediction));
+	}
+	
+	private Map<Integer, Double> computeLabelIndexVector(int actualIndex, int predictedIndex) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		L actual = this.model.mapValidLabel(datum.getLabel());
-		if (prediction.equals(actual) || actual == null || prediction == null)
+		if (predictedIndex == actualIndex || actualIndex < 0 || predictedIndex < 0)
 			return vector;
 		
-		int actualIndex = this.labels.indexOf(actual);
-		int predictedIndex = this.labels.indexOf(prediction);
 		int n = this.labels.size();
 		vector.put(actualIndex*(n-1)+((predictedIndex > actualIndex) ? predictedIndex-1 : predictedIndex), this.c);
 		
@@ -116,19 +122,15 @@ public class FactoredCostLabelPair<D extends Datum<L>, L> extends FactoredCost<D
 	@Override
 	public boolean init(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
 		this.model = model;
-		this.labels = new ArrayList<L>();
-		this.labels.addAll(this.model.getValidLabels());
+		this.labelIndex = LabelIndex.fromModel(model);
+		this.labels = this.labelIndex.getLabels();
 		
-		int N = data.size();
+		double N = CostDatumTools.getDataWeight(data.getDatumTools(), data);
 		int vocabularySize = getVocabularySize();
 		this.norms = new double[vocabularySize];
-		Map<L, Integer> dist = new HashMap<L, Integer>();
-		for (D datum : data) {
-			L label = model.mapValidLabel(datum.getLabel());
-			if (!dist.containsKey(label))
-				dist.put(label, 0);
-			dist.put(label, dist.get(label) + 1);
-		}
+		ConfusionMatrix<L> dataMatrix = ConfusionMatrix.fromData(model, this.labels, data);
+		if (dataMatrix == null)
+			return false;
 		
 		if (this.norm == Norm.EXPECTED) {	
 			for (int i = 0; i < vocabularySize; i++) {
@@ -136,52 +138,26 @@ public class FactoredCostLabelPair<D extends Datum<L>, L> extends FactoredCost<D
 				int rowPosition = i % (this.labels.size() - 1);
 				int predictedIndex = rowPosition < actualIndex ? rowPosition : rowPosition + 1;
 				
-				L actualLabel = this.labels.get(actualIndex);
-				L predictedLabel = this.labels.get(predictedIndex);
-				double actualCount = dist.containsKey(actualLabel) ? dist.get(actualLabel) : 0;
-				double predictedCount = dist.containsKey(predictedLabel) ? dist.get(predictedLabel) : 0;
+				double actualCount = dataMatrix.getActualTotal(actualIndex);
+				double predictedCount = dataMatrix.getActualTotal(predictedIndex);
 				
 				this.norms[i] = actualCount*predictedCount/N;
 			}
 		} else if (this.norm == Norm.LOGICAL) {
 			for (int i = 0; i < vocabularySize; i++) {
 				int actualIndex = i / (this.labels.size() - 1);
-				L actualLabel = this.labels.get(actualIndex);
-				double actualCount = dist.containsKey(actualLabel) ? dist.get(actualLabel) : 0;
-				this.norms[i] = actualCount;
+				this.norms[i] = dataMatrix.getActualTotal(actualIndex);
 			}
 		} else if (this.norm == Norm.MODEL) {
-			SupervisedModel<D, L> normModel = data.getDatumTools().makeModelInstance(this.modelType);
-			File modelFile = new File(data.getDatumTools().getDataTools().getPath(this.modelPath).getValue(), this.modelName);
-			BufferedReader reader = FileUtil.getFileReader(modelFile.getAbsolutePath());
-			try {
-				normModel.deserialize(reader, true, true, data.getDatumTools(), "");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			Map<D, L> predictions = normModel.classify(data);
-			Map<L, Map<L, Integer>> actualPredictedCounts = new HashMap<L, Map<L, Integer>>();
-			for (Entry<D, L> entry : predictions.entrySet()) {
-				L actualLabel = model.mapValidLabel(entry.getKey().getLabel());
-				L predictedLabel = model.mapValidLabel(entry.getValue());
-				if (!actualPredictedCounts.containsKey(actualLabel))
-					actualPredictedCounts.put(actualLabel, new HashMap<L, Integer>());
-				if (!actualPredictedCounts.get(actualLabel).containsKey(predictedLabel))
-					actualPredictedCounts.get(actualLabel).put(predictedLabel, 0);
-				actualPredictedCounts.get(actualLabel).put(predictedLabel, actualPredictedCounts.get(actualLabel).get(predictedLabel) + 1);		
-			}
+			ConfusionMatrix<L> normMatrix = NormModelCache.getConfusionMatrix(model, this.labels, data, this.modelType, this.modelPath, this.modelName);
+			if (normMatrix == null)
+				return false;
 			
 			for (int i = 0; i < vocabularySize; i++) {
 				int actualIndex = i / (this.labels.size() - 1);
 				int rowPosition = i % (this.labels.size() - 1);
 				int predictedIndex = rowPosition < actualIndex ? rowPosition : rowPosition + 1;
-				L actual = this.labels.get(actualIndex);
-				L predicted = this.labels.get(predictedIndex);
-				int count = 0;
-				if (actualPredictedCounts.containsKey(actual) && actualPredictedCounts.get(actual).containsKey(predicted))
-					count += actualPredictedCounts.get(actual).get(predicted);
-				this.norms[i] = count;
+				this.norms[i] = normMatrix.getCount(actualIndex, predictedIndex);
 			}
 		} else { 
 			for (int i = 0; i < vocabularySize; i++) {
@@ -202,6 +178,12 @@ public class FactoredCostLabelPair<D extends Datum<L>, L> extends FactoredCost<D
 		return this.labels.size() * (this.labels.size() - 1);
 	}
 
+	@Override
+	public int estimateVocabularySize(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
+		int labelCount = model.getValidLabels().size();
+		return labelCount * (labelCount - 1);
+	}
+
 	@Override
 	protected String getVocabularyTerm(int index) {
 		int n = this.labels.size();
@@ -1,19 +1,19 @@
 package cost.model.factoredcost;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import cost.data.annotation.CostDatumTools;
+import cost.data.annotation.LabelIndex;
+import cost.model.evaluation.ConfusionMatrix;
+
 import ark.data.annotation.Datum;
 import ark.data.annotation.Datum.Tools;
 import ark.data.feature.FeaturizedDataSet;
 import ark.model.SupervisedModel;
-import ark.util.FileUtil;
 import ark.util.Pair;
 
 /**
@@ -50,6 +50,7 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 	
 	private SupervisedModel<D, L> model;
 	private List<L> labels;
+	private LabelIndex<L> labelIndex;
 	private double[] norms;
 	
 	public FactoredCostLabelPairUnordered() {
@@ -62,14 +63,19 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 	
 	@Override
 	public Map<Integer, Double> computeVector(D datum, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getMappedIndex(datum.getLabel()), this.labelIndex.getIndex(prediction));
+	}
+	
+	@Override
+	public Map<Integer, Double> computeLabelVector(L actual, L prediction) {
+		return computeLabelIndexVector(this.labelIndex.getIndex(actual), this.labelIndex.getIndex(prediction));
+	}
+	
+	private Map<Integer, Double> computeLabelIndexVector(int actualIndex, int predictedIndex) {
 		Map<Integer, Double> vector = new HashMap<Integer, Double>();
-		L actual = this.model.mapValidLabel(datum.getLabel());
-		if (prediction.equals(actual) || actual == null || prediction == null)
+		if (predictedIndex == actualIndex || actualIndex < 0 || predictedIndex < 0)
 			return vector;
 		
-		int actualIndex = this.labels.indexOf(actual);
-		int predictedIndex = this.labels.indexOf(prediction);
-		
 		int rowIndex = (actualIndex < predictedIndex) ? predictedIndex : actualIndex;
 		int columnIndex = (actualIndex < predictedIndex) ? actualIndex : predictedIndex;
 		vector.put(rowIndex*(rowIndex-1)/2+columnIndex, this.c);
@@ -119,28 +125,22 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 	@Override
 	public boolean init(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
 		this.model = model;
-		this.labels = new ArrayList<L>();
-		this.labels.addAll(this.model.getValidLabels());
+		this.labelIndex = LabelIndex.fromModel(model);
+		this.labels = this.labelIndex.getLabels();
 		
-		int N = data.size();
+		double N = CostDatumTools.getDataWeight(data.getDatumTools(), data);
 		int vocabularySize = getVocabularySize();
 		this.norms = new double[vocabularySize];
-		Map<L, Integer> dist = new HashMap<L, Integer>();
-		for (D datum : data) {
-			L label = model.mapValidLabel(datum.getLabel());
-			if (!dist.containsKey(label))
-				dist.put(label, 0);
-			dist.put(label, dist.get(label) + 1);
-		}
+		ConfusionMatrix<L> dataMatrix = ConfusionMatrix.fromData(model, this.labels, data);
+		if (dataMatrix == null)
+			return false;
 		
 		if (this.norm == Norm.EXPECTED) {	
 			for (int i = 0; i < vocabularySize; i++) {
 				int labelIndex1 = (int)Math.floor(0.5*(Math.sqrt(8*i+1)+1));
 				int labelIndex2 = i - labelIndex1*(labelIndex1-1)/2;
-				L label1 = this.labels.get(labelIndex1);
-				L label2 = this.labels.get(labelIndex2);
-				double labelCount1 = dist.containsKey(label1) ? dist.get(label1) : 0;
-				double labelCount2 = dist.containsKey(label2) ? dist.get(label2) : 0;
+				double labelCount1 = dataMatrix.getActualTotal(labelIndex1);
+				double labelCount2 = dataMatrix.getActualTotal(labelIndex2);
 				
 				this.norms[i] = 2.0*labelCount1*labelCount2/N;
 			}
@@ -148,46 +148,20 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 			for (int i = 0; i < vocabularySize; i++) {
 				int labelIndex1 = (int)Math.floor(0.5*(Math.sqrt(8*i+1)+1));
 				int labelIndex2 = i - labelIndex1*(labelIndex1-1)/2;
-				L label1 = this.labels.get(labelIndex1);
-				L label2 = this.labels.get(labelIndex2);
-				double labelCount1 = dist.containsKey(label1) ? dist.get(label1) : 0;
-				double labelCount2 = dist.containsKey(label2) ? dist.get(label2) : 0;
+				double labelCount1 = dataMatrix.getActualTotal(labelIndex1);
+				double labelCount2 = dataMatrix.getActualTotal(labelIndex2);
 				
 				this.norms[i] = labelCount1 + labelCount2;
 			}
 		} else if (this.norm == Norm.MODEL) {
-			SupervisedModel<D, L> normModel = data.getDatumTools().makeModelInstance(this.modelType);
-			File modelFile = new File(data.getDatumTools().getDataTools().getPath(this.modelPath).getValue(), this.modelName);
-			BufferedReader reader = FileUtil.getFileReader(modelFile.getAbsolutePath());
-			try {
-				normModel.deserialize(reader, true, true, data.getDatumTools(), "");
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			Map<D, L> predictions = normModel.classify(data);
-			Map<L, Map<L, Integer>> actualPredictedCounts = new HashMap<L, Map<L, Integer>>();
-			for (Entry<D, L> entry : predictions.entrySet()) {
-				L actualLabel = model.mapValidLabel(entry.getKey().getLabel());
-				L predictedLabel = model.mapValidLabel(entry.getValue());
-				if (!actualPredictedCounts.containsKey(actualLabel))
-					actualPredictedCounts.put(actualLabel, new HashMap<L, Integer>());
-				if (!actualPredictedCounts.get(actualLabel).containsKey(predictedLabel))
-					actualPredictedCounts.get(actualLabel).put(predictedLabel, 0);
-				actualPredictedCounts.get(actualLabel).put(predictedLabel, actualPredictedCounts.get(actualLabel).get(predictedLabel) + 1);		
-			}
+			ConfusionMatrix<L> normMatrix = NormModelCache.getConfusionMatrix(model, this.labels, data, this.modelType, this.modelPath, this.modelName);
+			if (normMatrix == null)
+				return false;
 			
 			for (int i = 0; i < vocabularySize; i++) {
 				int labelIndex1 = (int)Math.floor(0.5*(Math.sqrt(8*i+1)+1));
 				int labelIndex2 = i - labelIndex1*(labelIndex1-1)/2;
-				L label1 = this.labels.get(labelIndex1);
-				L label2 = this.labels.get(labelIndex2);
-				int count = 0;
-				if (actualPredictedCounts.containsKey(label1) && actualPredictedCounts.get(label1).containsKey(label2))
-					count += actualPredictedCounts.get(label1).get(label2);
-				if (actualPredictedCounts.containsKey(label2) && actualPredictedCounts.get(label2).containsKey(label1))
-					count += actualPredictedCounts.get(label2).get(label1);		
-				this.norms[i] = count;
+				this.norms[i] = normMatrix.getCount(labelIndex1, labelIndex2) + normMatrix.getCount(labelIndex2, labelIndex1);
 			}
 		} else { 
 			for (int i = 0; i < vocabularySize; i++) {
@@ -208,6 +182,12 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 		return this.labels.size() * (this.labels.size() - 1)/2;
 	}
 
+	@Override
+	public int estimateVocabularySize(SupervisedModel<D, L> model, FeaturizedDataSet<D, L> data) {
+		int labelCount = model.getValidLabels().size();
+		return labelCount * (labelCount - 1)/2;
+	}
+
 	@Override
 	protected String getVocabularyTerm(int index) {
 		int rowIndex = (int)Math.floor(0.5*(Math.sqrt(8*index+1)+1));
@@ -235,45 +215,37 @@ public class FactoredCostLabelPairUnordered<D extends Datum<L>, L> extends Facto
 	@Override
 	public Map<Integer, Double> computeKappas(Map<D, L> predictions) {
 		Map<Integer, Double> kappas = new HashMap<Integer, Double>();
-		Map<Integer, Double> actual = new HashMap<Integer, Double>(); // Actual p(cost_S > 0)
-		Map<L, Double> labelActualP = new HashMap<L, Double>();
-		Map<L, Double> labelPredictedP = new HashMap<L, Double>();
-		double normalizedIncrement = 1.0/predictions.size();
-		for (Entry<D, L> entry : predictions.entrySet()) {
-			Map<Integer, Double> actualValues = computeVector(entry.getKey(), entry.getValue());
-			for (Entry<Integer, Double> actualValue : actualValues.entrySet()) {
-				if (actualValue.getValue() == 0)
+		ConfusionMatrix<L> matrix = ConfusionMatrix.fromPredictions(this.labels, predictions, null, 1);
+		if (matrix == null)
+			return null;
+		
+		int vocabularySize = getVocabularySize();
+		double N = predictions.size();
+		double[] actual = new double[vocabularySize]; // Actual p(cost_S > 0)
+		if (this.c != 0) {
+			for (Entry<D, L> entry : predictions.entrySet()) {
+				int actualIndex = this.labelIndex.getMappedIndex(entry.getKey().getLabel());
+				int predictedIndex = this.labelIndex.getIndex(entry.getValue());
+				if (predictedIndex == actualIndex || actualIndex < 0 || predictedIndex < 0)
 					continue;
-				if (!actual.containsKey(actualValue.getKey()))
-					actual.put(actualValue.getKey(), 0.0);
-				actual.put(actualValue.getKey(), actual.get(actualValue.getKey()) + normalizedIncrement);
+				int rowIndex = Math.max(actualIndex, predictedIndex);
+				int columnIndex = Math.min(actualIndex, predictedIndex);
+				actual[rowIndex*(rowIndex-1)/2+columnIndex] += 1.0;
 			}
-			
-			if (!labelActualP.containsKey(entry.getKey().getLabel()))
-				labelActualP.put(entry.getKey().getLabel(), 0.0);
-			labelActualP.put(entry.getKey().getLabel(), labelActualP.get(entry.getKey().getLabel()) + normalizedIncrement);
-			
-			if (!labelPredictedP.containsKey(entry.getValue()))
-				labelPredictedP.put(entry.getValue(), 0.0);
-			labelPredictedP.put(entry.getValue(), labelPredictedP.get(entry.getValue()) + normalizedIncrement);
 		}
 		
-		int vocabularySize = getVocabularySize();
+		double[] labelActualP = new double[this.labels.size()];
+		double[] labelPredictedP = new double[this.labels.size()];
+		for (int i = 0; i < this.labels.size(); i++) {
+			labelActualP[i] = matrix.getActualTotal(i)/N;
+			labelPredictedP[i] = matrix.getPredictedTotal(i)/N;
+		}
+		
 		for (int i = 0; i < vocabularySize; i++) {
-			double actualValue = 0.0;
-			double expectedValue = 0.0;
-			
 			int rowIndex = (int)Math.floor(0.5*(Math.sqrt(8*i+1)+1));
 			int columnIndex = i - rowIndex*(rowIndex-1)/2;
-			L l_1 = this.labels.get(rowIndex);
-			L l_2 = this.labels.get(columnIndex);
-			if (labelActualP.containsKey(l_1) && labelPredictedP.containsKey(l_2))
-				expectedValue += labelActualP.get(l_1)*labelPredictedP.get(l_2);
-			if (labelActualP.containsKey(l_2) && labelPredictedP.containsKey(l_1))
-				expectedValue += labelActualP.get(l_2)*labelPredictedP.get(l_1);
-			
-			if (actual.containsKey(i))
-				actualValue = actual.get(i);
+			double expectedValue = labelActualP[rowIndex]*labelPredictedP[columnIndex] + labelActualP[columnIndex]*labelPredictedP[rowIndex];
+			double actualValue = actual[i]/N;
 			
 			if (expectedValue == 1.0) {
 				kappas.put(i, 0.0);
@@ -0,0 +1,141 @@
+package cost.model.factoredcost;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import cost.model.evaluation.ConfusionMatrix;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+import ark.model.SupervisedModel;
+import ark.util.FileUtil;
+
+/**
+ * NormModelCache holds the norm models that are loaded by
+ * factored costs with the MODEL norm (see
+ * cost.model.factoredcost.FactoredCostLabelPair and
+ * cost.model.factoredcost.FactoredCostLabelPairUnordered), and
+ * the weighted counts of actual/predicted label pairs of their
+ * predictions on each data set.  The factored costs are initialized
+ * once for every model in every grid search position and fold, so
+ * without the cache, every initialization would read the norm model
+ * from its file and classify the data again.
+ *
+ * The cache is shared by the whole process.  Models are kept by
+ * model file path, model type, and the file's modification time (so
+ * a model file that is replaced is loaded again), and the counts are
+ * kept by model and data set identity (and size, so that counts aren't
+ * reused for a data set that has changed).  Counts are cached as a
+ * confusion matrix (see cost.model.evaluation.ConfusionMatrix) under the
+ * norm model's labels, and mapped to the labels of the model that owns
+ * the cost each time they are retrieved.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class NormModelCache {
+	private static class ModelEntry {
+		private long lastModified;
+		private SupervisedModel<?, ?> model;
+	}
+
+	private static class CountsEntry {
+		private long lastModified;
+		private int dataSize;
+		private ConfusionMatrix<?> matrix; // norm model's predictions under its own labels
+	}
+
+	private static Map<Datum.Tools<?, ?>, Map<String, ModelEntry>> models = new WeakHashMap<Datum.Tools<?, ?>, Map<String, ModelEntry>>();
+	private static Map<FeaturizedDataSet<?, ?>, Map<String, CountsEntry>> counts = new WeakHashMap<FeaturizedDataSet<?, ?>, Map<String, CountsEntry>>();
+
+	/**
+	 * @param model model whose cost is normalized (its label mapping is
+	 * applied to the actual and predicted labels)
+	 * @param labels labels of the returned matrix
+	 * @param data
+	 * @param modelType type of the norm model
+	 * @param modelPath name of the path to the directory containing the norm model
+	 * @param modelName file name of the norm model
+	 * @return confusion matrix of the norm model's predictions on data, or
+	 * null if it couldn't be computed
+	 */
+	public static <D extends Datum<L>, L> ConfusionMatrix<L> getConfusionMatrix(SupervisedModel<D, L> model, Collection<L> labels, FeaturizedDataSet<D, L> data, String modelType, String modelPath, String modelName) {
+		ConfusionMatrix<L> matrix = getNormConfusionMatrix(data, modelType, modelPath, modelName);
+		return (matrix == null) ? null : matrix.map(model, labels);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <D extends Datum<L>, L> ConfusionMatrix<L> getNormConfusionMatrix(FeaturizedDataSet<D, L> data, String modelType, String modelPath, String modelName) {
+		File modelFile = new File(data.getDatumTools().getDataTools().getPath(modelPath).getValue(), modelName).getAbsoluteFile();
+		String key = modelType + "\t" + modelFile.getPath();
+		long lastModified = modelFile.lastModified();
+
+		CountsEntry entry = null;
+		synchronized (NormModelCache.class) {
+			if (!counts.containsKey(data))
+				counts.put(data, new HashMap<String, CountsEntry>());
+			entry = counts.get(data).get(key);
+			if (entry == null) {
+				entry = new CountsEntry();
+				counts.get(data).put(key, entry);
+			}
+		}
+
+		synchronized (entry) {
+			if (entry.matrix != null && entry.lastModified == lastModified && entry.dataSize == data.size())
+				return (ConfusionMatrix<L>)entry.matrix;
+
+			SupervisedModel<D, L> normModel = getNormModel(data.getDatumTools(), modelType, modelFile, key, lastModified);
+			Map<D, L> predictions = null;
+			synchronized (normModel) {
+				predictions = normModel.classify(data);
+			}
+
+			ConfusionMatrix<L> matrix = ConfusionMatrix.fromPredictions(normModel.getValidLabels(), predictions, data.getDatumTools(), data.getMaxThreads());
+			if (matrix == null)
+				return null;
+			entry.lastModified = lastModified;
+			entry.dataSize = data.size();
+			entry.matrix = matrix;
+			return matrix;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <D extends Datum<L>, L> SupervisedModel<D, L> getNormModel(Datum.Tools<D, L> datumTools, String modelType, File modelFile, String key, long lastModified) {
+		ModelEntry entry = null;
+		synchronized (NormModelCache.class) {
+			if (!models.containsKey(datumTools))
+				models.put(datumTools, new HashMap<String, ModelEntry>());
+			entry = models.get(datumTools).get(key);
+			if (entry == null) {
+				entry = new ModelEntry();
+				models.get(datumTools).put(key, entry);
+			}
+		}
+
+		synchronized (entry) {
+			if (entry.model != null && entry.lastModified == lastModified)
+				return (SupervisedModel<D, L>)entry.model;
+
+			SupervisedModel<D, L> normModel = datumTools.makeModelInstance(modelType);
+			BufferedReader reader = FileUtil.getFileReader(modelFile.getPath());
+			try {
+				normModel.deserialize(reader, true, true, datumTools, "");
+				reader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return normModel; // not cached, so that the model is read again next time
+			}
+
+			entry.lastModified = lastModified;
+			entry.model = normModel;
+			return normModel;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package cost.model.stopping;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cost.data.annotation.CostDatumTools;
+
+import ark.data.annotation.Datum;
+import ark.util.Pair;
+import ark.util.SerializationUtil;
+
+/**
+ * StoppingCriterion is an abstract parent to classes that
+ * decide when a model should stop training before it has
+ * run for all of its training iterations.  Models check their
+ * stopping criteria after every training iteration, and
+ * stop as soon as any one of them is satisfied.  Each criterion
+ * reads the values it needs (objective value, predictions,
+ * held-out loss, etc) from a shared
+ * cost.model.stopping.TrainingStatus, which computes each
+ * value at most once per iteration.
+ *
+ * Stopping criteria are given to models in the experiment configuration
+ * files through 'stoppingCriterion' lines in the model's extra info
+ * (e.g. 'stoppingCriterion=HeldOutLoss(patience=2, interval=5)').
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public abstract class StoppingCriterion<D extends Datum<L>, L> {
+	/**
+	 * Resets the criterion before a model starts training
+	 *
+	 * @param status
+	 * @return true if everything went okay, false otherwise.
+	 */
+	public abstract boolean init(TrainingStatus<D, L> status);
+
+	/**
+	 * @param status
+	 * @return true if training should stop after the iteration
+	 * described by status
+	 */
+	public abstract boolean isSatisfied(TrainingStatus<D, L> status);
+
+	/**
+	 * Writes the state that the criterion has accumulated since init to a
+	 * training checkpoint.  Criteria that keep state across iterations
+	 * should override this and readState.
+	 *
+	 * @param out
+	 * @param status status of the model whose training is checkpointed
+	 * @return true if the state was written
+	 * @throws IOException
+	 */
+	public boolean writeState(DataOutputStream out, TrainingStatus<D, L> status) throws IOException {
+		return true;
+	}
+
+	/**
+	 * Restores the state written by writeState when training resumes
+	 * from a checkpoint
+	 *
+	 * @param in
+	 * @param status status of the model whose training resumes
+	 * @return true if the state was read
+	 * @throws IOException
+	 */
+	public boolean readState(DataInputStream in, TrainingStatus<D, L> status) throws IOException {
+		return true;
+	}
+
+	/**
+	 * @return a name for the stopping criterion type to use in the experiment
+	 * configuration files.
+	 */
+	public abstract String getGenericName();
+
+	/**
+	 * @return names of parameters that can be set through experiment configuration
+	 * files.
+	 */
+	public abstract String[] getParameterNames();
+
+	/**
+	 * @param parameter
+	 * @return the value of a parameter with the given parameter name
+	 */
+	public abstract String getParameterValue(String parameter);
+
+	/**
+	 * Sets the value of a parameter
+	 *
+	 * @param parameter
+	 * @param parameterValue
+	 * @param datumTools
+	 * @return true if the parameter was successfully set, false otherwise
+	 */
+	public abstract boolean setParameterValue(String parameter, String parameterValue, Datum.Tools<D, L> datumTools);
+
+	/**
+	 * @return an instantiation of a particular the StoppingCriterion class
+	 */
+	protected abstract StoppingCriterion<D, L> makeInstance();
+
+	/**
+	 * @param iteration
+	 * @param interval
+	 * @param minIterations
+	 * @return true if a criterion that checks every 'interval' iterations
+	 * after the first 'minIterations' should check at 'iteration'
+	 */
+	protected boolean isCheckIteration(int iteration, int interval, int minIterations) {
+		return iteration >= minIterations && iteration % interval == 0;
+	}
+
+	/**
+	 * Initializes each of a model's stopping criteria
+	 *
+	 * @param criteria
+	 * @param status
+	 * @return true if all criteria were initialized, false otherwise
+	 */
+	public static <D extends Datum<L>, L> boolean initAll(List<StoppingCriterion<D, L>> criteria, TrainingStatus<D, L> status) {
+		for (StoppingCriterion<D, L> criterion : criteria)
+			if (!criterion.init(status))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param criteria
+	 * @param status
+	 * @return the first of the criteria that is satisfied by the status, or
+	 * null if training should continue
+	 */
+	public static <D extends Datum<L>, L> StoppingCriterion<D, L> findSatisfied(List<StoppingCriterion<D, L>> criteria, TrainingStatus<D, L> status) {
+		for (StoppingCriterion<D, L> criterion : criteria)
+			if (criterion.isSatisfied(status))
+				return criterion;
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return true if name is the 'extra info' assignment through which a
+	 * model is given a stopping criterion
+	 */
+	public static boolean isExtraInfo(String name) {
+		return name.equals("stoppingCriterion");
+	}
+
+	/**
+	 * Reads the right side of a model's 'stoppingCriterion' assignment, and
+	 * adds the criterion to the model's criteria
+	 *
+	 * @param reader
+	 * @param datumTools
+	 * @param criteria
+	 * @return true if the criterion was read
+	 * @throws IOException
+	 */
+	public static <D extends Datum<L>, L> boolean deserializeExtraInfo(BufferedReader reader, Datum.Tools<D, L> datumTools, List<StoppingCriterion<D, L>> criteria) throws IOException {
+		String genericCriterion = SerializationUtil.deserializeGenericName(reader);
+		StoppingCriterion<D, L> criterion = ((CostDatumTools<D, L>)datumTools).makeStoppingCriterionInstance(genericCriterion);
+		if (!criterion.deserialize(reader, false, datumTools))
+			return false;
+		criteria.add(criterion);
+		return true;
+	}
+
+	/**
+	 * Writes a 'stoppingCriterion' assignment for each of a model's criteria
+	 *
+	 * @param criteria
+	 * @param writer
+	 * @return true if the assignments were written
+	 * @throws IOException
+	 */
+	public static <D extends Datum<L>, L> boolean serializeExtraInfo(List<StoppingCriterion<D, L>> criteria, Writer writer) throws IOException {
+		for (StoppingCriterion<D, L> criterion : criteria) {
+			writer.write("\t");
+			Pair<String, String> criterionAssignment = new Pair<String, String>("stoppingCriterion", criterion.toString());
+			if (!SerializationUtil.serializeAssignment(criterionAssignment, writer))
+				return false;
+			writer.write("\n");
+		}
+		return true;
+	}
+
+	/*
+	 * All methods below are for deserializing and instantiating stopping criteria from
+	 * configuration files in the same way as cost.model.factoredcost.FactoredCost.
+	 */
+
+	public StoppingCriterion<D, L> clone(Datum.Tools<D, L> datumTools) {
+		return clone(datumTools, null);
+	}
+
+	public StoppingCriterion<D, L> clone(Datum.Tools<D, L> datumTools, Map<String, String> environment) {
+		StoppingCriterion<D, L> clone = makeInstance();
+		String[] parameterNames = getParameterNames();
+		for (int i = 0; i < parameterNames.length; i++) {
+			String parameterValue = getParameterValue(parameterNames[i]);
+			if (environment != null && parameterValue != null) {
+				for (Entry<String, String> entry : environment.entrySet())
+					parameterValue = parameterValue.replace("${" + entry.getKey() + "}", entry.getValue());
+			}
+			clone.setParameterValue(parameterNames[i], parameterValue, datumTools);
+		}
+		return clone;
+	}
+
+	public boolean deserialize(BufferedReader reader, boolean readGenericName, Datum.Tools<D, L> datumTools) throws IOException {
+		if (readGenericName && SerializationUtil.deserializeGenericName(reader) == null)
+			return false;
+
+		Map<String, String> parameters = SerializationUtil.deserializeArguments(reader);
+		if (parameters != null)
+			for (Entry<String, String> entry : parameters.entrySet())
+				if (!this.setParameterValue(entry.getKey(), entry.getValue(), datumTools))
+					return false;
+
+		return true;
+	}
+
+	public String toString() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		String[] parameterNames = getParameterNames();
+		for (int i = 0; i < parameterNames.length; i++)
+			parameters.put(parameterNames[i], getParameterValue(parameterNames[i]));
+		StringWriter parametersWriter = new StringWriter();
+
+		try {
+			SerializationUtil.serializeArguments(parameters, parametersWriter);
+		} catch (IOException e) {
+			return null;
+		}
+
+		return getGenericName() + "(" + parametersWriter.toString() + ")";
+	}
+
+	public boolean fromString(String str, Datum.Tools<D, L> datumTools) {
+		try {
+			return deserialize(new BufferedReader(new StringReader(str)), true, datumTools);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
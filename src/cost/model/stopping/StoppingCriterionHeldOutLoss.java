@@ -0,0 +1,120 @@
+package cost.model.stopping;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools;
+
+/**
+ * StoppingCriterionHeldOutLoss stops training once the model's 
+ * average loss on the held-out (test) data given to its train
+ * method has failed to improve on its best value by more than
+ * 'minDelta' for 'patience' consecutive checks.  The loss is checked
+ * every 'interval' iterations, starting at iteration 'minIterations'.
+ * The model keeps the weights from the iteration at which it stops
+ * rather than the weights with the best held-out loss.
+ *
+ * See cost.model.stopping.StoppingCriterion for generic documentation
+ * on StoppingCriteria including this one.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class StoppingCriterionHeldOutLoss<D extends Datum<L>, L> extends StoppingCriterion<D, L> {
+	private String[] parameterNames = { "patience", "minDelta", "interval", "minIterations" };
+	private int patience = 2;
+	private double minDelta = 0.0;
+	private int interval = 5;
+	private int minIterations = 0;
+	
+	private double bestLoss;
+	private int checksWithoutImprovement;
+	
+	@Override
+	public boolean init(TrainingStatus<D, L> status) {
+		this.bestLoss = Double.POSITIVE_INFINITY;
+		this.checksWithoutImprovement = 0;
+		return true;
+	}
+
+	@Override
+	public boolean isSatisfied(TrainingStatus<D, L> status) {
+		if (!isCheckIteration(status.getIteration(), this.interval, this.minIterations))
+			return false;
+		
+		double loss = status.getHeldOutLoss();
+		if (Double.isNaN(loss))
+			return false;
+		
+		if (loss < this.bestLoss - this.minDelta) {
+			this.bestLoss = loss;
+			this.checksWithoutImprovement = 0;
+			return false;
+		}
+		
+		this.checksWithoutImprovement++;
+		return this.checksWithoutImprovement >= this.patience;
+	}
+	
+	@Override
+	public boolean writeState(DataOutputStream out, TrainingStatus<D, L> status) throws IOException {
+		out.writeDouble(this.bestLoss);
+		out.writeInt(this.checksWithoutImprovement);
+		return true;
+	}
+	
+	@Override
+	public boolean readState(DataInputStream in, TrainingStatus<D, L> status) throws IOException {
+		this.bestLoss = in.readDouble();
+		this.checksWithoutImprovement = in.readInt();
+		return true;
+	}
+
+	@Override
+	public String getGenericName() {
+		return "HeldOutLoss";
+	}
+
+	@Override
+	public String[] getParameterNames() {
+		return this.parameterNames;
+	}
+
+	@Override
+	public String getParameterValue(String parameter) {
+		if (parameter.equals("patience"))
+			return String.valueOf(this.patience);
+		else if (parameter.equals("minDelta"))
+			return String.valueOf(this.minDelta);
+		else if (parameter.equals("interval"))
+			return String.valueOf(this.interval);
+		else if (parameter.equals("minIterations"))
+			return String.valueOf(this.minIterations);
+		else
+			return null;
+	}
+
+	@Override
+	public boolean setParameterValue(String parameter, String parameterValue, Tools<D, L> datumTools) {
+		if (parameter.equals("patience"))
+			this.patience = Integer.valueOf(parameterValue);
+		else if (parameter.equals("minDelta"))
+			this.minDelta = Double.valueOf(parameterValue);
+		else if (parameter.equals("interval"))
+			this.interval = Integer.valueOf(parameterValue);
+		else if (parameter.equals("minIterations"))
+			this.minIterations = Integer.valueOf(parameterValue);
+		else
+			return false;
+		return true;
+	}
+
+	@Override
+	protected StoppingCriterion<D, L> makeInstance() {
+		return new StoppingCriterionHeldOutLoss<D, L>();
+	}
+}
@@ -0,0 +1,106 @@
+package cost.model.stopping;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools;
+
+/**
+ * StoppingCriterionObjectiveChange stops training once the
+ * relative change in the training objective between two checks
+ * falls below 'relativeEpsilon'.  The objective requires a full
+ * pass over the training data, so it is only checked every
+ * 'interval' iterations, starting at iteration 'minIterations'.
+ *
+ * See cost.model.stopping.StoppingCriterion for generic documentation
+ * on StoppingCriteria including this one.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class StoppingCriterionObjectiveChange<D extends Datum<L>, L> extends StoppingCriterion<D, L> {
+	private String[] parameterNames = { "relativeEpsilon", "interval", "minIterations" };
+	private double relativeEpsilon = 0.0001;
+	private int interval = 5;
+	private int minIterations = 20;
+	
+	private double prevObjectiveValue;
+	
+	@Override
+	public boolean init(TrainingStatus<D, L> status) {
+		this.prevObjectiveValue = Double.NaN;
+		return true;
+	}
+
+	@Override
+	public boolean isSatisfied(TrainingStatus<D, L> status) {
+		if (status.getIteration() % this.interval != 0)
+			return false;
+		
+		double objectiveValue = status.getObjectiveValue();
+		double prevObjectiveValue = this.prevObjectiveValue;
+		this.prevObjectiveValue = objectiveValue;
+		
+		if (status.getIteration() < this.minIterations || Double.isNaN(prevObjectiveValue))
+			return false;
+		
+		double scale = Math.max(Math.abs(prevObjectiveValue), Double.MIN_NORMAL);
+		return Math.abs(objectiveValue - prevObjectiveValue)/scale < this.relativeEpsilon;
+	}
+	
+	@Override
+	public boolean writeState(DataOutputStream out, TrainingStatus<D, L> status) throws IOException {
+		out.writeDouble(this.prevObjectiveValue);
+		return true;
+	}
+	
+	@Override
+	public boolean readState(DataInputStream in, TrainingStatus<D, L> status) throws IOException {
+		this.prevObjectiveValue = in.readDouble();
+		return true;
+	}
+
+	@Override
+	public String getGenericName() {
+		return "ObjectiveChange";
+	}
+
+	@Override
+	public String[] getParameterNames() {
+		return this.parameterNames;
+	}
+
+	@Override
+	public String getParameterValue(String parameter) {
+		if (parameter.equals("relativeEpsilon"))
+			return String.valueOf(this.relativeEpsilon);
+		else if (parameter.equals("interval"))
+			return String.valueOf(this.interval);
+		else if (parameter.equals("minIterations"))
+			return String.valueOf(this.minIterations);
+		else
+			return null;
+	}
+
+	@Override
+	public boolean setParameterValue(String parameter, String parameterValue, Tools<D, L> datumTools) {
+		if (parameter.equals("relativeEpsilon"))
+			this.relativeEpsilon = Double.valueOf(parameterValue);
+		else if (parameter.equals("interval"))
+			this.interval = Integer.valueOf(parameterValue);
+		else if (parameter.equals("minIterations"))
+			this.minIterations = Integer.valueOf(parameterValue);
+		else
+			return false;
+		return true;
+	}
+
+	@Override
+	protected StoppingCriterion<D, L> makeInstance() {
+		return new StoppingCriterionObjectiveChange<D, L>();
+	}
+}
@@ -0,0 +1,107 @@
+package cost.model.stopping;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools;
+
+/**
+ * StoppingCriterionPredictionDiff stops training once the fraction
+ * of the model's predictions that changed since the previous check
+ * is at most 'maxRatio'.  Predictions are checked every 'interval'
+ * iterations, starting at iteration 'minIterations', and the criterion
+ * keeps the predictions from its previous check to compare against (so
+ * the first check only records them).  With the default maxRatio of 0,
+ * training stops when no prediction changes between checks.
+ *
+ * See cost.model.stopping.StoppingCriterion for generic documentation
+ * on StoppingCriteria including this one.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class StoppingCriterionPredictionDiff<D extends Datum<L>, L> extends StoppingCriterion<D, L> {
+	private String[] parameterNames = { "maxRatio", "interval", "minIterations" };
+	private double maxRatio = 0.0;
+	private int interval = 10;
+	private int minIterations = 10;
+	
+	private Map<D, L> prevPredictions; // predictions at the previous check
+	
+	@Override
+	public boolean init(TrainingStatus<D, L> status) {
+		this.prevPredictions = null;
+		return true;
+	}
+
+	@Override
+	public boolean isSatisfied(TrainingStatus<D, L> status) {
+		if (!isCheckIteration(status.getIteration(), this.interval, this.minIterations))
+			return false;
+		
+		int predictionDifferences = status.countPredictionDifferences(this.prevPredictions);
+		Map<D, L> predictions = status.getPredictions();
+		this.prevPredictions = predictions;
+		if (predictionDifferences < 0 || predictions.size() == 0)
+			return false;
+		
+		return predictionDifferences <= this.maxRatio*predictions.size();
+	}
+	
+	@Override
+	public boolean writeState(DataOutputStream out, TrainingStatus<D, L> status) throws IOException {
+		status.writePredictions(out, this.prevPredictions);
+		return true;
+	}
+	
+	@Override
+	public boolean readState(DataInputStream in, TrainingStatus<D, L> status) throws IOException {
+		this.prevPredictions = status.readPredictions(in);
+		return true;
+	}
+
+	@Override
+	public String getGenericName() {
+		return "PredictionDiff";
+	}
+
+	@Override
+	public String[] getParameterNames() {
+		return this.parameterNames;
+	}
+
+	@Override
+	public String getParameterValue(String parameter) {
+		if (parameter.equals("maxRatio"))
+			return String.valueOf(this.maxRatio);
+		else if (parameter.equals("interval"))
+			return String.valueOf(this.interval);
+		else if (parameter.equals("minIterations"))
+			return String.valueOf(this.minIterations);
+		else
+			return null;
+	}
+
+	@Override
+	public boolean setParameterValue(String parameter, String parameterValue, Tools<D, L> datumTools) {
+		if (parameter.equals("maxRatio"))
+			this.maxRatio = Double.valueOf(parameterValue);
+		else if (parameter.equals("interval"))
+			this.interval = Integer.valueOf(parameterValue);
+		else if (parameter.equals("minIterations"))
+			this.minIterations = Integer.valueOf(parameterValue);
+		else
+			return false;
+		return true;
+	}
+
+	@Override
+	protected StoppingCriterion<D, L> makeInstance() {
+		return new StoppingCriterionPredictionDiff<D, L>();
+	}
+}
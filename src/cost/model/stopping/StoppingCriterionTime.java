@@ -0,0 +1,64 @@
+package cost.model.stopping;
+
+import ark.data.annotation.Datum;
+import ark.data.annotation.Datum.Tools;
+
+/**
+ * StoppingCriterionTime stops training once the model has
+ * been training for more than 'seconds' seconds of wall-clock
+ * time.
+ *
+ * See cost.model.stopping.StoppingCriterion for generic documentation
+ * on StoppingCriteria including this one.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public class StoppingCriterionTime<D extends Datum<L>, L> extends StoppingCriterion<D, L> {
+	private String[] parameterNames = { "seconds" };
+	private double seconds = Double.POSITIVE_INFINITY;
+	
+	@Override
+	public boolean init(TrainingStatus<D, L> status) {
+		return true;
+	}
+
+	@Override
+	public boolean isSatisfied(TrainingStatus<D, L> status) {
+		return status.getElapsedSeconds() > this.seconds;
+	}
+
+	@Override
+	public String getGenericName() {
+		return "Time";
+	}
+
+	@Override
+	public String[] getParameterNames() {
+		return this.parameterNames;
+	}
+
+	@Override
+	public String getParameterValue(String parameter) {
+		if (parameter.equals("seconds"))
+			return String.valueOf(this.seconds);
+		else
+			return null;
+	}
+
+	@Override
+	public boolean setParameterValue(String parameter, String parameterValue, Tools<D, L> datumTools) {
+		if (parameter.equals("seconds"))
+			this.seconds = Double.valueOf(parameterValue);
+		else
+			return false;
+		return true;
+	}
+
+	@Override
+	protected StoppingCriterion<D, L> makeInstance() {
+		return new StoppingCriterionTime<D, L>();
+	}
+}
@@ -0,0 +1,230 @@
+package cost.model.stopping;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import cost.data.annotation.CostDatumTools;
+
+import ark.data.annotation.Datum;
+import ark.data.feature.FeaturizedDataSet;
+
+/**
+ * TrainingStatus describes the state of a model after its most
+ * recent training iteration for the model's stopping criteria (see
+ * cost.model.stopping.StoppingCriterion).  Values that require a
+ * pass over the data (the objective value, predictions, and
+ * held-out loss) are only computed when some criterion (or the
+ * model's training log) asks for them, and they are
+ * computed at most once per iteration.  So a model whose stopping
+ * criteria check every few iterations only pays for these passes at
+ * the iterations at which some criterion checks.
+ *
+ * Models extend this class with the computations that are
+ * specific to them.
+ *
+ * @author Bill McDowell
+ *
+ * @param <D> datum type
+ * @param <L> label type
+ */
+public abstract class TrainingStatus<D extends Datum<L>, L> {
+	protected FeaturizedDataSet<D, L> data; // training data
+	protected FeaturizedDataSet<D, L> predictionData; // data on which prediction differences are counted
+	protected FeaturizedDataSet<D, L> heldOutData; // data on which the held-out loss is computed (possibly null)
+	protected long startTime;
+	protected int iteration;
+
+	private Double objectiveValue;
+	private Map<D, L> predictions;
+	private Map<D, L> prevPredictions; // predictions from the last iteration at which they were computed
+	private Double heldOutLoss;
+
+	public TrainingStatus(FeaturizedDataSet<D, L> data, FeaturizedDataSet<D, L> predictionData, FeaturizedDataSet<D, L> heldOutData) {
+		this.data = data;
+		this.predictionData = predictionData;
+		this.heldOutData = heldOutData;
+		this.startTime = System.currentTimeMillis();
+		this.iteration = -1;
+	}
+
+	/**
+	 * @param data
+	 * @return the value of the model's training objective on data
+	 */
+	protected abstract double computeObjectiveValue(FeaturizedDataSet<D, L> data);
+
+	/**
+	 * @param data
+	 * @return the model's predictions for data
+	 */
+	protected abstract Map<D, L> computePredictions(FeaturizedDataSet<D, L> data);
+
+	/**
+	 * @param data
+	 * @return the model's total loss on data (without regularization), with
+	 * each datum's loss weighted by its weight
+	 */
+	protected abstract double computeLoss(FeaturizedDataSet<D, L> data);
+
+	/**
+	 * Clears the values cached for the previous iteration.  Models should
+	 * call this after each training iteration.
+	 *
+	 * @param iteration
+	 */
+	public void nextIteration(int iteration) {
+		this.iteration = iteration;
+		this.objectiveValue = null;
+		this.heldOutLoss = null;
+		if (this.predictions != null) {
+			this.prevPredictions = this.predictions;
+			this.predictions = null;
+		}
+	}
+
+	/**
+	 * Restores the status of a model whose training resumes from a
+	 * checkpoint
+	 *
+	 * @param iteration the most recently completed training iteration
+	 * @param elapsedSeconds training time before the checkpoint
+	 * @param prevPredictions the predictions from the last iteration at which
+	 * they were computed (or null)
+	 */
+	public void restore(int iteration, double elapsedSeconds, Map<D, L> prevPredictions) {
+		this.iteration = iteration;
+		this.startTime = System.currentTimeMillis() - (long)(elapsedSeconds*1000.0);
+		this.objectiveValue = null;
+		this.heldOutLoss = null;
+		this.predictions = null;
+		this.prevPredictions = prevPredictions;
+	}
+
+	/**
+	 * @return the predictions from the most recent iteration at which they
+	 * were computed (or null if they haven't been computed), without
+	 * computing them
+	 */
+	public Map<D, L> getLatestPredictions() {
+		return (this.predictions != null) ? this.predictions : this.prevPredictions;
+	}
+
+	/**
+	 * @return the most recently completed training iteration (or -1 before
+	 * training starts)
+	 */
+	public int getIteration() {
+		return this.iteration;
+	}
+
+	public double getElapsedSeconds() {
+		return (System.currentTimeMillis() - this.startTime)/1000.0;
+	}
+
+	public double getObjectiveValue() {
+		if (this.objectiveValue == null)
+			this.objectiveValue = computeObjectiveValue(this.data);
+		return this.objectiveValue;
+	}
+
+	public Map<D, L> getPredictions() {
+		if (this.predictions == null)
+			this.predictions = computePredictions(this.predictionData);
+		return this.predictions;
+	}
+
+	/**
+	 * @return the number of predictions that differ from the predictions
+	 * at the last iteration at which predictions were computed (for training
+	 * logs), or -1 if predictions have not been computed before this iteration
+	 */
+	public int getPredictionDifferences() {
+		return countPredictionDifferences(this.prevPredictions);
+	}
+
+	/**
+	 * @param prevPredictions earlier predictions (e.g. from a criterion's 
+	 * previous check)
+	 * @return the number of prevPredictions that differ from the predictions
+	 * at this iteration, or -1 if prevPredictions is null
+	 */
+	public int countPredictionDifferences(Map<D, L> prevPredictions) {
+		Map<D, L> predictions = getPredictions();
+		if (prevPredictions == null)
+			return -1;
+
+		int count = 0;
+		for (Entry<D, L> entry: prevPredictions.entrySet()) {
+			if (!predictions.containsKey(entry.getKey()) || !entry.getValue().equals(predictions.get(entry.getKey())))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the values that have already been computed for this iteration
+	 * (for training logs), without computing any others
+	 */
+	public String describeComputedValues() {
+		StringBuilder str = new StringBuilder();
+		if (this.objectiveValue != null)
+			str.append(" objective: ").append(this.objectiveValue);
+		if (this.predictions != null)
+			str.append(" prediction-diff: ").append(getPredictionDifferences()).append("/").append(this.predictions.size());
+		if (this.heldOutLoss != null)
+			str.append(" held-out loss: ").append(this.heldOutLoss);
+		return str.toString();
+	}
+
+	/**
+	 * Writes predictions for the prediction data to a training checkpoint
+	 *
+	 * @param out
+	 * @param predictions (possibly null)
+	 * @throws IOException
+	 */
+	public void writePredictions(DataOutputStream out, Map<D, L> predictions) throws IOException {
+		out.writeInt((predictions == null) ? -1 : predictions.size());
+		if (predictions == null)
+			return;
+
+		for (Entry<D, L> entry : predictions.entrySet()) {
+			out.writeInt(entry.getKey().getId());
+			out.writeUTF(entry.getValue().toString());
+		}
+	}
+
+	/**
+	 * @param in
+	 * @return predictions written by writePredictions
+	 * @throws IOException
+	 */
+	public Map<D, L> readPredictions(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0)
+			return null;
+
+		Map<D, L> predictions = new HashMap<D, L>();
+		for (int i = 0; i < size; i++) {
+			D datum = this.predictionData.getDatumById(in.readInt());
+			predictions.put(datum, this.predictionData.getDatumTools().labelFromString(in.readUTF()));
+		}
+		return predictions;
+	}
+
+	/**
+	 * @return the model's average loss per held-out datum (per unit of
+	 * datum weight), or NaN if there is no held-out data
+	 */
+	public double getHeldOutLoss() {
+		if (this.heldOutData == null || this.heldOutData.size() == 0)
+			return Double.NaN;
+		if (this.heldOutLoss == null)
+			this.heldOutLoss = computeLoss(this.heldOutData)/CostDatumTools.getDataWeight(this.heldOutData.getDatumTools(), this.heldOutData);
+		return this.heldOutLoss;
+	}
+}
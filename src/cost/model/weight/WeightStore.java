@@ -0,0 +1,96 @@
+package cost.model.weight;
+
+import java.io.File;
+import java.io.IOException;
+
+import cost.model.HeapBudget;
+
+/**
+ * WeightStore is an abstract parent to classes that hold a dense
+ * vector of model weights (or of the AdaGrad sums that go along
+ * with them), indexed in the same way as a double[] (e.g.
+ * labelIndex*numFeatures+featureIndex for label feature weights).
+ * The weights can be stored on the heap (cost.model.weight.WeightStoreArray),
+ * or outside of the heap in direct buffers or in buffers that are
+ * memory-mapped from a file (cost.model.weight.WeightStoreBuffer), so that
+ * models with very many weights can train without a huge heap
+ * and without long garbage collection pauses.
+ *
+ * Models choose their storage through a 'weightStorage' line in
+ * their extra info with one of the values below (see
+ * cost.model.SupervisedModelCL).
+ *
+ * @author Bill McDowell
+ *
+ */
+public abstract class WeightStore {
+	public enum Storage {
+		HEAP, // double[] on the heap
+		DIRECT, // direct byte buffers outside of the heap
+		MAPPED // byte buffers memory-mapped from temporary files
+	}
+
+	/**
+	 * @return the number of weights
+	 */
+	public abstract int size();
+
+	/**
+	 * @param index
+	 * @return the weight at index
+	 */
+	public abstract double get(int index);
+
+	/**
+	 * Sets the weight at index to value
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public abstract void set(int index, double value);
+
+	/**
+	 * Adds value to the weight at index
+	 *
+	 * @param index
+	 * @param value
+	 */
+	public void add(int index, double value) {
+		set(index, get(index) + value);
+	}
+
+	/**
+	 * @param storage
+	 * @param size
+	 * @param directory directory for the files of mapped stores (or null for
+	 * the default temporary file directory)
+	 * @return a store of 'size' zero weights with the given storage, or null if
+	 * the store couldn't be created
+	 */
+	public static WeightStore make(Storage storage, int size, String directory) {
+		if (storage == Storage.HEAP)
+			return new WeightStoreArray(size);
+
+		try {
+			if (storage == Storage.DIRECT)
+				return WeightStoreBuffer.makeDirect(size);
+			else
+				return WeightStoreBuffer.makeMapped(size, (directory == null) ? null : new File(directory));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param storage
+	 * @param size
+	 * @return approximate bytes of heap taken by a store of 'size' weights
+	 * with the given storage (the buffers of the other storages are 
+	 * outside of the heap)
+	 */
+	public static long estimateHeapBytes(Storage storage, long size) {
+		if (storage == Storage.HEAP)
+			return HeapBudget.arrayBytes(size, HeapBudget.DOUBLE_BYTES);
+		return 0;
+	}
+}
@@ -0,0 +1,36 @@
+package cost.model.weight;
+
+/**
+ * WeightStoreArray stores weights on the heap in a double[].
+ * See cost.model.weight.WeightStore for more information.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class WeightStoreArray extends WeightStore {
+	private double[] weights;
+
+	public WeightStoreArray(int size) {
+		this.weights = new double[size];
+	}
+
+	@Override
+	public int size() {
+		return this.weights.length;
+	}
+
+	@Override
+	public double get(int index) {
+		return this.weights[index];
+	}
+
+	@Override
+	public void set(int index, double value) {
+		this.weights[index] = value;
+	}
+
+	@Override
+	public void add(int index, double value) {
+		this.weights[index] += value;
+	}
+}
@@ -0,0 +1,104 @@
+package cost.model.weight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * WeightStoreBuffer stores weights outside of the heap, either
+ * in direct byte buffers, or in byte buffers that are memory-mapped
+ * from a temporary file (so that the operating system can page
+ * weights that aren't being used out to disk).  A single buffer
+ * can hold at most 2^31 bytes, so the weights are split into
+ * chunks of 2^CHUNK_BITS weights, and the weight at index i is in
+ * chunk i >> CHUNK_BITS.
+ *
+ * The temporary file of a mapped store is deleted as soon as it is
+ * mapped (or when the JVM exits, on systems that can't delete mapped
+ * files), and its disk space is released when the store is garbage
+ * collected.
+ *
+ * See cost.model.weight.WeightStore for more information.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class WeightStoreBuffer extends WeightStore {
+	private static final int CHUNK_BITS = 27; // 2^27 weights (1GB) per buffer
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private int size;
+	private DoubleBuffer[] chunks;
+
+	private WeightStoreBuffer(int size, DoubleBuffer[] chunks) {
+		this.size = size;
+		this.chunks = chunks;
+	}
+
+	/**
+	 * @param size
+	 * @return a store of 'size' zero weights in direct buffers
+	 */
+	public static WeightStoreBuffer makeDirect(int size) {
+		DoubleBuffer[] chunks = new DoubleBuffer[getChunkCount(size)];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = ByteBuffer.allocateDirect(getChunkSize(size, i)*8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		return new WeightStoreBuffer(size, chunks);
+	}
+
+	/**
+	 * @param size
+	 * @param directory directory in which to create the temporary file (or
+	 * null for the default temporary file directory)
+	 * @return a store of 'size' zero weights in buffers mapped from a
+	 * temporary file
+	 * @throws IOException
+	 */
+	public static WeightStoreBuffer makeMapped(int size, File directory) throws IOException {
+		File file = File.createTempFile("weights", ".bin", directory);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		DoubleBuffer[] chunks = new DoubleBuffer[getChunkCount(size)];
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long position = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				long chunkBytes = getChunkSize(size, i)*8L;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkBytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+				position += chunkBytes;
+			}
+		} finally {
+			randomAccessFile.close();
+			if (!file.delete())
+				file.deleteOnExit();
+		}
+
+		return new WeightStoreBuffer(size, chunks);
+	}
+
+	private static int getChunkCount(int size) {
+		return (int)((size + (long)CHUNK_MASK) >> CHUNK_BITS);
+	}
+
+	private static int getChunkSize(int size, int chunk) {
+		return Math.min(CHUNK_MASK + 1, size - (chunk << CHUNK_BITS));
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public double get(int index) {
+		return this.chunks[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+	}
+
+	@Override
+	public void set(int index, double value) {
+		this.chunks[index >>> CHUNK_BITS].put(index & CHUNK_MASK, value);
+	}
+}
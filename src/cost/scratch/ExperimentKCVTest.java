@@ -1,18 +1,16 @@
 package cost.scratch;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
 
+import cost.data.annotation.TestDataSetLoader;
 import cost.data.annotation.TestDatum;
 import cost.data.annotation.TestLabel;
+import cost.experiment.ExperimentKCVShared;
 import cost.util.CostProperties;
 
 import ark.data.DataTools;
 import ark.data.annotation.DataSet;
 import ark.data.annotation.Datum.Tools;
-import ark.experiment.ExperimentKCV;
-import ark.util.FileUtil;
 import ark.util.OutputWriter;
 
 /**
@@ -20,6 +18,10 @@ import ark.util.OutputWriter;
  * 
  * [experimentName] - Name of an experiment in 'experiments/KCVTest' to run
  * [dataSetName] - Name of synthetic dataset generated by cost.scratch.ConstructFakeData
+ * [collapseDuplicates] (optional) - 'true' to load identical rows of the data set
+ * as single weighted datums (see cost.data.annotation.TestDataSetLoader)
+ * [packBinary] (optional) - 'false' to keep the feature values of data sets
+ * whose values are all -1 or +1 unpacked (see cost.data.annotation.TestDatum)
  * 
  * And runs the cross validation experiment specified by the
  * [experimentName].experiment configuration file in 'experiments/KCVTest' on
@@ -29,6 +31,9 @@ import ark.util.OutputWriter;
  * of the experiment (where [experimentOutputDir] is specified in
  * 'cost.properties'.
  * 
+ * Experiments with 'foldSharing=true' train the models for all folds in a
+ * single sweep over the data per epoch (see cost.experiment.ExperimentKCVShared).
+ * 
  * The input experiment configuration files in experiments/KCVTest are
  * named according to the following convention:
  * 
@@ -42,6 +47,8 @@ public class ExperimentKCVTest {
 	public static void main(String[] args) {
 		String experimentName = "KCVTest/" + args[0];
 		String dataSetName = args[1];
+		boolean collapseDuplicates = args.length > 2 && Boolean.valueOf(args[2]);
+		boolean packBinary = args.length <= 3 || Boolean.valueOf(args[3]);
 		String experimentOutputName = dataSetName + "/" + experimentName;
 
 		CostProperties properties = new CostProperties();
@@ -65,28 +72,14 @@ public class ExperimentKCVTest {
 		Tools<TestDatum, TestLabel> datumTools = new TestDatum.Tools(dataTools);
 		
 		String dataSetPath = (new File(properties.getFakeDataDirPath(), dataSetName)).getAbsolutePath();
-		DataSet<TestDatum, TestLabel> data = new DataSet<TestDatum, TestLabel>(datumTools, null);
-		
-		try {
-			BufferedReader reader = FileUtil.getFileReader(dataSetPath);
-			String line = null;
-			int id = 0;
-			while ((line = reader.readLine()) != null) {
-				String[] lineParts = line.split("\t");
-				double[] features = new double[lineParts.length - 1];
-				for (int i = 0; i < features.length; i++)
-					features[i] = Double.valueOf(lineParts[i]);
-				TestLabel label = TestLabel.valueOf(lineParts[lineParts.length - 1]);
-				data.add(new TestDatum(id, features, label));
-				id++;
-			}
-			reader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		DataSet<TestDatum, TestLabel> data = new TestDataSetLoader(collapseDuplicates, packBinary).load(dataSetPath, datumTools);
+		if (data == null) {
+			output.debugWriteln("Error: Failed to load data set " + dataSetPath + ".");
+			return;
 		}
 		
-		ExperimentKCV<TestDatum, TestLabel> experiment = 
-				new ExperimentKCV<TestDatum, TestLabel>(experimentOutputName, experimentInputPath, data);
+		ExperimentKCVShared<TestDatum, TestLabel> experiment = 
+				new ExperimentKCVShared<TestDatum, TestLabel>(experimentOutputName, experimentInputPath, data);
 	
 		if (!experiment.run())
 			output.debugWriteln("Error: Experiment run failed.");
@@ -0,0 +1,59 @@
+package cost.util;
+
+import ark.util.MathUtil;
+
+/**
+ * CostMathUtil contains math utilities for the cost learning models 
+ * in addition to those in ark.util.MathUtil.
+ * 
+ * @author Bill McDowell
+ * 
+ */
+public class CostMathUtil extends MathUtil {
+	private static final double[] LANCZOS_COEFFICIENTS = {
+		0.99999999999980993,
+		676.5203681218851,
+		-1259.1392167224028,
+		771.32342877765313,
+		-176.61502916214059,
+		12.507343278686905,
+		-0.13857109526572012,
+		9.9843695780195716e-6,
+		1.5056327351493116e-7
+	};
+	
+	/**
+	 * @param x
+	 * @return the natural log of the absolute value of the gamma function at x, 
+	 * computed using the Lanczos approximation
+	 */
+	public static double logGamma(double x) {
+		if (x < 0.5) // Reflection formula
+			return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1.0 - x);
+		
+		x -= 1.0;
+		double a = LANCZOS_COEFFICIENTS[0];
+		double t = x + 7.5;
+		for (int i = 1; i < LANCZOS_COEFFICIENTS.length; i++)
+			a += LANCZOS_COEFFICIENTS[i] / (x + i);
+		
+		return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+	}
+	
+	/**
+	 * @param k
+	 * @param first
+	 * @param last
+	 * @return the product of (1 - k/tau) for tau from first to last computed in 
+	 * closed form as Gamma(last+1-k)Gamma(first)/(Gamma(first-k)Gamma(last+1)).  This
+	 * assumes first > k so that all of the factors are positive.  Products of this
+	 * form arise when repeatedly applying an l2 regularizer with the 1/(l2*tau) 
+	 * Pegasos learning rate.
+	 */
+	public static double shrinkageProduct(double k, int first, int last) {
+		if (first > last)
+			return 1.0;
+		
+		return Math.exp(logGamma(last + 1 - k) - logGamma(first - k) + logGamma(first) - logGamma(last + 1));
+	}
+}
@@ -0,0 +1,164 @@
+package cost.util;
+
+/**
+ * SimplexProjection projects vectors onto the probability simplex
+ * { x : \sum x_i = 1, x_i >= 0 } using the expected linear time
+ * pivot algorithm from Figure 2 of
+ *
+ * Duchi, J., Shalev-Shwartz, S., Singer, Y., and Chandra, T.
+ * Efficient projections onto the l1-ball for learning in high
+ * dimensions.  ICML 2008.
+ *
+ * The projection of v is x_i = max(0, v_i - theta) for a threshold
+ * theta, and the algorithm finds theta without sorting v by
+ * repeatedly partitioning the candidate entries around a pivot (like
+ * quickselect).  The weighted projection minimizes
+ * \sum G_i (x_i - v_i)^2 (e.g. for AdaGrad, where G is the sum of
+ * squared gradients), so that x_i = max(0, v_i - theta/G_i), and
+ * entry i is positive exactly when G_i*v_i > theta.
+ *
+ * The pivot of each partition is the middle candidate rather
+ * than a random one, so that the projection of a vector is always
+ * computed in the same order (and gives the same floating point
+ * result).
+ *
+ * @author Bill McDowell
+ *
+ */
+public class SimplexProjection {
+	/**
+	 * Projects v onto the simplex in place
+	 *
+	 * @param v
+	 * @return the threshold theta subtracted from v
+	 */
+	public static double project(double[] v) {
+		return project(v, null);
+	}
+
+	/**
+	 * Projects v onto the simplex in place under the metric
+	 * \sum G_i (x_i - v_i)^2.  Entries with G_i = 0 are set to 0.
+	 *
+	 * @param v
+	 * @param G weights of the entries (or null if every entry has weight 1)
+	 * @return the threshold theta (where x_i = max(0, v_i - theta/G_i))
+	 */
+	public static double project(double[] v, double[] G) {
+		int[] candidates = new int[v.length];
+		int count = 0;
+		for (int i = 0; i < v.length; i++) {
+			if (G == null || G[i] != 0)
+				candidates[count++] = i;
+		}
+
+		double theta = computeThreshold(v, G, candidates, count, 0);
+		for (int i = 0; i < v.length; i++) {
+			if (G == null)
+				v[i] = Math.max(0, v[i] - theta);
+			else if (G[i] == 0)
+				v[i] = 0;
+			else
+				v[i] = Math.max(0, v[i] - theta/G[i]);
+		}
+
+		return theta;
+	}
+
+	/**
+	 * Computes the projection onto the simplex of a sparse vector
+	 * of dimension 'dimension', whose first 'count' entries of values are
+	 * its non-zero entries, and whose other entries are 0.  The non-zero
+	 * entries are projected in place, and the other entries of the
+	 * projection all equal max(0, -theta), which is 0 unless the
+	 * non-zero entries sum to less than 1.
+	 *
+	 * @param values
+	 * @param count
+	 * @param dimension
+	 * @return the threshold theta
+	 */
+	public static double projectSparse(double[] values, int count, int dimension) {
+		int[] candidates = new int[count];
+		double positiveSum = 0;
+		for (int i = 0; i < count; i++) {
+			candidates[i] = i;
+			positiveSum += Math.max(0, values[i]);
+		}
+
+		// theta < 0 (so that the zero entries are positive in the projection)
+		// exactly when the projection at theta = 0 sums to less than 1
+		int activeZeros = (positiveSum < 1.0) ? dimension - count : 0;
+		double theta = computeThreshold(values, null, candidates, count, activeZeros);
+
+		for (int i = 0; i < count; i++)
+			values[i] = Math.max(0, values[i] - theta);
+
+		return theta;
+	}
+
+	/**
+	 * @param v
+	 * @param G weights (or null)
+	 * @param candidates indices of v that might be positive in the projection
+	 * (these are reordered)
+	 * @param count number of candidates
+	 * @param activeZeros number of additional zero entries of weight 1
+	 * known to be positive in the projection
+	 * @return the threshold of the projection
+	 */
+	private static double computeThreshold(double[] v, double[] G, int[] candidates, int count, int activeZeros) {
+		// Sums of v_i and 1/G_i over the entries known to be positive
+		double sumV = 0;
+		double sumInverseG = activeZeros;
+		int start = 0;
+		int end = count;
+		while (start < end) {
+			double pivot = key(v, G, candidates[start + (end - start)/2]);
+
+			// Partition the candidates into [start, split) with key >= pivot
+			// and [split, end) with key < pivot
+			int split = start;
+			double partitionV = 0;
+			double partitionInverseG = 0;
+			for (int i = start; i < end; i++) {
+				int index = candidates[i];
+				if (key(v, G, index) >= pivot) {
+					candidates[i] = candidates[split];
+					candidates[split] = index;
+					split++;
+					partitionV += v[index];
+					partitionInverseG += (G == null) ? 1.0 : 1.0/G[index];
+				}
+			}
+
+			// The sum of the projected entries at theta = pivot
+			if ((sumV + partitionV) - pivot*(sumInverseG + partitionInverseG) < 1.0) {
+				// theta < pivot, so all entries with key >= pivot are positive
+				sumV += partitionV;
+				sumInverseG += partitionInverseG;
+				start = split;
+			} else {
+				// theta >= pivot, so only entries with key > pivot can be positive
+				int greater = start;
+				for (int i = start; i < split; i++) {
+					int index = candidates[i];
+					if (key(v, G, index) > pivot) {
+						candidates[i] = candidates[greater];
+						candidates[greater] = index;
+						greater++;
+					}
+				}
+				end = greater;
+			}
+		}
+
+		if (sumInverseG == 0)
+			return 0;
+		return (sumV - 1.0)/sumInverseG;
+	}
+
+	private static double key(double[] v, double[] G, int index) {
+		return (G == null) ? v[index] : G[index]*v[index];
+	}
+}
@@ -0,0 +1,127 @@
+package cost.util;
+
+/**
+ * SparseAccumulator sums values into a sparse vector over non-negative
+ * indices using primitive buffers (an open addressing hash table of
+ * positions and arrays of the touched indices and their sums).  Adding to
+ * and looking up an index take expected constant time, iterating over the
+ * touched indices takes time proportional to their number, and clearing
+ * the accumulator only resets the touched slots, so one accumulator can be
+ * reused for many sparse sums over a large index space (e.g. the feature
+ * values of each datum structure over all of a model's weights).  The
+ * buffers grow with the number of touched indices rather than with the
+ * size of the index space.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class SparseAccumulator {
+	private int[] slots; // hash slot -> 1 + position of its index in indices (0 if empty)
+	private int[] indexSlots; // position -> hash slot of the index at the position
+	private int[] indices;
+	private double[] values;
+	private int size;
+
+	public SparseAccumulator() {
+		this.slots = new int[32];
+		this.indexSlots = new int[16];
+		this.indices = new int[16];
+		this.values = new double[16];
+		this.size = 0;
+	}
+
+	public void add(int index, double value) {
+		int slot = findSlot(index);
+		int position = this.slots[slot] - 1;
+		if (position >= 0) {
+			this.values[position] += value;
+			return;
+		}
+
+		if (this.size == this.indices.length) {
+			grow();
+			slot = findSlot(index);
+		}
+
+		this.indices[this.size] = index;
+		this.values[this.size] = value;
+		this.indexSlots[this.size] = slot;
+		this.size++;
+		this.slots[slot] = this.size;
+	}
+
+	/**
+	 * @param index
+	 * @return the sum at index (0 if nothing was added to it)
+	 */
+	public double get(int index) {
+		int position = this.slots[findSlot(index)] - 1;
+		return (position >= 0) ? this.values[position] : 0.0;
+	}
+
+	public boolean contains(int index) {
+		return this.slots[findSlot(index)] != 0;
+	}
+
+	/**
+	 * @return number of touched indices
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @param position
+	 * @return the touched index at position (in the order that indices were
+	 * first touched)
+	 */
+	public int getIndex(int position) {
+		return this.indices[position];
+	}
+
+	public double getValue(int position) {
+		return this.values[position];
+	}
+
+	public void clear() {
+		for (int i = 0; i < this.size; i++)
+			this.slots[this.indexSlots[i]] = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * @param index
+	 * @return the slot that holds index, or the empty slot where it belongs
+	 * (the table is kept at most half full, so there is always an empty slot)
+	 */
+	private int findSlot(int index) {
+		int mask = this.slots.length - 1;
+		int slot = hash(index) & mask;
+		while (this.slots[slot] != 0 && this.indices[this.slots[slot] - 1] != index)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = this.indices.length*2;
+		int[] indices = new int[capacity];
+		double[] values = new double[capacity];
+		System.arraycopy(this.indices, 0, indices, 0, this.size);
+		System.arraycopy(this.values, 0, values, 0, this.size);
+		this.indices = indices;
+		this.values = values;
+		this.indexSlots = new int[capacity];
+		this.slots = new int[capacity*2];
+
+		for (int i = 0; i < this.size; i++) {
+			int slot = findSlot(this.indices[i]);
+			this.slots[slot] = i + 1;
+			this.indexSlots[i] = slot;
+		}
+	}
+
+	private int hash(int index) {
+		int hash = index*0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,60 @@
+package cost.util;
+
+import java.util.Random;
+
+/**
+ * StatefulRandom is a java.util.Random whose state can be read and
+ * restored as a single long, so that a training checkpoint can save the
+ * random number generator of a model explicitly rather than through Java
+ * serialization (see cost.model.TrainingCheckpoint).  It uses the same
+ * linear congruential generator as java.util.Random, so a StatefulRandom
+ * with a given seed gives the same sequence as a java.util.Random with
+ * that seed.
+ *
+ * The state doesn't include the second gaussian that nextGaussian caches,
+ * so a generator restored with setState continues the sequence of the
+ * original one only if nextGaussian isn't used.
+ *
+ * @author Bill McDowell
+ *
+ */
+public class StatefulRandom extends Random {
+	private static final long serialVersionUID = 1L;
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	private long state;
+
+	public StatefulRandom(long seed) {
+		super(seed);
+		setSeed(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		super.setSeed(seed);
+		this.state = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	@Override
+	protected int next(int bits) {
+		this.state = (this.state*MULTIPLIER + ADDEND) & MASK;
+		return (int)(this.state >>> (48 - bits));
+	}
+
+	/**
+	 * @return the state from which the generator continues its sequence
+	 * (see setState)
+	 */
+	public long getState() {
+		return this.state;
+	}
+
+	/**
+	 * @param state a state returned by getState
+	 */
+	public void setState(long state) {
+		this.state = state & MASK;
+	}
+}